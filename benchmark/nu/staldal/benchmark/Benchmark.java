@@ -0,0 +1,45 @@
+package nu.staldal.benchmark;
+
+/**
+ * A benchmark, run repeatedly by the {@link BenchmarkRunner}.
+ *
+ * A benchmark suite is a class with a method
+ * <code>public static Benchmark[] benchmarks()</code>.
+ */
+public abstract class Benchmark
+{
+    private final String name;
+
+    protected Benchmark(String name)
+    {
+        this.name = name;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * Invoked once before the benchmark is run.
+     */
+    public void setUp() throws Exception
+    {
+    }
+
+    /**
+     * Run one operation.
+     *
+     * @return some value depending on the result of the operation, 
+     *         e.g. the number of bytes written, to make sure it's not
+     *         optimized away.
+     */
+    public abstract long run() throws Exception;
+
+    /**
+     * Invoked once after the benchmark is run.
+     */
+    public void tearDown() throws Exception
+    {
+    }
+}
@@ -0,0 +1,163 @@
+package nu.staldal.benchmark;
+
+import java.lang.reflect.Method;
+import java.util.Vector;
+
+/**
+ * Runs benchmark suites.
+ *
+ * Each benchmark is first run for a number of warmup iterations, to let
+ * the JIT compiler do its work, and then for a number of measurement 
+ * iterations. Each iteration runs the benchmark as many times as possible 
+ * during a fixed time. The mean and standard deviation of the number of 
+ * operations per second of the measurement iterations are reported.
+ */
+public class BenchmarkRunner
+{
+    private static final String syntaxMsg =
+        "Syntax:\n"
+      + "nu.staldal.benchmark.BenchmarkRunner [<options>] <suite class>...\n"
+      + "Options:\n"
+      + "  -warmup <n>      number of warmup iterations (default 3)\n"
+      + "  -iterations <n>  number of measurement iterations (default 5)\n"
+      + "  -time <ms>       length of each iteration (default 1000)\n"
+      + "  -only <text>     only run benchmarks whose name contains <text>";
+
+    private int warmup = 3;
+    private int iterations = 5;
+    private long time = 1000;
+    private String only = null;
+
+    private long blackhole = 0;
+
+
+    public static void main(String[] args)
+        throws Exception
+    {
+        BenchmarkRunner runner = new BenchmarkRunner();
+        Vector suites = new Vector();
+
+        try {
+            for (int i = 0; i<args.length; i++)
+            {
+                if (args[i].equals("-warmup") && i+1 < args.length)
+                    runner.warmup = Integer.parseInt(args[++i]);
+                else if (args[i].equals("-iterations") && i+1 < args.length)
+                    runner.iterations = Integer.parseInt(args[++i]);
+                else if (args[i].equals("-time") && i+1 < args.length)
+                    runner.time = Long.parseLong(args[++i]);
+                else if (args[i].equals("-only") && i+1 < args.length)
+                    runner.only = args[++i];
+                else if (args[i].startsWith("-"))
+                    throw new IllegalArgumentException(args[i]);
+                else
+                    suites.addElement(args[i]);
+            }
+        }
+        catch (IllegalArgumentException e)
+        {
+            System.out.println(syntaxMsg);
+            return;
+        }
+        if (suites.isEmpty() || runner.iterations < 1)
+        {
+            System.out.println(syntaxMsg);
+            return;
+        }
+
+        for (int i = 0; i<suites.size(); i++)
+        {
+            Class suite = Class.forName((String)suites.elementAt(i));
+            Method m = suite.getMethod("benchmarks", new Class[0]);
+            Benchmark[] benchmarks = (Benchmark[])m.invoke(null, new Object[0]);
+
+            for (int j = 0; j<benchmarks.length; j++)
+            {
+                if (runner.only != null
+                        && benchmarks[j].getName().indexOf(runner.only) < 0)
+                    continue;
+
+                runner.run(benchmarks[j]);
+            }
+        }
+
+        // make sure the results are used
+        if (runner.blackhole == 42) System.out.println();
+    }
+
+
+    private void run(Benchmark benchmark)
+        throws Exception
+    {
+        benchmark.setUp();
+        try {
+            for (int i = 0; i<warmup; i++)
+            {
+                iteration(benchmark);
+            }
+
+            double[] results = new double[iterations];
+            for (int i = 0; i<iterations; i++)
+            {
+                results[i] = iteration(benchmark);
+            }
+
+            double sum = 0;
+            for (int i = 0; i<results.length; i++) sum += results[i];
+            double mean = sum / results.length;
+
+            double sqsum = 0;
+            for (int i = 0; i<results.length; i++)
+                sqsum += (results[i]-mean)*(results[i]-mean);
+            double stddev = (results.length > 1)
+                ? Math.sqrt(sqsum / (results.length-1))
+                : 0;
+
+            System.out.println(pad(benchmark.getName(), 40) + " " 
+                + pad(format(mean), 12) + " +- " 
+                + pad(format(stddev), 10) + " ops/s");
+        }
+        finally
+        {
+            benchmark.tearDown();
+        }
+    }
+
+
+    /**
+     * Run the benchmark during one iteration.
+     *
+     * @return operations per second
+     */
+    private double iteration(Benchmark benchmark)
+        throws Exception
+    {
+        long ops = 0;
+        long start = System.currentTimeMillis();
+        long elapsed;
+        do {
+            blackhole += benchmark.run();
+            ops++;
+            elapsed = System.currentTimeMillis() - start;
+        } while (elapsed < time);
+
+        return ops * 1000.0 / elapsed;
+    }
+
+
+    private static String format(double d)
+    {
+        if (d >= 100)
+            return String.valueOf(Math.round(d));
+        else
+            return String.valueOf(Math.round(d*100) / 100.0);
+    }
+
+
+    private static String pad(String s, int len)
+    {
+        StringBuffer sb = new StringBuffer(s);
+        while (sb.length() < len) sb.append(' ');
+        return sb.toString();
+    }
+}
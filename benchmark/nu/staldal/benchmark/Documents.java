@@ -0,0 +1,113 @@
+package nu.staldal.benchmark;
+
+import java.io.*;
+import java.util.Properties;
+
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.stream.StreamResult;
+
+import nu.staldal.xtree.*;
+import nu.staldal.xodus.Serializer;
+
+/**
+ * Generates documents to use in benchmarks, looking like typical 
+ * web pages.
+ */
+public class Documents
+{
+    /**
+     * Text with markup characters and characters outside ASCII and 
+     * ISO-8859-1, to exercise escaping.
+     */
+    public static final String TEXT = 
+        "Lagoon is an XML-based framework for web site maintenance. "
+      + "It's written by Mikael Ståldal & others, "
+      + "\"if a < b then b > a\" – costs € 0, "
+      + "Ωμέγα. ";
+
+    private Documents() {}
+
+
+    /**
+     * Create an HTML page.
+     *
+     * @param sections  number of sections, each one is about 1 KB
+     */
+    public static Element createPage(int sections)
+    {
+        Element html = new Element("", "html");
+
+        Element head = new Element("", "head");
+        html.addChild(head);
+        Element title = new Element("", "title");
+        title.addChild(new Text("Benchmark page"));
+        head.addChild(title);
+        Element meta = new Element("", "meta", 2);
+        meta.addAttribute("", "name", "CDATA", "keywords");
+        meta.addAttribute("", "content", "CDATA", "xml, xslt, lagoon");
+        head.addChild(meta);
+
+        Element body = new Element("", "body", 1);
+        body.addAttribute("", "class", "CDATA", "page");
+        html.addChild(body);
+
+        for (int i = 0; i<sections; i++)
+        {
+            Element div = new Element("", "div", 1);
+            div.addAttribute("", "id", "CDATA", "section" + i);
+            body.addChild(div);
+
+            Element h2 = new Element("", "h2");
+            h2.addChild(new Text("Section " + i));
+            div.addChild(h2);
+
+            for (int j = 0; j<3; j++)
+            {
+                Element p = new Element("", "p");
+                p.addChild(new Text(TEXT));
+                Element a = new Element("", "a", 1);
+                a.addAttribute("", "href", "CDATA", 
+                    "page" + j + ".html?a=1&b=å");
+                a.addChild(new Text("link " + j));
+                p.addChild(a);
+                Element em = new Element("", "em");
+                em.addChild(new Text("emphasized"));
+                p.addChild(em);
+                p.addChild(new Text(TEXT));
+                div.addChild(p);
+            }
+
+            Element ul = new Element("", "ul");
+            for (int j = 0; j<3; j++)
+            {
+                Element li = new Element("", "li");
+                li.addChild(new Text("item " + j));
+                ul.addChild(li);
+            }
+            div.addChild(ul);
+            div.addChild(new Element("", "br"));
+        }
+
+        return html;
+    }
+
+
+    /**
+     * Serialize a document as XML in UTF-8.
+     */
+    public static byte[] toBytes(Element doc)
+        throws Exception
+    {
+        Properties p = new Properties();
+        p.setProperty(OutputKeys.METHOD, "xml");
+        p.setProperty(OutputKeys.ENCODING, "UTF-8");
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Serializer ser = Serializer.createSerializer(new StreamResult(out), p);
+        ser.startDocument();
+        doc.toSAX(ser);
+        ser.endDocument();
+
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,26 @@
+package nu.staldal.benchmark;
+
+import java.io.OutputStream;
+
+/**
+ * An OutputStream which discards everything, but counts the bytes.
+ */
+public class NullOutputStream extends OutputStream
+{
+    private long count = 0;
+
+    public void write(int b)
+    {
+        count++;
+    }
+
+    public void write(byte[] b, int off, int len)
+    {
+        count += len;
+    }
+
+    public long getCount()
+    {
+        return count;
+    }
+}
@@ -0,0 +1,235 @@
+package nu.staldal.lagoon;
+
+import java.io.*;
+
+import nu.staldal.xtree.*;
+import nu.staldal.lagoon.core.*;
+
+/**
+ * End-to-end benchmark of building a site with Lagoon, 
+ * typically generated by {@link SiteGenerator}.
+ *
+ * Runs a forced build, a build with nothing changed, and a build 
+ * after changing one source file, to a {@link LocalFileStorage}
+ * in the <code>out</code> subdirectory of the site.
+ * Reports time, files built, files/sec and peak heap usage for each.
+ */
+public class BenchBuild
+{
+    private static final String syntaxMsg =
+        "Syntax: nu.staldal.lagoon.BenchBuild [-threads <n>] [-hash] [-generate <pages>] <site_dir>";
+
+    public static void main(String[] args)
+        throws Exception
+    {
+        int workerThreads = 1;
+        boolean contentHash = false;
+        int generate = 0;
+        File siteDir = null;
+
+        for (int i = 0; i<args.length; i++)
+        {
+            if (args[i].equals("-threads") && i+1 < args.length)
+                workerThreads = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-hash"))
+                contentHash = true;
+            else if (args[i].equals("-generate") && i+1 < args.length)
+                generate = Integer.parseInt(args[++i]);
+            else if (args[i].startsWith("-") || siteDir != null)
+            {
+                System.out.println(syntaxMsg);
+                return;
+            }
+            else
+                siteDir = new File(args[i]);
+        }
+        if (siteDir == null)
+        {
+            System.out.println(syntaxMsg);
+            return;
+        }
+
+        if (generate > 0)
+        {
+            long timeBefore = System.currentTimeMillis();
+            SiteGenerator.generate(siteDir, generate);
+            System.out.println("Generated " + generate + " pages in " 
+                + (System.currentTimeMillis()-timeBefore) + " ms");
+        }
+
+        CountingWriter counter = new CountingWriter("Building: ");
+        PrintWriter log = new PrintWriter(counter, true);
+        PrintWriter err = new PrintWriter(System.err, true);
+        HeapSampler heap = new HeapSampler();
+        heap.start();
+
+        System.out.println("threads=" + workerThreads 
+            + " hash=" + contentHash);
+        System.out.println(
+            "phase       time(ms)  files  files/sec  peak heap(MB)");
+
+        startPhase(counter, heap);
+        long timeBefore = System.currentTimeMillis();
+        Element sitemapTree = TreeBuilder.parseXML(
+            TreeBuilder.fileToInputSource(new File(siteDir, "sitemap.xml")), 
+            false);
+        File targetDir = new File(siteDir, "out");
+        LagoonProcessor processor = new LagoonProcessor(
+            targetDir.getAbsolutePath(), sitemapTree, 
+            new File(siteDir, "src"), null, log, err);
+        processor.setWorkerThreads(workerThreads);
+        if (contentHash) processor.setContentHash(true);
+        report("init", System.currentTimeMillis()-timeBefore, counter, heap);
+
+        runBuild("force", processor, true, counter, heap);
+        runBuild("no-op", processor, false, counter, heap);
+
+        File changed = new File(siteDir, "src/s0/p0.xml");
+        SiteGenerator.writePage(changed, 0, 0);
+        changed.setLastModified(System.currentTimeMillis()+2000);
+        runBuild("one-change", processor, false, counter, heap);
+
+        processor.destroy();
+        heap.finish();
+    }
+
+
+    private static void runBuild(String phase, LagoonProcessor processor, 
+                                 boolean force, 
+                                 CountingWriter counter, HeapSampler heap)
+        throws Exception
+    {
+        startPhase(counter, heap);
+        long timeBefore = System.currentTimeMillis();
+        boolean success = processor.build(force);
+        long time = System.currentTimeMillis()-timeBefore;
+        report(phase, time, counter, heap);
+        if (!success) System.out.println("  (with errors)");
+    }
+
+
+    private static void startPhase(CountingWriter counter, HeapSampler heap)
+    {
+        System.gc();
+        counter.reset();
+        heap.reset();
+    }
+
+
+    private static void report(String phase, long time, 
+                               CountingWriter counter, HeapSampler heap)
+    {
+        int files = counter.getCount();
+        long rate = (time > 0) ? (files * 1000L / time) : 0;
+        System.out.println(pad(phase, 12) + pad(String.valueOf(time), 10) 
+            + pad(String.valueOf(files), 7) + pad(String.valueOf(rate), 11) 
+            + (heap.getPeak() / (1024*1024)));
+    }
+
+
+    private static String pad(String s, int width)
+    {
+        StringBuffer sb = new StringBuffer(s);
+        while (sb.length() < width) sb.append(' ');
+        return sb.toString();
+    }
+
+
+    /**
+     * Count lines starting with a given prefix, discard all output.
+     */
+    static class CountingWriter extends Writer
+    {
+        private final String prefix;
+        private final StringBuffer line = new StringBuffer();
+        private int count;
+
+        CountingWriter(String prefix)
+        {
+            this.prefix = prefix;
+        }
+
+        public synchronized void write(char[] cbuf, int off, int len)
+        {
+            for (int i = off; i<off+len; i++)
+            {
+                if (cbuf[i] == '\n')
+                {
+                    if (line.toString().startsWith(prefix)) count++;
+                    line.setLength(0);
+                }
+                else if (line.length() < prefix.length())
+                {
+                    line.append(cbuf[i]);
+                }
+            }
+        }
+
+        public void flush() {}
+
+        public void close() {}
+
+        synchronized void reset()
+        {
+            count = 0;
+        }
+
+        synchronized int getCount()
+        {
+            return count;
+        }
+    }
+
+
+    /**
+     * Sample used heap periodically and keep track of the peak.
+     */
+    static class HeapSampler extends Thread
+    {
+        private long peak;
+        private boolean finished;
+
+        HeapSampler()
+        {
+            setDaemon(true);
+        }
+
+        public void run()
+        {
+            Runtime rt = Runtime.getRuntime();
+            while (true)
+            {
+                synchronized (this)
+                {
+                    if (finished) return;
+                    long used = rt.totalMemory() - rt.freeMemory();
+                    if (used > peak) peak = used;
+                    try {
+                        wait(10);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        return;
+                    }
+                }
+            }
+        }
+
+        synchronized void reset()
+        {
+            Runtime rt = Runtime.getRuntime();
+            peak = rt.totalMemory() - rt.freeMemory();
+        }
+
+        synchronized long getPeak()
+        {
+            return peak;
+        }
+
+        synchronized void finish()
+        {
+            finished = true;
+            notify();
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package nu.staldal.lagoon;
+
+import java.io.*;
+
+/**
+ * Generates a synthetic website, to benchmark Lagoon with.
+ *
+ * The site has XML pages transformed with XSLT (using LSSI includes and 
+ * a part), in sections of 100 pages with one wildcard entry each, 
+ * one page with XML islands per 1000 pages, and one static file per 
+ * 10 pages.
+ */
+public class SiteGenerator
+{
+    private static final String syntaxMsg =
+        "Syntax: nu.staldal.lagoon.SiteGenerator <site_dir> <pages>";
+
+    static final int SECTION_SIZE = 100;
+    static final int ISLAND_EVERY = 1000;
+    static final int STATIC_EVERY = 10;
+
+    private static final String LSSI_NS = "http://staldal.nu/Lagoon/LSSI";
+
+
+    public static void main(String[] args)
+        throws Exception
+    {
+        if (args.length < 2)
+        {
+            System.out.println(syntaxMsg);
+            return;
+        }
+
+        File siteDir = new File(args[0]);
+        int pages = Integer.parseInt(args[1]);
+
+        long timeBefore = System.currentTimeMillis();
+        generate(siteDir, pages);
+        System.out.println("Generated " + pages + " pages in " 
+            + (System.currentTimeMillis()-timeBefore) + " ms");
+    }
+
+
+    /**
+     * Generate a site.
+     *
+     * @param siteDir  where to put the site, the source files are put 
+     *                 in the <code>src</code> subdirectory, 
+     *                 and the sitemap in <code>sitemap.xml</code>
+     * @param pages  number of XML pages
+     */
+    public static void generate(File siteDir, int pages)
+        throws IOException
+    {
+        File srcDir = new File(siteDir, "src");
+        mkdirs(srcDir);
+        int sections = (pages + SECTION_SIZE - 1) / SECTION_SIZE;
+        int islands = pages / ISLAND_EVERY;
+        int statics = pages / STATIC_EVERY;
+
+        PrintWriter out = create(new File(siteDir, "sitemap.xml"));
+        out.println("<?xml version=\"1.0\"?>");
+        out.println("<sitemap name=\"synthetic" + pages + "\">");
+        out.println("<output name=\"svgout\"><format type=\"xml\"/></output>");
+        out.println("<part name=\"menu\" source=\"/menu.xml\"><source/></part>");
+        for (int s = 0; s<sections; s++)
+        {
+            out.println("<file target=\"/s" + s + "/*.html\" source=\"/s" + s 
+                + "/*.xml\">");
+            out.println("  <format type=\"html\"><transform type=\"xslt\" " 
+                + "stylesheet=\"/style/page.xsl\"><transform type=\"lssi\">" 
+                + "<source/></transform></transform></format>");
+            out.println("</file>");
+        }
+        if (islands > 0)
+        {
+            out.println("<file target=\"/islands/*.html\" " 
+                + "source=\"/islands/*.xml\">");
+            out.println("  <format type=\"xml\"><transform type=\"island\" " 
+                + "namespace1=\"http://www.w3.org/2000/svg\" " 
+                + "output1=\"svgout\" outputext1=\".svg\"><source/>" 
+                + "</transform></format>");
+            out.println("</file>");
+        }
+        if (statics > 0)
+        {
+            out.println("<file target=\"/static/*.txt\" " 
+                + "source=\"/static/*.txt\"/>");
+        }
+        out.println("</sitemap>");
+        out.close();
+
+        out = create(new File(siteDir, "site.lagoon"));
+        out.println("sitemapFile: sitemap.xml");
+        out.println("sourceDir: src");
+        out.println("targetURL: out");
+        out.close();
+
+        File styleDir = new File(srcDir, "style");
+        mkdirs(styleDir);
+        out = create(new File(styleDir, "page.xsl"));
+        out.println("<?xml version=\"1.0\"?>");
+        out.println("<xsl:stylesheet version=\"1.0\" " 
+            + "xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\">");
+        out.println("<xsl:import href=\"common.xsl\"/>");
+        out.println("<xsl:template match=\"/page\">");
+        out.println("<html><head><title><xsl:value-of select=\"title\"/>" 
+            + "</title></head><body>");
+        out.println("<ul class=\"menu\"><xsl:for-each " 
+            + "select=\"document('part:menu')/menu/item\">" 
+            + "<li><a href=\"{@href}\"><xsl:value-of select=\".\"/></a></li>" 
+            + "</xsl:for-each></ul>");
+        out.println("<h1><xsl:value-of select=\"title\"/></h1>");
+        out.println("<xsl:apply-templates select=\"body/node()\"/>");
+        out.println("<xsl:call-template name=\"footer\"/>");
+        out.println("</body></html>");
+        out.println("</xsl:template>");
+        out.println("<xsl:template match=\"para\"><p><xsl:apply-templates/>" 
+            + "</p></xsl:template>");
+        out.println("<xsl:template match=\"*\"><xsl:copy><xsl:copy-of " 
+            + "select=\"@*\"/><xsl:apply-templates/></xsl:copy>" 
+            + "</xsl:template>");
+        out.println("</xsl:stylesheet>");
+        out.close();
+
+        out = create(new File(styleDir, "common.xsl"));
+        out.println("<?xml version=\"1.0\"?>");
+        out.println("<xsl:stylesheet version=\"1.0\" " 
+            + "xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\">");
+        out.println("<xsl:template name=\"footer\"><hr/>" 
+            + "<p class=\"footer\">Generated by Lagoon</p></xsl:template>");
+        out.println("</xsl:stylesheet>");
+        out.close();
+
+        out = create(new File(srcDir, "menu.xml"));
+        out.println("<?xml version=\"1.0\"?>");
+        out.println("<menu>");
+        for (int s = 0; s<Math.min(sections, 20); s++)
+        {
+            out.println("<item href=\"/s" + s + "/p" + (s*SECTION_SIZE) 
+                + ".html\">Section " + s + "</item>");
+        }
+        out.println("</menu>");
+        out.close();
+
+        File incDir = new File(srcDir, "inc");
+        mkdirs(incDir);
+        out = create(new File(incDir, "footer.xml"));
+        out.println("<?xml version=\"1.0\"?>");
+        out.println("<lssi:root xmlns:lssi=\"" + LSSI_NS + "\">" 
+            + "<para>Common footer</para></lssi:root>");
+        out.close();
+
+        for (int s = 0; s<sections; s++)
+        {
+            out = create(new File(incDir, "s" + s + ".xml"));
+            out.println("<?xml version=\"1.0\"?>");
+            out.println("<lssi:root xmlns:lssi=\"" + LSSI_NS + "\">" 
+                + "<para>This is section " + s + "</para></lssi:root>");
+            out.close();
+
+            File sectionDir = new File(srcDir, "s" + s);
+            mkdirs(sectionDir);
+            int last = Math.min(pages, (s+1)*SECTION_SIZE);
+            for (int p = s*SECTION_SIZE; p<last; p++)
+            {
+                writePage(new File(sectionDir, "p" + p + ".xml"), s, p);
+            }
+        }
+
+        if (islands > 0)
+        {
+            File islandDir = new File(srcDir, "islands");
+            mkdirs(islandDir);
+            for (int i = 0; i<islands; i++)
+            {
+                out = create(new File(islandDir, "i" + i + ".xml"));
+                out.println("<?xml version=\"1.0\"?>");
+                out.println("<html xmlns=\"http://www.w3.org/1999/xhtml\">" 
+                    + "<body><p>Island " + i + "</p>");
+                out.println("<svg xmlns=\"http://www.w3.org/2000/svg\" " 
+                    + "width=\"100\" height=\"100\"><rect x=\"10\" y=\"10\" " 
+                    + "width=\"" + (i%80+10) + "\" height=\"50\"/></svg>");
+                out.println("</body></html>");
+                out.close();
+            }
+        }
+
+        if (statics > 0)
+        {
+            File staticDir = new File(srcDir, "static");
+            mkdirs(staticDir);
+            for (int i = 0; i<statics; i++)
+            {
+                out = create(new File(staticDir, "f" + i + ".txt"));
+                for (int j = 0; j<20; j++)
+                {
+                    out.println("Static file " + i + ", line " + j);
+                }
+                out.close();
+            }
+        }
+    }
+
+
+    /**
+     * Write one page, about 2 KB.
+     */
+    static void writePage(File file, int section, int page)
+        throws IOException
+    {
+        PrintWriter out = create(file);
+        out.println("<?xml version=\"1.0\"?>");
+        out.println("<page xmlns:lssi=\"" + LSSI_NS + "\">");
+        out.println("<title>Page " + page + "</title>");
+        out.println("<body>");
+        for (int i = 0; i<8; i++)
+        {
+            out.println("<para>Paragraph " + i + " of page " + page 
+                + ". Lorem ipsum dolor sit amet, consectetur adipiscing " 
+                + "elit, sed do eiusmod tempor <em>incididunt</em> ut labore " 
+                + "et dolore magna aliqua &amp; more. " 
+                + "<a href=\"p" + (page+1) + ".html\">Next</a></para>");
+        }
+        out.println("<lssi:include file=\"/inc/s" + section + ".xml\"/>");
+        out.println("<lssi:include file=\"/inc/footer.xml\"/>");
+        out.println("</body>");
+        out.println("</page>");
+        out.close();
+    }
+
+
+    private static PrintWriter create(File file)
+        throws IOException
+    {
+        return new PrintWriter(new BufferedWriter(new OutputStreamWriter(
+            new FileOutputStream(file), "UTF-8")));
+    }
+
+
+    private static void mkdirs(File dir)
+        throws IOException
+    {
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Unable to create directory: " + dir);
+    }
+}
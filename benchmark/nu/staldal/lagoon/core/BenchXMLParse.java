@@ -0,0 +1,86 @@
+package nu.staldal.lagoon.core;
+
+import java.io.*;
+
+import org.xml.sax.*;
+import org.xml.sax.helpers.DefaultHandler;
+
+import nu.staldal.lagoon.producer.XMLParse;
+import nu.staldal.benchmark.*;
+
+/**
+ * Benchmark of the XMLParse producer, which parses a byte stream 
+ * produced in another thread, or buffered in memory.
+ */
+public class BenchXMLParse
+{
+    public static Benchmark[] benchmarks()
+        throws Exception
+    {
+        final byte[] bytes = Documents.toBytes(Documents.createPage(100));
+        final byte[] large = Documents.toBytes(Documents.createPage(5000));
+
+        return new Benchmark[] {
+            new ParseBenchmark("XMLParse", bytes, false),
+            new ParseBenchmark("XMLParse buffered", bytes, true),
+            new ParseBenchmark("XMLParse large", large, false),
+            new ParseBenchmark("XMLParse large buffered", large, true),
+        };
+    }
+
+    static class ParseBenchmark extends Benchmark
+    {
+        private final byte[] bytes;
+        private final boolean buffer;
+        private XMLParse parse;
+
+        ParseBenchmark(String name, byte[] bytes, boolean buffer)
+        {
+            super(name);
+            this.bytes = bytes;
+            this.buffer = buffer;
+        }
+
+        public void setUp() throws Exception
+        {
+            parse = new XMLParse();
+            if (buffer) ((Producer)parse).addParam("buffer", "true");
+            ((ByteStreamConsumer)parse).setNext(
+                    new ByteStreamProducer() {
+                public void start(OutputStream out, Target target)
+                    throws IOException
+                {
+                    out.write(bytes);
+                }
+
+                public void init() {}
+
+                public void destroy() {}
+
+                public boolean hasBeenUpdated(long lastBuild)
+                {
+                    return true;
+                }
+            });
+            parse.init();
+        }
+
+        public long run() throws Exception
+        {
+            final long[] count = new long[1];
+            parse.start(new DefaultHandler() {
+                public void characters(char[] ch, int start, 
+                                       int length)
+                {
+                    count[0] += length;
+                }
+            }, null);
+            return count[0];
+        }
+
+        public void tearDown() throws Exception
+        {
+            parse.destroy();
+        }
+    }
+}
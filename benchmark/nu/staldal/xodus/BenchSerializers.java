@@ -0,0 +1,88 @@
+package nu.staldal.xodus;
+
+import java.io.*;
+import java.util.Properties;
+import java.util.Vector;
+
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.stream.StreamResult;
+
+import nu.staldal.xtree.Element;
+import nu.staldal.benchmark.*;
+
+/**
+ * Benchmarks of the serializers and the character encoder.
+ */
+public class BenchSerializers
+{
+    private static final String[] METHODS = { "xml", "html", "text" };
+    private static final String[] ENCODINGS = 
+        { "UTF-8", "ISO-8859-1", "US-ASCII" };
+
+
+    public static Benchmark[] benchmarks()
+    {
+        final Element page = Documents.createPage(100);
+
+        Vector b = new Vector();
+        for (int i = 0; i<METHODS.length; i++)
+        {
+            for (int j = 0; j<ENCODINGS.length; j++)
+            {
+                // text cannot be escaped
+                if (METHODS[i].equals("text") && j > 0) continue;
+
+                final Properties p = new Properties();
+                p.setProperty(OutputKeys.METHOD, METHODS[i]);
+                p.setProperty(OutputKeys.ENCODING, ENCODINGS[j]);
+
+                b.addElement(new Benchmark(
+                        "serialize " + METHODS[i] + " " + ENCODINGS[j]) {
+                    public long run() throws Exception
+                    {
+                        NullOutputStream out = new NullOutputStream();
+                        Serializer ser = Serializer.createSerializer(
+                            new StreamResult(out), p);
+                        ser.startDocument();
+                        page.toSAX(ser);
+                        ser.endDocument();
+                        return out.getCount();
+                    }
+                });
+            }
+        }
+
+        final char[] text = repeat(Documents.TEXT, 1000).toCharArray();
+        for (int j = 0; j<ENCODINGS.length; j++)
+        {
+            final String encoding = ENCODINGS[j];
+            b.addElement(new Benchmark("XMLCharacterEncoder " + encoding) {
+                public long run() throws Exception
+                {
+                    NullOutputStream out = new NullOutputStream();
+                    XMLCharacterEncoder enc = 
+                        new XMLCharacterEncoder(out, encoding);
+                    enc.enableEscaping();
+                    for (int k = 0; k<text.length; k += 100)
+                    {
+                        enc.write(text, k, Math.min(100, text.length-k));
+                    }
+                    enc.close();
+                    return out.getCount();
+                }
+            });
+        }
+
+        Benchmark[] array = new Benchmark[b.size()];
+        b.copyInto(array);
+        return array;
+    }
+
+
+    private static String repeat(String s, int n)
+    {
+        StringBuffer sb = new StringBuffer(s.length()*n);
+        for (int i = 0; i<n; i++) sb.append(s);
+        return sb.toString();
+    }
+}
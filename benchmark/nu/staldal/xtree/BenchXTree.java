@@ -0,0 +1,93 @@
+package nu.staldal.xtree;
+
+import java.io.*;
+
+import org.xml.sax.*;
+import org.xml.sax.helpers.DefaultHandler;
+
+import nu.staldal.xmlutil.ContentHandlerFixer;
+import nu.staldal.benchmark.*;
+
+/**
+ * Benchmarks of building and replaying XTrees.
+ */
+public class BenchXTree
+{
+    public static Benchmark[] benchmarks()
+        throws Exception
+    {
+        final Element page = Documents.createPage(100);
+        final byte[] bytes = Documents.toBytes(page);
+
+        return new Benchmark[] {
+            new Benchmark("TreeBuilder parse") {
+                public long run() throws Exception
+                {
+                    Element el = TreeBuilder.parseXML(
+                        new InputSource(new ByteArrayInputStream(bytes)), 
+                        false);
+                    return el.numberOfChildren();
+                }
+            },
+
+            new Benchmark("SequentialTreeBuilder parse") {
+                private int count;
+
+                public long run() throws Exception
+                {
+                    count = 0;
+                    SequentialTreeBuilder.parseXMLSequential(
+                        new InputSource(new ByteArrayInputStream(bytes)),
+                        false,
+                        new ElementHandler() {
+                            public void processElement(Element el)
+                            {
+                                count++;
+                            }
+                        });
+                    return count;
+                }
+            },
+
+            new Benchmark("Element.toSAX") {
+                public long run() throws Exception
+                {
+                    CountingHandler ch = new CountingHandler();
+                    ch.startDocument();
+                    page.toSAX(ch);
+                    ch.endDocument();
+                    return ch.count;
+                }
+            },
+
+            new Benchmark("ContentHandlerFixer") {
+                public long run() throws Exception
+                {
+                    CountingHandler ch = new CountingHandler();
+                    ContentHandler fixer = new ContentHandlerFixer(ch, true);
+                    fixer.startDocument();
+                    page.toSAX(fixer);
+                    fixer.endDocument();
+                    return ch.count;
+                }
+            },
+        };
+    }
+
+
+    static class CountingHandler extends DefaultHandler
+    {
+        long count = 0;
+
+        public void startElement(String namespaceURI, String localName,
+                                 String qName, Attributes atts)
+        {
+            count++;
+        }
+
+        public void characters(char[] ch, int start, int length)
+        {
+            count += length;
+        }
+    }
+}
@@ -42,15 +42,23 @@ package nu.staldal.ftp;
 
 import java.io.*;
 import java.net.*;
+import java.util.Hashtable;
 
 /**
  * An FTP client. See RFC-959.
  *
  * Pathnames must be specified using '/' for directory separator.
- * Passive mode will be used for all transfers.
+ * Passive mode and binary type will be used for all transfers.
  * <em>Not</em> thread-safe, i.e. you cannot start a new file while another one is in
  * progress. 
  *
+ * Files are addressed with absolute paths, based on the initial directory,
+ * so there is no need to change directory for each file. Directories 
+ * known to exist are remembered. By default, commands which don't depend 
+ * on each other's responses are sent together (pipelining), 
+ * use {@link #setPipelining} to turn that off for servers which cannot 
+ * handle it.
+ *
  * <strong>Note:</strong> This class will transmit password in clear text over
  * the network.
  */
@@ -63,17 +71,41 @@ public class FTPClient
     private OutputStream controlOut;
    	private String respString;
 
-    private String lastPath = "";
+    private String lastPath = "/";
     private int lastPathLen = 0;
 
+	/**
+	 * Absolute path of the initial directory, ending with '/', 
+	 * or <code>null</code> if not known.
+	 */
+	private String baseDir = null;
+	
+	/**
+	 * Directories known to exist, relative to the initial directory,
+	 * starting and ending with '/'.
+	 */
+	private Hashtable knownDirs = new Hashtable();
+	
+	private boolean pipelining = true;
+
 
 	private void sendLine(String str)
 		throws IOException
+	{
+		queueLine(str);
+		controlOut.flush();
+	}
+
+
+	/**
+	 * Send a line without flushing, used for pipelining.
+	 */
+	private void queueLine(String str)
+		throws IOException
 	{
 		controlOut.write(str.getBytes("US-ASCII"));
 		controlOut.write('\r');
 		controlOut.write('\n');
-		controlOut.flush();
 	}
 
 	
@@ -166,6 +198,7 @@ public class FTPClient
 			
 		connect(host, port, username, password);
 		initialDir(path);				
+		setup();
 	}
 
 		
@@ -189,6 +222,7 @@ public class FTPClient
 	{
 		connect(host, port, username, password);
 		initialDir(path);
+		setup();
 	}
 	
 
@@ -198,8 +232,8 @@ public class FTPClient
 		if (port < 0 || port > 65535) port = 21;
 			
 		control = new Socket(host, port);
-		controlIn = control.getInputStream();
-		controlOut = control.getOutputStream();
+		controlIn = new BufferedInputStream(control.getInputStream());
+		controlOut = new BufferedOutputStream(control.getOutputStream());
 
 		int resp;
 
@@ -278,6 +312,99 @@ public class FTPClient
 	}
 	
 
+	/**
+	 * Set binary type for all transfers, and find out the absolute path 
+	 * of the initial directory.
+	 */
+	private void setup()
+		throws FTPException, IOException	
+	{
+		knownDirs.put("/", Boolean.TRUE);
+		
+		if (DEBUG) System.out.println("TYPE I");
+		sendLine("TYPE I");
+		int resp = recvResponse();
+		switch (resp)
+		{
+			case 200:
+				break;
+
+			case 421:
+				throw new FTPException("FTP server not avaliable (421)");
+
+			default:
+				throw new FTPException("Unexpected response from FTP server: " + respString);
+		}
+
+		if (DEBUG) System.out.println("PWD");
+		sendLine("PWD");
+		resp = recvResponse();
+		switch (resp)
+		{
+			case 257:
+				baseDir = parsePathname(respString);
+				break;
+
+			case 421:
+				throw new FTPException("FTP server not avaliable (421)");
+
+			default:
+				// use relative paths
+				baseDir = null;
+		}
+	}
+
+
+	/**
+	 * Parse the quoted pathname from a 257 response.
+	 *
+	 * @return the pathname with '/' appended, or <code>null</code>
+	 *         if it cannot be parsed
+	 */
+	static String parsePathname(String resp)
+	{
+		int start = resp.indexOf('"');
+		if (start < 0) return null;
+		
+		StringBuffer sb = new StringBuffer();
+		for (int i = start+1; i < resp.length(); i++)
+		{
+			char c = resp.charAt(i);
+			if (c == '"')
+			{
+				if (i+1 < resp.length() && resp.charAt(i+1) == '"')
+				{
+					sb.append('"'); // quote doubled
+					i++;
+				}
+				else
+				{
+					if (sb.length() == 0 || sb.charAt(0) != '/') 
+						return null;
+					if (sb.charAt(sb.length()-1) != '/') 
+						sb.append('/');
+					return sb.toString();
+				}
+			}
+			else
+			{
+				sb.append(c);
+			}
+		}
+		return null;
+	}
+	
+	
+	/**
+	 * Enable or disable pipelining, i.e. sending commands before the 
+	 * response to the previous one has been received. Enabled by default. 
+	 */
+	public void setPipelining(boolean pipelining)
+	{
+		this.pipelining = pipelining;
+	}
+
+
     /**
      * Logout and disconnect from the FTP server.
      *
@@ -293,6 +420,33 @@ public class FTPClient
     }
 
 	
+	/**
+	 * Do nothing. Used to check that the connection is still alive, and
+	 * to prevent the server from closing an idle connection.
+	 * 
+	 * @throws FTPException if any FTP protocol error occurs
+	 * @throws IOException if any other IO error occurs
+	 */
+	public void noop()
+		throws FTPException, IOException
+	{
+		if (DEBUG) System.out.println("NOOP");
+		sendLine("NOOP");
+		int resp = recvResponse();
+		switch (resp)
+		{
+			case 200:
+				return;
+
+			case 421:
+				throw new FTPException("FTP server not avaliable (421)");
+
+			default:
+				throw new FTPException("Unexpected response from FTP server: " + respString);
+		}
+	}
+
+	
 	/**
 	 * Change the current directory.
 	 * 
@@ -419,12 +573,7 @@ public class FTPClient
     public OutputStream store(String pathname, boolean last)
         throws FTPException, IOException
 	{
-		int pos = pathname.lastIndexOf('/');
-	    String path = pathname.substring(0, pos+1);
-	    String filename = pathname.substring(pos+1);
-
-		changeDir(path);
-		return upload("STOR", filename, last);		
+		return upload("STOR", prepareFile(pathname), last);		
 	}
     
 
@@ -459,12 +608,7 @@ public class FTPClient
     public OutputStream append(String pathname, boolean last)
         throws FTPException, IOException
 	{
-		int pos = pathname.lastIndexOf('/');
-	    String path = pathname.substring(0, pos+1);
-	    String filename = pathname.substring(pos+1);
-
-		changeDir(path);
-		return upload("APPE", filename, last);		
+		return upload("APPE", prepareFile(pathname), last);		
 	}
 
 
@@ -499,18 +643,136 @@ public class FTPClient
     public OutputStream storeUnique(String path, boolean last)
         throws FTPException, IOException
 	{
-		changeDir(path);
+		changeDir(normalizeDir(path));
 		return upload("STOU", null, last);		
 	}
 
 
+	private static String normalizeDir(String path)
+	{
+		if (path.length() > 0 && path.charAt(0) == '/') 
+			return path;
+		else
+			return '/' + path;
+	}
+	
+	
+	/**
+	 * Absolute path of a directory, without trailing '/'.
+	 */
+	private String absoluteDir(String dir)
+	{
+		String abs = baseDir + dir.substring(1);
+		return (abs.length() > 1) ? abs.substring(0, abs.length()-1) : abs;
+	}
+
+
+	/**
+	 * Prepare for transferring a file. Will create directories as 
+	 * nessesary, or change into the directory if absolute paths cannot
+	 * be used.
+	 *
+	 * @return the pathname to use in the transfer command
+	 */
+	private String prepareFile(String pathname)
+        throws FTPException, IOException
+	{
+		int pos = pathname.lastIndexOf('/');
+	    String path = normalizeDir(pathname.substring(0, pos+1));
+	    String filename = pathname.substring(pos+1);
+
+		if (baseDir == null)
+		{
+			changeDir(path);
+			return filename;
+		}
+		else
+		{
+			makeDirs(path);
+			return baseDir + path.substring(1) + filename;
+		}
+	}
+
+
+	/**
+	 * Create a directory and its parents, unless they are known to exist. 
+	 * Only used when absolute paths can be used.
+	 */
+	private void makeDirs(String path)
+        throws FTPException, IOException
+	{
+		if (knownDirs.containsKey(path)) return;
+		
+		// the directories which may not exist, parents first
+		java.util.Vector dirs = new java.util.Vector();
+		String dir = path;
+		while (!knownDirs.containsKey(dir))
+		{
+			dirs.insertElementAt(dir, 0);
+			dir = dir.substring(0, dir.lastIndexOf('/', dir.length()-2)+1);
+		}
+		
+		// create them all, it's an error only if it doesn't work later
+		if (pipelining)
+		{
+			for (int i = 0; i < dirs.size(); i++)
+			{
+				if (DEBUG) System.out.println("MKD " + dirs.elementAt(i));
+				queueLine("MKD " + absoluteDir((String)dirs.elementAt(i)));
+			}
+			controlOut.flush();
+			for (int i = 0; i < dirs.size(); i++)
+			{
+				checkMkdirResponse(recvResponse());
+			}
+		}
+		else
+		{
+			for (int i = 0; i < dirs.size(); i++)
+			{
+				if (DEBUG) System.out.println("MKD " + dirs.elementAt(i));
+				sendLine("MKD " + absoluteDir((String)dirs.elementAt(i)));
+				checkMkdirResponse(recvResponse());
+			}
+		}
+
+		for (int i = 0; i < dirs.size(); i++)
+		{
+			knownDirs.put(dirs.elementAt(i), Boolean.TRUE);
+		}
+	}
+	
+	
+	private void checkMkdirResponse(int resp)
+		throws FTPException
+	{
+		switch (resp)
+		{
+			case 257:
+			case 521:
+			case 550: // may already exist
+				return;
+
+			case 421:
+				throw new FTPException("FTP server not avaliable (421)");
+
+			default:
+				throw new FTPException("Unexpected response from FTP server: " + respString);
+		}
+	}
+
+
 	private void changeDir(String path)
         throws FTPException, IOException
 	{
-		if (!path.equals(lastPath))
+		if (!path.equals(lastPath) && baseDir != null)
+		{
+			makeDirs(path);
+			if (!chdir(absoluteDir(path)))
+				throw new FTPException("Unable to change to directory: " + path);
+		}
+		else if (!path.equals(lastPath))
 		{
-			if (path.length() > 0 && path.charAt(0) != '/') path = '/' + path; 
-			
 			// change directory
 			for (int i = 0; i < lastPathLen; i++)
 				if (!cdup())
@@ -555,32 +817,36 @@ public class FTPClient
 	{
 		int resp;
 
-		sendLine("TYPE I");
-		resp = recvResponse();
-		switch (resp)
+		String command = (filename == null) ? cmd : (cmd + " " + filename);
+		if (DEBUG) System.out.println(command);
+		
+		// the transfer command doesn't depend on the response to PASV
+		if (pipelining)
 		{
-			case 200:
-				break;
-
-			case 421:
-				throw new FTPException("FTP server not avaliable (421)");
-
-			default:
-				throw new FTPException("Unexpected response from FTP server: " + respString);
+			queueLine("PASV");
+			queueLine(command);
+			controlOut.flush();
 		}
-
-		sendLine("PASV");
+		else
+		{
+			sendLine("PASV");
+		}
+		
 		resp = recvResponse();
-		switch (resp)
+		if (resp != 227)
 		{
-			case 227:
-				break;
-
-			case 421:
+			String pasvResp = respString;
+			if (pipelining)
+			{
+				try {
+					recvResponse(); // to the transfer command
+				}
+				catch (IOException ignore) {}
+			}
+			if (resp == 421)
 				throw new FTPException("FTP server not avaliable (421)");
-
-			default:
-				throw new FTPException("Unexpected response from FTP server: " + respString);
+			else
+				throw new FTPException("Unexpected response from FTP server: " + pasvResp);
 		}
 
 		InetAddress addr;
@@ -618,10 +884,7 @@ public class FTPClient
 			throw new FTPException("invalid response to PASV command");
 		}
 
-		if (cmd == null) 
-			sendLine(cmd); 
-		else
-			sendLine(cmd + " " + filename);
+		if (!pipelining) sendLine(command);
 			
 		Socket data = new Socket(addr, port);
 		resp = recvResponse();
@@ -638,7 +901,9 @@ public class FTPClient
 				throw new FTPException("Unexpected response from FTP server: " + respString);
 		}
 
-		return new FTPOutputStream(data.getOutputStream(), data, last ? this : null);
+		return new FTPOutputStream(
+			new BufferedOutputStream(data.getOutputStream()), 
+			data, last ? this : null);
     }
 
 	
@@ -657,10 +922,15 @@ public class FTPClient
 		String path;
 		String fn;
 		int pos = pathname.lastIndexOf('/');
-		path = pathname.substring(0, pos+1);
+		path = normalizeDir(pathname.substring(0, pos+1));
 		fn = pathname.substring(pos+1);
 
-		if (!path.equals(lastPath))
+		if (baseDir != null)
+		{
+			// no need to change directory
+			fn = baseDir + path.substring(1) + fn;
+		}
+		else if (!path.equals(lastPath))
 		{
 			// change directory
 			for (int i = 0; i < lastPathLen; i++)
@@ -677,13 +947,17 @@ public class FTPClient
 				String comp = path.substring(oldPos, pos);
 				if (!chdir(comp))
 				{
+					// not in that directory, and not in path either
+					lastPathLen--;
+					lastPath = "";
 					return false; // file doesn't exist
 				}
 				oldPos = pos + 1;
 			}
+			lastPath = path;
 		}
-		lastPath = path;
 
+		if (DEBUG) System.out.println("DELE " + fn);
 		sendLine("DELE " + fn);
 		int resp = recvResponse();
 		switch (resp)
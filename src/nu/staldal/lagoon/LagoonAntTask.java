@@ -42,6 +42,7 @@ package nu.staldal.lagoon;
 
 import java.io.*;
 import java.util.Properties;
+import java.util.StringTokenizer;
 
 import org.xml.sax.SAXException;
 import org.apache.tools.ant.*;
@@ -68,6 +69,11 @@ public class LagoonAntTask extends Task
 	private String targetURL;
 	private String password;
 	private File propertyFile;
+	private int threads;
+	private boolean hash;
+	private File profile;
+	private String only;
+	private int daemon;
 
 	
 	public LagoonAntTask()
@@ -114,10 +120,50 @@ public class LagoonAntTask extends Task
 	{
 		this.propertyFile = propertyFile;	
 	}
+	
+	public void setThreads(int threads)
+	{
+		this.threads = threads;	
+	}
+
+	public void setHash(boolean hash)
+	{
+		this.hash = hash;	
+	}
+
+	public void setProfile(File profile)
+	{
+		this.profile = profile;	
+	}
+
+	public void setOnly(String only)
+	{
+		this.only = only;	
+	}
+
+	public void setDaemon(int daemon)
+	{
+		this.daemon = daemon;	
+	}
 
 		
 	public void execute() throws BuildException
 	{
+		String[] patterns = null;
+		if (only != null)
+		{
+			StringTokenizer st = new StringTokenizer(only, ", ");
+			patterns = new String[st.countTokens()];
+			for (int i = 0; i<patterns.length; i++)
+				patterns[i] = st.nextToken();
+		}
+
+		if (daemon > 0)
+		{
+			executeWithDaemon(patterns);
+			return;
+		}
+
         LagoonProcessor processor;
         try {
 			if (propertyFile != null)			
@@ -131,6 +177,23 @@ public class LagoonAntTask extends Task
 				sitemapFile = new File(getProperty("sitemapFile"));
 				sourceDir = new File(getProperty("sourceDir"));			
                 password = properties.getProperty("password");
+
+				String threadsProp = properties.getProperty("threads");
+				if (threads == 0 && threadsProp != null)
+				{
+					try {
+						threads = Integer.parseInt(threadsProp.trim());
+					}
+					catch (NumberFormatException e)
+					{
+						throw new BuildException(
+							"Property threads must be a number");
+					}
+				}
+
+				String hashProp = properties.getProperty("hash");
+				if (hashProp != null && hashProp.trim().equals("true"))
+					hash = true;
 			}
 			else
 			{
@@ -167,6 +230,12 @@ public class LagoonAntTask extends Task
 					targetURL, sitemapTree, sourceDir, password,
 					new PrintWriter(System.out, true), 
 					new PrintWriter(System.err, true));
+
+			if (threads < 0)
+				throw new BuildException("threads must be at least 1");
+			if (threads > 0) processor.setWorkerThreads(threads);
+			if (hash) processor.setContentHash(true);
+			if (profile != null) processor.setProfileReport(profile);
         }
         catch (AuthenticationMissingException e)
         {
@@ -190,7 +259,12 @@ public class LagoonAntTask extends Task
         }
 
         try {
-            if (!processor.build(force)) throw new BuildException();
+			boolean success;
+			if (patterns == null)
+				success = processor.build(force);
+			else
+				success = processor.buildTargets(patterns, force);
+            if (!success) throw new BuildException();
             processor.destroy();
         }
         catch (FileNotFoundException e)
@@ -204,6 +278,37 @@ public class LagoonAntTask extends Task
         }
 	}
 
+	private void executeWithDaemon(String[] patterns)
+		throws BuildException
+	{
+		Properties site = new Properties();
+		if (propertyFile != null)
+		{
+			site.put("propertyFile", propertyFile.getAbsolutePath());
+		}
+		else
+		{
+			if ((targetURL == null) || (sitemapFile == null) || (sourceDir == null))
+				throw new BuildException("mandatory attribute missing");
+			site.put("sitemapFile", sitemapFile.getAbsolutePath());
+			site.put("sourceDir", sourceDir.getAbsolutePath());
+			site.put("targetURL", targetURL);
+			if (password != null) site.put("password", password);
+		}
+
+		try {
+			int status = LagoonClient.build(daemon, site, force, patterns,
+				new PrintWriter(System.out, true), 
+				new PrintWriter(System.err, true));
+			if (status != LagoonClient.SUCCESS) throw new BuildException();
+		}
+		catch (IOException e)
+		{
+			throw new BuildException(
+				"Unable to contact Lagoon daemon on port " + daemon, e);
+		}
+	}
+
     private String getProperty(String name)
         throws LagoonException
     {
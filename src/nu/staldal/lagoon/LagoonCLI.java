@@ -42,10 +42,13 @@ package nu.staldal.lagoon;
 
 import java.io.*;
 import java.util.Properties;
+import java.util.Vector;
 
 import org.xml.sax.SAXException;
 
 import nu.staldal.xtree.*;
+import nu.staldal.util.DirectoryWatcher;
+import nu.staldal.util.FileStatCache;
 
 import nu.staldal.lagoon.core.*;
 
@@ -61,11 +64,36 @@ public class LagoonCLI
 	
     private static final String syntaxMsg =
         "Syntax:\n"
-	  + "nu.staldal.lagoon.LagoonCLI <property_file> [<interval>|build|force]\n"
-	  + "nu.staldal.lagoon.LagoonCLI <sitemap_file> [<interval>|build|force]";
+	  + "nu.staldal.lagoon.LagoonCLI [<options>] <property_file> [<interval>|build|force|watch]\n"
+	  + "nu.staldal.lagoon.LagoonCLI [<options>] <sitemap_file> [<interval>|build|force|watch]\n"
+	  + "Options:\n"
+	  + "  -threads <n>    build with <n> worker threads\n"
+	  + "  -stats          show file status cache statistics after each build\n"
+	  + "  -hash           compare file contents instead of modification dates\n"
+	  + "  -profile <file> write a profiling report (JSON, or CSV if <file> ends with .csv)\n"
+	  + "  -partcache <kb> maximum size of the cached output of each part, 0 to disable\n"
+	  + "  -asyncthreads <n> produce at most <n> images from <island> at the same time\n"
+	  + "  -only <pattern> with build or force, only build the targets matching <pattern>\n"
+	  + "                  (* and ? within a directory, ** across directories, may be repeated)\n"
+	  + "  -daemon <port>  with build or force, let a running LagoonDaemon do the building\n"
+	  + "  -watchinterval <ms> with watch, minimum time between checks for changes";
   
     private static Properties properties;
 
+	private static boolean stats = false;
+
+	/**
+	 * Default minimum time between checks for changes in watch mode, 
+	 * in milliseconds. Checking a large source tree may take longer, 
+	 * see {@link DirectoryWatcher#getPollDelay}.
+	 */
+	private static final long DEFAULT_WATCH_INTERVAL = 500;
+
+	/**
+	 * How long to wait for further changes in watch mode, in milliseconds.
+	 */
+	private static final long WATCH_QUIET_PERIOD = 200;
+
 
     /**
      * The application main method
@@ -74,21 +102,134 @@ public class LagoonCLI
 	{
         boolean force = false;
         boolean build = false;
+        boolean watch = false;
         long interval = 0;
+		int workerThreads = 0;
+		boolean contentHash = false;
+		File profileReport = null;
+		long partCacheSize = -1;
+		int asyncThreads = 0;
+		Vector onlyPatterns = new Vector();
+		int daemonPort = 0;
+		long watchInterval = DEFAULT_WATCH_INTERVAL;
 
-        if (args.length < 1)
+		int argPos = 0;
+		while (argPos < args.length && args[argPos].startsWith("-"))
+		{
+			String opt = args[argPos++];
+			if (opt.equals("-threads") && argPos < args.length)
+			{
+	            try {
+    	            workerThreads = Integer.parseInt(args[argPos++]);
+        	    }
+            	catch (NumberFormatException e)
+	            {
+    	            workerThreads = 0;
+        	    }
+				if (workerThreads < 1)
+				{
+	                System.out.println(syntaxMsg);
+    	            return;
+				}
+			}
+			else if (opt.equals("-stats"))
+			{
+				stats = true;
+			}
+			else if (opt.equals("-hash"))
+			{
+				contentHash = true;
+			}
+			else if (opt.equals("-profile") && argPos < args.length)
+			{
+				profileReport = new File(args[argPos++]);
+			}
+			else if (opt.equals("-partcache") && argPos < args.length)
+			{
+	            try {
+    	            partCacheSize = Long.parseLong(args[argPos++]);
+        	    }
+            	catch (NumberFormatException e)
+	            {
+    	            partCacheSize = -1;
+        	    }
+				if (partCacheSize < 0)
+				{
+	                System.out.println(syntaxMsg);
+    	            return;
+				}
+			}
+			else if (opt.equals("-asyncthreads") && argPos < args.length)
+			{
+	            try {
+    	            asyncThreads = Integer.parseInt(args[argPos++]);
+        	    }
+            	catch (NumberFormatException e)
+	            {
+    	            asyncThreads = 0;
+        	    }
+				if (asyncThreads < 1)
+				{
+	                System.out.println(syntaxMsg);
+    	            return;
+				}
+			}
+			else if (opt.equals("-only") && argPos < args.length)
+			{
+				onlyPatterns.addElement(args[argPos++]);
+			}
+			else if (opt.equals("-daemon") && argPos < args.length)
+			{
+	            try {
+    	            daemonPort = Integer.parseInt(args[argPos++]);
+        	    }
+            	catch (NumberFormatException e)
+	            {
+    	            daemonPort = 0;
+        	    }
+				if (daemonPort < 1)
+				{
+	                System.out.println(syntaxMsg);
+    	            return;
+				}
+			}
+			else if (opt.equals("-watchinterval") && argPos < args.length)
+			{
+	            try {
+    	            watchInterval = Long.parseLong(args[argPos++]);
+        	    }
+            	catch (NumberFormatException e)
+	            {
+    	            watchInterval = 0;
+        	    }
+				if (watchInterval < 1)
+				{
+	                System.out.println(syntaxMsg);
+    	            return;
+				}
+			}
+			else
+			{
+                System.out.println(syntaxMsg);
+   	            return;
+			}
+		}
+
+        if (args.length-argPos < 1)
         {
             System.out.println(syntaxMsg);
             return;
         }
-        else if ((args.length > 1) && args[1].equals("build"))
+        else if ((args.length-argPos > 1) && args[argPos+1].equals("build"))
             build = true;
-        else if ((args.length > 1) && args[1].equals("force"))
+        else if ((args.length-argPos > 1) && args[argPos+1].equals("force"))
             force = true;
-        else if (args.length > 1)
+        else if ((args.length-argPos > 1) && args[argPos+1].equals("watch"))
+            watch = true;
+        else if (args.length-argPos > 1)
         {
             try {
-                interval = 1000*Integer.parseInt(args[1]);
+                interval = 1000*Integer.parseInt(args[argPos+1]);
             }
             catch (NumberFormatException e)
             {
@@ -102,25 +243,49 @@ public class LagoonCLI
             }
         }
 
+		String[] only = null;
+		if (!onlyPatterns.isEmpty())
+		{
+			if (!build && !force)
+			{
+                System.out.println(syntaxMsg);
+                return;
+			}
+			only = new String[onlyPatterns.size()];
+			onlyPatterns.copyInto(only);
+		}
+
+		if (daemonPort > 0)
+		{
+			if (!build && !force)
+			{
+                System.out.println(syntaxMsg);
+                return;
+			}
+			buildWithDaemon(daemonPort, args[argPos], force, only);
+			return;
+		}
+
         LagoonProcessor processor;
+		String targetURL;
         try {
             System.out.println("Initializing Lagoon...");
 			
-			String targetURL;
 			File sitemapFile;
 			File sourceDir;
 			String password;
 			
-			if (args[0].endsWith(".xml") || args[0].endsWith(".sitemap"))
+			if (args[argPos].endsWith(".xml") 
+					|| args[argPos].endsWith(".sitemap"))
 			{
 				targetURL = System.getProperty("user.dir");
 				sourceDir = new File(targetURL);
-				sitemapFile = new File(args[0]);
+				sitemapFile = new File(args[argPos]);
 				password = null;
 			}
 			else
 			{
-				File propertyFile = new File(args[0]);
+				File propertyFile = new File(args[argPos]);
 			
 				properties = new Properties();
 				FileInputStream fis = new FileInputStream(propertyFile);
@@ -131,6 +296,26 @@ public class LagoonCLI
 				sitemapFile = new File(getProperty("sitemapFile"));
 				sourceDir = new File(getProperty("sourceDir"));			
                 password = properties.getProperty("password");
+
+				String threadsProp = properties.getProperty("threads");
+				if (workerThreads == 0 && threadsProp != null)
+				{
+					try {
+						workerThreads = Integer.parseInt(threadsProp.trim());
+					}
+					catch (NumberFormatException e)
+					{
+						throw new LagoonException(
+							"Property threads must be a number");
+					}
+					if (workerThreads < 1)
+						throw new LagoonException(
+							"Property threads must be at least 1");
+				}
+
+				String hashProp = properties.getProperty("hash");
+				if (hashProp != null && hashProp.trim().equals("true"))
+					contentHash = true;
 			}
 			
 			Element sitemapTree;
@@ -162,6 +347,14 @@ public class LagoonCLI
 					targetURL, sitemapTree, sourceDir, password, 
 					new PrintWriter(System.out, true), 
 					new PrintWriter(System.err, true));
+
+			if (workerThreads > 0) processor.setWorkerThreads(workerThreads);
+			if (contentHash) processor.setContentHash(true);
+			if (profileReport != null) 
+				processor.setProfileReport(profileReport);
+			if (partCacheSize >= 0) 
+				processor.setPartCacheSize(partCacheSize*1024);
+			if (asyncThreads > 0) processor.setAsyncThreads(asyncThreads);
         }
         catch (AuthenticationMissingException e)
         {
@@ -202,19 +395,57 @@ public class LagoonCLI
             {
                 System.out.println("Building website...");
                 long timeBefore = System.currentTimeMillis();
-                if (!processor.build(false))
+                if (!((only == null) ? processor.build(false)
+						: processor.buildTargets(only, false)))
 					System.out.println("...with errors...");
                 long timeElapsed = System.currentTimeMillis()-timeBefore;
                 showTime(timeElapsed);
+                showStats(processor);
             }
             else if (force)
             {
                 System.out.println("Force building website...");
                 long timeBefore = System.currentTimeMillis();
-                if (!processor.build(true))
+                if (!((only == null) ? processor.build(true)
+						: processor.buildTargets(only, true)))
 					System.out.println("...with errors...");
                 long timeElapsed = System.currentTimeMillis()-timeBefore;
                 showTime(timeElapsed);
+                showStats(processor);
+            }
+            else if (watch)
+            {
+                System.out.println("Building website...");
+                long timeBefore = System.currentTimeMillis();
+                if (!processor.build(false))
+					System.out.println("...with errors...");
+                showTime(System.currentTimeMillis()-timeBefore);
+                showStats(processor);
+
+				File targetDir = new File(targetURL);
+				DirectoryWatcher watcher = new DirectoryWatcher(
+					processor.getSourceRootDir(),
+					targetDir.isDirectory() ? targetDir : null);
+				
+                while (true)
+                {
+                    System.out.println("Watching for changes...");
+					File[] changed;
+					try {
+						changed = watcher.waitForChanges(
+							watchInterval, WATCH_QUIET_PERIOD);
+					}
+					catch (InterruptedException e)
+					{
+						break;
+					}
+                    System.out.println("Rebuilding website...");
+                    timeBefore = System.currentTimeMillis();
+    	            if (!processor.buildChanged(changed))
+						System.out.println("...with errors...");
+	                showTime(System.currentTimeMillis()-timeBefore);
+	                showStats(processor);
+                }
             }
             else if (interval > 0)
             {
@@ -226,6 +457,7 @@ public class LagoonCLI
 						System.out.println("...with errors...");
                     long timeElapsed = System.currentTimeMillis()-timeBefore;
 	                showTime(timeElapsed);
+	                showStats(processor);
                     if (timeElapsed < interval)
                     try { Thread.sleep(interval-timeElapsed); } catch (InterruptedException e) {}
                 }
@@ -248,6 +480,7 @@ public class LagoonCLI
 							System.out.println("...with errors...");
                         long timeElapsed = System.currentTimeMillis()-timeBefore;
 	                	showTime(timeElapsed);
+	                	showStats(processor);
                     }
                     else if (c == 'f')
                     {
@@ -257,6 +490,7 @@ public class LagoonCLI
 							System.out.println("...with errors...");
                         long timeElapsed = System.currentTimeMillis()-timeBefore;
 	                	showTime(timeElapsed);
+	                	showStats(processor);
                     }
                     else if (c == 'q')
 						break;
@@ -289,6 +523,37 @@ public class LagoonCLI
         }
 	}
 
+	private static void buildWithDaemon(int port, String file, 
+			boolean force, String[] only)
+	{
+		Properties site = new Properties();
+		if (file.endsWith(".xml") || file.endsWith(".sitemap"))
+		{
+			String cwd = System.getProperty("user.dir");
+			site.put("sitemapFile", new File(file).getAbsolutePath());
+			site.put("sourceDir", cwd);
+			site.put("targetURL", cwd);
+		}
+		else
+		{
+			site.put("propertyFile", new File(file).getAbsolutePath());
+		}
+
+		int status;
+		try {
+			status = LagoonClient.build(port, site, force, only, 
+				new PrintWriter(System.out, true), 
+				new PrintWriter(System.err, true));
+		}
+		catch (IOException e)
+		{
+			System.err.println("Unable to contact Lagoon daemon on port " 
+				+ port + ": " + e.toString());
+			status = LagoonClient.FAILED;
+		}
+		System.exit(status);
+	}
+
     private static String getProperty(String name)
         throws LagoonException
     {
@@ -306,5 +571,15 @@ public class LagoonCLI
 		else
 			System.out.println("in " + ms/1000 + " s");
 	}
+
+
+	private static void showStats(LagoonProcessor processor)
+	{
+		if (!stats) return;
+		
+		FileStatCache cache = processor.getStatCache();
+		System.out.println("file status cache: " + cache.getHits() 
+			+ " hits, " + cache.getMisses() + " misses");
+	}
 }
 
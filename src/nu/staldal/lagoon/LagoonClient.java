@@ -0,0 +1,279 @@
+/*
+ * Copyright (c) 2005, Mikael Ståldal
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ * notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ * notice, this list of conditions and the following disclaimer in the 
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the author nor the names of its contributors 
+ * may be used to endorse or promote products derived from this software 
+ * without specific prior written permission. 
+ * 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY 
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * 
+ * Note: This is known as "the modified BSD license". It's an approved 
+ * Open Source and Free Software license, see 
+ * http://www.opensource.org/licenses/ 
+ * and
+ * http://www.gnu.org/philosophy/license-list.html
+ */
+
+package nu.staldal.lagoon;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+
+/**
+ * A thin client to {@link LagoonDaemon}.
+ *
+ * A request is a command line followed by parameter lines 
+ * (name TAB value) and an empty line. The daemon answers with lines 
+ * starting with <code>O </code> (progress message) or <code>E </code> 
+ * (error message), and ends with a line <code>= </code><em>status</em>.
+ * Each request must have the parameter <code>token</code> with the 
+ * access token from the {@link #getTokenFile token file} of the daemon.
+ *
+ * @see nu.staldal.lagoon.LagoonDaemon
+ */
+public class LagoonClient
+{
+    private static final String syntaxMsg =
+        "Syntax:\n"
+	  + "nu.staldal.lagoon.LagoonClient [-port <port>] status|stop";
+
+	/**
+	 * The default port of the daemon.
+	 */
+	public static final int DEFAULT_PORT = 7447;
+	
+	/**
+	 * The request was successful.
+	 */
+	public static final int SUCCESS = 0;
+
+	/**
+	 * The build completed with non-fatal errors.
+	 */
+	public static final int ERRORS = 1;
+
+	/**
+	 * The request failed.
+	 */
+	public static final int FAILED = 2;
+
+	static final String ENCODING = "UTF-8";
+
+
+	private LagoonClient()
+	{
+		// no instances
+	}
+
+
+	/**
+	 * Get the file where the daemon listening on a port writes its 
+	 * access token, in the <code>.lagoon</code> directory in the 
+	 * user's home directory.
+	 */
+	public static File getTokenFile(int port)
+	{
+		return new File(new File(System.getProperty("user.home"), ".lagoon"), 
+			"daemon-" + port + ".token");
+	}
+
+
+	private static String readToken(int port)
+		throws IOException
+	{
+		File file = getTokenFile(port);
+		BufferedReader r;
+		try {
+			r = new BufferedReader(new InputStreamReader(
+				new FileInputStream(file), ENCODING));
+		}
+		catch (FileNotFoundException e)
+		{
+			throw new IOException("No Lagoon daemon token in " + file);
+		}
+		try {
+			String token = r.readLine();
+			if (token == null)
+				throw new IOException("Invalid Lagoon daemon token in " + file);
+			return token.trim();
+		}
+		finally
+		{
+			r.close();
+		}
+	}
+
+
+    /**
+     * The application main method
+     */
+	public static void main(String[] args)
+	{
+		int port = DEFAULT_PORT;
+		int argPos = 0;
+		if (args.length > 1 && args[0].equals("-port"))
+		{
+			try {
+				port = Integer.parseInt(args[1]);
+			}
+			catch (NumberFormatException e)
+			{
+				System.out.println(syntaxMsg);
+				return;
+			}
+			argPos = 2;
+		}
+		if (args.length-argPos != 1 
+				|| !(args[argPos].equals("status") 
+					|| args[argPos].equals("stop")))
+		{
+			System.out.println(syntaxMsg);
+			return;
+		}
+
+		try {
+			int status = request(port, args[argPos], new Properties(),
+				new PrintWriter(System.out, true), 
+				new PrintWriter(System.err, true));
+			System.exit(status);
+		}
+		catch (IOException e)
+		{
+			System.err.println("Unable to contact Lagoon daemon on port " 
+				+ port + ": " + e.toString());
+			System.exit(FAILED);
+		}
+	}
+
+
+	/**
+	 * Build a website with the daemon.
+	 *
+	 * The website is specified with the parameter <code>propertyFile</code>,
+	 * or with <code>sitemapFile</code>, <code>sourceDir</code>, 
+	 * <code>targetURL</code> and optionally <code>password</code>.
+	 * Relative paths, also in the property file, are resolved against
+	 * the current working directory of this process.
+	 *
+	 * @param port  the port of the daemon
+	 * @param site  the parameters specifying the website
+	 * @param force  force a rebuild of all files
+	 * @param only  build only the targets matching these patterns, 
+	 *              or <code>null</code> to build all
+	 * @param log  where to write progress messages
+	 * @param err  where to write error messages
+	 *
+	 * @return {@link #SUCCESS}, {@link #ERRORS} or {@link #FAILED}
+	 * @throws IOException  if the daemon cannot be contacted
+	 */
+	public static int build(int port, Properties site, boolean force, 
+			String[] only, PrintWriter log, PrintWriter err)
+		throws IOException
+	{
+		Properties params = new Properties();
+		params.putAll(site);
+		params.put("workingDir", System.getProperty("user.dir"));
+		if (only != null)
+		{
+			for (int i = 0; i<only.length; i++)
+				params.put("only." + i, only[i]);
+		}
+		return request(port, force ? "force" : "build", params, log, err);
+	}
+	
+
+	/**
+	 * Send a request to the daemon, and copy the messages to 
+	 * <code>log</code> and <code>err</code> as they arrive.
+	 *
+	 * @return {@link #SUCCESS}, {@link #ERRORS} or {@link #FAILED}
+	 */
+	static int request(int port, String command, Properties params, 
+			PrintWriter log, PrintWriter err)
+		throws IOException
+	{
+		String token = readToken(port);
+		Socket socket = new Socket(InetAddress.getByName("127.0.0.1"), port);
+		try {
+			Writer out = new BufferedWriter(new OutputStreamWriter(
+				socket.getOutputStream(), ENCODING));
+			out.write(command);
+			out.write('\n');
+			out.write("token\t");
+			out.write(token);
+			out.write('\n');
+			for (Enumeration e = params.keys(); e.hasMoreElements(); )
+			{
+				String name = (String)e.nextElement();
+				out.write(name);
+				out.write('\t');
+				out.write(params.getProperty(name));
+				out.write('\n');
+			}
+			out.write('\n');
+			out.flush();
+
+			BufferedReader in = new BufferedReader(new InputStreamReader(
+				socket.getInputStream(), ENCODING));
+			while (true)
+			{
+				String line = in.readLine();
+				if (line == null)
+					throw new EOFException(
+						"Connection to Lagoon daemon lost");
+				if (line.startsWith("O "))
+				{
+					log.println(line.substring(2));
+				}
+				else if (line.startsWith("E "))
+				{
+					err.println(line.substring(2));
+				}
+				else if (line.startsWith("= "))
+				{
+					try {
+						return Integer.parseInt(line.substring(2));
+					}
+					catch (NumberFormatException e)
+					{
+						throw new IOException(
+							"Invalid response from Lagoon daemon: " + line);
+					}
+				}
+			}
+		}
+		finally
+		{
+			log.flush();
+			err.flush();
+			socket.close();
+		}
+	}
+}
+
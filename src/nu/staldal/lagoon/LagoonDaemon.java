@@ -0,0 +1,902 @@
+/*
+ * Copyright (c) 2005, Mikael Ståldal
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ * notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ * notice, this list of conditions and the following disclaimer in the 
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the author nor the names of its contributors 
+ * may be used to endorse or promote products derived from this software 
+ * without specific prior written permission. 
+ * 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY 
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * 
+ * Note: This is known as "the modified BSD license". It's an approved 
+ * Open Source and Free Software license, see 
+ * http://www.opensource.org/licenses/ 
+ * and
+ * http://www.gnu.org/philosophy/license-list.html
+ */
+
+package nu.staldal.lagoon;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.security.SecureRandom;
+
+import org.xml.sax.SAXException;
+
+import nu.staldal.xtree.*;
+import nu.staldal.util.FileStatCache;
+
+import nu.staldal.lagoon.core.*;
+
+
+/**
+ * A long-running process which keeps one initialized LagoonProcessor for
+ * each website, and builds on request from {@link LagoonClient}.
+ *
+ * Stylesheets, compiled LSP pages, the sitemap and the cached data are 
+ * kept between builds. A website is initialized again if its property 
+ * file or sitemap file is modified.
+ *
+ * The daemon only accepts connections from the local host, and only 
+ * requests with the access token it writes to a file in the 
+ * <code>.lagoon</code> directory in the user's home directory when 
+ * started, see {@link LagoonClient#getTokenFile}.
+ *
+ * @see nu.staldal.lagoon.LagoonClient
+ */
+public class LagoonDaemon
+{
+	private static boolean DEBUG = false;	
+	
+    private static final String syntaxMsg =
+        "Syntax:\n"
+	  + "nu.staldal.lagoon.LagoonDaemon [<options>]\n"
+	  + "Options:\n"
+	  + "  -port <port>    listen on <port>, default " 
+	  + LagoonClient.DEFAULT_PORT + "\n"
+	  + "  -threads <n>    build with <n> worker threads\n"
+	  + "  -stats          show file status cache statistics after each build\n"
+	  + "  -hash           compare file contents instead of modification dates\n"
+	  + "  -partcache <kb> maximum size of the cached output of each part, 0 to disable";
+  
+	private final ServerSocket serverSocket;
+	private final File tokenFile;
+	private final String token;
+	private final int workerThreads;
+	private final boolean contentHash;
+	private final long partCacheSize;
+	private final boolean stats;
+
+	/**
+	 * (String)key -> Site
+	 */
+	private final Hashtable sites = new Hashtable();
+
+	private boolean stopped = false;
+
+
+    /**
+     * The application main method
+     */
+	public static void main(String[] args)
+	{
+		int port = LagoonClient.DEFAULT_PORT;
+		int workerThreads = 0;
+		boolean contentHash = false;
+		long partCacheSize = -1;
+		boolean stats = false;
+
+		int argPos = 0;
+		while (argPos < args.length)
+		{
+			String opt = args[argPos++];
+			try {
+				if (opt.equals("-port") && argPos < args.length)
+				{
+					port = Integer.parseInt(args[argPos++]);
+				}
+				else if (opt.equals("-threads") && argPos < args.length)
+				{
+    	            workerThreads = Integer.parseInt(args[argPos++]);
+					if (workerThreads < 1)
+						throw new NumberFormatException();
+				}
+				else if (opt.equals("-stats"))
+				{
+					stats = true;
+				}
+				else if (opt.equals("-hash"))
+				{
+					contentHash = true;
+				}
+				else if (opt.equals("-partcache") && argPos < args.length)
+				{
+    	            partCacheSize = Long.parseLong(args[argPos++]);
+					if (partCacheSize < 0)
+						throw new NumberFormatException();
+				}
+				else
+				{
+	                System.out.println(syntaxMsg);
+   		            return;
+				}
+			}
+			catch (NumberFormatException e)
+			{
+                System.out.println(syntaxMsg);
+   	            return;
+			}
+		}
+
+		try {
+			LagoonDaemon daemon = new LagoonDaemon(port, workerThreads, 
+				contentHash, partCacheSize, stats);
+			System.out.println("Lagoon daemon listening on port " + port);
+			daemon.run();
+			System.out.println("Exiting Lagoon daemon...");
+			System.exit(0);
+		}
+		catch (IOException e)
+		{
+            System.err.println("I/O error: " + e.toString());
+			if (DEBUG) e.printStackTrace();
+		}
+	}
+
+
+	/**
+	 * Create a daemon listening on the local host.
+	 *
+	 * @param port  the port to listen on
+	 * @param workerThreads  number of worker threads, 0 to use the default
+	 * @param contentHash  compare file contents
+	 * @param partCacheSize  max size of cached parts in kilobytes, 
+	 *                       -1 to use the default
+	 * @param stats  show file status cache statistics after each build
+	 */
+	public LagoonDaemon(int port, int workerThreads, boolean contentHash, 
+			long partCacheSize, boolean stats)
+		throws IOException
+	{
+		this.workerThreads = workerThreads;
+		this.contentHash = contentHash;
+		this.partCacheSize = partCacheSize;
+		this.stats = stats;
+
+		serverSocket = new ServerSocket(port, 50, 
+			InetAddress.getByName("127.0.0.1"));
+
+		byte[] bytes = new byte[16];
+		new SecureRandom().nextBytes(bytes);
+		StringBuffer sb = new StringBuffer();
+		for (int i = 0; i<bytes.length; i++)
+		{
+			sb.append(Character.forDigit((bytes[i] >> 4) & 0xF, 16));
+			sb.append(Character.forDigit(bytes[i] & 0xF, 16));
+		}
+		token = sb.toString();
+
+		tokenFile = LagoonClient.getTokenFile(port);
+		try {
+			writeTokenFile();
+		}
+		catch (IOException e)
+		{
+			serverSocket.close();
+			throw e;
+		}
+	}
+
+
+	/**
+	 * Write the access token to a file only readable by the user, 
+	 * as far as the platform allows.
+	 */
+	private void writeTokenFile()
+		throws IOException
+	{
+		tokenFile.getParentFile().mkdirs();
+		tokenFile.delete();
+		if (!tokenFile.createNewFile())
+			throw new IOException("Unable to create " + tokenFile);
+		
+		if (File.separatorChar == '/')
+		{
+			try {
+				java.lang.Process p = Runtime.getRuntime().exec(new String[] 
+					{ "chmod", "600", tokenFile.getPath() });
+				if (p.waitFor() != 0)
+					throw new IOException(
+						"Unable to restrict access to " + tokenFile);
+			}
+			catch (InterruptedException e)
+			{
+				throw new InterruptedIOException(e.getMessage());
+			}
+		}
+
+		Writer w = new OutputStreamWriter(
+			new FileOutputStream(tokenFile), LagoonClient.ENCODING);
+		try {
+			w.write(token);
+			w.write('\n');
+		}
+		finally
+		{
+			w.close();
+		}
+	}
+
+
+	/**
+	 * Compare without leaking the position of the first difference 
+	 * through the time taken.
+	 */
+	private boolean isValidToken(String s)
+	{
+		if (s == null || s.length() != token.length()) return false;
+		int diff = 0;
+		for (int i = 0; i<token.length(); i++)
+			diff |= s.charAt(i) ^ token.charAt(i);
+		return diff == 0;
+	}
+
+
+	/**
+	 * Accept requests until stopped. Each request is handled in its own 
+	 * thread, builds of the same website are done one at a time.
+	 */
+	public void run()
+		throws IOException
+	{
+		try {
+			while (true)
+			{
+				final Socket socket;
+				try {
+					socket = serverSocket.accept();
+				}
+				catch (IOException e)
+				{
+					if (isStopped()) break;
+					throw e;
+				}
+				Thread t = new Thread("LagoonDaemon") {
+					public void run()
+					{
+						handle(socket);
+					}
+				};
+				t.start();
+			}
+		}
+		finally
+		{
+			destroy();
+		}
+	}
+
+
+	/**
+	 * Stop accepting requests.
+	 */
+	public void stop()
+	{
+		synchronized (this)
+		{
+			stopped = true;
+		}
+		try {
+			serverSocket.close();
+		}
+		catch (IOException e)
+		{
+			// ignore
+		}
+	}
+
+
+	private synchronized boolean isStopped()
+	{
+		return stopped;
+	}
+
+
+	private void destroy()
+	{
+		tokenFile.delete();
+
+		Vector v;
+		synchronized (sites)
+		{
+			v = new Vector(sites.values());
+			sites.clear();
+		}
+		for (int i = 0; i<v.size(); i++)
+		{
+			Site site = (Site)v.elementAt(i);
+			synchronized (site)
+			{
+				site.destroy();
+			}
+		}
+	}
+
+
+	private void handle(Socket socket)
+	{
+		Response res = null;
+		try {
+			BufferedReader in = new BufferedReader(new InputStreamReader(
+				socket.getInputStream(), LagoonClient.ENCODING));
+			res = new Response(new BufferedWriter(new OutputStreamWriter(
+				socket.getOutputStream(), LagoonClient.ENCODING)));
+
+			String command = in.readLine();
+			Properties params = new Properties();
+			while (true)
+			{
+				String line = in.readLine();
+				if (line == null || line.length() == 0) break;
+				int tab = line.indexOf('\t');
+				if (tab < 0) continue;
+				params.put(line.substring(0, tab), line.substring(tab+1));
+			}
+
+			int status;
+			if (command == null)
+			{
+				return;
+			}
+			else if (!isValidToken(params.getProperty("token")))
+			{
+				res.err.println("Access denied, invalid token");
+				status = LagoonClient.FAILED;
+			}
+			else if (command.equals("build") || command.equals("force"))
+			{
+				status = build(params, command.equals("force"), res);
+			}
+			else if (command.equals("status"))
+			{
+				status = status(res);
+			}
+			else if (command.equals("stop"))
+			{
+				res.log.println("Stopping Lagoon daemon");
+				status = LagoonClient.SUCCESS;
+				stop();
+			}
+			else
+			{
+				res.err.println("Unknown command: " + command);
+				status = LagoonClient.FAILED;
+			}
+			res.end(status);
+		}
+		catch (IOException e)
+		{
+			// the client has gone
+			if (DEBUG) e.printStackTrace();
+		}
+		finally
+		{
+			try {
+				socket.close();
+			}
+			catch (IOException e)
+			{
+				// ignore
+			}
+		}
+	}
+
+
+	private int build(Properties params, boolean force, Response res)
+		throws IOException
+	{
+		Vector patterns = new Vector();
+		for (int i = 0; params.getProperty("only." + i) != null; i++)
+			patterns.addElement(params.getProperty("only." + i));
+
+		String key = params.getProperty("workingDir") + '\t';
+		if (params.getProperty("propertyFile") != null)
+		{
+			key += params.getProperty("propertyFile");
+		}
+		else
+		{
+			key += params.getProperty("sitemapFile") + '\t' 
+				+ params.getProperty("sourceDir") + '\t'
+				+ params.getProperty("targetURL");
+		}
+
+		Site site;
+		synchronized (sites)
+		{
+			site = (Site)sites.get(key);
+			if (site == null)
+			{
+				site = new Site(params);
+				sites.put(key, site);
+			}
+		}
+
+		synchronized (site)
+		{
+			site.out.setTarget(res.log);
+			site.errOut.setTarget(res.err);
+			try {
+				if (!site.init(res)) return LagoonClient.FAILED;
+
+				res.log.println(force 
+					? "Force building website..." : "Building website...");
+                long timeBefore = System.currentTimeMillis();
+				boolean success;
+				if (patterns.isEmpty())
+				{
+					success = site.processor.build(force);
+				}
+				else
+				{
+					String[] only = new String[patterns.size()];
+					patterns.copyInto(only);
+					success = site.processor.buildTargets(only, force);
+				}
+				long buildTime = System.currentTimeMillis()-timeBefore;
+				site.built(buildTime, success);
+				if (!success)
+					res.log.println("...with errors...");
+				res.log.println("in " + buildTime + " ms");
+				if (stats)
+				{
+					FileStatCache cache = site.processor.getStatCache();
+					res.log.println("file status cache: " + cache.getHits() 
+						+ " hits, " + cache.getMisses() + " misses");
+				}
+				return success ? LagoonClient.SUCCESS : LagoonClient.ERRORS;
+			}
+			catch (IOException e)
+			{
+				res.err.println("I/O error: " + e.toString());
+				if (DEBUG) e.printStackTrace();
+				// the state of the processor is unknown
+				site.destroy();
+				return LagoonClient.FAILED;
+			}
+			catch (RuntimeException e)
+			{
+				res.err.println("Internal error: " + e.toString());
+				if (DEBUG) e.printStackTrace();
+				// the state of the processor is unknown
+				site.destroy();
+				return LagoonClient.FAILED;
+			}
+			finally
+			{
+				site.out.setTarget(null);
+				site.errOut.setTarget(null);
+			}
+		}
+	}
+
+
+	private int status(Response res)
+	{
+		Vector v;
+		synchronized (sites)
+		{
+			v = new Vector(sites.values());
+		}
+		res.log.println("Lagoon daemon, " + v.size() + " website(s)");
+		for (int i = 0; i<v.size(); i++)
+		{
+			Site site = (Site)v.elementAt(i);
+			res.log.println(site.getName() + ": " + site.getStatus());
+		}
+		return LagoonClient.SUCCESS;
+	}
+
+
+	/**
+	 * An initialized website. The build state is guarded by the Site 
+	 * itself, the status by <code>statusLock</code> so that it can be 
+	 * read during a build.
+	 */
+	private class Site
+	{
+		final Properties params;
+		final RedirectWriter out = new RedirectWriter(System.out);
+		final RedirectWriter errOut = new RedirectWriter(System.err);
+
+		LagoonProcessor processor = null;
+		File propertyFile;
+		File sitemapFile;
+		long propertyFileDate;
+		long sitemapFileDate;
+
+		private final Object statusLock = new Object();
+		private boolean initialized;
+		private int builds;
+		private long lastBuildTime;
+		private boolean lastSuccess;
+
+		Site(Properties params)
+		{
+			this.params = params;
+			String pf = params.getProperty("propertyFile");
+			propertyFile = (pf == null) ? null : resolve(pf);
+		}
+
+		String getName()
+		{
+			return (propertyFile != null) 
+				? propertyFile.getPath() 
+				: params.getProperty("sitemapFile");
+		}
+
+		void built(long buildTime, boolean success)
+		{
+			synchronized (statusLock)
+			{
+				builds++;
+				lastBuildTime = buildTime;
+				lastSuccess = success;
+			}
+		}
+
+		String getStatus()
+		{
+			synchronized (statusLock)
+			{
+				if (!initialized) return "not initialized";
+				return builds + " build(s), last in " + lastBuildTime + " ms" 
+					+ (lastSuccess ? "" : " with errors");
+			}
+		}
+
+		/**
+		 * Initialize the website if it's not initialized, or if its 
+		 * configuration is modified.
+		 *
+		 * @return false if initialization failed
+		 */
+		boolean init(Response res)
+			throws IOException
+		{
+			if (processor != null 
+					&& (propertyFile == null 
+						|| propertyFile.lastModified() == propertyFileDate)
+					&& sitemapFile.lastModified() == sitemapFileDate)
+			{
+				return true;
+			}
+
+			if (processor != null)
+			{
+				res.log.println("Configuration modified");
+				destroy();
+			}
+
+			res.log.println("Initializing Lagoon...");
+			try {
+				create();
+			}
+			catch (AuthenticationMissingException e)
+			{
+				res.err.println("Error while initializing Lagoon:");
+				res.err.println("Password is required but not specified");
+				return false;
+			}
+			catch (AuthenticationException e)
+			{
+				res.err.println("Error while initializing Lagoon:");
+				res.err.println("Incorrect password");
+				return false;
+			}
+			catch (FileNotFoundException e)
+			{
+				res.err.println("Error while initializing Lagoon:");
+				res.err.println("File not found: " + e.getMessage());
+				return false;
+			}
+			catch (IOException e)
+			{
+				res.err.println("Error while initializing Lagoon:");
+				res.err.println("I/O error: " + e.toString());
+				if (DEBUG) e.printStackTrace();
+				return false;
+			}
+			catch (LagoonException e)
+			{
+				res.err.println("Error while initializing Lagoon:");
+				res.err.println(e.getMessage());
+				return false;
+			}
+			res.log.println("Lagoon initialized successfully");
+			synchronized (statusLock)
+			{
+				initialized = true;
+				builds = 0;
+				lastBuildTime = 0;
+				lastSuccess = true;
+			}
+			return true;
+		}
+
+		private void create()
+			throws IOException, LagoonException, AuthenticationException, 
+				AuthenticationMissingException
+		{
+			Properties properties;
+			int threads = workerThreads;
+			boolean hash = contentHash;
+
+			if (propertyFile != null)
+			{
+				propertyFileDate = propertyFile.lastModified();
+				properties = new Properties();
+				FileInputStream fis = new FileInputStream(propertyFile);
+				properties.load(fis);
+				fis.close();
+
+				String threadsProp = properties.getProperty("threads");
+				if (threads == 0 && threadsProp != null)
+				{
+					try {
+						threads = Integer.parseInt(threadsProp.trim());
+					}
+					catch (NumberFormatException e)
+					{
+						throw new LagoonException(
+							"Property threads must be a number");
+					}
+					if (threads < 1)
+						throw new LagoonException(
+							"Property threads must be at least 1");
+				}
+
+				String hashProp = properties.getProperty("hash");
+				if (hashProp != null && hashProp.trim().equals("true"))
+					hash = true;
+			}
+			else
+			{
+				properties = params;
+			}
+
+			String targetURL = getProperty(properties, "targetURL");
+			if (targetURL.indexOf(':') < 1)
+				targetURL = resolve(targetURL).getPath();
+			sitemapFile = resolve(getProperty(properties, "sitemapFile"));
+			File sourceDir = resolve(getProperty(properties, "sourceDir"));
+			String password = properties.getProperty("password");
+
+			sitemapFileDate = sitemapFile.lastModified();
+
+			Element sitemapTree;
+			try {
+				sitemapTree = TreeBuilder.parseXML(
+					TreeBuilder.fileToInputSource(sitemapFile), false);
+			}
+			catch (SAXException e)
+			{
+				Exception ee = e.getException();
+				if (ee == null)
+				{
+					throw new LagoonException(e.getMessage());
+				}
+				else if (ee instanceof java.io.IOException)
+				{
+					throw (java.io.IOException)ee;
+				}
+				else
+				{
+					throw new LagoonException(ee.getMessage());
+				}
+			}				
+
+			processor = new LagoonProcessor(
+				targetURL, sitemapTree, sourceDir, password, 
+				new PrintWriter(out, true), new PrintWriter(errOut, true));
+
+			if (threads > 0) processor.setWorkerThreads(threads);
+			if (hash) processor.setContentHash(true);
+			if (partCacheSize >= 0) 
+				processor.setPartCacheSize(partCacheSize*1024);
+		}
+
+		/**
+		 * Resolve a path against the working directory of the client.
+		 */
+		private File resolve(String path)
+		{
+			File f = new File(path);
+			String workingDir = params.getProperty("workingDir");
+			if (f.isAbsolute() || workingDir == null)
+				return f;
+			else
+				return new File(workingDir, path);
+		}
+
+		void destroy()
+		{
+			if (processor == null) return;
+			try {
+				processor.destroy();
+			}
+			catch (IOException e)
+			{
+				System.err.println("I/O error: " + e.toString());
+			}
+			processor = null;
+			synchronized (statusLock)
+			{
+				initialized = false;
+			}
+		}
+	}
+
+
+    private static String getProperty(Properties properties, String name)
+        throws LagoonException
+    {
+        String value = properties.getProperty(name);
+        if (value == null)
+            throw new LagoonException("Property " + name + " not specified");
+
+        return value.trim();
+    }
+
+
+	/**
+	 * The connection to a client.
+	 */
+	private static class Response
+	{
+		private final Writer out;
+		final PrintWriter log;
+		final PrintWriter err;
+
+		Response(Writer out)
+		{
+			this.out = out;
+			log = new PrintWriter(new LineWriter(this, "O "), true);
+			err = new PrintWriter(new LineWriter(this, "E "), true);
+		}
+
+		synchronized void writeLine(String prefix, String line)
+			throws IOException
+		{
+			out.write(prefix);
+			out.write(line);
+			out.write('\n');
+			out.flush();
+		}
+
+		void end(int status)
+			throws IOException
+		{
+			log.flush();
+			err.flush();
+			writeLine("= ", String.valueOf(status));
+		}
+	}
+
+
+	/**
+	 * Sends each line as a message to a client.
+	 */
+	private static class LineWriter extends Writer
+	{
+		private final Response res;
+		private final String prefix;
+		private final StringBuffer line = new StringBuffer();
+
+		LineWriter(Response res, String prefix)
+		{
+			this.res = res;
+			this.prefix = prefix;
+		}
+
+		public synchronized void write(char[] cbuf, int off, int len)
+			throws IOException
+		{
+			for (int i = off; i<off+len; i++)
+			{
+				char c = cbuf[i];
+				if (c == '\n')
+				{
+					res.writeLine(prefix, line.toString());
+					line.setLength(0);
+				}
+				else if (c != '\r')
+				{
+					line.append(c);
+				}
+			}
+		}
+
+		public synchronized void flush()
+			throws IOException
+		{
+			if (line.length() > 0)
+			{
+				res.writeLine(prefix, line.toString());
+				line.setLength(0);
+			}
+		}
+
+		public void close()
+			throws IOException
+		{
+			flush();
+		}
+	}
+
+
+	/**
+	 * Writes to the current client, or to the console between requests.
+	 */
+	private static class RedirectWriter extends Writer
+	{
+		private final PrintStream console;
+		private PrintWriter target = null;
+
+		RedirectWriter(PrintStream console)
+		{
+			this.console = console;
+		}
+
+		synchronized void setTarget(PrintWriter target)
+		{
+			this.target = target;
+		}
+
+		public synchronized void write(char[] cbuf, int off, int len)
+		{
+			if (target != null)
+				target.write(cbuf, off, len);
+			else
+				console.print(new String(cbuf, off, len));
+		}
+
+		public synchronized void flush()
+		{
+			if (target != null)
+				target.flush();
+			else
+				console.flush();
+		}
+
+		public void close()
+		{
+			flush();
+		}
+	}
+}
+
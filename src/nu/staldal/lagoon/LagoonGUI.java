@@ -72,6 +72,7 @@ public class LagoonGUI extends Frame implements WindowListener
 	private InputComponent sitemapFile;
 	private InputComponent sourceDir;
 	private InputComponent targetURL;
+	private InputComponent threads;
 	private String password;
 	private Label statusLabel;
 	private TextArea progressArea;
@@ -103,6 +104,8 @@ public class LagoonGUI extends Frame implements WindowListener
 			sourceDir = new InputComponent(this, "Source directory", "."));
 		inputPanel.add(
 			targetURL = new InputComponent(this, "Target URL", "."));
+		inputPanel.add(
+			threads = new InputComponent(this, "Worker threads", "1"));
 		
 		add(centerPanel = new Panel(), BorderLayout.CENTER);
 		centerPanel.setLayout(new BorderLayout());
@@ -273,6 +276,18 @@ public class LagoonGUI extends Frame implements WindowListener
 		processor = null;
 		
         try {
+			int workerThreads;
+			try {
+				workerThreads = Integer.parseInt(threads.getValue().trim());
+			}
+			catch (NumberFormatException e)
+			{
+				workerThreads = 0;
+			}
+			if (workerThreads < 1)
+				throw new LagoonException(
+					"Worker threads must be a positive number");
+
 			Element sitemapTree;		
 			try {
 				FileInputStream fis = 
@@ -310,6 +325,7 @@ public class LagoonGUI extends Frame implements WindowListener
 				targetURL.getValue(), sitemapTree, 
 				new File(sourceDir.getValue()), password,
 				pw, pw); 
+			processor.setWorkerThreads(workerThreads);
         }
         catch (AuthenticationMissingException e)
         {
@@ -375,6 +391,7 @@ public class LagoonGUI extends Frame implements WindowListener
 			sitemapFile.setValue(getProperty(prop, "sitemapFile"));
 			sourceDir.setValue(getProperty(prop, "sourceDir"));
 			targetURL.setValue(getProperty(prop, "targetURL"));
+			threads.setValue(prop.getProperty("threads", "1").trim());
 			password = prop.getProperty("password");
 		}
 		catch (LagoonException e)
@@ -409,6 +426,7 @@ public class LagoonGUI extends Frame implements WindowListener
 				prop.setProperty("sitemapFile", sitemapFile.getValue());
 				prop.setProperty("sourceDir", sourceDir.getValue());
 				prop.setProperty("targetURL", targetURL.getValue());
+				prop.setProperty("threads", threads.getValue());
 				if (password != null)
 				{
 					YesNoQueryDialog ynDialog = 
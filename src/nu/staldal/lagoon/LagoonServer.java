@@ -0,0 +1,452 @@
+/*
+ * Copyright (c) 2005, Mikael Ståldal
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ * notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ * notice, this list of conditions and the following disclaimer in the 
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the author nor the names of its contributors 
+ * may be used to endorse or promote products derived from this software 
+ * without specific prior written permission. 
+ * 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY 
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * 
+ * Note: This is known as "the modified BSD license". It's an approved 
+ * Open Source and Free Software license, see 
+ * http://www.opensource.org/licenses/ 
+ * and
+ * http://www.gnu.org/philosophy/license-list.html
+ */
+
+package nu.staldal.lagoon;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+import org.xml.sax.SAXException;
+
+import nu.staldal.xtree.*;
+
+import nu.staldal.lagoon.core.*;
+import nu.staldal.lagoon.filestorage.MemoryFileStorage;
+
+
+/**
+ * A simple HTTP server for previewing a website while authoring it.
+ *
+ * Each requested file is built when it's requested, and kept in memory
+ * until any of the files it depends on is changed. Other files 
+ * generated when building a file (e.g. images) are served from memory, 
+ * and are built again with the file they came from.
+ *
+ * The server only accepts connections from the local host.
+ */
+public class LagoonServer
+{
+	private static boolean DEBUG = false;	
+	
+    private static final String syntaxMsg =
+        "Syntax:\n"
+	  + "nu.staldal.lagoon.LagoonServer [-port <port>] <property_file>\n"
+	  + "nu.staldal.lagoon.LagoonServer [-port <port>] <sitemap_file>";
+
+	/**
+	 * The default port.
+	 */
+	public static final int DEFAULT_PORT = 8080;
+
+	private static final String[][] contentTypes = {
+		{ ".html", "text/html" },
+		{ ".htm", "text/html" },
+		{ ".xhtml", "application/xhtml+xml" },
+		{ ".xml", "text/xml" },
+		{ ".css", "text/css" },
+		{ ".js", "text/javascript" },
+		{ ".txt", "text/plain" },
+		{ ".svg", "image/svg+xml" },
+		{ ".png", "image/png" },
+		{ ".gif", "image/gif" },
+		{ ".jpg", "image/jpeg" },
+		{ ".jpeg", "image/jpeg" },
+		{ ".pdf", "application/pdf" },
+	};
+
+	private final LagoonProcessor processor;
+	private final MemoryFileStorage storage;
+	private final ServerSocket serverSocket;
+
+	/**
+	 * (String)path of generated file -> (String)target URL it came from
+	 */
+	private final Hashtable sideOutputs = new Hashtable();
+
+
+    /**
+     * The application main method
+     */
+	public static void main(String[] args)
+	{
+		int port = DEFAULT_PORT;
+		int argPos = 0;
+		if (args.length > 1 && args[0].equals("-port"))
+		{
+			try {
+				port = Integer.parseInt(args[1]);
+			}
+			catch (NumberFormatException e)
+			{
+				System.out.println(syntaxMsg);
+				return;
+			}
+			argPos = 2;
+		}
+		if (args.length-argPos != 1)
+		{
+			System.out.println(syntaxMsg);
+			return;
+		}
+
+		LagoonServer server;
+		try {
+            System.out.println("Initializing Lagoon...");
+
+			File sitemapFile;
+			File sourceDir;
+			
+			if (args[argPos].endsWith(".xml") 
+					|| args[argPos].endsWith(".sitemap"))
+			{
+				sourceDir = new File(System.getProperty("user.dir"));
+				sitemapFile = new File(args[argPos]);
+			}
+			else
+			{
+				Properties properties = new Properties();
+				FileInputStream fis = new FileInputStream(args[argPos]);
+				properties.load(fis);
+				fis.close();
+	
+				sitemapFile = new File(getProperty(properties, "sitemapFile"));
+				sourceDir = new File(getProperty(properties, "sourceDir"));
+			}
+
+			Element sitemapTree;
+			try {
+				sitemapTree = TreeBuilder.parseXML(
+					TreeBuilder.fileToInputSource(sitemapFile), false);
+			}
+			catch (SAXException e)
+			{
+				Exception ee = e.getException();
+				if (ee == null)
+				{
+					throw new LagoonException(e.getMessage());
+				}
+				else if (ee instanceof java.io.IOException)
+				{
+					throw (java.io.IOException)ee;
+				}
+				else
+				{
+					throw new LagoonException(ee.getMessage());
+				}
+			}				
+
+			server = new LagoonServer(port, sitemapTree, sourceDir);
+        }
+        catch (AuthenticationException e)
+        {
+			// cannot happen, no password is needed
+            System.err.println("Error while initializing Lagoon:");
+            System.err.println(e.toString());
+            return;
+        }
+        catch (FileNotFoundException e)
+        {
+            System.err.println("Error while initializing Lagoon:");
+            System.err.println("File not found: " + e.getMessage());
+            return;
+        }
+        catch (IOException e)
+        {
+            System.err.println("Error while initializing Lagoon:");
+            System.err.println("I/O error: " + e.toString());
+			if (DEBUG) e.printStackTrace();
+            return;
+        }
+        catch (LagoonException e)
+        {
+            System.err.println("Error while initializing Lagoon:");
+            System.err.println(e.getMessage());
+            return;
+        }
+
+		System.out.println("Lagoon server listening on http://localhost:" 
+			+ port + "/");
+		try {
+			server.run();
+		}
+		catch (IOException e)
+		{
+            System.err.println("I/O error: " + e.toString());
+			if (DEBUG) e.printStackTrace();
+		}
+	}
+
+
+    private static String getProperty(Properties properties, String name)
+        throws LagoonException
+    {
+        String value = properties.getProperty(name);
+        if (value == null)
+            throw new LagoonException("Property " + name + " not specified");
+
+        return value.trim();
+    }
+
+
+	/**
+	 * Create a server. The cached data is kept in a separate working 
+	 * directory, so it doesn't affect the ordinary builds.
+	 *
+	 * @param port  the port to listen on
+	 * @param sitemapTree  the Sitemap as an XTree
+	 * @param sourceDir  where the source files are
+	 */
+	public LagoonServer(int port, Element sitemapTree, File sourceDir)
+        throws IOException, LagoonException, AuthenticationException
+	{
+		processor = new LagoonProcessor("mem:", sitemapTree, sourceDir, 
+			null, new PrintWriter(System.out, true), 
+			new PrintWriter(System.err, true),
+			new File(System.getProperty("user.home"), ".lagoon-server"));
+		storage = (MemoryFileStorage)processor.getTargetLocation();
+
+		serverSocket = new ServerSocket(port, 50, 
+			InetAddress.getByName("127.0.0.1"));
+	}
+
+
+	/**
+	 * Serve requests, each in its own thread.
+	 */
+	public void run()
+		throws IOException
+	{
+		try {
+			while (true)
+			{
+				final Socket socket = serverSocket.accept();
+				Thread t = new Thread("LagoonServer") {
+					public void run()
+					{
+						handle(socket);
+					}
+				};
+				t.start();
+			}
+		}
+		finally
+		{
+			serverSocket.close();
+			processor.destroy();
+		}
+	}
+
+
+	private void handle(Socket socket)
+	{
+		try {
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			OutputStream out = 
+				new BufferedOutputStream(socket.getOutputStream());
+
+			String requestLine = readLine(in);
+			if (requestLine == null) return;
+			while (true)
+			{
+				String header = readLine(in);
+				if (header == null || header.length() == 0) break;
+			}
+
+			StringTokenizer st = new StringTokenizer(requestLine, " ");
+			if (st.countTokens() < 2)
+			{
+				sendError(out, 400, "Bad Request");
+				return;
+			}
+			String method = st.nextToken();
+			String uri = st.nextToken();
+			boolean head = method.equals("HEAD");
+			if (!head && !method.equals("GET"))
+			{
+				sendError(out, 501, "Not Implemented");
+				return;
+			}
+
+			int q = uri.indexOf('?');
+			if (q >= 0) uri = uri.substring(0, q);
+			String path = URLDecoder.decode(uri, "UTF-8");
+			if (!path.startsWith("/") || path.indexOf("/../") >= 0 
+					|| path.endsWith("/..") || path.indexOf('*') >= 0
+					|| path.indexOf('?') >= 0)
+			{
+				sendError(out, 404, "Not Found");
+				return;
+			}
+			if (path.endsWith("/")) path += "index.html";
+
+			byte[] data;
+			try {
+				data = getFile(path);
+			}
+			catch (IOException e)
+			{
+				System.err.println("I/O error: " + e.toString());
+				if (DEBUG) e.printStackTrace();
+				sendError(out, 500, "Internal Server Error");
+				return;
+			}
+			if (data == null)
+			{
+				sendError(out, 404, "Not Found");
+				return;
+			}
+
+			writeAscii(out, "HTTP/1.0 200 OK\r\n");
+			writeAscii(out, "Content-Type: " + getContentType(path) + "\r\n");
+			writeAscii(out, "Content-Length: " + data.length + "\r\n");
+			writeAscii(out, "Cache-Control: no-cache\r\n");
+			writeAscii(out, "Connection: close\r\n\r\n");
+			if (!head) out.write(data);
+			out.flush();
+		}
+		catch (IOException e)
+		{
+			// the client has gone
+			if (DEBUG) e.printStackTrace();
+		}
+		finally
+		{
+			try {
+				socket.close();
+			}
+			catch (IOException e)
+			{
+				// ignore
+			}
+		}
+	}
+
+
+	/**
+	 * Build a file if necessary, and get it. A file is served directly 
+	 * if the dependency index shows that the target it came from is 
+	 * up to date.
+	 *
+	 * @return the contents of the file, or <code>null</code> if not found
+	 * @throws IOException  if the file could not be built
+	 */
+	private byte[] getFile(String path)
+		throws IOException
+	{
+		synchronized (processor)
+		{
+			String target = (String)sideOutputs.get(path);
+			if (target == null) target = path;
+
+			if (processor.isUpToDate(target))
+			{
+				byte[] data = storage.getFile(path);
+				if (data != null) return data;
+			}
+
+			long startTime = System.currentTimeMillis();
+			boolean success = 
+				processor.buildTargets(new String[] { target }, false);
+
+			// remember other files generated with the target
+			Vector v = storage.getFilesModifiedSince(startTime);
+			for (int i = 0; i<v.size(); i++)
+			{
+				String p = (String)v.elementAt(i);
+				if (!p.equals(target)) sideOutputs.put(p, target);
+			}
+
+			byte[] data = storage.getFile(path);
+			if (data == null && !success)
+				throw new IOException("Error building " + target);
+			return data;
+		}
+	}
+
+
+	private static String getContentType(String path)
+	{
+		String lower = path.toLowerCase();
+		for (int i = 0; i<contentTypes.length; i++)
+		{
+			if (lower.endsWith(contentTypes[i][0])) return contentTypes[i][1];
+		}
+		String type = URLConnection.guessContentTypeFromName(path);
+		return (type == null) ? "application/octet-stream" : type;
+	}
+
+
+	private static void sendError(OutputStream out, int code, String msg)
+		throws IOException
+	{
+		String body = "<html><head><title>" + code + " " + msg 
+			+ "</title></head><body><h1>" + msg + "</h1></body></html>\r\n";
+		writeAscii(out, "HTTP/1.0 " + code + " " + msg + "\r\n");
+		writeAscii(out, "Content-Type: text/html\r\n");
+		writeAscii(out, "Content-Length: " + body.length() + "\r\n");
+		writeAscii(out, "Connection: close\r\n\r\n");
+		writeAscii(out, body);
+		out.flush();
+	}
+
+
+	private static void writeAscii(OutputStream out, String s)
+		throws IOException
+	{
+		out.write(s.getBytes("US-ASCII"));
+	}
+
+
+	private static String readLine(InputStream in)
+		throws IOException
+	{
+		StringBuffer sb = new StringBuffer();
+		while (true)
+		{
+			int c = in.read();
+			if (c < 0) return (sb.length() == 0) ? null : sb.toString();
+			if (c == '\n') return sb.toString();
+			if (c != '\r') sb.append((char)c);
+			if (sb.length() > 8192) throw new IOException("Line too long");
+		}
+	}
+}
+
@@ -84,10 +84,10 @@ class DeleteEntry implements SitemapEntry
     }
     
     
-    public boolean build(boolean always)
+    public boolean build(boolean always, PrintWriter log, PrintWriter err)
         throws IOException
     {
-		processor.log.println("Deleting: " + targetURL);
+		log.println("Deleting: " + targetURL);
 
 	    processor.getTargetLocation().deleteFile(targetURL);
 		
@@ -100,6 +100,15 @@ class DeleteEntry implements SitemapEntry
     {
         // nothing to do
     }
+
+
+	/**
+	 * Get the target of this entry.
+	 */
+	String getTargetURL()
+	{
+		return targetURL;
+	}
 	
 }
 
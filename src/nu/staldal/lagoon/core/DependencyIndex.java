@@ -0,0 +1,475 @@
+/*
+ * Copyright (c) 2005, Mikael Ståldal
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ * notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ * notice, this list of conditions and the following disclaimer in the 
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the author nor the names of its contributors 
+ * may be used to endorse or promote products derived from this software 
+ * without specific prior written permission. 
+ * 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY 
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * 
+ * Note: This is known as "the modified BSD license". It's an approved 
+ * Open Source and Free Software license, see 
+ * http://www.opensource.org/licenses/ 
+ * and
+ * http://www.gnu.org/philosophy/license-list.html
+ */
+
+package nu.staldal.lagoon.core;
+
+import java.io.*;
+import java.util.*;
+
+import nu.staldal.util.FileStatCache;
+
+
+/**
+ * Persistent index of the source files each target depends on.
+ *
+ * Used to avoid checking the whole producer chain of every target in an
+ * incremental build. The source files are scanned once at the start of
+ * the build, and only the targets depending on a changed file are rebuilt.
+ *
+ * Targets not in the index, or with dependencies which cannot be 
+ * determined (dynamic), are checked with the producer chain as usual.
+ *
+ * If content hashing is enabled, a digest of each source file is also
+ * recorded, and a file with a changed modification date but the same 
+ * contents doesn't cause a rebuild.
+ *
+ * Stored in the repository, with one record for each target.
+ */
+class DependencyIndex implements RepositoryTable
+{
+	private static final boolean DEBUG = false;
+
+	private static final int VERSION = 1;
+	
+    /**
+     * (String)target URL -> Dependencies
+     */
+    private Hashtable targets;
+
+    /**
+     * (String)source file path -> Hashtable((String)target URL -> "")
+     */
+    private Hashtable sources;
+
+    /**
+     * (String)target URL -> "", for targets depending on a changed file
+     */
+    private Hashtable affected;
+
+    /**
+     * (String)target URL -> "", for targets changed since last saved
+     */
+    private Hashtable changed;
+
+    private boolean contentHash;
+
+
+    DependencyIndex()
+    {
+        targets = new Hashtable();
+        sources = new Hashtable();
+        affected = new Hashtable();
+        changed = new Hashtable();
+    }
+
+
+    public synchronized void load(String target, byte[] data)
+    {
+        Dependencies deps;
+        try {
+            deps = decode(data);
+        }
+        catch (IOException e)
+        {
+            if (DEBUG) System.out.println(target + ": " + e);
+            return;
+        }
+        if (deps == null) return;
+
+        remove(target);
+        changed.remove(target);
+        targets.put(target, deps);
+        addReverse(target, deps);
+    }
+
+
+    public synchronized Hashtable getChanges()
+        throws IOException
+    {
+        Hashtable records = new Hashtable();
+        for (Enumeration e = changed.keys(); e.hasMoreElements(); )
+        {
+            String target = (String)e.nextElement();
+            Dependencies deps = (Dependencies)targets.get(target);
+            records.put(target, (deps == null) ? new byte[0] : encode(deps));
+        }
+        changed.clear();
+        return records;
+    }
+
+
+    /**
+     * Scan all source files in the index for changes. 
+     * Invoked before an incremental build.
+     *
+     * @param stats  cache to check the source files through
+     */
+    synchronized void scan(FileStatCache stats)
+    {
+        scan(stats, targets.keys());
+    }
+
+
+    /**
+     * Scan the source files of some targets for changes. 
+     * Invoked before a partial build.
+     *
+     * @param stats  cache to check the source files through
+     * @param targetURLs  the (String) target URLs to scan
+     */
+    synchronized void scan(FileStatCache stats, Enumeration targetURLs)
+    {
+        affected = new Hashtable();
+
+        for (Enumeration e = targetURLs; e.hasMoreElements(); )
+        {
+            String target = (String)e.nextElement();
+            Dependencies deps = (Dependencies)targets.get(target);
+            if (deps == null || deps.dynamic) continue;
+
+            if (isChanged(target, deps, stats)) affected.put(target, "");
+        }
+    }
+
+
+    /**
+     * Check whether a tracked target is up to date, without affecting 
+     * the result of the last scan.
+     *
+     * @param target  the target URL
+     * @param signature  the producer chain used to build the target
+     * @param stats  cache to check the source files through
+     */
+    synchronized boolean isUpToDate(String target, String signature, 
+                                    FileStatCache stats)
+    {
+        if (!isTracked(target, signature)) return false;
+
+        return !isChanged(target, (Dependencies)targets.get(target), stats);
+    }
+
+
+    private boolean isChanged(String target, Dependencies deps, 
+                              FileStatCache stats)
+    {
+        for (int i = 0; i<deps.files.length; i++)
+        {
+            File file = new File(deps.files[i]);
+            long current = stats.lastModified(file);
+
+            // a removed file doesn't cause a rebuild
+            if ((current > 0) && (current != deps.lastModified[i]))
+            {
+                if (deps.digests != null && deps.digests[i] != null
+                        && deps.digests[i].equals(stats.digest(file)))
+                {
+                    // only touched, don't check the contents again
+                    deps.lastModified[i] = current;
+                    changed.put(target, "");
+                    continue;
+                }
+
+                if (DEBUG) System.out.println(target + " affected by "
+                    + deps.files[i]);
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * Enable or disable recording of source file digests.
+     */
+    synchronized void setContentHash(boolean contentHash)
+    {
+        this.contentHash = contentHash;
+    }
+
+
+    /**
+     * Check whether the dependencies of a target are known.
+     *
+     * @param target  the target URL
+     * @param signature  the producer chain used to build the target,
+     *                   if it's changed the dependencies are not known
+     */
+    synchronized boolean isTracked(String target, String signature)
+    {
+        Dependencies deps = (Dependencies)targets.get(target);
+
+        return (deps != null) && !deps.dynamic 
+            && deps.signature.equals(signature);
+    }
+
+
+    /**
+     * Check whether a target depends on a file changed since it was built.
+     * Only valid for tracked targets.
+     */
+    synchronized boolean isAffected(String target)
+    {
+        return affected.containsKey(target);
+    }
+
+
+    /**
+     * Get the targets depending on a source file.
+     *
+     * @param file  the source file
+     *
+     * @return an Enumeration of target URLs (String)
+     */
+    synchronized Enumeration getTargets(File file)
+    {
+        Hashtable t = (Hashtable)sources.get(file.getPath());
+        if (t == null) t = new Hashtable();
+
+        return ((Hashtable)t.clone()).keys();
+    }
+
+
+    /**
+     * Record the dependencies of a target, after it has been built.
+     *
+     * @param target  the target URL
+     * @param signature  the producer chain used to build the target
+     * @param files  Vector of File
+     * @param dynamic  the dependencies cannot be determined
+     * @param stats  cache to check the source files through
+     */
+    void put(String target, String signature, Vector files, boolean dynamic,
+             FileStatCache stats)
+    {
+        Dependencies deps = new Dependencies();
+        deps.signature = signature;
+        deps.dynamic = dynamic;
+
+        Hashtable unique = new Hashtable();
+        for (Enumeration e = files.elements(); e.hasMoreElements(); )
+        {
+            File f = (File)e.nextElement();
+            unique.put(f.getPath(), f);
+        }
+
+        // sorted, so the same dependencies give the same record
+        deps.files = new String[unique.size()];
+        int i = 0;
+        for (Enumeration e = unique.keys(); e.hasMoreElements(); i++)
+        {
+            deps.files[i] = (String)e.nextElement();
+        }
+        Arrays.sort(deps.files);
+
+        deps.lastModified = new long[deps.files.length];
+        boolean digest;
+        synchronized (this)
+        {
+            digest = contentHash;
+        }
+        if (digest) deps.digests = new String[deps.files.length];
+        for (i = 0; i<deps.files.length; i++)
+        {
+            File f = (File)unique.get(deps.files[i]);
+            deps.lastModified[i] = stats.lastModified(f);
+            if (digest) deps.digests[i] = stats.digest(f);
+        }
+
+        synchronized (this)
+        {
+            if (deps.equals(targets.get(target))) return; // not changed
+
+            remove(target);
+            targets.put(target, deps);
+            addReverse(target, deps);
+            changed.put(target, "");
+        }
+    }
+
+
+    /**
+     * Remove a target from the index, e.g. when the build failed.
+     */
+    synchronized void remove(String target)
+    {
+        Dependencies deps = (Dependencies)targets.remove(target);
+        affected.remove(target);
+        if (deps == null) return;
+        changed.put(target, "");
+
+        for (int i = 0; i<deps.files.length; i++)
+        {
+            Hashtable t = (Hashtable)sources.get(deps.files[i]);
+            if (t == null) continue;
+            t.remove(target);
+            if (t.isEmpty()) sources.remove(deps.files[i]);
+        }
+    }
+
+
+    /**
+     * Check whether the index has been changed since it was last saved.
+     */
+    synchronized boolean isModified()
+    {
+        return !changed.isEmpty();
+    }
+
+
+    private void addReverse(String target, Dependencies deps)
+    {
+        for (int i = 0; i<deps.files.length; i++)
+        {
+            Hashtable t = (Hashtable)sources.get(deps.files[i]);
+            if (t == null)
+            {
+                t = new Hashtable();
+                sources.put(deps.files[i], t);
+            }
+            t.put(target, "");
+        }
+    }
+
+
+    private static byte[] encode(Dependencies deps)
+        throws IOException
+    {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buf);
+        out.writeByte(VERSION);
+        writeString(out, deps.signature);
+        out.writeBoolean(deps.dynamic);
+        out.writeBoolean(deps.digests != null);
+        out.writeInt(deps.files.length);
+        for (int i = 0; i<deps.files.length; i++)
+        {
+            writeString(out, deps.files[i]);
+            out.writeLong(deps.lastModified[i]);
+            if (deps.digests != null) writeString(out, deps.digests[i]);
+        }
+        out.close();
+        return buf.toByteArray();
+    }
+
+
+    /**
+     * @return the dependencies, or <code>null</code> if the record 
+     *         is of another version.
+     */
+    private static Dependencies decode(byte[] data)
+        throws IOException
+    {
+        DataInputStream in = 
+            new DataInputStream(new ByteArrayInputStream(data));
+        if (in.readByte() != VERSION) return null;
+
+        Dependencies deps = new Dependencies();
+        deps.signature = readString(in);
+        deps.dynamic = in.readBoolean();
+        boolean digest = in.readBoolean();
+        int n = in.readInt();
+        deps.files = new String[n];
+        deps.lastModified = new long[n];
+        if (digest) deps.digests = new String[n];
+        for (int i = 0; i<n; i++)
+        {
+            deps.files[i] = readString(in);
+            deps.lastModified[i] = in.readLong();
+            if (digest) deps.digests[i] = readString(in);
+        }
+        return deps;
+    }
+
+
+    /**
+     * Write a string which may be null or longer than writeUTF allows.
+     */
+    private static void writeString(DataOutputStream out, String s)
+        throws IOException
+    {
+        if (s == null)
+        {
+            out.writeInt(-1);
+        }
+        else
+        {
+            byte[] b = s.getBytes("UTF-8");
+            out.writeInt(b.length);
+            out.write(b);
+        }
+    }
+
+
+    private static String readString(DataInputStream in)
+        throws IOException
+    {
+        int len = in.readInt();
+        if (len < 0) return null;
+        byte[] b = new byte[len];
+        in.readFully(b);
+        return new String(b, "UTF-8");
+    }
+
+
+    static class Dependencies
+    {
+        String signature;
+        boolean dynamic;
+        String[] files;
+        long[] lastModified;
+        String[] digests;  // null if content hashing was not enabled
+
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof Dependencies)) return false;
+            Dependencies other = (Dependencies)obj;
+            return signature.equals(other.signature)
+                && dynamic == other.dynamic
+                && Arrays.equals(files, other.files)
+                && Arrays.equals(lastModified, other.lastModified)
+                && Arrays.equals(digests, other.digests);
+        }
+
+        public int hashCode()
+        {
+            return signature.hashCode();
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2005, Mikael Ståldal
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ * notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ * notice, this list of conditions and the following disclaimer in the 
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the author nor the names of its contributors 
+ * may be used to endorse or promote products derived from this software 
+ * without specific prior written permission. 
+ * 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY 
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * 
+ * Note: This is known as "the modified BSD license". It's an approved 
+ * Open Source and Free Software license, see 
+ * http://www.opensource.org/licenses/ 
+ * and
+ * http://www.gnu.org/philosophy/license-list.html
+ */
+
+package nu.staldal.lagoon.core;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.DigestOutputStream;
+import java.security.NoSuchAlgorithmException;
+
+import nu.staldal.util.Utils;
+
+
+/**
+ * OutputHandler which writes to a temporary file while computing a 
+ * digest of the contents. The file is only stored in the FileStorage 
+ * if the digest differs from the one of the file already stored there.
+ */
+class DigestOutputHandler extends OutputHandler
+{
+    private final FileStorage storage;
+    private final String path;
+    private final File tempFile;
+    private final OutputDigests digests;
+    private final MessageDigest md;
+
+
+    /**
+     * Create a new DigestOutputHandler.
+     *
+     * @param storage  the FileStorage to store the file in
+     * @param path  path to the file
+     * @param tempDir  where to put the temporary file
+     * @param digests  digests of the files already stored
+     */
+    static DigestOutputHandler create(FileStorage storage, String path,
+                                      File tempDir, OutputDigests digests)
+        throws IOException
+    {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("MD5");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new Error("MD5 not supported: " + e.getMessage());
+        }
+
+        File tempFile = File.createTempFile("output", null, tempDir);
+        OutputStream out = new DigestOutputStream(
+            new BufferedOutputStream(new FileOutputStream(tempFile)), md);
+
+        return new DigestOutputHandler(storage, path, tempFile, digests,
+                                       md, out);
+    }
+
+
+    private DigestOutputHandler(FileStorage storage, String path,
+                                File tempFile, OutputDigests digests,
+                                MessageDigest md, OutputStream out)
+    {
+        super(out);
+        this.storage = storage;
+        this.path = path;
+        this.tempFile = tempFile;
+        this.digests = digests;
+        this.md = md;
+    }
+
+
+    public void commit()
+        throws IOException
+    {
+        out.close();
+        try {
+            String digest = Utils.toHex(md.digest());
+
+            // -1 means that the storage doesn't know, 
+            // then the file must be stored
+            if (digest.equals(digests.get(path))
+                    && (storage.fileLastModified(path) > 0))
+            {
+                // not changed, but record that it's up to date
+                digests.put(path, digest);
+                return;
+            }
+
+            OutputHandler oh = storage.createFile(path);
+            try {
+                InputStream is = new FileInputStream(tempFile);
+                try {
+                    byte[] buf = new byte[8192];
+                    while (true)
+                    {
+                        int bytesRead = is.read(buf);
+                        if (bytesRead < 0) break;
+                        oh.getOutputStream().write(buf, 0, bytesRead);
+                    }
+                }
+                finally
+                {
+                    is.close();
+                }
+            }
+            catch (IOException e)
+            {
+                digests.remove(path);
+                oh.discard();
+                throw e;
+            }
+            oh.commit();
+            digests.put(path, digest);
+        }
+        finally
+        {
+            tempFile.delete();
+        }
+    }
+
+
+    public void discard()
+        throws IOException
+    {
+        out.close();
+        tempFile.delete();
+
+        // as if the file had been written directly to the storage
+        digests.remove(path);
+        storage.deleteFile(path);
+    }
+}
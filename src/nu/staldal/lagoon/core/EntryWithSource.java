@@ -70,6 +70,8 @@ abstract class EntryWithSource implements SourceManager, SourceManagerProvider
     protected final String sourceURL;
 
 	protected final SAXParserFactory spf;	
+
+	private Vector recordedDeps = null;
 	
 
     /**
@@ -119,6 +121,24 @@ abstract class EntryWithSource implements SourceManager, SourceManagerProvider
     }
 
 
+    /**
+     * Constructor for an entry sharing configuration with another entry,
+     * but using another main source.
+     *
+     * @param base  the entry to share configuration with
+     * @param sourceURL  the file to use, must not contain wildcard,
+	 *					 may be <code>null</code>.
+     */
+    protected EntryWithSource(EntryWithSource base, String sourceURL)
+    {
+		this.processor = base.processor;
+		this.sitemap = base.sitemap;
+        this.sourceRootDir = base.sourceRootDir;
+		this.sourceURL = sourceURL;
+		this.spf = base.spf;
+    }
+
+
 	// SourceManager implemenation
     
     public String getSourceURL()
@@ -196,7 +216,7 @@ abstract class EntryWithSource implements SourceManager, SourceManagerProvider
 					public void parse(InputSource is) 
 						throws SAXException, IOException
 					{
-						pe.getXMLProducer().start(contentHandler, target);
+						pe.start(contentHandler, target);
 					}					
 				}, new InputSource());
 			}
@@ -224,7 +244,7 @@ abstract class EntryWithSource implements SourceManager, SourceManagerProvider
 			if (pe == null)
 				throw new FileNotFoundException("Part " + url + " not found");
 
-			pe.getXMLProducer().start(ch, target);
+			pe.start(ch, target);
 			return;				
 		}
 		
@@ -296,6 +316,8 @@ abstract class EntryWithSource implements SourceManager, SourceManagerProvider
     public boolean fileHasBeenUpdated(String url, long when)
         throws FileNotFoundException, IOException, LagoonException
     {
+		if (recordedDeps != null) return recordDependency(url);
+		
         File file = getFile(url);
 		if (file == null)
 		{
@@ -306,7 +328,7 @@ abstract class EntryWithSource implements SourceManager, SourceManagerProvider
 					throw new FileNotFoundException(
 						"Part " + url + " not found");
 
-				return pe.getXMLProducer().hasBeenUpdated(when);
+				return pe.hasBeenUpdated(when);
 			}
 			else if (Utils.absoluteURL(url) && url.startsWith("res:"))
 			{
@@ -315,7 +337,7 @@ abstract class EntryWithSource implements SourceManager, SourceManagerProvider
 			else
 				return true;  // cannot check
 		}
-        long sourceDate = file.lastModified();
+        long sourceDate = processor.getStatCache().lastModified(file);
 
         return ((sourceDate > 0) // source exsist
                 &&
@@ -324,6 +346,57 @@ abstract class EntryWithSource implements SourceManager, SourceManagerProvider
     }
 
 	
+	/**
+	 * Record the files a producer depends on. This is done by checking it 
+	 * while collecting the files it asks for, instead of their dates.
+	 *
+	 * @param prod  the producer to check
+	 * @param deps  Vector to add the File objects to
+	 *
+	 * @return true if the dependencies cannot be determined
+	 */
+	boolean recordDependencies(ProducerInterface prod, Vector deps)
+        throws IOException, LagoonException
+	{
+		Vector saved = recordedDeps;
+		recordedDeps = deps;
+		try {
+			return prod.hasBeenUpdated(Long.MAX_VALUE);
+		}
+		finally
+		{
+			recordedDeps = saved;
+		}
+	}
+
+
+	private boolean recordDependency(String url)
+        throws IOException, LagoonException
+	{
+        File file = getFile(url);
+		if (file == null)
+		{
+			if (Utils.absoluteURL(url) && url.startsWith("part:"))
+			{
+				PartEntry pe = sitemap.lookupPart(url.substring(5));
+				if (pe == null)
+					throw new FileNotFoundException(
+						"Part " + url + " not found");
+
+				return pe.recordDependencies(recordedDeps);
+			}
+			else if (Utils.absoluteURL(url) && url.startsWith("res:"))
+			{
+				return false;  // cannot change
+			}
+			else
+				return true;  // cannot check
+		}
+		recordedDeps.addElement(file);
+		return false;
+	}
+
+	
 	// SourceManagerProvider implementation
     
 	public SourceManager getSourceManager()
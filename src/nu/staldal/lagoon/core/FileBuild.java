@@ -0,0 +1,944 @@
+/*
+ * Copyright (c) 2005, Mikael Ståldal
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ * notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ * notice, this list of conditions and the following disclaimer in the 
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the author nor the names of its contributors 
+ * may be used to endorse or promote products derived from this software 
+ * without specific prior written permission. 
+ * 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY 
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * 
+ * Note: This is known as "the modified BSD license". It's an approved 
+ * Open Source and Free Software license, see 
+ * http://www.opensource.org/licenses/ 
+ * and
+ * http://www.gnu.org/philosophy/license-list.html
+ */
+
+package nu.staldal.lagoon.core;
+
+import java.io.*;
+import java.util.*;
+
+import org.xml.sax.*;
+import org.xml.sax.helpers.XMLFilterImpl;
+
+import nu.staldal.lagoon.util.*;
+import nu.staldal.util.ThreadPool;
+import nu.staldal.xtree.Element;
+
+
+/**
+ * The building of a single target file from a FileEntry.
+ *
+ * Holds the state of one build, so the FileEntry itself can be built
+ * from several threads. The main source may be a concrete file matched by
+ * a wildcard pattern in the FileEntry.
+ *
+ * @see nu.staldal.lagoon.core.FileEntry
+ */
+class FileBuild extends EntryWithSource implements FileTarget
+{
+    private static final boolean DEBUG = true;
+
+    private final FileEntry entry;
+    private ProducerChain chain;
+    private final FileStorage targetStorage;
+    private final File tempDir;
+
+    final PrintWriter log;
+    final PrintWriter err;
+
+    private final String currentTargetURL;
+    private final String currentTargetDir;
+    private final String currentTargetName;
+    private long targetLastMod;
+    private String newTarget;
+	private Vector tempFiles;
+	private Vector asyncTargets;
+	private Vector splitTargets;
+	private int pendingSplits;
+
+
+    /**
+     * Constructor.
+     *
+     * @param entry  the FileEntry to build
+     * @param currentSourceURL  the main source, after wildcard expansion,
+     *                          may be <code>null</code>.
+     * @param currentTargetURL  the target, after wildcard expansion
+     * @param log  where to write progress messages
+     * @param err  where to write error messages
+     */
+    FileBuild(FileEntry entry, String currentSourceURL, String currentTargetURL,
+              PrintWriter log, PrintWriter err)
+    {
+        super(entry, currentSourceURL);
+
+        this.entry = entry;
+        this.targetStorage = processor.getTargetLocation();
+        this.tempDir = processor.getTempDir();
+        this.log = log;
+        this.err = err;
+
+        this.currentTargetURL = currentTargetURL;
+		int slash = currentTargetURL.lastIndexOf('/');
+		this.currentTargetDir = currentTargetURL.substring(0, slash+1);
+		this.currentTargetName = currentTargetURL.substring(slash+1);
+
+        this.targetLastMod = -1;
+        this.newTarget = null;
+        this.tempFiles = new Vector();
+		this.asyncTargets = new Vector();
+		this.splitTargets = new Vector();
+		this.pendingSplits = 0;
+    }
+
+
+    /**
+     * Build the target, if nessesary.
+     *
+     * @param always  always build, overriding dependency checking
+	 *
+	 * @return true if successful, false if any non-fatal error occured
+	 * @throws IOException  if any fatal error occur
+     */
+    boolean build(boolean always)
+        throws IOException
+    {
+		try {
+			return buildFile(always);
+		}
+		finally
+		{
+			// if the build was aborted by an exception
+			if (!asyncTargets.isEmpty() || !splitTargets.isEmpty()) 
+				finishAsyncTargets(); 
+
+			if (chain != null)
+			{
+				entry.releaseChain(chain);
+				chain = null;
+			}
+		}
+	}
+
+
+
+
+    private boolean buildFile(boolean always)
+        throws IOException
+    {
+		DependencyIndex index = processor.getDependencyIndex();
+
+        targetLastMod = targetStorage.fileLastModified(currentTargetURL);
+		OutputDigests digests = processor.getOutputDigests();
+		if (targetLastMod > 0 && digests != null)
+		{
+			// the file may not have been stored the last time it was 
+			// produced, since it hadn't changed
+			targetLastMod = Math.max(targetLastMod, 
+				digests.getDate(currentTargetURL));
+		}
+
+		boolean tracked = !always && (targetLastMod > 0) && (index != null) 
+			&& index.isTracked(currentTargetURL, entry.getSignature());
+
+		// the producer chain is not needed if the target is up to date
+		if (tracked && !index.isAffected(currentTargetURL)) return true;
+
+		try {
+			chain = entry.acquireChain();
+		}
+		catch (LagoonException e)
+		{
+			reportException(e);
+			return false;
+		}
+
+        if (always || (targetLastMod <= 0))
+        {
+            boolean success = buildAlways();
+			updateDependencyIndex(index, success);
+			return success;
+        }
+
+		if (tracked)
+		{
+            boolean success = buildAlways();
+			updateDependencyIndex(index, success);
+			return success;
+		}
+
+		boolean success = true;
+        boolean updated = false;
+        try {
+            updated = chain.hasBeenUpdated(this, targetLastMod);
+        }
+        catch (LagoonException e)
+        {
+            reportException(e);
+			success = false;
+        }
+        catch (IOException e)
+        {
+            reportException(e);
+			success = false;
+        }
+
+        if (updated)
+        {
+            if (!buildAlways()) success = false;
+        }
+		if (success) updateDependencyIndex(index, true);
+		return success;
+    }
+
+
+	/**
+	 * Record the dependencies of the target in the index.
+	 *
+	 * @param index  the index, may be <code>null</code>
+	 * @param success  if the build was successful, otherwise the target
+	 *                 is removed from the index
+	 */
+	private void updateDependencyIndex(DependencyIndex index, boolean success)
+	{
+		if (index == null) return;
+
+		if (!success)
+		{
+			index.remove(currentTargetURL);
+			return;
+		}
+
+		Vector deps = new Vector();
+		boolean dynamic;
+		try {
+			dynamic = chain.recordDependencies(this, deps);
+		}
+		catch (Exception e)
+		{
+			if (DEBUG) e.printStackTrace();
+			index.remove(currentTargetURL);
+			return;
+		}
+		index.put(currentTargetURL, entry.getSignature(), deps, dynamic,
+			processor.getStatCache());
+	}
+
+
+    /**
+     * The actual building of this file.
+     * Used after any dependency checking indicates the file needs rebuilding.
+     */
+    private boolean buildAlways()
+        throws IOException
+    {
+        log.println("Building: " + currentTargetURL);
+		long startTime = System.currentTimeMillis();
+
+        String thisTargetURL;
+        OutputHandler out = null;
+        String exceptionType = null;
+        boolean bailOut = false;
+		boolean success = true;
+
+		ByteStreamProducer theProducer = chain.prepareProducer(this);
+
+		newTarget = currentTargetName;
+
+        do {
+			thisTargetURL = currentTargetDir + newTarget;
+            newTarget = null;
+	        out = createTarget(thisTargetURL);
+
+			try {
+                theProducer.start(out.getOutputStream(), this);
+                exceptionType = null; // no exception thrown
+            }
+            catch (Exception e)
+            {
+				success = false;
+				if (DEBUG) e.printStackTrace();
+
+				String thisExceptionType = e.getClass().getName();
+
+				// the same type of exception thrown twice in a row
+				if (thisExceptionType.equals(exceptionType))
+				{
+					bailOut = true;
+				}
+				exceptionType = thisExceptionType;
+
+                e = reportException(e);
+
+				if (out != null) out.discard();
+
+				if (e instanceof RuntimeException)
+				{
+					throw (RuntimeException)e;
+				}
+
+                if (bailOut)
+                {
+					err.println("Error building " + currentTargetURL
+						+ ": Too many exceptions, bailing out");
+					break;
+				}
+				else
+				{
+					continue;
+				}
+            }
+
+            out.commit();
+        } while (newTarget != null);
+
+		if (!finishAsyncTargets()) success = false;
+
+        byte[] buf = new byte[8192];
+
+		for (int i = 0; i<tempFiles.size(); i++)
+		{
+			String path = (String)tempFiles.elementAt(i);
+			File tempFile = new File(tempDir, "temp" + i);
+			FileInputStream fis = new FileInputStream(tempFile);
+
+			OutputHandler oh = createTarget(path);
+
+			try {
+    	    	while (true)
+        		{
+            		int bytesRead = fis.read(buf);
+            		if (bytesRead < 1) break;
+            		oh.getOutputStream().write(buf, 0, bytesRead);
+        		}
+	        	fis.close();
+				tempFile.delete();
+			}
+			catch (IOException e)
+			{
+				success = false;
+				reportException(e);
+				oh.discard();
+				break;
+			}
+			oh.commit();
+		}
+
+		Profiler profiler = processor.getProfiler();
+		if (profiler.isEnabled())
+			profiler.addTarget(currentTargetURL, entry.getTargetURL(),
+							   System.currentTimeMillis()-startTime);
+
+		return success;
+    }
+
+
+	Exception reportException(Exception e)
+	{
+		if (e instanceof RuntimeException)
+		{
+			return e;
+		}
+		if (e instanceof SAXParseException)
+		{
+			SAXParseException spe = (SAXParseException)e;
+			Exception ee = spe.getException();
+			if (ee instanceof RuntimeException)
+			{
+				return ee;
+			}
+			String sysId = (spe.getSystemId() == null)
+				? ("(" + currentTargetURL + ")"): spe.getSystemId();
+			err.println(sysId + ":" + spe.getLineNumber()
+				+ ":" + spe.getColumnNumber() + ": " + spe.getMessage());
+		}
+		else if (e instanceof SAXException)
+		{
+			SAXException se = (SAXException)e;
+			Exception ee = se.getException();
+			if (ee instanceof RuntimeException)
+			{
+				return ee;
+			}
+			else if (ee != null)
+			{
+				err.println("Error building " + currentTargetURL
+					+ ": " + ee.toString());
+    			if (DEBUG) ee.printStackTrace(System.out);
+			}
+			else
+			{
+				err.println("Error building " + currentTargetURL
+					+ ": " + se.getMessage());
+    			if (DEBUG) se.printStackTrace(System.out);
+			}
+		}
+		else if (e instanceof IOException)
+		{
+			err.println("Error building " + currentTargetURL
+					+ ": " + e.toString());
+			if (DEBUG) e.printStackTrace(System.out);
+		}
+		else
+		{
+			err.println("Error building " + currentTargetURL + ":");
+			e.printStackTrace(err);
+		}
+		return e;
+	}
+
+
+	// FileTarget implemenation
+
+    public String getCurrentTargetURL()
+    {
+        return currentTargetURL;
+    }
+
+    public void newTarget(String filename, boolean prependFilename)
+    {
+		if (prependFilename)
+		{
+			this.newTarget = currentTargetName + '_' + filename;
+		}
+		else
+		{
+			this.newTarget = filename;
+		}
+    }
+
+    public OutputHandler newAsyncTarget(String filename,
+			boolean prependFilename)
+		throws IOException
+	{
+		filename = resolveTarget(filename, prependFilename);
+
+		if (DEBUG) System.out.println("New async target: " + filename);
+
+		if (targetStorage.isReentrant())
+		{
+			return createTarget(filename);
+		}
+		else
+		{
+			tempFiles.addElement(filename);
+			File currentFile = new File(tempDir, "temp" + (tempFiles.size()-1));
+			return new TempOutputHandler(currentFile,
+				new FileOutputStream(currentFile));
+		}
+	}
+
+
+	private String resolveTarget(String filename, boolean prependFilename)
+	{
+		if (filename.charAt(0) == '/')
+			return filename;
+		else if (prependFilename)
+			return currentTargetDir + currentTargetName + '_' + filename;
+		else
+			return currentTargetDir + filename;
+	}
+
+
+	/**
+	 * Create a file in the target storage. With content hashing, the
+	 * file is only stored if it has been changed.
+	 */
+	private OutputHandler createTarget(String path)
+		throws IOException
+	{
+		OutputDigests digests = processor.getOutputDigests();
+		if (digests == null)
+			return targetStorage.createFile(path);
+		else
+			return DigestOutputHandler.create(targetStorage, path, tempDir,
+											  digests);
+	}
+
+
+    public ContentHandler newAsyncTargetWithOutput(
+			String filename, boolean prependFilename, String outputName)
+		throws java.io.IOException, SAXException
+	{
+		final OutputEntry outputEntry = chain.acquireOutput(outputName);
+		if (outputEntry == null) throw new LagoonException(
+			"Output entry " + outputName + " not found in Sitemap");
+
+		OutputHandler oh;
+		try {
+			oh = newAsyncTarget(filename, prependFilename);
+		}
+		catch (IOException e)
+		{
+			chain.releaseOutput(outputName, outputEntry);
+			throw e;
+		}
+
+		final AsyncTarget at = new AsyncTarget(outputName, outputEntry, oh);
+
+		outputEntry.setSourceManager(this);
+
+		outputEntry.setNext(new XMLStreamProducer() {
+		    public void start(ContentHandler sax, Target target)
+        		throws SAXException, IOException
+			{
+				at.handOver(sax);
+			}
+
+			public void init()
+			{
+				throw new RuntimeException("Invalid context");
+			}
+
+			public void destroy()
+			{
+				throw new RuntimeException("Invalid context");
+			}
+
+			public boolean hasBeenUpdated(long lastBuild)
+			{
+				throw new RuntimeException("Invalid context");
+			}
+		});
+
+		asyncTargets.addElement(at);
+		processor.getAsyncPool().execute(at);
+
+		return at.awaitHandler();
+	}
+
+
+	public boolean canSplitInParallel()
+	{
+		return targetStorage.isReentrant();
+	}
+
+
+	public void newSplitTarget(String filename, boolean prependFilename,
+			Element fragment)
+		throws IOException
+	{
+		filename = resolveTarget(filename, prependFilename);
+
+		ThreadPool pool = processor.getSplitPool();
+
+		// don't let the parser run too far ahead of the serialization
+		synchronized (splitTargets)
+		{
+			while (pendingSplits >= pool.getSize()*2)
+			{
+				try {
+					splitTargets.wait();
+				}
+				catch (InterruptedException e)
+				{
+					throw new InterruptedIOException();
+				}
+			}
+			pendingSplits++;
+		}
+
+		SplitTarget st = new SplitTarget(filename, fragment);
+		splitTargets.addElement(st);
+		pool.execute(st);
+	}
+
+
+	public Element getSplitFragment()
+	{
+		return null;
+	}
+
+
+	/**
+	 * Wait until all split and async targets are done, and report their 
+	 * errors. Async targets which have not got their whole input are 
+	 * aborted.
+	 *
+	 * @return true if successful, false if any target failed
+	 */
+	private boolean finishAsyncTargets()
+		throws InterruptedIOException
+	{
+		boolean success = true;
+		RuntimeException runtimeException = null;
+
+		// split targets may open async targets, so they are finished first
+		synchronized (splitTargets)
+		{
+			while (pendingSplits > 0)
+			{
+				try {
+					splitTargets.wait();
+				}
+				catch (InterruptedException e)
+				{
+					throw new InterruptedIOException();
+				}
+			}
+		}
+		for (int i = 0; i<splitTargets.size(); i++)
+		{
+			Exception e = ((SplitTarget)splitTargets.elementAt(i)).exception;
+			if (e == null) continue;
+
+			success = false;
+			e = reportException(e);
+			if (e instanceof RuntimeException && runtimeException == null)
+				runtimeException = (RuntimeException)e;
+		}
+		splitTargets.clear();
+
+		for (int i = 0; i<asyncTargets.size(); i++)
+		{
+			Exception e = ((AsyncTarget)asyncTargets.elementAt(i)).finish();
+			if (e == null) continue;
+
+			success = false;
+			e = reportException(e);
+			if (e instanceof RuntimeException && runtimeException == null)
+				runtimeException = (RuntimeException)e;
+		}
+		asyncTargets.clear();
+
+		if (runtimeException != null) throw runtimeException;
+
+		return success;
+	}
+
+
+	/**
+	 * An async target, produced with an &lt;output&gt; by a thread in the 
+	 * async pool. The output hands over its ContentHandler to the building
+	 * thread, and waits while the XML stream is sent to it. It then 
+	 * finishes in parallel with the building thread.
+	 */
+	class AsyncTarget implements Runnable
+	{
+		private final String outputName;
+		private final OutputEntry outputEntry;
+		private final OutputHandler oh;
+
+		private ContentHandler handler = null;
+		private boolean inputDone = false;
+		private boolean aborted = false;
+		private boolean done = false;
+		private Exception exception = null;
+
+		AsyncTarget(String outputName, OutputEntry outputEntry, 
+				OutputHandler oh)
+		{
+			this.outputName = outputName;
+			this.outputEntry = outputEntry;
+			this.oh = oh;
+		}
+
+		public void run()
+		{
+			try {
+				try {
+					outputEntry.getByteProducer().start(
+						oh.getOutputStream(),
+						FileBuild.this);
+				}
+				catch (Exception e)
+				{
+					oh.discard();
+					throw e;
+				}
+				oh.commit();
+			}
+			catch (Exception e)
+			{
+				synchronized (this)
+				{
+					exception = e;
+				}
+			}
+			finally
+			{
+				chain.releaseOutput(outputName, outputEntry);
+				synchronized (this)
+				{
+					done = true;
+					notifyAll();
+				}
+			}
+		}
+
+		/**
+		 * Invoked by the output in the async thread, returns when the 
+		 * whole XML stream has been sent to <code>sax</code>.
+		 */
+		synchronized void handOver(ContentHandler sax)
+			throws SAXException, InterruptedIOException
+		{
+			handler = sax;
+			notifyAll();
+
+			while (!inputDone)
+			{
+				try {
+					wait();
+				}
+				catch (InterruptedException e)
+				{
+					throw new InterruptedIOException();
+				}
+			}
+			if (aborted) throw new SAXException("Aborted");
+		}
+
+		/**
+		 * Wait for the ContentHandler to send the XML stream to.
+		 */
+		synchronized ContentHandler awaitHandler()
+			throws SAXException, IOException
+		{
+			while (handler == null && !done)
+			{
+				try {
+					wait();
+				}
+				catch (InterruptedException e)
+				{
+					throw new InterruptedIOException();
+				}
+			}
+
+			if (handler == null)
+			{
+				Exception e = exception;
+				exception = null; // don't report it again
+				if (e == null)
+					throw new LagoonException("Output " + outputName 
+						+ " doesn't use any input");
+				else if (e instanceof IOException)
+					throw (IOException)e;
+				else if (e instanceof SAXException)
+					throw (SAXException)e;
+				else if (e instanceof RuntimeException)
+					throw (RuntimeException)e;
+				else
+					throw new SAXException(e);
+			}
+
+			XMLFilterImpl filter = new XMLFilterImpl() {
+				public void endDocument()
+					throws SAXException
+				{
+					super.endDocument();
+					endOfInput(false);
+				}
+			};
+			filter.setContentHandler(handler);
+			return filter;
+		}
+
+		private synchronized void endOfInput(boolean abort)
+		{
+			if (inputDone) return;
+			inputDone = true;
+			aborted = abort;
+			notifyAll();
+		}
+
+		/**
+		 * Wait until this async target is done, aborts it if it has 
+		 * not got its whole input.
+		 *
+		 * @return the exception which made it fail, or <code>null</code>
+		 */
+		Exception finish()
+			throws InterruptedIOException
+		{
+			endOfInput(true);
+			synchronized (this)
+			{
+				while (!done)
+				{
+					try {
+						wait();
+					}
+					catch (InterruptedException e)
+					{
+						throw new InterruptedIOException();
+					}
+				}
+				return aborted ? null : exception;
+			}
+		}
+	}
+
+
+	public boolean isWildcard()
+    {
+        return entry.isWildcard();
+	}
+
+
+	/**
+	 * A split target, produced from a fragment by a thread in the split 
+	 * pool. The fragment is sent through another instance of the 
+	 * producer chain, which gets it as its Target.
+	 */
+	class SplitTarget implements Runnable, FileTarget
+	{
+		private final String path;
+		private Element fragment;
+		Exception exception = null;
+
+		SplitTarget(String path, Element fragment)
+		{
+			this.path = path;
+			this.fragment = fragment;
+		}
+
+		public void run()
+		{
+			try {
+				ProducerChain splitChain = entry.acquireChain();
+				try {
+					ByteStreamProducer prod = 
+						splitChain.prepareProducer(FileBuild.this);
+					OutputHandler oh = createTarget(path);
+					try {
+						OutputStream out = 
+							new BufferedOutputStream(oh.getOutputStream());
+						prod.start(out, this);
+						out.flush();
+					}
+					catch (Exception e)
+					{
+						oh.discard();
+						throw e;
+					}
+					oh.commit();
+				}
+				finally
+				{
+					entry.releaseChain(splitChain);
+				}
+			}
+			catch (Exception e)
+			{
+				exception = e;
+			}
+			finally
+			{
+				fragment = null;
+				synchronized (splitTargets)
+				{
+					pendingSplits--;
+					splitTargets.notifyAll();
+				}
+			}
+		}
+
+		public Element getSplitFragment()
+		{
+			return fragment;
+		}
+
+		public String getCurrentTargetURL()
+		{
+			return FileBuild.this.getCurrentTargetURL();
+		}
+
+		public void newTarget(String filename, boolean prependFilename)
+		{
+			throw new RuntimeException("Invalid context");
+		}
+
+		public OutputHandler newAsyncTarget(String filename, 
+				boolean prependFilename)
+			throws IOException
+		{
+			return FileBuild.this.newAsyncTarget(filename, prependFilename);
+		}
+
+		public ContentHandler newAsyncTargetWithOutput(
+				String filename, boolean prependFilename, String output)
+			throws IOException, SAXException
+		{
+			return FileBuild.this.newAsyncTargetWithOutput(
+				filename, prependFilename, output);
+		}
+
+		public boolean canSplitInParallel()
+		{
+			return false;
+		}
+
+		public void newSplitTarget(String filename, boolean prependFilename,
+				Element fragment)
+		{
+			throw new RuntimeException("Invalid context");
+		}
+
+		public boolean isWildcard()
+		{
+			return FileBuild.this.isWildcard();
+		}
+	}
+
+
+	static class TempOutputHandler extends OutputHandler
+	{
+		private File currentFile;
+
+		TempOutputHandler(File currentFile, OutputStream out)
+		{
+			super(out);
+			this.currentFile = currentFile;
+		}
+
+		public void commit()
+			throws java.io.IOException
+		{
+			out.close();
+		}
+
+		public void discard()
+			throws java.io.IOException
+		{
+			out.close();
+			if (!currentFile.exists()) return;
+			if (currentFile.delete())
+			{
+				return;
+			}
+			else
+			{
+				throw new IOException("Unable to delete file: " + currentFile);
+			}
+		}
+	}
+
+}
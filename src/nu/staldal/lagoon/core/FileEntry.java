@@ -52,37 +52,34 @@ import org.xml.sax.*;
 
 import nu.staldal.lagoon.util.*;
 import nu.staldal.util.Utils;
+import nu.staldal.xtree.Element;
+import nu.staldal.xtree.Node;
+import nu.staldal.xtree.Text;
 
 
 /**
  * A file in the sitemap.
  *
  * Contains information on how to (re)build a single file in a website.
+ * The state of each build is kept in a {@link FileBuild}, and
+ * the producer chain is instantiated once for each build running
+ * concurrently. The first instance is created when the entry is first 
+ * built, so entries which are never built don't cost anything.
  *
  * @see nu.staldal.lagoon.core.Sitemap
  */
-class FileEntry extends EntryWithSource implements SitemapEntry, FileTarget
+class FileEntry extends EntryWithSource implements SitemapEntry
 {
-    private static final boolean DEBUG = true;
+	private final String targetURL;
+	private final Element config;
+	private final String signature;
 
-    private Producer myProducer;
-	private OutputEntry outputEntry;
+	private final Hashtable sharedObjects;
+	private final Vector chains;
+	private final Vector idleChains;
+	private boolean building;
 
-    private final FileStorage targetStorage;
-	private final File tempDir;
-	private final String targetURL;
 
-    private String currentSourceURL;
-    private String currentTargetURL;
-    private String currentTargetDir;
-    private String currentTargetName;
-    private long targetLastMod;
-    private String newTarget;
-	private Vector tempFiles;
-	
-	private Vector targetThreads;
-
-	
     /**
      * Constructor.
      *
@@ -93,539 +90,232 @@ class FileEntry extends EntryWithSource implements SitemapEntry, FileTarget
      * @param sourceURL  the file to use, may contain wildcard in filename,
 	 *                  must absolute or pseudo-absolute, may be <code>null</code>.
      * @param sourceRootDir  absolute path to the source directory
-	 * @param tempDir	where to store temporary files
+     * @param config  the sitemap element describing the producer chain
      */
-    public FileEntry(LagoonProcessor processor, Sitemap sitemap, 
+    public FileEntry(LagoonProcessor processor, Sitemap sitemap,
 					 String targetURL, String sourceURL,
-                     File sourceRootDir, File tempDir)
-        throws LagoonException
+                     File sourceRootDir, Element config)
+        throws LagoonException, IOException
     {
-		super(processor, sitemap, sourceURL, sourceRootDir);	
-		
-        this.targetStorage = processor.getTargetLocation();
-		this.tempDir = tempDir;
+		super(processor, sitemap, sourceURL, sourceRootDir);
+
 		this.targetURL = targetURL;
-		
-        this.myProducer = null;
-		this.outputEntry = null;
-
-        this.currentSourceURL = null;
-        this.currentTargetURL = null;
-        this.targetLastMod = -1;
-        this.newTarget = null;
-		
-		this.targetThreads = new Vector();
+		this.config = config;
+		StringBuffer sb = new StringBuffer();
+		appendSignature(sb, config);
+		this.signature = sb.toString();
+
+		this.sharedObjects = new Hashtable();
+		this.chains = new Vector();
+		this.idleChains = new Vector();
+		this.building = false;
     }
 
-    public void destroy()
+    public synchronized void destroy()
         throws IOException
     {
-        if (myProducer != null)
-            myProducer.doDestroy();
+		for (Enumeration e = chains.elements(); e.hasMoreElements(); )
+		{
+			((ProducerChain)e.nextElement()).destroy();
+		}
     }
 
-    public void beforeBuild(boolean always)
+    public synchronized void beforeBuild(boolean always)
         throws IOException
     {
-        if (myProducer != null)
-            myProducer.doBeforeBuild();
+		building = true;
+		for (Enumeration e = chains.elements(); e.hasMoreElements(); )
+		{
+			((ProducerChain)e.nextElement()).beforeBuild();
+		}
     }
 
 
-    public void afterBuild(boolean always)
+    public synchronized void afterBuild(boolean always)
         throws IOException
     {
-        if (myProducer != null)
-            myProducer.doAfterBuild();
+		for (Enumeration e = chains.elements(); e.hasMoreElements(); )
+		{
+			((ProducerChain)e.nextElement()).afterBuild();
+		}
+		building = false;
     }
-    
 
-    /**
-     * Set the ByteStreamProducer that produces the final output for this
-     * FileEntry.
-     * Used during initialization.
-     */
-    void setMyProducer(Producer prod)
-    {
-        myProducer = prod;
-    }
-    
 
-    void setMyOutput(OutputEntry outputEntry)
-    {
-        this.outputEntry = outputEntry;
-    }
+	/**
+	 * Get an idle instance of the producer chain, creating a new one
+	 * if all are in use. Must be released with {@link #releaseChain}.
+	 */
+	ProducerChain acquireChain()
+		throws LagoonException, IOException
+	{
+		synchronized (this)
+		{
+			if (!idleChains.isEmpty())
+			{
+				ProducerChain chain =
+					(ProducerChain)idleChains.lastElement();
+				idleChains.removeElementAt(idleChains.size()-1);
+				return chain;
+			}
+		}
 
-	
-    public boolean build(boolean always)
+		long startTime = System.currentTimeMillis();
+		ProducerChain chain =
+			sitemap.createProducerChain(targetURL, config, sharedObjects);
+		Profiler profiler = processor.getProfiler();
+		if (profiler.isEnabled())
+			profiler.addInit(targetURL, 
+				System.currentTimeMillis()-startTime);
+
+		synchronized (this)
+		{
+			chains.addElement(chain);
+			// beforeBuild was invoked before this chain existed
+			if (building) chain.beforeBuild();
+		}
+		return chain;
+	}
+
+
+	synchronized void releaseChain(ProducerChain chain)
+	{
+		idleChains.addElement(chain);
+	}
+
+
+    public boolean build(boolean always, PrintWriter log, PrintWriter err)
         throws IOException
     {
+		boolean success = true;
+		Vector targets = getBuildTargets();
+		for (int i = 0; i < targets.size(); i++)
+		{
+			String[] t = (String[])targets.elementAt(i);
+			if (!buildTarget(t[0], t[1], always, log, err)) success = false;
+		}
+		return success;
+	}
+
+
+	/**
+	 * Find all files to build from this entry, expanding any wildcard.
+	 *
+	 * @return a Vector of String[2] with source URL (may be
+	 *         <code>null</code>) and target URL.
+	 * @throws IOException  if the source directory is not found
+	 */
+	Vector getBuildTargets()
+		throws IOException
+	{
+		Vector targets = new Vector();
+
 		if (sourceURL == null)
         {   // no main source
-	        currentSourceURL = null;
-            currentTargetURL = targetURL;
-            return buildFile(always);
+			targets.addElement(new String[] { null, targetURL });
         }
         else if (Utils.absoluteURL(sourceURL))
         {   // absolute URL
-	        currentSourceURL = sourceURL;
-            currentTargetURL = targetURL;
-            return buildFile(always);
+			targets.addElement(new String[] { sourceURL, targetURL });
         }
         else if (Wildcard.isWildcard(sourceURL))
         {   // main source is a wildcard pattern
 			int slash = sourceURL.lastIndexOf('/');
 			String sourceDirURL = sourceURL.substring(0, slash+1);
 			String sourceMask = sourceURL.substring(slash+1);
-			File sourceDir = new File(sourceRootDir, sourceDirURL); 
-            
+			File sourceDir = new File(sourceRootDir, sourceDirURL);
+
 			String[] files = sourceDir.list();
 			if (files == null)
 			{
 				throw new FileNotFoundException(
-					sourceDir.getAbsolutePath() + " (directory not found)");	
+					sourceDir.getAbsolutePath() + " (directory not found)");
 			}
-			boolean success = true;
             for (int i = 0; i < files.length; i++)
-            {				
+            {
                 File currentSourceFile = new File(sourceDir, files[i]);
                 if (!currentSourceFile.isFile()) continue;
 
                 String part = Wildcard.matchWildcard(sourceMask, files[i]);
                 if (part == null) continue;
 
-				currentSourceURL = sourceDirURL + files[i];
-
-                currentTargetURL =
-                    Wildcard.instantiateWildcard(targetURL, part);
-                if (!buildFile(always)) success = false;
+				targets.addElement(new String[] {
+					sourceDirURL + files[i],
+					Wildcard.instantiateWildcard(targetURL, part) });
             }
-			return success;
         }
         else
         {   // main source is a regular file
-	        currentSourceURL = sourceURL;
-            currentTargetURL = targetURL;
-            return buildFile(always);
-        }
-    }
-	
-
-    private boolean buildFile(boolean always)
-        throws IOException
-    {
-        targetLastMod = targetStorage.fileLastModified(currentTargetURL);
-        
-        if (always || (targetLastMod <= 0))
-        {
-            return buildAlways();
+			targets.addElement(new String[] { sourceURL, targetURL });
         }
 
-		boolean success = true;
-        boolean updated = false;
-        try {
-            updated = myProducer.hasBeenUpdated(targetLastMod);
-        }
-        catch (LagoonException e)
-        {
-            reportException(e);
-			success = false;
-        }
-        catch (IOException e)
-        {
-            reportException(e);
-			success = false;
-        }
-
-        if (updated)
-        {
-            if (!buildAlways()) success = false;
-        }
-		return success;
+		return targets;
     }
-	
-
-    /**
-     * The actual building of this file.
-     * Used after any dependency checking indicates the file needs rebuilding.
-     */
-    private boolean buildAlways()
-        throws IOException
-    {
-        processor.log.println("Building: " + currentTargetURL);
-		
-		int slash = currentTargetURL.lastIndexOf('/');
-		currentTargetDir = currentTargetURL.substring(0, slash+1);
-		currentTargetName = currentTargetURL.substring(slash+1);
-
-        String thisTargetURL;
-        OutputHandler out = null;
-        String exceptionType = null;
-        boolean bailOut = false;
-		boolean success = true;
-		
-		ByteStreamProducer theProducer;
-		if (outputEntry == null)
-		{
-			theProducer = (ByteStreamProducer)myProducer;	
-		}
-		else
-		{
-			outputEntry.setNext((XMLStreamProducer)myProducer);
-			outputEntry.setSourceManager(this);
-			theProducer = outputEntry.getByteProducer();
-		}
 
-		tempFiles = new Vector();
-		
-		newTarget = currentTargetName;
-
-        do {
-			thisTargetURL = currentTargetDir + newTarget;
-            newTarget = null;
-	        out = targetStorage.createFile(thisTargetURL);
-			
-			try {
-                theProducer.start(out.getOutputStream(), this);
-                exceptionType = null; // no exception thrown
-            }
-            catch (Exception e)
-            {
-				success = false;
-				if (DEBUG) e.printStackTrace();	
-				
-				String thisExceptionType = e.getClass().getName();
-
-				// the same type of exception thrown twice in a row
-				if (thisExceptionType.equals(exceptionType))
-				{
-					bailOut = true;
-				}
-				exceptionType = thisExceptionType;
-
-                e = reportException(e);
-
-				if (out != null) out.discard();				
-
-				if (e instanceof RuntimeException)
-				{
-					throw (RuntimeException)e;
-				}
-
-                if (bailOut)
-                {
-					processor.err.println("Error building " + currentTargetURL
-						+ ": Too many exceptions, bailing out");
-					break;
-				}
-				else
-				{
-					continue;
-				}
-            }
 
-            out.commit();
-        } while (newTarget != null);
-
-        byte[] buf = new byte[8192];
-		
-		for (int i = 0; i<tempFiles.size(); i++)
-		{
-			String path = (String)tempFiles.elementAt(i);
-			File tempFile = new File(tempDir, "temp" + i);
-			FileInputStream fis = new FileInputStream(tempFile);
-			
-			OutputHandler oh = targetStorage.createFile(path);
-	
-			try {
-    	    	while (true)
-        		{
-            		int bytesRead = fis.read(buf);
-            		if (bytesRead < 1) break;
-            		oh.getOutputStream().write(buf, 0, bytesRead);
-        		}
-	        	fis.close();
-				tempFile.delete();
-			}
-			catch (IOException e)
-			{
-				success = false;
-				reportException(e);
-				oh.discard();
-				break;
-			}
-			oh.commit();			
-		}
-		
-		for (Enumeration en = targetThreads.elements(); 
-			 en.hasMoreElements(); )
-		{
-			Thread t = (Thread)en.nextElement();
-			try {
-				if (t != null) t.join();
-			}
-			catch (InterruptedException e) {}
-		}
-		targetThreads.clear();
-		
-		return success;
-    }
+	/**
+	 * Build one file from this entry, if nessesary.
+	 * May be invoked concurrently from different threads.
+	 *
+	 * @param source  the main source, as returned from getBuildTargets()
+	 * @param target  the target, as returned from getBuildTargets()
+     * @param always  always build, overriding dependency checking
+	 * @param log  where to write progress messages
+	 * @param err  where to write error messages
+	 *
+	 * @return true if successful, false if any non-fatal error occured
+	 * @throws IOException  if any fatal error occur
+	 */
+	boolean buildTarget(String source, String target, boolean always,
+						PrintWriter log, PrintWriter err)
+		throws IOException
+	{
+		return new FileBuild(this, source, target, log, err).build(always);
+	}
 
 
-	private Exception reportException(Exception e)
+	/**
+	 * Get the target of this entry, may contain wildcard.
+	 */
+	String getTargetURL()
 	{
-		if (e instanceof RuntimeException)
-		{
-			return e;	
-		}
-		if (e instanceof SAXParseException)
-		{
-			SAXParseException spe = (SAXParseException)e;
-			Exception ee = spe.getException();
-			if (ee instanceof RuntimeException)
-			{
-				return ee;
-			}
-			String sysId = (spe.getSystemId() == null)
-				? ("(" + currentTargetURL + ")"): spe.getSystemId();
-			processor.err.println(sysId + ":" + spe.getLineNumber()
-				+ ":" + spe.getColumnNumber() + ": " + spe.getMessage());
-		}
-		else if (e instanceof SAXException)
-		{
-			SAXException se = (SAXException)e;
-			Exception ee = se.getException();
-			if (ee instanceof RuntimeException)
-			{
-				return ee;
-			}
-			else if (ee != null)
-			{
-				processor.err.println("Error building " + currentTargetURL
-					+ ": " + ee.toString());
-    			if (DEBUG) ee.printStackTrace(System.out);
-			}
-			else
-			{
-				processor.err.println("Error building " + currentTargetURL
-					+ ": " + se.getMessage());
-    			if (DEBUG) se.printStackTrace(System.out);
-			}
-		}
-		else if (e instanceof IOException)
-		{
-			processor.err.println("Error building " + currentTargetURL
-					+ ": " + e.toString());
-			if (DEBUG) e.printStackTrace(System.out);
-		}
-		else
-		{
-			processor.err.println("Error building " + currentTargetURL + ":");
-			e.printStackTrace(processor.err);
-		}
-		return e;
+		return targetURL;
 	}
 
 
-	// Partial SourceManager implemenation
-   
-    public String getSourceURL()
-        throws FileNotFoundException
+	/**
+	 * Get a string representation of the sitemap element of this entry,
+	 * used to detect changes in the sitemap.
+	 */
+	String getSignature()
 	{
-        if (currentSourceURL == null)
-            throw new FileNotFoundException("no source file specified");
-
-		return currentSourceURL;		
+		return signature;
 	}
-	
-	
-	// FileTarget implemenation
 
-    public String getCurrentTargetURL()
-    {
-        return currentTargetURL;
-    }
 
-    public void newTarget(String filename, boolean prependFilename)
-    {
-		if (prependFilename)
-		{
-			this.newTarget = currentTargetName + '_' + filename;	
-		}
-		else
-		{
-			this.newTarget = filename;
-		}
-    }
-
-    public OutputHandler newAsyncTarget(String filename, 
-			boolean prependFilename)
-		throws IOException
+	private static void appendSignature(StringBuffer sb, Element el)
 	{
-		if (filename.charAt(0) != '/' && !prependFilename)
-		{
-			filename = currentTargetDir + filename;
-		}
-		else if (filename.charAt(0) != '/' && prependFilename)
-		{			
-			filename = currentTargetDir + currentTargetName + '_' + filename;
-		}
-			
-		if (DEBUG) System.out.println("New async target: " + filename);
-		
-		if (targetStorage.isReentrant())
-		{
-			return targetStorage.createFile(filename);
-		}
-		else
+		sb.append('<').append(el.getLocalName());
+		for (int i = 0; i < el.numberOfAttributes(); i++)
 		{
-			tempFiles.addElement(filename);			
-			File currentFile = new File(tempDir, "temp" + (tempFiles.size()-1));	
-			return new TempOutputHandler(currentFile,
-				new FileOutputStream(currentFile));
+			sb.append(' ').append(el.getAttributeLocalName(i))
+				.append("=\"").append(el.getAttributeValue(i)).append('"');
 		}
-	}	
-
-
-    private static void sleepUntilInterrupted()
-    {
-        try {
-            while (true)
-                Thread.sleep(1000*60); // Sleep one minute
-        }
-        catch (InterruptedException e) {}
-    }
-
-	
-	private Thread mainThread;
-	private ContentHandler asyncSAX;
-	private Exception asyncException;
-	
-    public ContentHandler newAsyncTargetWithOutput(
-			String filename, boolean prependFilename, String outputName)
-		throws java.io.IOException, SAXException
-	{
-		mainThread = Thread.currentThread();
-		asyncSAX = null;
-		asyncException = null;
-		
-		final OutputHandler oh = newAsyncTarget(filename, prependFilename);
-		
-		final OutputEntry outputEntry = sitemap.lookupOutput(outputName);
-		if (outputEntry == null) throw new LagoonException(
-			"Output entry " + outputName + " not found in Sitemap");
-
-		outputEntry.setSourceManager(this);
-				
-		outputEntry.setNext(new XMLStreamProducer() {
-		    public void start(ContentHandler sax, Target target)
-        		throws SAXException, IOException
-			{
-				asyncSAX = sax;
-				mainThread.interrupt();
-			}
-			
-			public void init()
-			{
-				throw new RuntimeException("Invalid context");	
-			}
-
-			public void destroy()
-			{
-				throw new RuntimeException("Invalid context");	
-			}
-
-			public boolean hasBeenUpdated(long lastBuild) 
-			{
-				throw new RuntimeException("Invalid context");	
-			}
-		});
-
-		Thread targetThread = new Thread(new Runnable() {
-			public void run()
-			{
-				if (DEBUG) System.out.println("TargetThread just started");
-				try {
-					try {
-						outputEntry.getByteProducer().start(
-							oh.getOutputStream(), 
-							FileEntry.this);
-					}
-					catch (Exception e)
-					{
-						oh.discard();
-						throw e;
-					}
-					oh.commit();
-				}
-				catch (Exception e)
-				{
-					asyncException = e;
-					mainThread.interrupt();
-				}
-				if (DEBUG) System.out.println("TargetThread about to end");
-			}
-		}, "TargetThread");
-		targetThreads.addElement(targetThread);
-		targetThread.start();
-
-		if (DEBUG) System.out.println("Waiting for TargetThread...");
-	 	sleepUntilInterrupted();
-		if (DEBUG) System.out.println("...finished waiting for TargetThread");
-		
-		if (asyncException != null)
+		sb.append('>');
+		for (int i = 0; i < el.numberOfChildren(); i++)
 		{
-			if (asyncException instanceof IOException)
-				throw (IOException)asyncException;
-			else if (asyncException instanceof SAXException)
-				throw (SAXException)asyncException;
-			else if (asyncException instanceof RuntimeException)
-				throw (RuntimeException)asyncException;
-			else
-				throw new SAXException(asyncException);
+			Node node = el.getChild(i);
+			if (node instanceof Element)
+				appendSignature(sb, (Element)node);
+			else if (node instanceof Text)
+				sb.append(((Text)node).getValue().trim());
 		}
-		
-		return asyncSAX;
-	}	
+		sb.append("</").append(el.getLocalName()).append('>');
+	}
 
 
-	public boolean isWildcard()
+	boolean isWildcard()
     {
         return Wildcard.isWildcard(sourceURL);
 	}
-
-
-	static class TempOutputHandler extends OutputHandler
-	{
-		private File currentFile;
-		
-		TempOutputHandler(File currentFile, OutputStream out)
-		{
-			super(out);
-			this.currentFile = currentFile;
-		}
-		
-		public void commit()
-			throws java.io.IOException
-		{
-			out.close();
-		}
-
-		public void discard()
-			throws java.io.IOException
-		{
-			out.close();
-			if (!currentFile.exists()) return;
-			if (currentFile.delete())
-			{
-				return;
-			}
-			else
-			{
-				throw new IOException("Unable to delete file: " + currentFile);
-			}
-		}
-	}
-	
 }
-
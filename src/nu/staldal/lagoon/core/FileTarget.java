@@ -42,6 +42,8 @@ package nu.staldal.lagoon.core;
 
 import org.xml.sax.*;
 
+import nu.staldal.xtree.Element;
+
 
 /**
  * Defines operations a Producer can do on a File target.
@@ -90,6 +92,40 @@ public interface FileTarget extends Target
 		throws java.io.IOException, SAXException;
 
 		
+    /**
+     * Determine if {@link #newSplitTarget} can be used. Otherwise
+	 * splitting must be done with {@link #newTarget}.
+     */
+	public boolean canSplitInParallel();
+
+
+    /**
+     * Open a new target file, without closing the current one, and
+	 * produce it from a fragment of the document. The fragment is sent
+	 * through another instance of the producer chain, where the splitting
+	 * Producer gets it from {@link #getSplitFragment}. This may be done
+	 * in another thread, after this method has returned.
+     *
+     * @param filename  filename to use, may start with '/'
+	 * @param prependFilename  prepend the name of the current main file
+	 *                         and an '_' to the new file name (has no
+	 *                         effect if filename starts with '/').
+	 * @param fragment  the fragment, must not be modified afterwards
+     */
+	public void newSplitTarget(String filename, boolean prependFilename,
+			Element fragment)
+		throws java.io.IOException, SAXException;
+
+
+    /**
+     * Get the fragment to produce, if this is a target opened with
+	 * {@link #newSplitTarget}.
+	 *
+	 * @return the fragment, or <code>null</code> for an ordinary target
+     */
+	public Element getSplitFragment();
+
+
 	/**
      * Determine if this file target is a wildcard.
      */
@@ -42,6 +42,8 @@ package nu.staldal.lagoon.core;
 
 import java.io.*;
 
+import nu.staldal.util.FileStatCache;
+
 /**
  * Defines project-wide services for components.
  *
@@ -57,6 +59,16 @@ public interface LagoonContext
 	public File getTempDir();
 
 
+	/**
+	 * Get the directory where the data for this sitemap is kept 
+	 * between runs.
+	 *
+	 * @return the directory, or <code>null</code> if the sitemap has 
+	 *         no name.
+	 */
+	public File getRepositoryDir();
+
+
     /**
      * Read from a file in the repository.
      * Read from the returned InputStream and close() it.
@@ -137,6 +149,9 @@ public interface LagoonContext
 	
 	/**
      * Store an object into the repository.
+     * The object is encoded immediately, later changes to it are not 
+     * stored unless it is stored again. The repository is written to 
+     * disk at the end of the build.
      *
      * @param key  the key to locate the object
      * @param obj  the object to store, must be Serializable
@@ -156,6 +171,13 @@ public interface LagoonContext
 	public boolean canCheckFileHasBeenUpdated(String url);
 	
 
+    /**
+     * Get the cache to check the existence, modification date and 
+	 * size of files through. The cache is valid during one build.
+     */
+    public FileStatCache getStatCache();
+
+
     /**
      * Get an absolute File object representing the source root directory.
      */
@@ -45,6 +45,10 @@ import java.util.*;
 
 import nu.staldal.xtree.*;
 import nu.staldal.util.Utils;
+import nu.staldal.util.ThreadPool;
+import nu.staldal.util.FileStatCache;
+import nu.staldal.util.KeyValueStore;
+import nu.staldal.lagoon.util.Wildcard;
 
 
 /**
@@ -57,25 +61,69 @@ import nu.staldal.util.Utils;
  *
  * This class is not thread-safe. The methods must not
  * be invoked concurrently from different threads.
+ *
+ * The entries may be built by several worker threads,
+ * see {@link #setWorkerThreads}.
  */
 public class LagoonProcessor implements LagoonContext
 {
 	private static final boolean DEBUG = false;
 
+	private static final String DEPENDENCY_INDEX_KEY =
+		"nu.staldal.lagoon.core.DependencyIndex";
+
+	private static final String OUTPUT_DIGESTS_KEY =
+		"nu.staldal.lagoon.core.OutputDigests";
+
+	private static final String REPOSITORY_FILE = "repository.kv";
+
+	private static final String BUILD_MARKER_KEY =
+		"nu.staldal.lagoon.core.BuildInProgress";
+
+	/**
+	 * Max size of the repository updates kept in memory during a build.
+	 */
+	private static final long WRITE_BEHIND_LIMIT = 1024*1024;
+
     private final String targetURL;
     private final FileStorage targetLocation;
     private File repositoryDir;
+	private KeyValueStore repository;
+	private boolean lastBuildInterrupted = false;
+
+	/**
+	 * Repository updates not yet written, (String)key -> byte[].
+	 */
+	private final Hashtable dirtyObjects = new Hashtable();
+	private long dirtySize = 0;
 	private File tempDir;
 	private File classDir;
 	private File sourceRootDir;
 	private java.net.URL[] classLoaderURLs;
 	private ClassLoader repositoryClassLoader;
 
-    private final Hashtable classDict;
-    private final Hashtable paramDict;
+    /**
+     * Producer classes and parameters, shared by all instances,
+     * (String)category:type -> Class and Hashtable.
+     */
+    private static final Hashtable classDict = new Hashtable();
+    private static final Hashtable paramDict = new Hashtable();
+
     private final Hashtable filestorageDict;
 
     private Sitemap sitemap;
+	private int workerThreads;
+	private DependencyIndex dependencyIndex;
+	private final FileStatCache statCache = new FileStatCache();
+	private OutputDigests outputDigests;
+	private final Profiler profiler = new Profiler();
+	private File profileReport;
+	private long partCacheSize = 1024*1024;
+	private int buildCount = 0;
+	private int asyncThreads = 
+		Math.max(2, Runtime.getRuntime().availableProcessors());
+	private ThreadPool asyncPool = null;
+	private ThreadPool splitPool = null;
 	
 	PrintWriter log;
 	PrintWriter err;
@@ -98,13 +146,37 @@ public class LagoonProcessor implements LagoonContext
 						   PrintWriter log, PrintWriter err)
         throws IOException, LagoonException, AuthenticationException, 
 			AuthenticationMissingException
+    {
+		this(targetURL, sitemapTree, sourceDir, password, log, err,
+			new File(System.getProperty("user.home"), ".lagoon"));
+	}
+
+
+    /**
+     * Constructs and initializes a LagoonProcessor with a specific 
+	 * working directory.
+     *
+     * @param targetURL  where to put the generated files,
+	 *                   must be an absolute URL or a local file path
+     * @param sitemapTree  the Sitemap as an XTree
+     * @param sourceDir  where the source files are
+     * @param password  password to access the target storage, or
+     *                  <code>null</code> if not nessesary.
+	 * @param log  where to write progress messages.
+	 * @param err  where to write error messages.
+	 * @param workDir  the working directory, where cached data is kept
+     */
+    public LagoonProcessor(String targetURL, Element sitemapTree, 
+						   File sourceDir, String password, 
+						   PrintWriter log, PrintWriter err, File workDir)
+        throws IOException, LagoonException, AuthenticationException, 
+			AuthenticationMissingException
     {
         this.targetURL = targetURL;
 		this.log = log;
 		this.err = err;
+		this.workerThreads = 1;
 
-        classDict = new Hashtable();
-        paramDict = new Hashtable();
         filestorageDict = new Hashtable();
 
         targetLocation = createFileStorage(targetURL);
@@ -126,8 +198,6 @@ public class LagoonProcessor implements LagoonContext
 				
 		sitemap = new Sitemap(this, sitemapTree, sourceRootDir);
 
-		File workDir = new File(System.getProperty("user.home"), ".lagoon");
-		
 		if (!workDir.exists())
 		{
 			if (!workDir.mkdir())
@@ -170,6 +240,9 @@ public class LagoonProcessor implements LagoonContext
 
 		if (repositoryDir != null)
 		{
+			repository = new KeyValueStore(
+				new File(repositoryDir, REPOSITORY_FILE));
+			lastBuildInterrupted = repository.containsKey(BUILD_MARKER_KEY);
 			tempDir = new File(repositoryDir, "temp");
 			classDir = new File(repositoryDir, "classes");
 		}
@@ -218,6 +291,21 @@ public class LagoonProcessor implements LagoonContext
 		reloadClasses();
 					
 		sitemap.init();
+
+		if (repositoryDir != null)
+		{
+			// if the last build was interrupted, the index may not match 
+			// the files, so all files are checked
+			dependencyIndex = new DependencyIndex();
+			loadTable(DEPENDENCY_INDEX_KEY, dependencyIndex);
+			if (lastBuildInterrupted)
+				log.println(
+					"The last build was interrupted, all files will be checked");
+		}
+		else
+		{
+			dependencyIndex = null;
+		}
 				
         targetLocation.open(targetURL, this, password);
     }
@@ -234,12 +322,219 @@ public class LagoonProcessor implements LagoonContext
 	}
 
 
+	/**
+	 * Set the number of worker threads to build entries with.
+	 * Entries are only built in parallel if the target storage
+	 * is reentrant, otherwise they are built one at a time.
+	 *
+	 * @param workerThreads  number of threads, 1 (the default) means
+	 *                       build everything in the calling thread.
+	 */
+	public void setWorkerThreads(int workerThreads)
+	{
+		if (workerThreads < 1)
+			throw new IllegalArgumentException(
+				"Number of worker threads must be at least 1");
+
+		this.workerThreads = workerThreads;
+	}
+
+
+	/**
+	 * Get the number of worker threads to build entries with.
+	 */
+	public int getWorkerThreads()
+	{
+		return workerThreads;
+	}
+
+
+	/**
+	 * Set the maximum number of async targets, e.g. images from 
+	 * &lt;island&gt;, being produced at the same time. Also used for 
+	 * the targets from &lt;split&gt;. Must be set before the first build.
+	 *
+	 * @param asyncThreads  number of threads, the default is the number 
+	 *                      of processors, but at least 2.
+	 */
+	public void setAsyncThreads(int asyncThreads)
+	{
+		if (asyncThreads < 1)
+			throw new IllegalArgumentException(
+				"Number of async threads must be at least 1");
+
+		this.asyncThreads = asyncThreads;
+	}
+
+
+	/**
+	 * Get the maximum number of async targets being produced at the 
+	 * same time.
+	 */
+	public int getAsyncThreads()
+	{
+		return asyncThreads;
+	}
+
+
+	/**
+	 * Get the thread pool to produce async targets with.
+	 * Created when first used.
+	 */
+	synchronized ThreadPool getAsyncPool()
+	{
+		if (asyncPool == null)
+			asyncPool = new ThreadPool("LagoonAsync", asyncThreads);
+		return asyncPool;
+	}
+
+
+	/**
+	 * Get the thread pool to produce split targets with.
+	 * Created when first used. It is separate from the async pool, since
+	 * a split target may itself wait for async targets.
+	 */
+	synchronized ThreadPool getSplitPool()
+	{
+		if (splitPool == null)
+			splitPool = new ThreadPool("LagoonSplit", asyncThreads);
+		return splitPool;
+	}
+
+
+	/**
+	 * Enable or disable content hashing. With content hashing, a source 
+	 * file is only considered changed if its contents has changed 
+	 * (not only its modification date), and a generated file is only 
+	 * stored if it differs from the one already stored. The digests are 
+	 * kept in the repository, so this has no effect without one.
+	 */
+	public void setContentHash(boolean contentHash)
+		throws IOException
+	{
+		if (repositoryDir == null) return;
+
+		if (contentHash && outputDigests == null)
+		{
+			outputDigests = new OutputDigests();
+			loadTable(OUTPUT_DIGESTS_KEY, outputDigests);
+		}
+		else if (!contentHash)
+		{
+			outputDigests = null;
+		}
+		dependencyIndex.setContentHash(contentHash);
+	}
+
+
+	/**
+	 * Check whether content hashing is enabled.
+	 */
+	public boolean getContentHash()
+	{
+		return outputDigests != null;
+	}
+
+
+	/**
+	 * Write a profiling report after each build. The report contains 
+	 * the time spent building each target, and the time spent in each 
+	 * producer, with the slowest first.
+	 *
+	 * @param profileReport  the file to write the report to, in CSV 
+	 *                       format if the name ends with <code>.csv</code>,
+	 *                       otherwise in JSON format. 
+	 *                       <code>null</code> to disable profiling.
+	 */
+	public void setProfileReport(File profileReport)
+	{
+		this.profileReport = profileReport;
+		profiler.setEnabled(profileReport != null);
+	}
+
+
+	/**
+	 * Set the maximum size of the cached output of each part.
+	 * The output of a part is recorded the first time it is used in 
+	 * a build, and replayed when it is used again. Parts with larger 
+	 * output are produced again each time they are used.
+	 *
+	 * @param partCacheSize  the maximum size in bytes, 
+	 *                       0 to disable caching.
+	 */
+	public void setPartCacheSize(long partCacheSize)
+	{
+		this.partCacheSize = partCacheSize;
+	}
+
+
+	/**
+	 * Get the maximum size of the cached output of each part.
+	 */
+	public long getPartCacheSize()
+	{
+		return partCacheSize;
+	}
+
+
+	/**
+	 * Get the number of builds started, used to detect a new build.
+	 */
+	synchronized int getBuildCount()
+	{
+		return buildCount;
+	}
+
+
+	/**
+	 * Get the profiler.
+	 */
+	Profiler getProfiler()
+	{
+		return profiler;
+	}
+
+
+	/**
+	 * Get the digests of the generated files.
+	 *
+	 * @return the digests, or <code>null</code> if content hashing 
+	 *         is not enabled.
+	 */
+	OutputDigests getOutputDigests()
+	{
+		return outputDigests;
+	}
+
+
+	/**
+	 * Get the index of the dependencies of each target.
+	 *
+	 * @return the index, or <code>null</code> if there is no repository.
+	 */
+	DependencyIndex getDependencyIndex()
+	{
+		return dependencyIndex;
+	}
+
+
+	/**
+	 * Get the cache of source and target file status. The cache is
+	 * cleared at the start of each build, so the hit and miss counts 
+	 * are for the last build.
+	 */
+	public FileStatCache getStatCache()
+	{
+		return statCache;
+	}
+
+
 	/**
 	 * Get the target location.
 	 *
 	 * @return the target location.
 	 */
-	FileStorage getTargetLocation()
+	public FileStorage getTargetLocation()
 	{
 		return targetLocation;
 	}
@@ -259,25 +554,495 @@ public class LagoonProcessor implements LagoonContext
     public boolean build(boolean force)
         throws IOException
     {
-		boolean success = true;
+		return build(force, null, null);
+	}
+
+
+    /**
+     * Build only the targets matching some glob patterns.
+	 * In a pattern, <code>?</code> matches any character except '/', 
+	 * <code>*</code> matches any sequence of characters except '/' and
+	 * <code>**</code> matches any sequence of characters. A pattern 
+	 * ending with '/' matches everything below that directory.
+     * Synchronous, returns when the building is complete.
+     *
+     * @param patterns  the patterns for the target URLs to build
+     * @param force  force a rebuild of the matching files
+	 *
+	 * @return true if successful, false if any non-fatal error occured
+	 * @throws IOException  if any fatal error occur
+     */
+    public boolean buildTargets(String[] patterns, boolean force)
+        throws IOException
+    {
+		Hashtable only = new Hashtable();
+		Hashtable selected = new Hashtable();
+
+		for (int p = 0; p<patterns.length; p++)
+		{
+			String pattern = patterns[p];
+			if (pattern.endsWith("/")) pattern += "**";
+
+			Vector candidates = sitemap.findEntries(pattern);
+			for (int c = 0; c<candidates.size(); c++)
+			{
+				Object ent = candidates.elementAt(c);
+				if (ent instanceof DeleteEntry)
+				{
+					String target = ((DeleteEntry)ent).getTargetURL();
+					if (Wildcard.matchGlob(pattern, target))
+					{
+						only.put(target, Boolean.valueOf(force));
+						selected.put(ent, "");
+					}
+				}
+				else if (ent instanceof FileEntry)
+				{
+					FileEntry fe = (FileEntry)ent;
+					String targetURL = fe.getTargetURL();
+					if (fe.isWildcard())
+					{
+						Vector targets = fe.getBuildTargets();
+						for (int i = 0; i<targets.size(); i++)
+						{
+							String target = 
+								((String[])targets.elementAt(i))[1];
+							if (Wildcard.matchGlob(pattern, target))
+							{
+								only.put(target, Boolean.valueOf(force));
+								selected.put(ent, "");
+							}
+						}
+					}
+					else if (Wildcard.matchGlob(pattern, targetURL))
+					{
+						only.put(targetURL, Boolean.valueOf(force));
+						selected.put(ent, "");
+					}
+				}
+			}
+		}
+
+		if (only.isEmpty())
+		{
+			log.println("No targets match");
+			return true;
+		}
+
+		// keep the sitemap order
+		Vector entries = new Vector();
         for (Enumeration e = sitemap.getEntries(); e.hasMoreElements(); )
         {
-            SitemapEntry ent = (SitemapEntry)e.nextElement();
-            ent.beforeBuild(force);
-        }
+            Object ent = e.nextElement();
+			if (selected.containsKey(ent)) entries.addElement(ent);
+		}
+
+		return build(force, only, entries);
+	}
+
+
+    /**
+     * Check whether a target is up to date according to the dependency 
+     * index, without building anything. A target which is not in the 
+     * index, or whose dependencies cannot be determined, is not 
+     * up to date.
+     *
+     * @param target  the target URL
+	 *
+	 * @throws IOException  if the targets of a wildcard entry 
+	 *                      cannot be listed
+     */
+    public boolean isUpToDate(String target)
+        throws IOException
+    {
+		if (dependencyIndex == null) return false;
+
+		// files may have been changed since the last build
+		statCache.clear();
+
+		Vector candidates = sitemap.findEntries(target);
+		for (int c = 0; c<candidates.size(); c++)
+		{
+			Object ent = candidates.elementAt(c);
+			if (!(ent instanceof FileEntry)) continue;
+			FileEntry fe = (FileEntry)ent;
+
+			boolean found = false;
+			if (fe.isWildcard())
+			{
+				Vector targets = fe.getBuildTargets();
+				for (int i = 0; !found && i<targets.size(); i++)
+				{
+					found = target.equals(
+						((String[])targets.elementAt(i))[1]);
+				}
+			}
+			else
+			{
+				found = target.equals(fe.getTargetURL());
+			}
+			if (found)
+			{
+				return dependencyIndex.isUpToDate(target, fe.getSignature(), 
+					statCache);
+			}
+		}
+		return false;
+	}
+
+
+    /**
+     * Rebuild the files affected by some changed source files.
+     * Uses the dependency index to find the affected files, files
+	 * not in the index are checked as in a normal build.
+     * Synchronous, returns when the building is complete.
+     *
+     * @param changedFiles  the changed source files (or directories)
+	 *
+	 * @return true if successful, false if any non-fatal error occured
+	 * @throws IOException  if any fatal error occur
+     */
+    public boolean buildChanged(File[] changedFiles)
+        throws IOException
+    {
+		if (dependencyIndex == null) return build(false);
+
+		Hashtable only = new Hashtable();
+		for (int i = 0; i<changedFiles.length; i++)
+		{
+			if (!changedFiles[i].exists()) continue;
+
+			for (Enumeration e = dependencyIndex.getTargets(changedFiles[i]);
+				 e.hasMoreElements(); )
+			{
+				only.put(e.nextElement(), Boolean.TRUE);
+			}
+		}
+
+        for (Enumeration e = sitemap.getEntries(); e.hasMoreElements(); )
+        {
+            Object ent = e.nextElement();
+			if (!(ent instanceof FileEntry)) continue;
+			FileEntry fe = (FileEntry)ent;
+
+			Vector targets = fe.getBuildTargets();
+			for (int i = 0; i < targets.size(); i++)
+			{
+				String target = ((String[])targets.elementAt(i))[1];
+				if (!only.containsKey(target)
+						&& !dependencyIndex.isTracked(target,
+							fe.getSignature()))
+				{
+					only.put(target, Boolean.FALSE);
+				}
+			}
+		}
+
+		return build(false, only, null);
+	}
+
+
+    /**
+     * Perform the building of the website.
+     *
+     * @param force force a rebuild of all files
+     * @param only  the files to build, (String)target URL -> 
+	 *              (Boolean)always build, or <code>null</code> to build 
+	 *              all entries.
+     * @param entries  the entries to consider, or <code>null</code> for
+	 *                 all entries
+	 *
+	 * @return true if successful, false if any non-fatal error occured
+	 * @throws IOException  if any fatal error occur
+     */
+    private boolean build(boolean force, Hashtable only, Vector entries)
+        throws IOException
+    {
+		// files may have been changed since the last build
+		statCache.clear();
+		synchronized (this)
+		{
+			buildCount++;
+		}
+
+		long startTime = System.currentTimeMillis();
+		if (profileReport != null) profiler.reset();
+
+		if (repository != null)
+		{
+			// marks that the repository may be inconsistent until the 
+			// build is complete
+			repository.put(BUILD_MARKER_KEY, new byte[0]);
+			repository.commit();
+		}
+
+		boolean success = true;
         for (Enumeration e = sitemap.getEntries(); e.hasMoreElements(); )
         {
             SitemapEntry ent = (SitemapEntry)e.nextElement();
-            if (!ent.build(force)) success = false;
+            ent.beforeBuild(force);
         }
+		if (!force && dependencyIndex != null)
+		{
+			if (only == null)
+				dependencyIndex.scan(statCache);
+			else
+				dependencyIndex.scan(statCache, only.keys());
+		}
+		if (workerThreads > 1 && targetLocation.isReentrant())
+		{
+			success = buildParallel(force, only, entries);
+		}
+		else
+		{
+	        for (Enumeration e = (entries == null) 
+						? sitemap.getEntries() : entries.elements(); 
+					e.hasMoreElements(); )
+    	    {
+        	    SitemapEntry ent = (SitemapEntry)e.nextElement();
+				if (only == null)
+				{
+	            	if (!ent.build(force, log, err)) success = false;
+				}
+				else if (ent instanceof DeleteEntry)
+				{
+					if (only.containsKey(((DeleteEntry)ent).getTargetURL())
+							&& !ent.build(force, log, err))
+						success = false;
+				}
+				else if (ent instanceof FileEntry)
+				{
+					FileEntry fe = (FileEntry)ent;
+					Vector targets = fe.getBuildTargets();
+					for (int i = 0; i < targets.size(); i++)
+					{
+						String[] t = (String[])targets.elementAt(i);
+						Boolean always = (Boolean)only.get(t[1]);
+						if (always == null) continue;
+						if (!fe.buildTarget(t[0], t[1], 
+								force || always.booleanValue(), log, err))
+							success = false;
+					}
+				}
+	        }
+		}
         for (Enumeration e = sitemap.getEntries(); e.hasMoreElements(); )
         {
             SitemapEntry ent = (SitemapEntry)e.nextElement();
             ent.afterBuild(force);
         }
+		if (targetLocation instanceof FlushableFileStorage)
+		{
+			((FlushableFileStorage)targetLocation).flush();
+		}
+		if (dependencyIndex != null && dependencyIndex.isModified())
+		{
+			saveTable(DEPENDENCY_INDEX_KEY, dependencyIndex);
+		}
+		if (outputDigests != null && outputDigests.isModified())
+		{
+			saveTable(OUTPUT_DIGESTS_KEY, outputDigests);
+		}
+		if (repository != null)
+		{
+			flushRepository();
+			repository.remove(BUILD_MARKER_KEY);
+			repository.commit();
+			lastBuildInterrupted = false;
+		}
+		if (profileReport != null)
+		{
+			profiler.writeReport(profileReport, 
+				System.currentTimeMillis()-startTime);
+		}
 		return success;
     }
 
+
+	/**
+	 * Build all entries using a pool of worker threads.
+	 * The files matching the wildcard pattern of a FileEntry are built
+	 * as separate tasks.
+	 *
+	 * The output from each file is buffered and written when the file
+	 * is done, so that messages from different files are not mixed.
+	 * If a fatal error occurs, no more files are started, and the
+	 * error is thrown when the running ones are done.
+	 */
+	private boolean buildParallel(final boolean force, Hashtable only,
+			Vector entries)
+		throws IOException
+	{
+		final BuildResult result = new BuildResult();
+		ThreadPool pool = new ThreadPool("LagoonWorker", workerThreads);
+		try {
+	        for (Enumeration e = (entries == null) 
+						? sitemap.getEntries() : entries.elements(); 
+					e.hasMoreElements(); )
+    	    {
+        	    final SitemapEntry ent = (SitemapEntry)e.nextElement();
+
+				if (ent instanceof FileEntry)
+				{
+					final FileEntry fe = (FileEntry)ent;
+					Vector targets;
+					try {
+						targets = fe.getBuildTargets();
+					}
+					catch (IOException ex)
+					{
+						result.setFatal(ex);
+						break;
+					}
+					for (int i = 0; i < targets.size(); i++)
+					{
+						final String[] t = (String[])targets.elementAt(i);
+						final boolean always;
+						if (only == null)
+						{
+							always = force;
+						}
+						else
+						{
+							Boolean b = (Boolean)only.get(t[1]);
+							if (b == null) continue;
+							always = force || b.booleanValue();
+						}
+						pool.execute(new BuildTask(result) {
+							boolean doBuild(PrintWriter log, PrintWriter err)
+								throws IOException
+							{
+								return fe.buildTarget(t[0], t[1], always,
+									log, err);
+							}
+						});
+					}
+				}
+				else if (only == null || (ent instanceof DeleteEntry
+						&& only.containsKey(
+							((DeleteEntry)ent).getTargetURL())))
+				{
+					pool.execute(new BuildTask(result) {
+						boolean doBuild(PrintWriter log, PrintWriter err)
+							throws IOException
+						{
+							return ent.build(force, log, err);
+						}
+					});
+				}
+			}
+			pool.waitUntilIdle();
+		}
+		catch (InterruptedException e)
+		{
+			pool.clear();
+			throw new InterruptedIOException("Build interrupted");
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+
+		Throwable fatal = result.getFatal();
+		if (fatal instanceof IOException)
+			throw (IOException)fatal;
+		else if (fatal instanceof RuntimeException)
+			throw (RuntimeException)fatal;
+		else if (fatal instanceof Error)
+			throw (Error)fatal;
+
+		return result.isSuccess();
+	}
+
+
+	/**
+	 * A task in a parallel build.
+	 */
+	abstract class BuildTask implements Runnable
+	{
+		private final BuildResult result;
+
+		BuildTask(BuildResult result)
+		{
+			this.result = result;
+		}
+
+		abstract boolean doBuild(PrintWriter log, PrintWriter err)
+			throws IOException;
+
+		public void run()
+		{
+			if (result.getFatal() != null) return;
+
+			StringWriter logBuf = new StringWriter();
+			StringWriter errBuf = new StringWriter();
+			PrintWriter entLog = new PrintWriter(logBuf);
+			PrintWriter entErr = new PrintWriter(errBuf);
+			try {
+				if (!doBuild(entLog, entErr))
+					result.setFailed();
+			}
+			catch (IOException e)
+			{
+				result.setFatal(e);
+			}
+			catch (RuntimeException e)
+			{
+				result.setFatal(e);
+			}
+			catch (Error e)
+			{
+				// e.g. StackOverflowError, thrown by build() as in
+				// a serial build
+				result.setFatal(e);
+			}
+			finally
+			{
+				entLog.flush();
+				entErr.flush();
+				writeOutput(logBuf.toString(), errBuf.toString());
+			}
+		}
+	}
+
+
+	private synchronized void writeOutput(String logText, String errText)
+	{
+		log.print(logText);
+		log.flush();
+		err.print(errText);
+		err.flush();
+	}
+
+
+	static class BuildResult
+	{
+		private boolean success = true;
+		private Throwable fatal = null;
+
+		synchronized void setFailed()
+		{
+			success = false;
+		}
+
+		synchronized boolean isSuccess()
+		{
+			return success;
+		}
+
+		synchronized void setFatal(Throwable e)
+		{
+			success = false;
+			if (fatal == null) fatal = e;
+		}
+
+		synchronized Throwable getFatal()
+		{
+			return fatal;
+		}
+	}
+
+
 	/**
 	 * Dispose this object and release any resources it holds.
 	 * This causes the FileStorage to be closed.
@@ -286,8 +1051,22 @@ public class LagoonProcessor implements LagoonContext
         throws IOException
 	{
         sitemap.destroy();
+
+		synchronized (this)
+		{
+			if (asyncPool != null) asyncPool.shutdown();
+			asyncPool = null;
+			if (splitPool != null) splitPool.shutdown();
+			splitPool = null;
+		}
         
 		targetLocation.close();
+
+		if (repository != null)
+		{
+			flushRepository();
+			repository.close();
+		}
 		
 		repositoryClassLoader = null;
 		
@@ -305,6 +1084,11 @@ public class LagoonProcessor implements LagoonContext
 	{
 		return tempDir;
 	}
+
+	public File getRepositoryDir()
+	{
+		return repositoryDir;
+	}
 	
 	
     public InputStream readFileFromRepository(String key)
@@ -314,23 +1098,21 @@ public class LagoonProcessor implements LagoonContext
 
     InputStream readFileFromRepository(String dir, String key)
     {
-		if (repositoryDir == null) return null;
-		
-        File theDir = (dir == null)
-                    ? repositoryDir
-                    : new File(repositoryDir, dir);
-					
-		File theFile = new File(theDir, key);
+		if (repository == null) return null;
 		
-		if (DEBUG) System.out.println("readFileFromRepository: " + theFile);			
+		if (DEBUG) System.out.println("readFileFromRepository: " 
+			+ repositoryKey(dir, key));
 
-        try {
-            return new FileInputStream(theFile);
-        }
-        catch (FileNotFoundException e)
-        {
-            return null;
-        }
+		try {
+			byte[] data = readRepository(repositoryKey(dir, key));
+			if (data == null) return null;
+			return new ByteArrayInputStream(data);
+		}
+		catch (IOException e)
+		{
+			if (DEBUG) System.out.println(e);
+			return null;
+		}
     }
 
     public OutputStream storeFileInRepository(String key)
@@ -342,22 +1124,167 @@ public class LagoonProcessor implements LagoonContext
     OutputStream storeFileInRepository(String dir, String key)
         throws IOException
     {
-		if (repositoryDir == null) return null;
-
-        File theDir = (dir == null)
-                    ? repositoryDir
-                    : new File(repositoryDir, dir);
-        theDir.mkdir();
+		if (repository == null) return null;
 
-		File theFile = new File(theDir, key);
+		final String theKey = repositoryKey(dir, key);
 		
-		if (DEBUG) System.out.println("storeFileInRepository: " + theFile);			
+		if (DEBUG) System.out.println("storeFileInRepository: " + theKey);
 		
-        return new FileOutputStream(theFile);
+        return new ByteArrayOutputStream() {
+			private boolean closed = false;
+
+			public void close()
+				throws IOException
+			{
+				if (closed) return;
+				closed = true;
+				writeRepository(theKey, toByteArray());
+			}
+		};
     }
 
 
-    public Class loadClassFromRepository(String className)
+	/**
+	 * Read from the repository, including updates not yet written.
+	 */
+	private byte[] readRepository(String key)
+		throws IOException
+	{
+		synchronized (dirtyObjects)
+		{
+			byte[] data = (byte[])dirtyObjects.get(key);
+			if (data != null) return data;
+			return repository.get(key);
+		}
+	}
+
+
+	/**
+	 * Update the repository. The update is kept in memory, replacing any 
+	 * previous update of the same key, and written at the end of the build 
+	 * or when there are too many updates in memory. Updates which don't 
+	 * change anything are ignored.
+	 */
+	private void writeRepository(String key, byte[] data)
+		throws IOException
+	{
+		synchronized (dirtyObjects)
+		{
+			byte[] current = readRepository(key);
+			if (current != null && Arrays.equals(current, data)) return;
+
+			byte[] old = (byte[])dirtyObjects.put(key, data);
+			dirtySize += data.length - ((old == null) ? 0 : old.length);
+			if (dirtySize > WRITE_BEHIND_LIMIT) flushRepository();
+		}
+	}
+
+
+	/**
+	 * Remove a key from the repository.
+	 */
+	private void removeRepository(String key)
+		throws IOException
+	{
+		synchronized (dirtyObjects)
+		{
+			byte[] old = (byte[])dirtyObjects.remove(key);
+			if (old != null) dirtySize -= old.length;
+			repository.remove(key);
+		}
+	}
+
+
+	/**
+	 * Load the records of a table from the repository. If the last 
+	 * build was interrupted, the records may not be valid, and they 
+	 * are removed instead.
+	 *
+	 * @param dir  the repository directory the records are kept in
+	 * @param table  the table to load the records into
+	 */
+	private void loadTable(String dir, RepositoryTable table)
+		throws IOException
+	{
+		// the whole table in one object, kept by previous versions
+		removeRepository(dir);
+
+		String prefix = repositoryKey(dir, "");
+		Vector keys = new Vector();
+		for (Enumeration e = repository.keys(); e.hasMoreElements(); )
+		{
+			String key = (String)e.nextElement();
+			if (key.startsWith(prefix)) keys.addElement(key);
+		}
+		
+		for (int i = 0; i<keys.size(); i++)
+		{
+			String key = (String)keys.elementAt(i);
+			if (lastBuildInterrupted)
+			{
+				removeRepository(key);
+			}
+			else
+			{
+				byte[] data = repository.get(key);
+				if (data != null) 
+					table.load(key.substring(prefix.length()), data);
+			}
+		}
+	}
+
+
+	/**
+	 * Write the records changed since the last time to the repository.
+	 *
+	 * @param dir  the repository directory the records are kept in
+	 * @param table  the table to save
+	 */
+	private void saveTable(String dir, RepositoryTable table)
+		throws IOException
+	{
+		Hashtable changes = table.getChanges();
+		for (Enumeration e = changes.keys(); e.hasMoreElements(); )
+		{
+			String key = (String)e.nextElement();
+			byte[] data = (byte[])changes.get(key);
+			if (data.length == 0)
+				removeRepository(repositoryKey(dir, key));
+			else
+				writeRepository(repositoryKey(dir, key), data);
+		}
+	}
+
+
+	/**
+	 * Write the updates kept in memory to the repository.
+	 */
+	private void flushRepository()
+		throws IOException
+	{
+		synchronized (dirtyObjects)
+		{
+			for (Enumeration e = dirtyObjects.keys(); e.hasMoreElements(); )
+			{
+				String key = (String)e.nextElement();
+				repository.put(key, (byte[])dirtyObjects.get(key));
+			}
+			dirtyObjects.clear();
+			dirtySize = 0;
+		}
+	}
+
+
+	/**
+	 * The key in the repository of a key in a directory.
+	 */
+	private static String repositoryKey(String dir, String key)
+	{
+		return (dir == null) ? key : (dir + '/' + key);
+	}
+
+
+    public synchronized Class loadClassFromRepository(String className)
         throws ClassNotFoundException
     {
 		if (DEBUG) System.out.println("loadClassFromRepository: "
@@ -410,7 +1337,7 @@ public class LagoonProcessor implements LagoonContext
     }
 
 
-	public void reloadClasses()
+	public synchronized void reloadClasses()
 	{
 		repositoryClassLoader = new java.net.URLClassLoader(classLoaderURLs);
 	}
@@ -426,12 +1353,13 @@ public class LagoonProcessor implements LagoonContext
     Object getObjectFromRepository(String dir, String key)
         throws IOException
     {
-        InputStream is = readFileFromRepository(dir, key);
-        if (is == null) return null;
+		if (repository == null) return null;
+
+		byte[] data = readRepository(repositoryKey(dir, key));
+		if (data == null) return null;
 
-        ObjectInputStream ois = new ObjectInputStream(is);
         try {
-            return ois.readObject();
+            return ObjectCodec.decode(data);
         }
         catch (ClassNotFoundException e)
         {
@@ -453,10 +1381,6 @@ public class LagoonProcessor implements LagoonContext
             if (DEBUG) System.out.println(e);
             return null;
         }
-		finally
-		{
-			is.close();	
-		}
     }
 
     public boolean putObjectIntoRepository(String key, Object obj)
@@ -468,19 +1392,10 @@ public class LagoonProcessor implements LagoonContext
     boolean putObjectIntoRepository(String dir, String key, Object obj)
         throws IOException
     {
-        OutputStream os = storeFileInRepository(dir, key);
-		
-		if (os == null) return false;
+		if (repository == null) return false;
 
-        ObjectOutputStream oos = new ObjectOutputStream(os);
-        try {
-			oos.writeObject(obj);
-			return true;
-		}
-		finally
-		{
-			oos.close();
-		}
+		writeRepository(repositoryKey(dir, key), ObjectCodec.encode(obj));
+		return true;
     }
 
 
@@ -497,9 +1412,57 @@ public class LagoonProcessor implements LagoonContext
     Producer createProducer(String cat, String type)
         throws LagoonException
     {
-        Class cls = (Class)classDict.get(cat + ":" + type);
+		String key = cat + ":" + type;
+		Class cls;
+		Hashtable params;
+		synchronized (classDict)
+		{
+			cls = (Class)classDict.get(key);
+			if (cls == null)
+			{
+				cls = loadProducerClass(cat, type);
+				if (cls == null) return null;
+			}
+			params = (Hashtable)paramDict.get(key);
+		}
 
-        if (cls == null)
+        try {
+            Producer prod = (Producer)cls.newInstance();
+
+            for (Enumeration e = params.keys(); e.hasMoreElements(); )
+            {
+                String name = (String)e.nextElement();
+                String value = (String)params.get(name);
+                prod.addParam(name, value);
+            }
+
+            return prod;
+        }
+        catch (IllegalAccessException e)
+        {
+            throw new LagoonException(
+                "Unable to instantiate producer class (illegal access): " +
+                e.getMessage());
+        }
+        catch (InstantiationException e)
+        {
+            throw new LagoonException(
+                "Unable to instantiate producer class (instantiation failed): " +
+                e.getMessage());
+        }
+    }
+
+
+    /**
+     * Read the config file of a producer, and load its class.
+     * Must be invoked with the class dictionary locked.
+     *
+     * @return  the class, or <code>null</code> if it cannot be found.
+     */
+    private Class loadProducerClass(String cat, String type)
+        throws LagoonException
+    {
+        Class cls;
         try
         {
 			String fileName = "/nu/staldal/lagoon/producer/" + cat
@@ -524,8 +1487,6 @@ public class LagoonProcessor implements LagoonContext
 				if (!Class.forName(baseClassName).isAssignableFrom(cls))
 					throw new LagoonException(
 						cat + " class must derive from " + baseClassName);
-
-				classDict.put(cat + ":" + type, cls);
 			}
 			catch (ClassNotFoundException e)
 			{
@@ -552,40 +1513,15 @@ public class LagoonProcessor implements LagoonContext
 			}
 			br.close();
 
+			classDict.put(cat + ":" + type, cls);
 			paramDict.put(cat + ":" + type, params);
+			return cls;
 		}
         catch (IOException e)
         {
             throw new LagoonException(
                 "Unable to read producer config file: " + e.toString());
         }
-
-        try {
-            Producer prod = (Producer)cls.newInstance();
-
-            Hashtable params = (Hashtable)paramDict.get(cat + ":" + type);
-
-            for (Enumeration e = params.keys(); e.hasMoreElements(); )
-            {
-                String name = (String)e.nextElement();
-                String value = (String)params.get(name);
-                prod.addParam(name, value);
-            }
-
-            return prod;
-        }
-        catch (IllegalAccessException e)
-        {
-            throw new LagoonException(
-                "Unable to instantiate producer class (illegal access): " +
-                e.getMessage());
-        }
-        catch (InstantiationException e)
-        {
-            throw new LagoonException(
-                "Unable to instantiate producer class (instantiation failed): " +
-                e.getMessage());
-        }
     }
 
 
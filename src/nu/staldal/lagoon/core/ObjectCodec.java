@@ -0,0 +1,253 @@
+/*
+ * Copyright (c) 2005, Mikael Ståldal
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ * notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ * notice, this list of conditions and the following disclaimer in the 
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the author nor the names of its contributors 
+ * may be used to endorse or promote products derived from this software 
+ * without specific prior written permission. 
+ * 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY 
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * 
+ * Note: This is known as "the modified BSD license". It's an approved 
+ * Open Source and Free Software license, see 
+ * http://www.opensource.org/licenses/ 
+ * and
+ * http://www.gnu.org/philosophy/license-list.html
+ */
+
+package nu.staldal.lagoon.core;
+
+import java.io.*;
+import java.util.*;
+
+
+/**
+ * Encodes objects to be stored in the repository.
+ *
+ * Strings, numbers, booleans and the common collections of them 
+ * (Hashtable, HashMap, HashSet, Vector and ArrayList) are stored in a 
+ * compact binary form, any other object is stored with Java 
+ * serialization.
+ */
+class ObjectCodec
+{
+	private static final byte NULL = 0;
+	private static final byte STRING = 1;
+	private static final byte LONG = 2;
+	private static final byte INTEGER = 3;
+	private static final byte BOOLEAN = 4;
+	private static final byte HASHTABLE = 5;
+	private static final byte HASHMAP = 6;
+	private static final byte HASHSET = 7;
+	private static final byte VECTOR = 8;
+	private static final byte ARRAYLIST = 9;
+	private static final byte SERIALIZED = 10;
+
+	private ObjectCodec() {}
+
+
+	/**
+	 * Encode an object.
+	 *
+	 * @param obj  the object, must be Serializable
+	 */
+	static byte[] encode(Object obj)
+		throws IOException
+	{
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(buf);
+		write(out, obj);
+		out.close();
+		return buf.toByteArray();
+	}
+
+
+	/**
+	 * Decode an object.
+	 *
+	 * @throws ClassNotFoundException  if the class of a serialized object
+	 *                                 cannot be found
+	 * @throws IOException  if the data is corrupt
+	 */
+	static Object decode(byte[] data)
+		throws IOException, ClassNotFoundException
+	{
+		return read(new DataInputStream(new ByteArrayInputStream(data)));
+	}
+
+
+	private static void write(DataOutputStream out, Object obj)
+		throws IOException
+	{
+		if (obj == null)
+		{
+			out.writeByte(NULL);
+		}
+		else if (obj instanceof String)
+		{
+			String s = (String)obj;
+			out.writeByte(STRING);
+			// writeUTF is limited to 65535 bytes
+			if (s.length() < 65535/3)
+			{
+				out.writeBoolean(true);
+				out.writeUTF(s);
+			}
+			else
+			{
+				out.writeBoolean(false);
+				out.writeInt(s.length());
+				out.writeChars(s);
+			}
+		}
+		else if (obj instanceof Long)
+		{
+			out.writeByte(LONG);
+			out.writeLong(((Long)obj).longValue());
+		}
+		else if (obj instanceof Integer)
+		{
+			out.writeByte(INTEGER);
+			out.writeInt(((Integer)obj).intValue());
+		}
+		else if (obj instanceof Boolean)
+		{
+			out.writeByte(BOOLEAN);
+			out.writeBoolean(((Boolean)obj).booleanValue());
+		}
+		else if (obj.getClass() == Hashtable.class 
+				|| obj.getClass() == HashMap.class)
+		{
+			Map map = (Map)obj;
+			out.writeByte((obj instanceof Hashtable) ? HASHTABLE : HASHMAP);
+			out.writeInt(map.size());
+			for (Iterator it = map.entrySet().iterator(); it.hasNext(); )
+			{
+				Map.Entry entry = (Map.Entry)it.next();
+				write(out, entry.getKey());
+				write(out, entry.getValue());
+			}
+		}
+		else if (obj.getClass() == HashSet.class 
+				|| obj.getClass() == Vector.class
+				|| obj.getClass() == ArrayList.class)
+		{
+			Collection coll = (Collection)obj;
+			out.writeByte((obj instanceof HashSet) ? HASHSET 
+				: (obj instanceof Vector) ? VECTOR : ARRAYLIST);
+			out.writeInt(coll.size());
+			for (Iterator it = coll.iterator(); it.hasNext(); )
+			{
+				write(out, it.next());
+			}
+		}
+		else
+		{
+			ByteArrayOutputStream buf = new ByteArrayOutputStream();
+			ObjectOutputStream oos = new ObjectOutputStream(buf);
+			oos.writeObject(obj);
+			oos.close();
+			out.writeByte(SERIALIZED);
+			out.writeInt(buf.size());
+			buf.writeTo(out);
+		}
+	}
+
+
+	private static Object read(DataInputStream in)
+		throws IOException, ClassNotFoundException
+	{
+		byte type = in.readByte();
+		switch (type)
+		{
+		case NULL:
+			return null;
+
+		case STRING:
+			if (in.readBoolean())
+			{
+				return in.readUTF();
+			}
+			else
+			{
+				char[] chars = new char[in.readInt()];
+				for (int i = 0; i<chars.length; i++)
+					chars[i] = in.readChar();
+				return new String(chars);
+			}
+
+		case LONG:
+			return new Long(in.readLong());
+
+		case INTEGER:
+			return new Integer(in.readInt());
+
+		case BOOLEAN:
+			return in.readBoolean() ? Boolean.TRUE : Boolean.FALSE;
+
+		case HASHTABLE:
+		case HASHMAP:
+		{
+			int size = in.readInt();
+			Map map = (type == HASHTABLE) 
+				? (Map)new Hashtable(size*2+1) : (Map)new HashMap(size*2+1);
+			for (int i = 0; i<size; i++)
+			{
+				Object key = read(in);
+				map.put(key, read(in));
+			}
+			return map;
+		}
+
+		case HASHSET:
+		case VECTOR:
+		case ARRAYLIST:
+		{
+			int size = in.readInt();
+			Collection coll = (type == HASHSET) ? (Collection)new HashSet(size*2+1)
+				: (type == VECTOR) ? (Collection)new Vector(size) 
+				: (Collection)new ArrayList(size);
+			for (int i = 0; i<size; i++)
+			{
+				coll.add(read(in));
+			}
+			return coll;
+		}
+
+		case SERIALIZED:
+		{
+			byte[] data = new byte[in.readInt()];
+			in.readFully(data);
+			ObjectInputStream ois = 
+				new ObjectInputStream(new ByteArrayInputStream(data));
+			return ois.readObject();
+		}
+
+		default:
+			throw new StreamCorruptedException("Unknown type: " + type);
+		}
+	}
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2005, Mikael Ståldal
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ * notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ * notice, this list of conditions and the following disclaimer in the 
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the author nor the names of its contributors 
+ * may be used to endorse or promote products derived from this software 
+ * without specific prior written permission. 
+ * 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY 
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * 
+ * Note: This is known as "the modified BSD license". It's an approved 
+ * Open Source and Free Software license, see 
+ * http://www.opensource.org/licenses/ 
+ * and
+ * http://www.gnu.org/philosophy/license-list.html
+ */
+
+package nu.staldal.lagoon.core;
+
+import java.io.*;
+import java.util.*;
+
+
+/**
+ * Digests of the contents of the files stored in the target storage,
+ * used to avoid storing a file again if it hasn't changed.
+ *
+ * Stored in the repository, with one record for each file.
+ */
+class OutputDigests implements RepositoryTable
+{
+    private static final boolean DEBUG = false;
+
+    /**
+     * (String)target path -> Digest
+     */
+    private Hashtable digests;
+
+    /**
+     * (String)target path -> "", for files changed since last saved
+     */
+    private Hashtable changed;
+
+
+    OutputDigests()
+    {
+        digests = new Hashtable();
+        changed = new Hashtable();
+    }
+
+
+    public synchronized void load(String path, byte[] data)
+    {
+        try {
+            DataInputStream in = 
+                new DataInputStream(new ByteArrayInputStream(data));
+            String digest = in.readUTF();
+            long date = in.readLong();
+            digests.put(path, new Digest(digest, date));
+            changed.remove(path);
+        }
+        catch (IOException e)
+        {
+            if (DEBUG) System.out.println(path + ": " + e);
+        }
+    }
+
+
+    public synchronized Hashtable getChanges()
+        throws IOException
+    {
+        Hashtable records = new Hashtable();
+        for (Enumeration e = changed.keys(); e.hasMoreElements(); )
+        {
+            String path = (String)e.nextElement();
+            Digest d = (Digest)digests.get(path);
+            if (d == null)
+            {
+                records.put(path, new byte[0]);
+            }
+            else
+            {
+                ByteArrayOutputStream buf = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(buf);
+                out.writeUTF(d.digest);
+                out.writeLong(d.date);
+                out.close();
+                records.put(path, buf.toByteArray());
+            }
+        }
+        changed.clear();
+        return records;
+    }
+
+
+    /**
+     * Get the digest of the file last stored at a path.
+     *
+     * @return the digest, or <code>null</code> if not known
+     */
+    synchronized String get(String path)
+    {
+        Digest d = (Digest)digests.get(path);
+        return (d == null) ? null : d.digest;
+    }
+
+
+    /**
+     * Record the digest of a file which has been produced, 
+     * and the time it was produced.
+     */
+    synchronized void put(String path, String digest)
+    {
+        digests.put(path, new Digest(digest, System.currentTimeMillis()));
+        changed.put(path, "");
+    }
+
+
+    /**
+     * Get the time a file was last produced. The FileStorage will show
+     * an older date if the file was not stored since it hadn't changed.
+     *
+     * @return the time, or 0 if not known
+     */
+    synchronized long getDate(String path)
+    {
+        Digest d = (Digest)digests.get(path);
+        return (d == null) ? 0 : d.date;
+    }
+
+
+    /**
+     * Forget the digest of a file, e.g. when it has been deleted.
+     */
+    synchronized void remove(String path)
+    {
+        if (digests.remove(path) != null) changed.put(path, "");
+    }
+
+
+    /**
+     * Check whether the digests have been changed since they were
+     * last saved.
+     */
+    synchronized boolean isModified()
+    {
+        return !changed.isEmpty();
+    }
+
+
+    private static class Digest
+    {
+        final String digest;
+        final long date;
+
+        Digest(String digest, long date)
+        {
+            this.digest = digest;
+            this.date = date;
+        }
+    }
+}
@@ -45,42 +45,198 @@ import java.util.*;
 import java.net.URL;
 import java.net.URLConnection;
 
+import org.xml.sax.*;
+
+import nu.staldal.xmlutil.SAXEventBuffer;
+import nu.staldal.xtree.Element;
 import nu.staldal.lagoon.util.*;
 
 
 /**
  * A part entry in the sitemap.
  *
+ * The output of the part is recorded the first time it is used in a 
+ * build, and replayed when it is used again, unless it is larger than
+ * {@link LagoonProcessor#getPartCacheSize}. The recorded output is 
+ * checked with {@link Producer#hasBeenUpdated} once in each build, 
+ * and kept between builds if it is still valid.
+ *
+ * The output is not recorded if any producer of the part 
+ * {@link Producer#dependsOnTarget depends on the target}, or if the
+ * part uses another part which does.
+ *
+ * The producers of the part are created when it is first used.
+ *
  * @see nu.staldal.lagoon.core.Sitemap
  */
 class PartEntry extends EntryWithSource
 {
+    private final String name;
+    private Element config;
     private XMLStreamProducer myProducer;
 
+	private SAXEventBuffer cache = null;
+	private long cacheTime;
+	private int checkedBuild = -1;
+	private boolean overflowed = false;
+	private boolean cacheable = true;
+
+	/**
+	 * The Recording of the part being recorded in this thread, 
+	 * or <code>null</code>.
+	 */
+	private static final ThreadLocal recording = new ThreadLocal();
+
 	
     public PartEntry(LagoonProcessor processor, Sitemap sitemap, 
-					 String sourceURL, File sourceRootDir)
+					 String name, String sourceURL, File sourceRootDir,
+					 Element config)
         throws LagoonException
 	{
 		super(processor, sitemap, sourceURL, sourceRootDir);
+		this.name = name;
+		this.config = config;
 		myProducer = null;
 	}
 
 	
-    /**
-     * Set the XMLStreamProducer that produces the output for this
-     * PartEntry.
-     * Used during initialization.
-     */
-    void setMyProducer(XMLStreamProducer prod)
-    {
-        myProducer = prod;
-    }
-
-	
-	public XMLStreamProducer getXMLProducer()
+	/**
+	 * Get the XMLStreamProducer that produces the output for this
+	 * PartEntry, creating it if necessary.
+	 */
+	public synchronized XMLStreamProducer getXMLProducer()
+		throws LagoonException, IOException
 	{
+		if (myProducer == null)
+		{
+			myProducer = sitemap.createPartProducer(name, this, config);
+			config = null;
+		}
 		return myProducer;
 	}
-}
 
+
+	/**
+	 * Mark that the output of this part must not be recorded.
+	 * Used during initialization.
+	 */
+	synchronized void setCacheable(boolean cacheable)
+	{
+		this.cacheable = cacheable;
+	}
+
+
+	/**
+	 * Produce this part. Serialized, since parts are shared by all entries,
+	 * but recorded output is replayed concurrently.
+	 */
+	void start(ContentHandler sax, Target target)
+		throws SAXException, IOException
+	{
+		SAXEventBuffer buf;
+		synchronized (this)
+		{
+			XMLStreamProducer prod = getXMLProducer();
+			if (!cacheable)
+			{
+				// neither can a part being recorded which uses this part
+				Recording outer = (Recording)recording.get();
+				if (outer != null) outer.cacheable = false;
+
+				prod.start(sax, target);
+				return;
+			}
+
+			checkCache();
+			buf = cache;
+			if (buf == null)
+			{
+				long maxSize = processor.getPartCacheSize();
+				if (overflowed || maxSize <= 0)
+				{
+					prod.start(sax, target);
+					return;
+				}
+
+				long time = System.currentTimeMillis();
+				SAXEventBuffer rec = new SAXEventBuffer(sax, maxSize);
+				Recording outer = (Recording)recording.get();
+				Recording current = new Recording();
+				recording.set(current);
+				try {
+					prod.start(rec, target);
+				}
+				finally
+				{
+					recording.set(outer);
+				}
+				if (!current.cacheable)
+				{
+					cacheable = false;
+					if (outer != null) outer.cacheable = false;
+				}
+				else if (rec.isOverflowed())
+				{
+					overflowed = true;
+				}
+				else
+				{
+					cache = rec;
+					cacheTime = time;
+				}
+				return;
+			}
+		}
+		buf.replay(sax);
+	}
+
+
+	/**
+	 * Discard the recorded output if the part has been updated.
+	 * Checked once in each build.
+	 */
+	private void checkCache()
+		throws LagoonException, IOException
+	{
+		int build = processor.getBuildCount();
+		if (build == checkedBuild) return;
+		checkedBuild = build;
+		overflowed = false;
+
+		if (cache != null && myProducer.hasBeenUpdated(cacheTime))
+		{
+			cache = null;
+		}
+	}
+
+
+	/**
+	 * Record the files this part depends on.
+	 *
+	 * @return true if the dependencies cannot be determined
+	 */
+	synchronized boolean recordDependencies(Vector deps)
+		throws LagoonException, IOException
+	{
+		return recordDependencies(getXMLProducer(), deps);
+	}
+
+
+	/**
+	 * Check whether this part has been updated.
+	 */
+	synchronized boolean hasBeenUpdated(long when)
+		throws LagoonException, IOException
+	{
+		return getXMLProducer().hasBeenUpdated(when);
+	}
+
+
+	/**
+	 * A part being recorded.
+	 */
+	private static class Recording
+	{
+		boolean cacheable = true;
+	}
+}
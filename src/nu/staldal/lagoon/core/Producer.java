@@ -59,6 +59,7 @@ public abstract class Producer implements ProducerInterface
 
     private String entryName;
 	private SourceManagerProvider sourceMan = null;
+	private Hashtable sharedObjects = null;
     private LagoonProcessor processor = null;
     private int position = 0;
 
@@ -84,6 +85,20 @@ public abstract class Producer implements ProducerInterface
     }
 
     
+    /**
+     * Check whether the output of this producer depends on the target 
+     * it's produced for, or if producing it creates other files. 
+     * The output of a part using such a producer is not recorded.
+     *
+     * @return <code>false</code>, override if the output depends 
+     *         on the target
+     */
+    public boolean dependsOnTarget()
+    {
+        return false;
+    }
+    
+
     void doDestroy()
         throws java.io.IOException        
     {
@@ -133,6 +148,16 @@ public abstract class Producer implements ProducerInterface
         this.sourceMan = sourceMan;
 	}
 
+	/**
+	 * Set the table of objects shared with other instances of the
+	 * same pipeline.
+	 * Used during initialization.
+	 */
+	void setSharedObjects(Hashtable sharedObjects)
+	{
+        this.sharedObjects = sharedObjects;
+	}
+
 	/**
 	 * Set the position of this producer in the pipeline.
 	 * Used during initialization.
@@ -179,6 +204,44 @@ public abstract class Producer implements ProducerInterface
 	}
 
 	
+	/**
+	 * Get an object shared by all instances of this producer in the same
+	 * sitemap entry. A sitemap entry may use several instances of its
+	 * pipeline to build files concurrently, use this for expensive
+	 * immutable data, or synchronize access to it.
+	 *
+	 * The initialization of pipelines is serialized, so it's safe to 
+	 * look up and create a shared object in {@link #init}.
+	 *
+	 * @param key  the key to locate the object
+	 *
+	 * @return  the object, or <code>null</code> if not found
+	 */
+	public Object getSharedObject(String key)
+	{
+		if (sharedObjects == null) return null;
+
+		return sharedObjects.get(makeKey(key));
+	}
+
+
+	/**
+	 * Store an object to share with all instances of this producer in the
+	 * same sitemap entry.
+	 *
+	 * @param key  the key to locate the object
+	 * @param obj  the object to store
+	 *
+	 * @see #getSharedObject
+	 */
+	public void putSharedObject(String key, Object obj)
+	{
+		if (sharedObjects == null) return;
+
+		sharedObjects.put(makeKey(key), obj);
+	}
+
+
 	/**
 	 * Get the LagoonContext this producer is associated with.
 	 */
@@ -281,6 +344,9 @@ public abstract class Producer implements ProducerInterface
 
     /**
      * Store an object into the repository.
+     * The object is encoded immediately, later changes to it are not 
+     * stored unless it is stored again. The repository is written to 
+     * disk at the end of the build.
      *
      * @param key  the key to locate the object
      * @param obj  the object to store, must be Serializable
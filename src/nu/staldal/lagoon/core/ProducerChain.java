@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 2005, Mikael Ståldal
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ * notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ * notice, this list of conditions and the following disclaimer in the 
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the author nor the names of its contributors 
+ * may be used to endorse or promote products derived from this software 
+ * without specific prior written permission. 
+ * 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY 
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * 
+ * Note: This is known as "the modified BSD license". It's an approved 
+ * Open Source and Free Software license, see 
+ * http://www.opensource.org/licenses/ 
+ * and
+ * http://www.gnu.org/philosophy/license-list.html
+ */
+
+package nu.staldal.lagoon.core;
+
+import java.io.*;
+import java.util.*;
+
+
+/**
+ * One instance of the producer chain of a FileEntry.
+ *
+ * A FileEntry may have several instances of its producer chain, so that
+ * several files matching a wildcard pattern can be built in parallel.
+ * Each instance is used by one build at a time.
+ *
+ * @see nu.staldal.lagoon.core.FileEntry
+ */
+class ProducerChain implements SourceManagerProvider
+{
+    private final Sitemap sitemap;
+    private Producer myProducer;
+	private OutputEntry outputEntry;
+	/**
+	 * (String)output name -> Vector of free OutputEntry
+	 */
+	private Hashtable asyncOutputs;
+
+    private FileBuild currentBuild;
+
+
+    ProducerChain(Sitemap sitemap)
+    {
+        this.sitemap = sitemap;
+        this.myProducer = null;
+        this.outputEntry = null;
+		this.asyncOutputs = new Hashtable();
+        this.currentBuild = null;
+    }
+
+
+    /**
+     * Set the Producer that produces the final output for this chain.
+     * Used during initialization.
+     */
+    void setMyProducer(Producer prod)
+    {
+        myProducer = prod;
+    }
+
+
+    /**
+     * Set the output to use for this chain.
+     * Used during initialization.
+     */
+    void setMyOutput(OutputEntry outputEntry)
+    {
+        this.outputEntry = outputEntry;
+    }
+
+
+    void destroy()
+        throws IOException
+    {
+        if (myProducer != null)
+            myProducer.doDestroy();
+    }
+
+
+    void beforeBuild()
+        throws IOException
+    {
+        if (myProducer != null)
+            myProducer.doBeforeBuild();
+    }
+
+
+    void afterBuild()
+        throws IOException
+    {
+        if (myProducer != null)
+            myProducer.doAfterBuild();
+    }
+
+
+	/**
+	 * Check whether the target of the given build needs to be rebuilt.
+	 */
+	boolean hasBeenUpdated(FileBuild build, long targetLastMod)
+        throws LagoonException, IOException
+	{
+		currentBuild = build;
+		return myProducer.hasBeenUpdated(targetLastMod);
+	}
+
+
+	/**
+	 * Record the files the target of the given build depends on.
+	 *
+	 * @return true if the dependencies cannot be determined
+	 */
+	boolean recordDependencies(FileBuild build, Vector deps)
+        throws LagoonException, IOException
+	{
+		currentBuild = build;
+		return build.recordDependencies(myProducer, deps);
+	}
+
+
+	/**
+	 * Prepare this chain for the given build.
+	 *
+	 * @return the ByteStreamProducer to start.
+	 */
+	ByteStreamProducer prepareProducer(FileBuild build)
+	{
+		currentBuild = build;
+
+		if (outputEntry == null)
+		{
+			return (ByteStreamProducer)myProducer;
+		}
+		else
+		{
+			outputEntry.setNext((XMLStreamProducer)myProducer);
+			outputEntry.setSourceManager(build);
+			return outputEntry.getByteProducer();
+		}
+	}
+
+
+	/**
+	 * Get an output to use for an async target. Each chain gets its own
+	 * instances, since the output is bound to the current build, and 
+	 * an instance is used by one async target at a time.
+	 * Return it with {@link #releaseOutput} when done.
+	 *
+	 * @return the OutputEntry, or <code>null</code> if not found.
+	 */
+	OutputEntry acquireOutput(String outputName)
+		throws LagoonException, IOException
+	{
+		synchronized (asyncOutputs)
+		{
+			Vector free = (Vector)asyncOutputs.get(outputName);
+			if (free != null && !free.isEmpty())
+			{
+				OutputEntry oe = (OutputEntry)free.lastElement();
+				free.removeElementAt(free.size()-1);
+				return oe;
+			}
+		}
+		return sitemap.createOutput(outputName);
+	}
+
+
+	/**
+	 * Return an output acquired with {@link #acquireOutput}.
+	 */
+	void releaseOutput(String outputName, OutputEntry oe)
+	{
+		synchronized (asyncOutputs)
+		{
+			Vector free = (Vector)asyncOutputs.get(outputName);
+			if (free == null)
+			{
+				free = new Vector();
+				asyncOutputs.put(outputName, free);
+			}
+			free.addElement(oe);
+		}
+	}
+
+
+	// SourceManagerProvider implementation
+
+	public SourceManager getSourceManager()
+	{
+		return currentBuild;
+	}
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2005, Mikael Ståldal
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ * notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ * notice, this list of conditions and the following disclaimer in the 
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the author nor the names of its contributors 
+ * may be used to endorse or promote products derived from this software 
+ * without specific prior written permission. 
+ * 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY 
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * 
+ * Note: This is known as "the modified BSD license". It's an approved 
+ * Open Source and Free Software license, see 
+ * http://www.opensource.org/licenses/ 
+ * and
+ * http://www.gnu.org/philosophy/license-list.html
+ */
+
+package nu.staldal.lagoon.core;
+
+import java.io.*;
+
+import org.xml.sax.SAXException;
+
+
+/**
+ * Wraps a ByteStreamProducer to measure the time spent in it, and count
+ * the bytes it writes. Does nothing if profiling is not enabled.
+ *
+ * @see nu.staldal.lagoon.core.Profiler
+ */
+class ProfiledByteStreamProducer extends Producer implements ByteStreamProducer
+{
+    private final Producer prod;
+    private final Profiler profiler;
+    private final Profiler.Node node;
+
+
+    ProfiledByteStreamProducer(Producer prod, Profiler profiler,
+                               Profiler.Node node)
+    {
+        this.prod = prod;
+        this.profiler = profiler;
+        this.node = node;
+    }
+
+
+    public void start(OutputStream bytes, Target target)
+        throws SAXException, IOException
+    {
+        if (!profiler.isEnabled())
+        {
+            ((ByteStreamProducer)prod).start(bytes, target);
+            return;
+        }
+
+        Profiler.Node caller = profiler.current();
+        node.addCall();
+        profiler.enter(node);
+        try {
+            ((ByteStreamProducer)prod).start(
+                new ProfilingOutputStream(bytes, caller), target);
+        }
+        finally
+        {
+            profiler.exit();
+        }
+    }
+
+
+    public void init()
+    {
+        // the wrapped producer is already initialized
+    }
+
+
+    public boolean hasBeenUpdated(long lastBuild)
+        throws LagoonException, IOException
+    {
+        return prod.hasBeenUpdated(lastBuild);
+    }
+
+
+    void doDestroy()
+        throws IOException
+    {
+        prod.doDestroy();
+    }
+
+
+    void doBeforeBuild()
+        throws IOException
+    {
+        prod.doBeforeBuild();
+    }
+
+
+    void doAfterBuild()
+        throws IOException
+    {
+        prod.doAfterBuild();
+    }
+
+
+    /**
+     * Counts the bytes and charges the time spent writing them to
+     * the consumer.
+     */
+    class ProfilingOutputStream extends OutputStream
+    {
+        private final OutputStream out;
+        private final Profiler.Node caller;
+
+        ProfilingOutputStream(OutputStream out, Profiler.Node caller)
+        {
+            this.out = out;
+            this.caller = caller;
+        }
+
+        public void write(int b)
+            throws IOException
+        {
+            node.addBytes(1);
+            profiler.enter(caller);
+            try {
+                out.write(b);
+            }
+            finally
+            {
+                profiler.exit();
+            }
+        }
+
+        public void write(byte[] buf, int off, int len)
+            throws IOException
+        {
+            node.addBytes(len);
+            profiler.enter(caller);
+            try {
+                out.write(buf, off, len);
+            }
+            finally
+            {
+                profiler.exit();
+            }
+        }
+
+        public void flush()
+            throws IOException
+        {
+            profiler.enter(caller);
+            try {
+                out.flush();
+            }
+            finally
+            {
+                profiler.exit();
+            }
+        }
+
+        public void close()
+            throws IOException
+        {
+            out.close();
+        }
+    }
+}
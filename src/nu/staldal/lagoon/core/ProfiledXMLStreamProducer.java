@@ -0,0 +1,287 @@
+/*
+ * Copyright (c) 2005, Mikael Ståldal
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ * notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ * notice, this list of conditions and the following disclaimer in the 
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the author nor the names of its contributors 
+ * may be used to endorse or promote products derived from this software 
+ * without specific prior written permission. 
+ * 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY 
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * 
+ * Note: This is known as "the modified BSD license". It's an approved 
+ * Open Source and Free Software license, see 
+ * http://www.opensource.org/licenses/ 
+ * and
+ * http://www.gnu.org/philosophy/license-list.html
+ */
+
+package nu.staldal.lagoon.core;
+
+import org.xml.sax.*;
+
+
+/**
+ * Wraps an XMLStreamProducer to measure the time spent in it, and count
+ * the SAX events it produces. Does nothing if profiling is not enabled.
+ *
+ * @see nu.staldal.lagoon.core.Profiler
+ */
+class ProfiledXMLStreamProducer extends Producer implements XMLStreamProducer
+{
+    private final Producer prod;
+    private final Profiler profiler;
+    private final Profiler.Node node;
+
+
+    ProfiledXMLStreamProducer(Producer prod, Profiler profiler,
+                              Profiler.Node node)
+    {
+        this.prod = prod;
+        this.profiler = profiler;
+        this.node = node;
+    }
+
+
+    public void start(ContentHandler sax, Target target)
+        throws SAXException, java.io.IOException
+    {
+        if (!profiler.isEnabled())
+        {
+            ((XMLStreamProducer)prod).start(sax, target);
+            return;
+        }
+
+        Profiler.Node caller = profiler.current();
+        node.addCall();
+        profiler.enter(node);
+        try {
+            ((XMLStreamProducer)prod).start(
+                new ProfilingContentHandler(sax, caller), target);
+        }
+        finally
+        {
+            profiler.exit();
+        }
+    }
+
+
+    public void init()
+    {
+        // the wrapped producer is already initialized
+    }
+
+
+    public boolean hasBeenUpdated(long lastBuild)
+        throws LagoonException, java.io.IOException
+    {
+        return prod.hasBeenUpdated(lastBuild);
+    }
+
+
+    void doDestroy()
+        throws java.io.IOException
+    {
+        prod.doDestroy();
+    }
+
+
+    void doBeforeBuild()
+        throws java.io.IOException
+    {
+        prod.doBeforeBuild();
+    }
+
+
+    void doAfterBuild()
+        throws java.io.IOException
+    {
+        prod.doAfterBuild();
+    }
+
+
+    /**
+     * Counts the events and charges the time spent handling them to
+     * the consumer.
+     */
+    class ProfilingContentHandler implements ContentHandler
+    {
+        private final ContentHandler sax;
+        private final Profiler.Node caller;
+
+        ProfilingContentHandler(ContentHandler sax, Profiler.Node caller)
+        {
+            this.sax = sax;
+            this.caller = caller;
+        }
+
+        public void setDocumentLocator(Locator locator)
+        {
+            sax.setDocumentLocator(locator);
+        }
+
+        public void startDocument()
+            throws SAXException
+        {
+            node.addEvent();
+            profiler.enter(caller);
+            try {
+                sax.startDocument();
+            }
+            finally
+            {
+                profiler.exit();
+            }
+        }
+
+        public void endDocument()
+            throws SAXException
+        {
+            node.addEvent();
+            profiler.enter(caller);
+            try {
+                sax.endDocument();
+            }
+            finally
+            {
+                profiler.exit();
+            }
+        }
+
+        public void startPrefixMapping(String prefix, String uri)
+            throws SAXException
+        {
+            node.addEvent();
+            profiler.enter(caller);
+            try {
+                sax.startPrefixMapping(prefix, uri);
+            }
+            finally
+            {
+                profiler.exit();
+            }
+        }
+
+        public void endPrefixMapping(String prefix)
+            throws SAXException
+        {
+            node.addEvent();
+            profiler.enter(caller);
+            try {
+                sax.endPrefixMapping(prefix);
+            }
+            finally
+            {
+                profiler.exit();
+            }
+        }
+
+        public void startElement(String namespaceURI, String localName,
+                                 String qName, Attributes atts)
+            throws SAXException
+        {
+            node.addEvent();
+            profiler.enter(caller);
+            try {
+                sax.startElement(namespaceURI, localName, qName, atts);
+            }
+            finally
+            {
+                profiler.exit();
+            }
+        }
+
+        public void endElement(String namespaceURI, String localName,
+                               String qName)
+            throws SAXException
+        {
+            node.addEvent();
+            profiler.enter(caller);
+            try {
+                sax.endElement(namespaceURI, localName, qName);
+            }
+            finally
+            {
+                profiler.exit();
+            }
+        }
+
+        public void characters(char[] ch, int start, int length)
+            throws SAXException
+        {
+            node.addEvent();
+            profiler.enter(caller);
+            try {
+                sax.characters(ch, start, length);
+            }
+            finally
+            {
+                profiler.exit();
+            }
+        }
+
+        public void ignorableWhitespace(char[] ch, int start, int length)
+            throws SAXException
+        {
+            node.addEvent();
+            profiler.enter(caller);
+            try {
+                sax.ignorableWhitespace(ch, start, length);
+            }
+            finally
+            {
+                profiler.exit();
+            }
+        }
+
+        public void processingInstruction(String target, String data)
+            throws SAXException
+        {
+            node.addEvent();
+            profiler.enter(caller);
+            try {
+                sax.processingInstruction(target, data);
+            }
+            finally
+            {
+                profiler.exit();
+            }
+        }
+
+        public void skippedEntity(String name)
+            throws SAXException
+        {
+            node.addEvent();
+            profiler.enter(caller);
+            try {
+                sax.skippedEntity(name);
+            }
+            finally
+            {
+                profiler.exit();
+            }
+        }
+    }
+}
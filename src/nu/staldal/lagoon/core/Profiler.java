@@ -0,0 +1,498 @@
+/*
+ * Copyright (c) 2005, Mikael Ståldal
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ * notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ * notice, this list of conditions and the following disclaimer in the 
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the author nor the names of its contributors 
+ * may be used to endorse or promote products derived from this software 
+ * without specific prior written permission. 
+ * 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY 
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * 
+ * Note: This is known as "the modified BSD license". It's an approved 
+ * Open Source and Free Software license, see 
+ * http://www.opensource.org/licenses/ 
+ * and
+ * http://www.gnu.org/philosophy/license-list.html
+ */
+
+package nu.staldal.lagoon.core;
+
+import java.io.*;
+import java.util.*;
+
+
+/**
+ * Collects the time spent building each target and in each producer,
+ * and the time spent creating and initializing the producers of each 
+ * entry, and writes a report at the end of the build.
+ *
+ * The time of a producer is the time spent in the producer itself, 
+ * not including the time spent in the producers it reads from or writes 
+ * to. This is measured by keeping track of which producer is currently 
+ * running in each thread.
+ *
+ * @see nu.staldal.lagoon.core.ProfiledXMLStreamProducer
+ * @see nu.staldal.lagoon.core.ProfiledByteStreamProducer
+ */
+class Profiler
+{
+    private boolean enabled;
+
+    /**
+     * (String)description -> Node
+     */
+    private final Hashtable producers;
+
+    /**
+     * Writing to the target storage.
+     */
+    private final Node output;
+
+    /**
+     * Vector of TargetTime
+     */
+    private Vector targets;
+
+    /**
+     * (String)entry -> Node, the time spent creating producer chains
+     */
+    private Hashtable inits;
+
+    private final ThreadLocal stacks;
+
+
+    Profiler()
+    {
+        enabled = false;
+        producers = new Hashtable();
+        output = new Node("(output)");
+        targets = new Vector();
+        inits = new Hashtable();
+        stacks = new ThreadLocal();
+    }
+
+
+    synchronized void setEnabled(boolean enabled)
+    {
+        this.enabled = enabled;
+    }
+
+
+    synchronized boolean isEnabled()
+    {
+        return enabled;
+    }
+
+
+    /**
+     * Get the node to collect the statistics of a producer in.
+     * Producers with the same description share node.
+     */
+    synchronized Node getNode(String description)
+    {
+        Node node = (Node)producers.get(description);
+        if (node == null)
+        {
+            node = new Node(description);
+            producers.put(description, node);
+        }
+        return node;
+    }
+
+
+    /**
+     * Get the node which is currently running in this thread.
+     *
+     * @return the node, or the output node if no producer is running
+     */
+    Node current()
+    {
+        Stack s = (Stack)stacks.get();
+        if (s == null || s.nodes.isEmpty()) return output;
+        return (Node)s.nodes.lastElement();
+    }
+
+
+    /**
+     * Start running a node in this thread.
+     * Must be followed by exit().
+     */
+    void enter(Node node)
+    {
+        Stack s = (Stack)stacks.get();
+        if (s == null)
+        {
+            s = new Stack();
+            stacks.set(s);
+        }
+        long now = System.currentTimeMillis();
+        if (!s.nodes.isEmpty())
+            ((Node)s.nodes.lastElement()).addTime(now - s.last);
+        s.nodes.addElement(node);
+        s.last = now;
+    }
+
+
+    /**
+     * Stop running the last entered node in this thread.
+     */
+    void exit()
+    {
+        Stack s = (Stack)stacks.get();
+        long now = System.currentTimeMillis();
+        Node node = (Node)s.nodes.lastElement();
+        node.addTime(now - s.last);
+        s.nodes.removeElementAt(s.nodes.size()-1);
+        s.last = now;
+    }
+
+
+    /**
+     * Record the time spent building a target.
+     *
+     * @param target  the target URL
+     * @param entry  the target of the sitemap entry, may contain wildcard
+     * @param time  milliseconds
+     */
+    synchronized void addTarget(String target, String entry, long time)
+    {
+        targets.addElement(new TargetTime(target, entry, time));
+    }
+
+
+    /**
+     * Record the time spent creating and initializing a producer chain.
+     *
+     * @param entry  the target of the sitemap entry, may contain wildcard
+     * @param time  milliseconds
+     */
+    synchronized void addInit(String entry, long time)
+    {
+        Node node = (Node)inits.get(entry);
+        if (node == null)
+        {
+            node = new Node(entry);
+            inits.put(entry, node);
+        }
+        node.calls++;
+        node.time += time;
+    }
+
+
+    /**
+     * Forget all collected statistics.
+     */
+    synchronized void reset()
+    {
+        targets = new Vector();
+        inits = new Hashtable();
+        output.reset();
+        for (Enumeration e = producers.elements(); e.hasMoreElements(); )
+        {
+            ((Node)e.nextElement()).reset();
+        }
+    }
+
+
+    /**
+     * Write a report of the collected statistics. The targets, entries 
+     * and producers are sorted with the slowest first.
+     *
+     * @param file  the file to write to, in CSV format if the name
+     *              ends with <code>.csv</code>, otherwise in JSON format
+     * @param buildTime  the total time of the build, in milliseconds
+     */
+    synchronized void writeReport(File file, long buildTime)
+        throws IOException
+    {
+        Vector sortedTargets = (Vector)targets.clone();
+        Collections.sort(sortedTargets, new Comparator() {
+            public int compare(Object a, Object b)
+            {
+                return compareTime(((TargetTime)a).time, ((TargetTime)b).time);
+            }
+        });
+
+        Hashtable entryTable = new Hashtable();
+        for (Enumeration e = targets.elements(); e.hasMoreElements(); )
+        {
+            TargetTime t = (TargetTime)e.nextElement();
+            Node node = (Node)entryTable.get(t.entry);
+            if (node == null)
+            {
+                node = new Node(t.entry);
+                entryTable.put(t.entry, node);
+            }
+            node.calls++;
+            node.time += t.time;
+        }
+        Vector entries = new Vector(entryTable.values());
+
+        Vector nodes = new Vector(producers.values());
+        nodes.addElement(output);
+        for (int i = nodes.size()-1; i>=0; i--)
+        {
+            if (((Node)nodes.elementAt(i)).calls == 0
+                    && ((Node)nodes.elementAt(i)).time == 0)
+                nodes.removeElementAt(i);
+        }
+
+        Comparator byTime = new Comparator() {
+            public int compare(Object a, Object b)
+            {
+                return compareTime(((Node)a).time, ((Node)b).time);
+            }
+        };
+        Vector initNodes = new Vector(inits.values());
+        Collections.sort(entries, byTime);
+        Collections.sort(nodes, byTime);
+        Collections.sort(initNodes, byTime);
+
+        PrintWriter out = new PrintWriter(new BufferedWriter(
+            new OutputStreamWriter(new FileOutputStream(file), "UTF-8")));
+        try {
+            if (file.getName().endsWith(".csv"))
+                writeCSV(out, buildTime, sortedTargets, entries, nodes, 
+                    initNodes);
+            else
+                writeJSON(out, buildTime, sortedTargets, entries, nodes, 
+                    initNodes);
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+
+    private static int compareTime(long a, long b)
+    {
+        return (a > b) ? -1 : ((a < b) ? 1 : 0);
+    }
+
+
+    private static void writeCSV(PrintWriter out, long buildTime,
+                                 Vector targets, Vector entries, Vector nodes,
+                                 Vector inits)
+    {
+        out.println("kind,name,time,count,events,bytes");
+        out.println("build,," + buildTime + ",,,");
+        for (int i = 0; i<targets.size(); i++)
+        {
+            TargetTime t = (TargetTime)targets.elementAt(i);
+            out.println("target," + csv(t.target) + "," + t.time + ",1,,");
+        }
+        for (int i = 0; i<entries.size(); i++)
+        {
+            Node n = (Node)entries.elementAt(i);
+            out.println("entry," + csv(n.name) + "," + n.time + ","
+                + n.calls + ",,");
+        }
+        for (int i = 0; i<nodes.size(); i++)
+        {
+            Node n = (Node)nodes.elementAt(i);
+            out.println("producer," + csv(n.name) + "," + n.time + ","
+                + n.calls + "," + n.events + "," + n.bytes);
+        }
+        for (int i = 0; i<inits.size(); i++)
+        {
+            Node n = (Node)inits.elementAt(i);
+            out.println("init," + csv(n.name) + "," + n.time + ","
+                + n.calls + ",,");
+        }
+    }
+
+
+    private static void writeJSON(PrintWriter out, long buildTime,
+                                  Vector targets, Vector entries, Vector nodes,
+                                  Vector inits)
+    {
+        out.println("{");
+        out.println("  \"buildTime\": " + buildTime + ",");
+
+        out.println("  \"targets\": [");
+        for (int i = 0; i<targets.size(); i++)
+        {
+            TargetTime t = (TargetTime)targets.elementAt(i);
+            out.print("    {\"target\": " + json(t.target)
+                + ", \"entry\": " + json(t.entry)
+                + ", \"time\": " + t.time + "}");
+            out.println((i < targets.size()-1) ? "," : "");
+        }
+        out.println("  ],");
+
+        out.println("  \"entries\": [");
+        for (int i = 0; i<entries.size(); i++)
+        {
+            Node n = (Node)entries.elementAt(i);
+            out.print("    {\"entry\": " + json(n.name)
+                + ", \"targets\": " + n.calls
+                + ", \"time\": " + n.time + "}");
+            out.println((i < entries.size()-1) ? "," : "");
+        }
+        out.println("  ],");
+
+        out.println("  \"producers\": [");
+        for (int i = 0; i<nodes.size(); i++)
+        {
+            Node n = (Node)nodes.elementAt(i);
+            out.print("    {\"producer\": " + json(n.name)
+                + ", \"time\": " + n.time
+                + ", \"calls\": " + n.calls
+                + ", \"events\": " + n.events
+                + ", \"bytes\": " + n.bytes + "}");
+            out.println((i < nodes.size()-1) ? "," : "");
+        }
+        out.println("  ],");
+
+        out.println("  \"inits\": [");
+        for (int i = 0; i<inits.size(); i++)
+        {
+            Node n = (Node)inits.elementAt(i);
+            out.print("    {\"entry\": " + json(n.name)
+                + ", \"chains\": " + n.calls
+                + ", \"time\": " + n.time + "}");
+            out.println((i < inits.size()-1) ? "," : "");
+        }
+        out.println("  ]");
+        out.println("}");
+    }
+
+
+    private static String csv(String s)
+    {
+        if (s.indexOf(',') < 0 && s.indexOf('"') < 0
+                && s.indexOf('\n') < 0)
+            return s;
+
+        StringBuffer sb = new StringBuffer(s.length()+2);
+        sb.append('"');
+        for (int i = 0; i<s.length(); i++)
+        {
+            char c = s.charAt(i);
+            if (c == '"') sb.append('"');
+            sb.append(c);
+        }
+        sb.append('"');
+        return sb.toString();
+    }
+
+
+    private static String json(String s)
+    {
+        StringBuffer sb = new StringBuffer(s.length()+2);
+        sb.append('"');
+        for (int i = 0; i<s.length(); i++)
+        {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\')
+            {
+                sb.append('\\').append(c);
+            }
+            else if (c < ' ')
+            {
+                String hex = Integer.toHexString(c);
+                sb.append("\\u");
+                for (int j = hex.length(); j<4; j++) sb.append('0');
+                sb.append(hex);
+            }
+            else
+            {
+                sb.append(c);
+            }
+        }
+        sb.append('"');
+        return sb.toString();
+    }
+
+
+    /**
+     * Statistics of one producer.
+     */
+    static class Node
+    {
+        final String name;
+        long time;
+        int calls;
+        long events;
+        long bytes;
+
+        Node(String name)
+        {
+            this.name = name;
+        }
+
+        synchronized void addTime(long t)
+        {
+            time += t;
+        }
+
+        synchronized void addCall()
+        {
+            calls++;
+        }
+
+        synchronized void addEvent()
+        {
+            events++;
+        }
+
+        synchronized void addBytes(long n)
+        {
+            bytes += n;
+        }
+
+        synchronized void reset()
+        {
+            time = 0;
+            calls = 0;
+            events = 0;
+            bytes = 0;
+        }
+    }
+
+
+    static class TargetTime
+    {
+        final String target;
+        final String entry;
+        final long time;
+
+        TargetTime(String target, String entry, long time)
+        {
+            this.target = target;
+            this.entry = entry;
+            this.time = time;
+        }
+    }
+
+
+    static class Stack
+    {
+        final Vector nodes = new Vector();
+        long last;
+    }
+}
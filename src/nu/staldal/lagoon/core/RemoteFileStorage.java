@@ -41,20 +41,42 @@
 package nu.staldal.lagoon.core;
 
 import java.io.*;
+import java.util.Enumeration;
 import java.util.Hashtable;
 
+import nu.staldal.util.KeyValueStore;
+
 
 /**
  * Helper class to implement a FileStorage which stores file modification
  * dates locally in the Lagoon working directory.
+ *
+ * The dates are kept in a journal file, each modification is written 
+ * to it at once, so if a build is interrupted, the files already stored 
+ * are not stored again next time. The journal is compacted when it 
+ * contains many outdated entries.
+ *
+ * The dates kept by previous versions, as a serialized Hashtable in a 
+ * file of its own, are imported into the journal the first time.
  */
 public abstract class RemoteFileStorage implements FileStorage
 {
     private static final boolean DEBUG = false;
+
+	private static final String OLD_DATE_FILE = 
+		"nu.staldal.lagoon.filestorage.RemoteFileStorage";
+
+	private static final String DATE_FILE = "dates.kv";
     
     private LagoonContext context;
+
+	/**
+	 * Used if there is no working directory for the sitemap.
+	 */
     private Hashtable lastModTable;
 
+	private KeyValueStore dateStore;
+
     /**
 	 * Open the file to store last update dates locally.
 	 * Invoke this from the {@link nu.staldal.lagoon.core.FileStorage#open} method.
@@ -65,19 +87,81 @@ public abstract class RemoteFileStorage implements FileStorage
         if (DEBUG) System.out.println("RemoteFileStorage.init()");
         
         this.context = context;
-		try
+
+		File dir = (context == null) ? null : context.getRepositoryDir();
+		if (dir == null)
 		{
-			lastModTable =
-                (Hashtable)context.getObjectFromRepository(
-                    "nu.staldal.lagoon.filestorage.RemoteFileStorage");
-            if (lastModTable == null) lastModTable = new Hashtable();
+			lastModTable = new Hashtable();
+			return;
 		}
-		catch (ClassCastException e)
+
+		File dateFile = new File(dir, DATE_FILE);
+		boolean exists = dateFile.exists();
+		dateStore = new KeyValueStore(dateFile);
+
+		if (!exists)
 		{
-			throw new IOException("Date file is corrupt");
+			importOldDateFile(new File(dir, OLD_DATE_FILE));
 		}
     }
 
+
+	/**
+	 * Import the dates from the file kept by previous versions, 
+	 * and remove it. Nothing is imported if it's corrupt.
+	 */
+	private void importOldDateFile(File oldFile)
+		throws IOException
+	{
+		if (!oldFile.isFile()) return;
+
+		Hashtable oldTable;
+		InputStream is = new BufferedInputStream(new FileInputStream(oldFile));
+		try {
+			oldTable = (Hashtable)new ObjectInputStream(is).readObject();
+		}
+		catch (ClassNotFoundException e)
+		{
+			if (DEBUG) System.out.println(e);
+			oldTable = null;
+		}
+		catch (ObjectStreamException e)
+		{
+			if (DEBUG) System.out.println(e);
+			oldTable = null;
+		}
+		catch (ClassCastException e)
+		{
+			if (DEBUG) System.out.println(e);
+			oldTable = null;
+		}
+		catch (EOFException e)
+		{
+			if (DEBUG) System.out.println(e);
+			oldTable = null;
+		}
+		finally
+		{
+			is.close();
+		}
+
+		if (oldTable != null)
+		{
+			for (Enumeration e = oldTable.keys(); e.hasMoreElements(); )
+			{
+				Object pathname = e.nextElement();
+				Object date = oldTable.get(pathname);
+				if (pathname instanceof String && date instanceof Long)
+				{
+					dateStore.put((String)pathname, 
+						encode(((Long)date).longValue()));
+				}
+			}
+		}
+		dateStore.commit();
+		oldFile.delete();
+	}
+
     /**
 	 * Close the file to store last update dates locally.
 	 * Invoke this in the {@link nu.staldal.lagoon.core.FileStorage#close} method.
@@ -85,8 +169,11 @@ public abstract class RemoteFileStorage implements FileStorage
     protected void closeDateFile()
         throws IOException
     {
-		context.putObjectIntoRepository(
-            "nu.staldal.lagoon.filestorage.RemoteFileStorage", lastModTable);
+		if (dateStore != null)
+		{
+			dateStore.close();
+			dateStore = null;
+		}
     }
 
 	/**
@@ -95,8 +182,18 @@ public abstract class RemoteFileStorage implements FileStorage
 	 * {@link nu.staldal.lagoon.core.OutputHandler#commit} method.
 	 */
     protected void fileModified(String pathname)
+		throws IOException
     {
-        lastModTable.put(pathname, new Long(System.currentTimeMillis()));
+		long now = System.currentTimeMillis();
+		if (dateStore == null)
+		{
+	        lastModTable.put(pathname, new Long(now));
+		}
+		else
+		{
+			dateStore.put(pathname, encode(now));
+			dateStore.flush();
+		}
     }
 
     /**
@@ -108,12 +205,35 @@ public abstract class RemoteFileStorage implements FileStorage
      * or -1 if that information is not avaliable.
      */
     public final long fileLastModified(String pathname)
-        // throws java.io.IOException
+        throws java.io.IOException
     {
-		Long l = (Long)lastModTable.get(pathname);
-		if (l == null)
-			return -1;
+		if (dateStore == null)
+		{
+			Long l = (Long)lastModTable.get(pathname);
+			if (l == null)
+				return -1;
+			else
+				return l.longValue();
+		}
 		else
-			return l.longValue();
+		{
+			byte[] data = dateStore.get(pathname);
+			if (data == null || data.length != 8)
+				return -1;
+			else
+				return new DataInputStream(
+					new ByteArrayInputStream(data)).readLong();
+		}
     }
+
+
+	private static byte[] encode(long time)
+		throws IOException
+	{
+		ByteArrayOutputStream buf = new ByteArrayOutputStream(8);
+		DataOutputStream out = new DataOutputStream(buf);
+		out.writeLong(time);
+		out.close();
+		return buf.toByteArray();
+	}
 }
@@ -45,6 +45,8 @@ import java.util.*;
 import org.xml.sax.*;
 
 import nu.staldal.xtree.*;
+import nu.staldal.util.PrefixTrie;
+import nu.staldal.lagoon.util.Wildcard;
 
 
 /**
@@ -58,8 +60,15 @@ class Sitemap
     // Associations
     private Hashtable entries;
 	private Vector entryVector;
+
+	/**
+	 * The file and delete entries by the part of the target before 
+	 * any wildcard.
+	 */
+	private PrefixTrie targetIndex;
     private Hashtable parts;
 	private Hashtable outputs;
+	private Hashtable outputShared;
 	private Hashtable projectProperties;
 
     // Attributes
@@ -70,8 +79,10 @@ class Sitemap
     // Work attributes
     private String currentTargetName;
     private SourceManagerProvider currentFile;
+	private Hashtable currentShared;
 	private int depth;
 	private Producer bottomProducer;
+	private boolean dependsOnTarget;
 	private Element sitemapTree;
 	
 	
@@ -100,12 +111,14 @@ class Sitemap
 		
         entries = new Hashtable();
 		entryVector = new Vector();
+		targetIndex = new PrefixTrie();
 		parts = new Hashtable();
 		outputs = new Hashtable();
+		outputShared = new Hashtable();
 		projectProperties = new Hashtable();
 	}
 	
-	public void init()
+	public synchronized void init()
         throws LagoonException, java.io.IOException
 	{
         currentFile = null;
@@ -131,11 +144,6 @@ class Sitemap
 				if (theSource == null || theSource.length() < 1)
 					theSource = currentTargetName;
 					
-				currentFile = new FileEntry(processor, this, 
-											currentTargetName, theSource,
-											sourceDir,
-											processor.getTempDir());
-
 				String useOutput = entry.getAttrValueOrNull("output");	
 				
 				if (entry.numberOfChildren() == 0)
@@ -146,33 +154,14 @@ class Sitemap
 						entry.addChild(new Element("", "source", 0, 0));
 				}
 											
-				depth = 0;
-				Object o = handleProducer(entry);
-							
-				if (o instanceof ByteStreamProducer && (useOutput == null))
-				{
-					((FileEntry)currentFile).setMyProducer((Producer)o);
-				}
-				else if (o instanceof XMLStreamProducer && (useOutput != null))
-				{
-					((FileEntry)currentFile).setMyProducer((Producer)o);
-
-					OutputEntry theOutput = 
-						(OutputEntry)outputs.get(useOutput);
-					if (theOutput == null)
-						throw new LagoonException(
-							"Output not found: " + useOutput);
-											
-					((FileEntry)currentFile).setMyOutput(theOutput);
-				}
-				else
-				{
-					throw new LagoonException(
-						"Inconsistent producer chain: " + currentTargetName);
-				}
+				currentFile = new FileEntry(processor, this, 
+											currentTargetName, theSource,
+											sourceDir, entry);
 
 	            entries.put(currentTargetName, currentFile);
 				entryVector.addElement(currentFile);
+				targetIndex.put(Wildcard.globPrefix(currentTargetName), 
+					currentFile);
 			}
 			else if (entry.getLocalName().equals("part"))
 			{
@@ -183,22 +172,10 @@ class Sitemap
 					throw new LagoonException("part name missing");
 				}
 				
+				// the producers are created when the part is first used
 				currentFile = new PartEntry(processor, this, 
-					entry.getAttrValueOrNull("source"), sourceDir);
-				
-				depth = 0;
-				Object o = handleProducer(entry);
-				
-				if (o instanceof XMLStreamProducer)
-				{
-					((PartEntry)currentFile).setMyProducer((XMLStreamProducer)o);
-				}
-				else
-				{
-					throw new LagoonException(
-						"Part must contain a XML stream producer: " 
-						+ currentTargetName);
-				}
+					currentTargetName, entry.getAttrValueOrNull("source"), 
+					sourceDir, entry);
 														 				
 	            parts.put(currentTargetName, currentFile);
 			}
@@ -218,6 +195,8 @@ class Sitemap
 				
 	            entries.put(currentTargetName, currentEnt);
 				entryVector.addElement(currentEnt);
+				targetIndex.put(Wildcard.globPrefix(currentTargetName), 
+					currentEnt);
 			}
 			else if (entry.getLocalName().equals("output"))
 			{
@@ -227,36 +206,9 @@ class Sitemap
 				{
 					throw new LagoonException("output name missing");
 				}
-				
-				currentFile = new OutputEntry();
-											
-				depth = 0;
-				Object o = handleProducer(entry);
-				
-				if (bottomProducer instanceof XMLStreamConsumer)
-				{
-					((OutputEntry)currentFile).setBottomProducer(
-						(XMLStreamConsumer)bottomProducer);
-				}
-				else
-				{
-					throw new LagoonException(
-						"Output must contain a byte stream producer: " 
-						+ currentTargetName);
-				}
-				
-				if (o instanceof ByteStreamProducer)
-				{
-					((OutputEntry)currentFile).setMyProducer(
-						(ByteStreamProducer)o);
-				}
-				else
-				{
-					throw new LagoonException(
-						"Inconsistent producer chain: " + currentTargetName);
-				}
 
-	            outputs.put(currentTargetName, currentFile);
+	            outputs.put(currentTargetName, entry);
+	            outputShared.put(currentTargetName, new Hashtable());
 			}
 			else if (entry.getLocalName().equals("property"))
 			{
@@ -279,6 +231,7 @@ class Sitemap
 			}
 	        currentTargetName = null;
 	        currentFile = null;
+	        currentShared = null;
 		}
 		
 		sitemapTree = null;
@@ -337,6 +290,34 @@ class Sitemap
     }
 
 
+    /**
+     * Find the entries which may have targets matching a glob pattern,
+     * i.e. the entries whose target (up to any wildcard) starts with the 
+     * pattern (up to any wildcard), or the other way around.
+     *
+     * @param pattern  the pattern, see {@link Wildcard#matchGlob}
+     *
+     * @return a Vector of SitemapEntry, in sitemap order
+     */
+    Vector findEntries(String pattern)
+    {
+        String prefix = Wildcard.globPrefix(pattern);
+        Hashtable found = new Hashtable();
+        Vector v = targetIndex.getWithPrefix(prefix);
+        for (int i = 0; i<v.size(); i++) found.put(v.elementAt(i), "");
+        v = targetIndex.getPrefixesOf(prefix);
+        for (int i = 0; i<v.size(); i++) found.put(v.elementAt(i), "");
+
+        Vector result = new Vector();
+        for (int i = 0; i<entryVector.size(); i++)
+        {
+            Object ent = entryVector.elementAt(i);
+            if (found.containsKey(ent)) result.addElement(ent);
+        }
+        return result;
+    }
+
+
     /**
      * Lookup a specific part in the sitemap.
      *
@@ -352,16 +333,173 @@ class Sitemap
 
 
     /**
-     * Lookup a specific output entry in the sitemap.
+     * Create the producers of a part. The part is marked as not 
+     * cacheable if any of them depends on the target.
+     *
+     * @param name  the name of the part
+     * @param part  the part entry
+     * @param entry  the <code>&lt;part&gt;</code> element
+     */
+    synchronized XMLStreamProducer createPartProducer(String name, 
+            PartEntry part, Element entry)
+        throws LagoonException, java.io.IOException
+    {
+        String savedTargetName = currentTargetName;
+        SourceManagerProvider savedFile = currentFile;
+        Hashtable savedShared = currentShared;
+        int savedDepth = depth;
+
+        try {
+            currentTargetName = name;
+            currentFile = part;
+            currentShared = new Hashtable();
+
+            depth = 0;
+            dependsOnTarget = false;
+            Object o = handleProducer(entry);
+
+            if (o instanceof XMLStreamProducer)
+            {
+                if (dependsOnTarget) part.setCacheable(false);
+                return (XMLStreamProducer)o;
+            }
+            else
+            {
+                throw new LagoonException(
+                    "Part must contain a XML stream producer: " + name);
+            }
+        }
+        finally
+        {
+            currentTargetName = savedTargetName;
+            currentFile = savedFile;
+            currentShared = savedShared;
+            depth = savedDepth;
+        }
+    }
+
+
+    /**
+     * Create a new instance of a specific output entry in the sitemap.
+     * Each instance has its own producer chain, since an output entry
+     * is bound to the FileEntry it is used by.
      *
-     * @param name  the name of the output to obtain.
+     * @param name  the name of the output to create.
      *
-     * @returns the output entry with the specified name,
+     * @returns a new output entry with the specified name,
      *  or <code>null</code> if not found.
      */
-    OutputEntry lookupOutput(String name)
+    synchronized OutputEntry createOutput(String name)
+        throws LagoonException, java.io.IOException
+    {
+        Element entry = (Element)outputs.get(name);
+        if (entry == null) return null;
+
+        String savedTargetName = currentTargetName;
+        SourceManagerProvider savedFile = currentFile;
+        Hashtable savedShared = currentShared;
+        int savedDepth = depth;
+
+        try {
+            currentTargetName = name;
+            currentFile = new OutputEntry();
+            currentShared = (Hashtable)outputShared.get(name);
+
+            depth = 0;
+            Object o = handleProducer(entry);
+
+            if (bottomProducer instanceof XMLStreamConsumer)
+            {
+                ((OutputEntry)currentFile).setBottomProducer(
+                    (XMLStreamConsumer)bottomProducer);
+            }
+            else
+            {
+                throw new LagoonException(
+                    "Output must contain a byte stream producer: "
+                    + currentTargetName);
+            }
+
+            if (o instanceof ByteStreamProducer)
+            {
+                ((OutputEntry)currentFile).setMyProducer(
+                    (ByteStreamProducer)o);
+            }
+            else
+            {
+                throw new LagoonException(
+                    "Inconsistent producer chain: " + currentTargetName);
+            }
+
+            return (OutputEntry)currentFile;
+        }
+        finally
+        {
+            currentTargetName = savedTargetName;
+            currentFile = savedFile;
+            currentShared = savedShared;
+            depth = savedDepth;
+        }
+    }
+
+
+    /**
+     * Create a new instance of the producer chain for a file entry.
+     *
+     * @param targetName  the target of the file entry
+     * @param entry  the <code>&lt;file&gt;</code> element
+     * @param sharedObjects  objects shared by all instances of the chain
+     */
+    synchronized ProducerChain createProducerChain(String targetName,
+            Element entry, Hashtable sharedObjects)
+        throws LagoonException, java.io.IOException
     {
-        return (OutputEntry)outputs.get(name);
+        String savedTargetName = currentTargetName;
+        SourceManagerProvider savedFile = currentFile;
+        Hashtable savedShared = currentShared;
+        int savedDepth = depth;
+
+        try {
+            currentTargetName = targetName;
+            ProducerChain chain = new ProducerChain(this);
+            currentFile = chain;
+            currentShared = sharedObjects;
+
+            String useOutput = entry.getAttrValueOrNull("output");
+
+            depth = 0;
+            Object o = handleProducer(entry);
+
+            if (o instanceof ByteStreamProducer && (useOutput == null))
+            {
+                chain.setMyProducer((Producer)o);
+            }
+            else if (o instanceof XMLStreamProducer && (useOutput != null))
+            {
+                chain.setMyProducer((Producer)o);
+
+                OutputEntry theOutput = createOutput(useOutput);
+                if (theOutput == null)
+                    throw new LagoonException(
+                        "Output not found: " + useOutput);
+
+                chain.setMyOutput(theOutput);
+            }
+            else
+            {
+                throw new LagoonException(
+                    "Inconsistent producer chain: " + currentTargetName);
+            }
+
+            return chain;
+        }
+        finally
+        {
+            currentTargetName = savedTargetName;
+            currentFile = savedFile;
+            currentShared = savedShared;
+            depth = savedDepth;
+        }
     }
 
 	
@@ -408,7 +546,9 @@ class Sitemap
 			prod.setEntryName(currentTargetName);
 			prod.setProcessor(processor);
 			prod.setSourceManager(currentFile);
+			prod.setSharedObjects(currentShared);
 			prod.setPosition(depth);
+			if (prod.dependsOnTarget()) dependsOnTarget = true;
 
 			for (int i = 0; i < el.numberOfAttributes(); i++)
 			{
@@ -470,7 +610,7 @@ class Sitemap
 				throw new LagoonException(prodName + ": " + e.getMessage());
 			}
 
-			return prod;
+			return profileProducer(prod, prodName, el);
 		}
 		else
 		{
@@ -479,5 +619,33 @@ class Sitemap
 		}
     }
 
-}
 
+
+	/**
+	 * Wrap a producer to collect profiling statistics.
+	 */
+	private Producer profileProducer(Producer prod, String prodName, 
+									 Element el)
+	{
+		StringBuffer description = new StringBuffer(prodName);
+		for (int i = 0; i < el.numberOfAttributes(); i++)
+		{
+			if ((el.getAttributeNamespaceURI(i).length() > 0)
+					|| el.getAttributeLocalName(i).equals("type"))
+				continue;
+
+			description.append(' ').append(el.getAttributeLocalName(i))
+				.append("=\"").append(el.getAttributeValue(i)).append('"');
+		}
+
+		Profiler profiler = processor.getProfiler();
+		Profiler.Node node = profiler.getNode(description.toString());
+		if (prod instanceof XMLStreamProducer)
+			return new ProfiledXMLStreamProducer(prod, profiler, node);
+		else if (prod instanceof ByteStreamProducer)
+			return new ProfiledByteStreamProducer(prod, profiler, node);
+		else
+			return prod;
+	}
+
+}
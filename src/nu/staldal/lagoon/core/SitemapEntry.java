@@ -66,13 +66,18 @@ interface SitemapEntry
         
     /**
      * Builds this particular entry.
+     * May be invoked from any thread, but not concurrently
+     * for the same entry.
      *
      * @param always  always build the entry, overriding dependency checking
+	 * @param log  where to write progress messages
+	 * @param err  where to write error messages
 	 *
 	 * @return true if successful, false if any non-fatal error occured
 	 * @throws IOException  if any fatal error occur
      */
-    public abstract boolean build(boolean always)
+    public abstract boolean build(boolean always,
+                                  PrintWriter log, PrintWriter err)
         throws IOException;
         
 
@@ -0,0 +1,596 @@
+/*
+ * Copyright (c) 2005, Mikael Ståldal
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ * notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ * notice, this list of conditions and the following disclaimer in the 
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the author nor the names of its contributors 
+ * may be used to endorse or promote products derived from this software 
+ * without specific prior written permission. 
+ * 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY 
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * 
+ * Note: This is known as "the modified BSD license". It's an approved 
+ * Open Source and Free Software license, see 
+ * http://www.opensource.org/licenses/ 
+ * and
+ * http://www.gnu.org/philosophy/license-list.html
+ */
+
+package nu.staldal.lagoon.filestorage;
+
+import java.io.*;
+import java.net.MalformedURLException;
+import java.util.*;
+import java.util.zip.*;
+
+import nu.staldal.lagoon.core.*;
+import nu.staldal.util.KeyValueStore;
+import nu.staldal.util.TarInputStream;
+import nu.staldal.util.TarOutputStream;
+
+
+/**
+ * A FileStorage which stores all files in one archive, a zip file
+ * (<code>zip:<em>file</em></code>) or a tar file 
+ * (<code>tar:<em>file</em></code>, compressed with gzip if the name 
+ * ends with <code>.gz</code> or <code>.tgz</code>).
+ *
+ * Each file is written to a new archive when it's committed, and the
+ * files kept from the old archive are copied to it when the build is
+ * complete. The new archive then replaces the old one. If no file is 
+ * changed, the old archive is left as it is. Files are kept in memory 
+ * until they are committed, so several files may be written at the 
+ * same time. A file cannot be stored or deleted again after it has 
+ * been stored in a build.
+ *
+ * The compression level (0-9) is set with the 
+ * <code>archiveCompression</code> property in the Sitemap.
+ * The modification dates of the files are kept in a manifest in the
+ * working directory, if there is none the dates of the entries in the 
+ * archive are used.
+ */
+public class ArchiveFileStorage implements FlushableFileStorage
+{
+	private static final String MANIFEST_FILE = "archive.kv";
+
+	/**
+	 * Manifest key for the size and date of the archive 
+	 * the manifest belongs to.
+	 */
+	private static final String ARCHIVE_KEY = "";
+
+	private File archive;
+	private boolean tar;
+	private boolean gzip;
+	private int level;
+
+	private KeyValueStore manifest;
+
+	/**
+	 * (String)path -> (Long)date, the files in the archive.
+	 */
+	private Hashtable entries;
+
+	/**
+	 * (String)path -> (Long)date, the files stored in this build.
+	 */
+	private Hashtable stored;
+
+	/**
+	 * (String)path -> Boolean, the files deleted in this build.
+	 */
+	private Hashtable deleted;
+
+	private File tempFile;
+	private ZipOutputStream zipOut;
+	private TarOutputStream tarOut;
+
+
+    /**
+     * Default constructor.
+     */
+    public ArchiveFileStorage()
+    {
+    }
+
+    public boolean needPassword()
+    {
+        return false;
+    }
+
+    public boolean isReentrant()
+    {
+        return true;
+    }	
+
+    public void open(String url, LagoonContext context, String password)
+        throws MalformedURLException, IOException
+    {
+		int colon = url.indexOf(':');
+		String prefix = (colon < 0) ? "" : url.substring(0, colon);
+		if (prefix.equals("zip"))
+			tar = false;
+		else if (prefix.equals("tar"))
+			tar = true;
+		else
+			throw new MalformedURLException(url);
+
+		String name = url.substring(colon+1);
+		if (name.length() == 0)
+			throw new MalformedURLException(url);
+		archive = new File(name).getAbsoluteFile();
+		if (archive.isDirectory())
+			throw new IOException("Location is a directory: " + archive);
+		gzip = tar && (name.endsWith(".gz") || name.endsWith(".tgz"));
+
+		level = Deflater.DEFAULT_COMPRESSION;
+		String prop = (context == null)
+			? null : context.getProperty("archiveCompression");
+		if (prop != null)
+		{
+			try {
+				level = Integer.parseInt(prop.trim());
+			}
+			catch (NumberFormatException e)
+			{
+				level = -1;
+			}
+			if (level < 0 || level > 9) throw new IOException(
+				"Invalid archiveCompression property: " + prop);
+		}
+
+		File dir = (context == null) ? null : context.getRepositoryDir();
+		if (dir != null)
+			manifest = new KeyValueStore(new File(dir, MANIFEST_FILE));
+
+		stored = new Hashtable();
+		deleted = new Hashtable();
+		readEntries();
+    }
+
+
+    /**
+     * Close the file system and release any resources it holds.
+     *
+     * After this method has been invoked, no other method may be invoked.
+     */
+    public synchronized void close()
+        throws IOException
+    {
+		try {
+			flush();
+		}
+		finally
+		{
+			if (zipOut != null || tarOut != null)
+			{
+				// flush failed, throw away the new archive
+				try {
+					if (zipOut != null) zipOut.close(); 
+					if (tarOut != null) tarOut.close(); 
+				}
+				catch (IOException ignore) {}
+				zipOut = null;
+				tarOut = null;
+				tempFile.delete();
+			}
+			if (manifest != null) manifest.close();
+			manifest = null;
+		}
+	}
+
+    /**
+     * Check if a file exists and when it was last modified.
+     *
+     * @param path  path to the file
+     *
+     * @return  the time when the file was last modified,
+     * or 0 if the file doesn't exists.
+     */
+    public synchronized long fileLastModified(String path)
+    {
+		Long date = (Long)stored.get(path);
+		if (date == null && !deleted.containsKey(path))
+			date = (Long)entries.get(path);
+		return (date == null) ? 0 : date.longValue();
+    }
+
+    /**
+     * Create a new file, or overwrite an existing file.
+	 * The file is written to the archive when it's committed.
+     */
+    public OutputHandler createFile(String path)
+    {
+		return new ArchiveOutputHandler(path);
+	}
+
+    /**
+     * Deletes a file.
+     * Does not signal any error if the file doesn't exist.
+	 *
+     * @param path  path to the file
+     */
+    public synchronized void deleteFile(String path)
+		throws IOException
+    {
+		if (stored.containsKey(path))
+			throw new IOException(
+				"Cannot delete file already stored in archive: " + path);
+		if (entries.containsKey(path))
+			deleted.put(path, Boolean.TRUE);
+	}
+
+
+	/**
+	 * Complete the new archive and let it replace the old one.
+	 */
+	public synchronized void flush()
+		throws IOException
+	{
+		if (stored.isEmpty() && deleted.isEmpty()) return;
+
+		Hashtable newEntries = new Hashtable();
+		for (Enumeration e = entries.keys(); e.hasMoreElements(); )
+		{
+			String path = (String)e.nextElement();
+			if (!deleted.containsKey(path) && !stored.containsKey(path))
+				newEntries.put(path, entries.get(path));
+		}
+
+		if (newEntries.isEmpty() && stored.isEmpty())
+		{
+			// no files left
+			if (archive.exists() && !archive.delete())
+				throw new IOException("Unable to delete file: " + archive);
+		}
+		else
+		{
+			if (!newEntries.isEmpty()) copyEntries(newEntries);
+			if (zipOut != null) zipOut.close();
+			if (tarOut != null) tarOut.close();
+			zipOut = null;
+			tarOut = null;
+
+			if (archive.exists() && !archive.delete())
+				throw new IOException("Unable to replace file: " + archive);
+			if (!tempFile.renameTo(archive))
+				throw new IOException("Unable to rename file " + tempFile
+					+ " to " + archive);
+		}
+
+		for (Enumeration e = stored.keys(); e.hasMoreElements(); )
+		{
+			String path = (String)e.nextElement();
+			newEntries.put(path, stored.get(path));
+		}
+		entries = newEntries;
+		stored.clear();
+		deleted.clear();
+
+		if (manifest != null) updateManifest();
+	}
+
+
+	/**
+	 * Read the list of files in the existing archive.
+	 */
+	private void readEntries()
+		throws IOException
+	{
+		entries = new Hashtable();
+		if (!archive.exists()) return;
+
+		boolean useManifest = manifest != null
+			&& Arrays.equals(archiveStamp(), manifest.get(ARCHIVE_KEY));
+
+		if (tar)
+		{
+			TarInputStream in = openTar();
+			try {
+				String name;
+				while ((name = in.getNextEntry()) != null)
+				{
+					if (in.isFile())
+						addEntry("/" + name, in.getTime(), useManifest);
+				}
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+		else
+		{
+			ZipFile zip = new ZipFile(archive);
+			try {
+				for (Enumeration e = zip.entries(); e.hasMoreElements(); )
+				{
+					ZipEntry ent = (ZipEntry)e.nextElement();
+					if (!ent.isDirectory())
+						addEntry("/" + ent.getName(), ent.getTime(), 
+							useManifest);
+				}
+			}
+			finally
+			{
+				zip.close();
+			}
+		}
+	}
+
+
+	private void addEntry(String path, long time, boolean useManifest)
+		throws IOException
+	{
+		if (useManifest)
+		{
+			byte[] data = manifest.get(path);
+			if (data != null && data.length == 8)
+				time = new DataInputStream(
+					new ByteArrayInputStream(data)).readLong();
+		}
+		entries.put(path, new Long(time));
+	}
+
+
+	private void updateManifest()
+		throws IOException
+	{
+		Vector old = new Vector();
+		for (Enumeration e = manifest.keys(); e.hasMoreElements(); )
+		{
+			String key = (String)e.nextElement();
+			if (!entries.containsKey(key)) old.addElement(key);
+		}
+		for (int i = 0; i<old.size(); i++)
+			manifest.remove((String)old.elementAt(i));
+
+		for (Enumeration e = entries.keys(); e.hasMoreElements(); )
+		{
+			String path = (String)e.nextElement();
+			manifest.put(path, 
+				encode(((Long)entries.get(path)).longValue()));
+		}
+		if (archive.exists()) manifest.put(ARCHIVE_KEY, archiveStamp());
+		manifest.commit();
+	}
+
+
+	private byte[] archiveStamp()
+		throws IOException
+	{
+		ByteArrayOutputStream buf = new ByteArrayOutputStream(16);
+		DataOutputStream out = new DataOutputStream(buf);
+		out.writeLong(archive.length());
+		out.writeLong(archive.lastModified());
+		out.close();
+		return buf.toByteArray();
+	}
+
+
+	private static byte[] encode(long time)
+		throws IOException
+	{
+		ByteArrayOutputStream buf = new ByteArrayOutputStream(8);
+		DataOutputStream out = new DataOutputStream(buf);
+		out.writeLong(time);
+		out.close();
+		return buf.toByteArray();
+	}
+
+
+	private TarInputStream openTar()
+		throws IOException
+	{
+		InputStream is = new BufferedInputStream(
+			new FileInputStream(archive), 65536);
+		if (gzip) is = new GZIPInputStream(is);
+		return new TarInputStream(is);
+	}
+
+
+	/**
+	 * Start writing the new archive, if not already started.
+	 */
+	private void openArchive()
+		throws IOException
+	{
+		if (zipOut != null || tarOut != null) return;
+
+		File dir = archive.getParentFile();
+		if (dir != null && !dir.exists() && !dir.mkdirs())
+			throw new IOException("Unable to create directory: " + dir);
+		tempFile = File.createTempFile("lagoon", ".tmp", dir);
+
+		OutputStream os = new BufferedOutputStream(
+			new FileOutputStream(tempFile), 65536);
+		if (tar)
+		{
+			if (gzip)
+			{
+				os = new GZIPOutputStream(os) {
+						{
+							def.setLevel(level);
+						}
+					};
+			}
+			tarOut = new TarOutputStream(os);
+		}
+		else
+		{
+			zipOut = new ZipOutputStream(os);
+			zipOut.setLevel(level);
+		}
+	}
+
+
+	private OutputStream putEntry(String path, long size, long time)
+		throws IOException
+	{
+		openArchive();
+		String name = path.substring(1);
+		if (tar)
+		{
+			tarOut.putNextEntry(name, size, time);
+			return tarOut;
+		}
+		else
+		{
+			ZipEntry ent = new ZipEntry(name);
+			ent.setTime(time);
+			zipOut.putNextEntry(ent);
+			return zipOut;
+		}
+	}
+
+
+	private void closeEntry()
+		throws IOException
+	{
+		if (tar)
+			tarOut.closeEntry();
+		else
+			zipOut.closeEntry();
+	}
+
+
+	/**
+	 * Copy files from the old archive to the new one.
+	 *
+	 * @param keep  the paths of the files to copy
+	 */
+	private void copyEntries(Hashtable keep)
+		throws IOException
+	{
+		byte[] buf = new byte[8192];
+		if (tar)
+		{
+			TarInputStream in = openTar();
+			try {
+				String name;
+				while ((name = in.getNextEntry()) != null)
+				{
+					if (!in.isFile() || !keep.containsKey("/" + name)) 
+						continue;
+					OutputStream out = 
+						putEntry("/" + name, in.getSize(), in.getTime());
+					copy(in, out, buf);
+					closeEntry();
+				}
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+		else
+		{
+			ZipFile zip = new ZipFile(archive);
+			try {
+				for (Enumeration e = zip.entries(); e.hasMoreElements(); )
+				{
+					ZipEntry ent = (ZipEntry)e.nextElement();
+					if (ent.isDirectory() 
+							|| !keep.containsKey("/" + ent.getName()))
+						continue;
+					OutputStream out = 
+						putEntry("/" + ent.getName(), -1, ent.getTime());
+					InputStream in = zip.getInputStream(ent);
+					try {
+						copy(in, out, buf);
+					}
+					finally
+					{
+						in.close();
+					}
+					closeEntry();
+				}
+			}
+			finally
+			{
+				zip.close();
+			}
+		}
+	}
+
+
+	private static void copy(InputStream in, OutputStream out, byte[] buf)
+		throws IOException
+	{
+		while (true)
+		{
+			int n = in.read(buf);
+			if (n < 0) break;
+			out.write(buf, 0, n);
+		}
+	}
+
+
+	private synchronized void storeFile(String path, byte[] data)
+		throws IOException
+	{
+		if (stored.containsKey(path))
+			throw new IOException(
+				"File already stored in archive: " + path);
+
+		long time = System.currentTimeMillis();
+
+		// the new file must look newer than the one it replaces
+		Long old = (Long)entries.get(path);
+		if (old != null && time <= old.longValue()) 
+			time = old.longValue() + 1;
+
+		OutputStream out = putEntry(path, data.length, time);
+		out.write(data);
+		closeEntry();
+
+		stored.put(path, new Long(time));
+		deleted.remove(path);
+	}
+
+
+	class ArchiveOutputHandler extends OutputHandler
+	{
+		private final String path;
+
+		ArchiveOutputHandler(String path)
+		{
+			super(new ByteArrayOutputStream());
+			this.path = path;
+		}
+
+		public void commit()
+			throws IOException
+		{
+			storeFile(path, ((ByteArrayOutputStream)out).toByteArray());
+		}
+
+		public void discard()
+			throws IOException
+		{
+			deleteFile(path);
+		}
+	}
+}
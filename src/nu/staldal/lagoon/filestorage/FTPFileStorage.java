@@ -42,6 +42,7 @@ package nu.staldal.lagoon.filestorage;
 
 import java.io.*;
 import java.net.*;
+import java.util.*;
 
 import nu.staldal.lagoon.core.*;
 import nu.staldal.ftp.*;
@@ -50,6 +51,18 @@ import nu.staldal.ftp.*;
 /**
  * A FileStorage which transfers files to a remote site using FTP.
  *
+ * Keeps a pool of FTP sessions, so several files can be transferred 
+ * at the same time. The maximum number of sessions is set with the 
+ * <code>ftpConnections</code> property in the Sitemap (default 4).
+ * Idle sessions are kept alive, and a session which fails is replaced 
+ * with a new one. Pipelining of FTP commands can be turned off with the
+ * <code>ftpPipelining</code> property set to <code>false</code>.
+ *
+ * A file is written to a temporary file first, and transferred when it's
+ * committed. A session is thus only used during the transfer, and 
+ * creating a file never waits for a session, so files may be created 
+ * while other files are open.
+ *
  * <strong>Note:</strong> This class will transmit password in clear text over
  * the network.
  */
@@ -57,9 +70,32 @@ public class FTPFileStorage extends RemoteFileStorage
 {
 	private static final boolean DEBUG = false;
 
-	private FTPClient ftp;
+	private static final int DEFAULT_CONNECTIONS = 4;
+	
+	/**
+	 * Send NOOP to sessions which have been idle this long (in ms).
+	 */
+	private static final long KEEPALIVE_INTERVAL = 60*1000;
+
 	private String url;
 	private String password;
+	private File tempDir;
+	
+	private boolean pipelining;
+	private int maxConnections;
+	private int connections;
+	
+	/**
+	 * Idle sessions, the most recently used last.
+	 */
+	private Vector idle;
+	
+	/**
+	 * (FTPClient)session -> (Long)time when it became idle
+	 */
+	private Hashtable idleSince;
+	
+	private Timer keepAlive;
 
 
     /**
@@ -77,7 +113,7 @@ public class FTPFileStorage extends RemoteFileStorage
 
 	public boolean isReentrant()
     {
-        return false;
+        return true;
     }	
 
 
@@ -87,8 +123,43 @@ public class FTPFileStorage extends RemoteFileStorage
     {
 		this.url = url;
 		this.password = password;
+		this.tempDir = (context == null) ? null : context.getTempDir();
+		
+		maxConnections = DEFAULT_CONNECTIONS;
+		String prop = (context == null) 
+			? null : context.getProperty("ftpConnections");
+		if (prop != null)
+		{
+			try {
+				maxConnections = Integer.parseInt(prop.trim());
+			}
+			catch (NumberFormatException e)
+			{
+				throw new IOException(
+					"Invalid ftpConnections property: " + prop);
+			}
+			if (maxConnections < 1) throw new IOException(
+				"ftpConnections must be at least 1");
+		}
+		
+		prop = (context == null) 
+			? null : context.getProperty("ftpPipelining");
+		pipelining = (prop == null) || !prop.trim().equals("false");
+		
+		connections = 0;
+		idle = new Vector();
+		idleSince = new Hashtable();
+
+		// check the URL and password at once
+		releaseSession(acquireSession());
 		
-		ftp = new FTPClient(url, password);
+		keepAlive = new Timer(true);
+		keepAlive.schedule(new TimerTask() {
+				public void run()
+				{
+					keepIdleSessionsAlive();
+				}
+			}, KEEPALIVE_INTERVAL, KEEPALIVE_INTERVAL);
 		
         openDateFile(context);
     }
@@ -103,9 +174,27 @@ public class FTPFileStorage extends RemoteFileStorage
     	throws IOException
     {
         closeDateFile();
+		
+		keepAlive.cancel();
 
-		ftp.close();
-		ftp = null;
+		IOException exception = null;
+		synchronized (this)
+		{
+			for (int i = 0; i<idle.size(); i++)
+			{
+				try {
+					((FTPClient)idle.elementAt(i)).close();
+				}
+				catch (IOException e)
+				{
+					exception = e;
+				}
+			}
+			idle.clear();
+			idleSince.clear();
+			connections = 0;
+		}
+		if (exception != null) throw exception;
     }
 
 	
@@ -117,21 +206,61 @@ public class FTPFileStorage extends RemoteFileStorage
     public OutputHandler createFile(String pathname)
         throws IOException
     {
-		OutputStream os;
+		File tempFile = File.createTempFile("ftp", null, tempDir);
+		
+		return new FTPOutputHandler(pathname, tempFile, 
+			new BufferedOutputStream(new FileOutputStream(tempFile)));
+    }
+
+
+	/**
+	 * Transfer a file to the server.
+	 */
+	private void upload(String pathname, File file)
+		throws IOException
+	{
+		FTPClient ftp = acquireSession();
 		try {
-			os = ftp.store(pathname);
+			upload(ftp, pathname, file);
 		}
 		catch (IOException e)
 		{
 			if (DEBUG) 
 				System.out.println("FTP reconnecting: " + e.toString());
-			try { ftp.close(); } catch (IOException ignore) {}
-			ftp = new FTPClient(url, password);
-			os = ftp.store(pathname);
+			ftp = replaceSession(ftp);
+			try {
+				upload(ftp, pathname, file);
+			}
+			catch (IOException ee)
+			{
+				discardSession(ftp);
+				throw ee;
+			}
 		}
-		
-		return new FTPOutputHandler(pathname, os);
-    }
+		releaseSession(ftp);
+	}
+	
+	
+	private static void upload(FTPClient ftp, String pathname, File file)
+		throws IOException
+	{
+		OutputStream os = ftp.store(pathname);
+		InputStream is = new FileInputStream(file);
+		try {
+			byte[] buf = new byte[8192];
+			while (true)
+			{
+				int bytesRead = is.read(buf);
+				if (bytesRead < 1) break;
+				os.write(buf, 0, bytesRead);
+			}
+		}
+		finally
+		{
+			is.close();
+		}
+		os.close();
+	}
 
 	
     /**
@@ -143,6 +272,7 @@ public class FTPFileStorage extends RemoteFileStorage
     public void deleteFile(String pathname)
         throws java.io.IOException
     {
+		FTPClient ftp = acquireSession();
 		try {
 			ftp.deleteFile(pathname);
 		}
@@ -150,9 +280,158 @@ public class FTPFileStorage extends RemoteFileStorage
 		{
 			if (DEBUG) 
 				System.out.println("FTP reconnecting: " + e.toString());
-			try { ftp.close(); } catch (IOException ignore) {}
-			ftp = new FTPClient(url, password);
-			ftp.deleteFile(pathname);
+			ftp = replaceSession(ftp);
+			try {
+				ftp.deleteFile(pathname);
+			}
+			catch (IOException ee)
+			{
+				discardSession(ftp);
+				throw ee;
+			}
+		}
+		releaseSession(ftp);
+	}
+
+
+	/**
+	 * Get an idle session, or connect a new one. Waits if the maximum 
+	 * number of sessions are in use.
+	 */
+	private FTPClient acquireSession()
+		throws IOException
+	{
+		synchronized (this)
+		{
+			while (idle.isEmpty() && connections >= maxConnections)
+			{
+				try {
+					wait();
+				}
+				catch (InterruptedException e)
+				{
+					throw new InterruptedIOException();
+				}
+			}
+			if (!idle.isEmpty())
+			{
+				FTPClient ftp = (FTPClient)idle.lastElement();
+				idle.removeElementAt(idle.size()-1);
+				idleSince.remove(ftp);
+				return ftp;
+			}
+			connections++;
+		}
+
+		try {
+			if (DEBUG) System.out.println("FTP connecting");
+			return connect();
+		}
+		catch (IOException e)
+		{
+			synchronized (this)
+			{
+				connections--;
+				notifyAll();
+			}
+			throw e;
+		}
+	}
+
+
+	private FTPClient connect()
+		throws IOException
+	{
+		FTPClient ftp = new FTPClient(url, password);
+		ftp.setPipelining(pipelining);
+		return ftp;
+	}
+
+
+	/**
+	 * Return a session which is no longer used.
+	 */
+	private synchronized void releaseSession(FTPClient ftp)
+	{
+		idle.addElement(ftp);
+		idleSince.put(ftp, new Long(System.currentTimeMillis()));
+		notifyAll();
+	}
+
+
+	/**
+	 * Close a session which has failed.
+	 */
+	private void discardSession(FTPClient ftp)
+	{
+		try { ftp.close(); } catch (IOException ignore) {}
+		synchronized (this)
+		{
+			connections--;
+			notifyAll();
+		}
+	}
+
+
+	/**
+	 * Close a session which has failed, and connect a new one instead.
+	 */
+	private FTPClient replaceSession(FTPClient ftp)
+		throws IOException
+	{
+		try { ftp.close(); } catch (IOException ignore) {}
+		try {
+			return connect();
+		}
+		catch (IOException e)
+		{
+			synchronized (this)
+			{
+				connections--;
+				notifyAll();
+			}
+			throw e;
+		}
+	}
+
+
+	/**
+	 * Send NOOP to sessions which have been idle for a while. Sessions 
+	 * which fail are closed, they will be reconnected when needed.
+	 */
+	private void keepIdleSessionsAlive()
+	{
+		long now = System.currentTimeMillis();
+		Vector sessions = new Vector();
+		synchronized (this)
+		{
+			for (int i = idle.size()-1; i>=0; i--)
+			{
+				FTPClient ftp = (FTPClient)idle.elementAt(i);
+				long since = ((Long)idleSince.get(ftp)).longValue();
+				if (now-since >= KEEPALIVE_INTERVAL)
+				{
+					idle.removeElementAt(i);
+					idleSince.remove(ftp);
+					sessions.addElement(ftp);
+				}
+			}
+		}
+
+		for (int i = 0; i<sessions.size(); i++)
+		{
+			FTPClient ftp = (FTPClient)sessions.elementAt(i);
+			try {
+				ftp.noop();
+			}
+			catch (IOException e)
+			{
+				if (DEBUG) 
+					System.out.println("FTP idle session lost: " + e.toString());
+				discardSession(ftp);
+				continue;
+			}
+			releaseSession(ftp);
 		}
 	}
 
@@ -160,11 +439,14 @@ public class FTPFileStorage extends RemoteFileStorage
 	class FTPOutputHandler extends OutputHandler
 	{
     	private String currentPathname;
+		private File tempFile;
 
-		FTPOutputHandler(String currentPathname, OutputStream out)
+		FTPOutputHandler(String currentPathname, File tempFile, 
+				OutputStream out)
 		{
 			super(out);
 			this.currentPathname = currentPathname;
+			this.tempFile = tempFile;
 		}
 
 		
@@ -172,6 +454,13 @@ public class FTPFileStorage extends RemoteFileStorage
 			throws java.io.IOException
 		{
 			out.close();
+			try {
+				upload(currentPathname, tempFile);
+			}
+			finally
+			{
+				tempFile.delete();
+			}
 			fileModified(currentPathname);
 		}
 		
@@ -179,18 +468,12 @@ public class FTPFileStorage extends RemoteFileStorage
 		public void discard()
 			throws java.io.IOException
 		{
-			try {
-				commit();
-			}
-			catch (FTPException e)
-			{
-				// ignore exception
-			}
+			out.close();
+			tempFile.delete();
 	
-			ftp.deleteFile(currentPathname);
+			deleteFile(currentPathname);
 		}
 			
 	}	
 	
 }
-
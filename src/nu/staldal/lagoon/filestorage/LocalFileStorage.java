@@ -43,6 +43,7 @@ package nu.staldal.lagoon.filestorage;
 import java.io.*;
 
 import nu.staldal.lagoon.core.*;
+import nu.staldal.util.FileStatCache;
 
 
 /**
@@ -51,6 +52,7 @@ import nu.staldal.lagoon.core.*;
 public class LocalFileStorage implements FileStorage
 {
     private File root;
+    private FileStatCache stats;
 
     /**
      * Default constructor.
@@ -58,6 +60,7 @@ public class LocalFileStorage implements FileStorage
     public LocalFileStorage()
     {
         root = null;
+        stats = null;
     }
 
     public boolean needPassword()
@@ -74,6 +77,9 @@ public class LocalFileStorage implements FileStorage
         throws java.io.IOException
     {
         root = new File(loc);
+        // without a context, e.g. when used standalone, nothing is shared
+        stats = (context == null) 
+            ? new FileStatCache() : context.getStatCache();
         if (root.exists())
         {
             if (!root.isDirectory())
@@ -98,6 +104,7 @@ public class LocalFileStorage implements FileStorage
         // throws java.io.IOException;
     {
         root = null;
+        stats = null;
     }
 
     /**
@@ -121,12 +128,12 @@ public class LocalFileStorage implements FileStorage
             if (pos < 0) break;
             String comp = path.substring(oldPos, pos);
             file = new File(file, comp);
-            if (!file.exists()) return 0;
+            if (!stats.exists(file)) return 0;
             oldPos = pos + 1;
         }
         file = new File(file, path.substring(oldPos));
 
-        return file.lastModified();
+        return stats.lastModified(file);
     }
 
     /**
@@ -144,16 +151,21 @@ public class LocalFileStorage implements FileStorage
             if (pos < 0) break;
             String comp = path.substring(oldPos, pos);
             file = new File(file, comp);
-            if (!file.exists())
-                if (!file.mkdir())
+            if (!stats.exists(file))
+            {
+                // another thread may create it concurrently
+                if (!file.mkdir() && !file.isDirectory())
                     throw new IOException("Unable to create directory: "
                                           + file);
+                stats.invalidate(file);
+            }
             oldPos = pos + 1;
         }
         File currentFile = new File(file, path.substring(oldPos));
 
 		return new LocalOutputHandler(currentFile, 
-									  new FileOutputStream(currentFile));
+									  new FileOutputStream(currentFile),
+									  stats);
 	}
 
 
@@ -175,7 +187,7 @@ public class LocalFileStorage implements FileStorage
             if (pos < 0) break;
             String comp = path.substring(oldPos, pos);
             file = new File(file, comp);
-            if (!file.exists()) return; // file doesn't exist
+            if (!stats.exists(file)) return; // file doesn't exist
             oldPos = pos + 1;
         }
         file = new File(file, path.substring(oldPos));
@@ -183,6 +195,7 @@ public class LocalFileStorage implements FileStorage
         if (!file.exists()) return;
         if (file.delete())
         {
+            stats.invalidate(file);
 			return;
 		}
 		else
@@ -195,23 +208,28 @@ public class LocalFileStorage implements FileStorage
 	static class LocalOutputHandler extends OutputHandler
 	{
 		private File currentFile;
+		private FileStatCache stats;
 		
-		LocalOutputHandler(File currentFile, OutputStream out)
+		LocalOutputHandler(File currentFile, OutputStream out,
+						   FileStatCache stats)
 		{
 			super(out);
 			this.currentFile = currentFile;
+			this.stats = stats;
 		}
 		
 		public void commit()
 			throws java.io.IOException
 		{
 			out.close();
+			stats.invalidate(currentFile);
 		}
 
 		public void discard()
 			throws java.io.IOException
 		{
 			out.close();
+			stats.invalidate(currentFile);
 			if (!currentFile.exists()) return;
 			if (currentFile.delete())
 			{
@@ -0,0 +1,468 @@
+/*
+ * Copyright (c) 2005, Mikael Ståldal
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ * notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ * notice, this list of conditions and the following disclaimer in the 
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the author nor the names of its contributors 
+ * may be used to endorse or promote products derived from this software 
+ * without specific prior written permission. 
+ * 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY 
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * 
+ * Note: This is known as "the modified BSD license". It's an approved 
+ * Open Source and Free Software license, see 
+ * http://www.opensource.org/licenses/ 
+ * and
+ * http://www.gnu.org/philosophy/license-list.html
+ */
+
+package nu.staldal.lagoon.filestorage;
+
+import java.io.*;
+import java.util.*;
+
+import nu.staldal.lagoon.core.*;
+import nu.staldal.util.TarOutputStream;
+
+
+/**
+ * A FileStorage which keeps the files in memory.
+ *
+ * Used when files are served directly instead of stored, 
+ * e.g. by {@link nu.staldal.lagoon.LagoonServer}, and to measure 
+ * the time to build a site without the time to store it.
+ *
+ * The memory used can be limited with the <code>memoryLimit</code> 
+ * property in the Sitemap, in kilobytes. The files being written count 
+ * as soon as each byte is written, and writing a byte which would exceed 
+ * the limit fails. A file being replaced only counts the difference. The files can be dumped to a directory or a tar archive.
+ */
+public class MemoryFileStorage implements FileStorage
+{
+	/**
+	 * (String)path -> MemoryFile
+	 */
+    private Hashtable files;
+
+	/**
+	 * Total size of the files, in bytes.
+	 */
+	private long totalSize = 0;
+
+	/**
+	 * Total size of the files being written but not yet committed, 
+	 * in bytes.
+	 */
+	private long pendingSize = 0;
+
+	/**
+	 * Maximum total size, in bytes, or -1 for no limit.
+	 */
+	private long limit = -1;
+
+	/**
+	 * How far ahead of the clock the date of a file may be set, 
+	 * to make it look newer than the one it replaces, in milliseconds.
+	 */
+	private static final long MAX_DATE_AHEAD = 1000;
+
+    /**
+     * Default constructor.
+     */
+    public MemoryFileStorage()
+    {
+        files = new Hashtable();
+    }
+
+    public boolean needPassword()
+    {
+        return false;
+    }
+
+    public boolean isReentrant()
+    {
+        return true;
+    }	
+
+    public void open(String loc, LagoonContext context, String password)
+		throws IOException
+    {
+		String prop = (context == null) 
+			? null : context.getProperty("memoryLimit");
+		if (prop != null)
+		{
+			long kb;
+			try {
+				kb = Long.parseLong(prop.trim());
+			}
+			catch (NumberFormatException e)
+			{
+				kb = -1;
+			}
+			if (kb < 0) throw new IOException(
+				"Invalid memoryLimit property: " + prop);
+			setLimit(kb*1024);
+		}
+    }
+
+
+	/**
+	 * Set the maximum total size of the files.
+	 *
+	 * @param limit  the size in bytes, or -1 for no limit
+	 */
+	public synchronized void setLimit(long limit)
+	{
+		this.limit = limit;
+	}
+
+
+	/**
+	 * Get the total size of the files, not including files being written.
+	 *
+	 * @return the size in bytes
+	 */
+	public synchronized long getTotalSize()
+	{
+		return totalSize;
+	}
+
+
+    /**
+     * Close the file system and release any resources it holds.
+     *
+     * After this method has been invoked, no other method may be invoked.
+     */
+    public synchronized void close()
+    {
+        files.clear();
+		totalSize = 0;
+		pendingSize = 0;
+    }
+
+    /**
+     * Check if a file exists and when it was last modified.
+     *
+     * @param path  path to the file
+     *
+     * @return  the time when the file was last modified,
+     * or 0 if the file doesn't exists.
+     */
+    public synchronized long fileLastModified(String path)
+    {
+		MemoryFile file = (MemoryFile)files.get(path);
+		return (file == null) ? 0 : file.lastModified;
+    }
+
+    /**
+     * Create a new file, or overwrite an existing file.
+	 * The file is visible when it's committed.
+     */
+    public OutputHandler createFile(String path)
+    {
+		return new MemoryOutputHandler(path);
+	}
+
+    /**
+     * Deletes a file.
+     * Does not signal any error if the file doesn't exist.
+	 *
+     * @param path  path to the file
+     */
+    public synchronized void deleteFile(String path)
+    {
+		MemoryFile file = (MemoryFile)files.remove(path);
+		if (file != null) totalSize -= file.data.length;
+	}
+
+
+	/**
+	 * Get the contents of a file.
+	 *
+     * @param path  path to the file
+	 *
+	 * @return the contents, or <code>null</code> if the file doesn't exist.
+	 *         Must not be modified.
+	 */
+	public synchronized byte[] getFile(String path)
+	{
+		MemoryFile file = (MemoryFile)files.get(path);
+		return (file == null) ? null : file.data;
+	}
+
+
+	/**
+	 * Get the paths of the files modified since some time.
+	 *
+	 * @param since  the time, in milliseconds since the epoch
+	 *
+	 * @return a Vector of (String) paths
+	 */
+	public synchronized Vector getFilesModifiedSince(long since)
+	{
+		Vector v = new Vector();
+		for (Enumeration e = files.keys(); e.hasMoreElements(); )
+		{
+			String path = (String)e.nextElement();
+			if (((MemoryFile)files.get(path)).lastModified >= since)
+				v.addElement(path);
+		}
+		return v;
+	}
+
+
+	/**
+	 * Write all files to a directory.
+	 *
+	 * @param dir  the directory, created if it doesn't exist
+	 */
+	public void dump(File dir)
+		throws IOException
+	{
+		String[] paths = getPaths();
+		for (int i = 0; i<paths.length; i++)
+		{
+			MemoryFile file;
+			synchronized (this)
+			{
+				file = (MemoryFile)files.get(paths[i]);
+			}
+			if (file == null) continue;
+
+			File f = new File(dir, paths[i].substring(1));
+			File parent = f.getParentFile();
+			if (!parent.exists() && !parent.mkdirs())
+				throw new IOException("Unable to create directory: " + parent);
+			OutputStream os = new FileOutputStream(f);
+			try {
+				os.write(file.data);
+			}
+			finally
+			{
+				os.close();
+			}
+			f.setLastModified(file.lastModified);
+		}
+	}
+
+
+	/**
+	 * Write all files as a tar archive.
+	 *
+	 * @param out  the stream to write to, not closed
+	 */
+	public void dump(OutputStream out)
+		throws IOException
+	{
+		TarOutputStream tar = new TarOutputStream(out);
+		String[] paths = getPaths();
+		for (int i = 0; i<paths.length; i++)
+		{
+			MemoryFile file;
+			synchronized (this)
+			{
+				file = (MemoryFile)files.get(paths[i]);
+			}
+			if (file == null) continue;
+
+			tar.putNextEntry(paths[i].substring(1), file.data.length, 
+				file.lastModified);
+			tar.write(file.data, 0, file.data.length);
+			tar.closeEntry();
+		}
+		tar.finish();
+	}
+
+
+	/**
+	 * Get the paths of all files, sorted.
+	 */
+	private synchronized String[] getPaths()
+	{
+		String[] paths = new String[files.size()];
+		int i = 0;
+		for (Enumeration e = files.keys(); e.hasMoreElements(); )
+		{
+			paths[i++] = (String)e.nextElement();
+		}
+		Arrays.sort(paths);
+		return paths;
+	}
+
+
+	/**
+	 * Count bytes written to a file which is not yet committed. 
+	 * The file it replaces is not counted, since it's removed 
+	 * when the new file is committed.
+	 *
+	 * @throws IOException if the limit would be exceeded
+	 */
+	private synchronized void reserve(String path, int len)
+		throws IOException
+	{
+		if (limit >= 0)
+		{
+			MemoryFile old = (MemoryFile)files.get(path);
+			if (totalSize + pendingSize + len 
+					- ((old == null) ? 0 : old.data.length) > limit)
+				throw new IOException("Memory limit of " + (limit/1024) 
+					+ " KB exceeded when storing " + path);
+		}
+		pendingSize += len;
+	}
+
+
+	/**
+	 * Stop counting bytes written to a file which is committed 
+	 * or discarded.
+	 */
+	private synchronized void release(long len)
+	{
+		pendingSize -= len;
+	}
+
+
+	/**
+	 * Store a file.
+	 *
+	 * @param pending  the bytes counted by {@link #reserve} for this file
+	 */
+	private synchronized void putFile(String path, byte[] data, long pending)
+		throws IOException
+	{
+		pendingSize -= pending;
+
+		long now = System.currentTimeMillis();
+		long time = now;
+
+		// the new file must look newer than the one it replaces, 
+		// but its date is not set more than MAX_DATE_AHEAD ahead of 
+		// the clock, so that replacing a file very often doesn't 
+		// make its date drift ahead
+		MemoryFile old = (MemoryFile)files.get(path);
+		if (old != null && time <= old.lastModified) 
+			time = Math.min(old.lastModified + 1, now + MAX_DATE_AHEAD);
+
+		long newSize = totalSize + data.length 
+			- ((old == null) ? 0 : old.data.length);
+		if (limit >= 0 && newSize + pendingSize > limit)
+			throw new IOException("Memory limit of " + (limit/1024) 
+				+ " KB exceeded when storing " + path);
+
+		files.put(path, new MemoryFile(data, time));
+		totalSize = newSize;
+	}
+
+
+	private static class MemoryFile
+	{
+		final byte[] data;
+		final long lastModified;
+
+		MemoryFile(byte[] data, long lastModified)
+		{
+			this.data = data;
+			this.lastModified = lastModified;
+		}
+	}
+
+
+	/**
+	 * Counts the bytes as they are written, so that the limit applies 
+	 * to files being written too.
+	 */
+	class MemoryOutputStream extends OutputStream
+	{
+		private final String path;
+		private final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+
+		/**
+		 * Bytes counted by {@link #reserve}, and not yet released.
+		 */
+		private long pending = 0;
+
+		MemoryOutputStream(String path)
+		{
+			this.path = path;
+		}
+
+		public synchronized void write(int b)
+			throws IOException
+		{
+			reserve(path, 1);
+			pending++;
+			buf.write(b);
+		}
+
+		public synchronized void write(byte[] b, int off, int len)
+			throws IOException
+		{
+			reserve(path, len);
+			pending += len;
+			buf.write(b, off, len);
+		}
+
+		synchronized byte[] toByteArray()
+		{
+			return buf.toByteArray();
+		}
+
+		/**
+		 * Get the bytes counted, and stop counting them here.
+		 */
+		synchronized long takePending()
+		{
+			long p = pending;
+			pending = 0;
+			return p;
+		}
+	}
+
+
+	class MemoryOutputHandler extends OutputHandler
+	{
+		private final String path;
+
+		MemoryOutputHandler(String path)
+		{
+			super(new MemoryOutputStream(path));
+			this.path = path;
+		}
+
+		public void commit()
+			throws IOException
+		{
+			MemoryOutputStream mos = (MemoryOutputStream)out;
+			putFile(path, mos.toByteArray(), mos.takePending());
+		}
+
+		public void discard()
+		{
+			release(((MemoryOutputStream)out).takePending());
+			deleteFile(path);
+		}
+	}
+}
+
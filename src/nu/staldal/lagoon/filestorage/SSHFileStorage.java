@@ -42,6 +42,8 @@ package nu.staldal.lagoon.filestorage;
 
 import java.io.*;
 import java.net.MalformedURLException;
+import java.util.StringTokenizer;
+import java.util.Vector;
 
 import nu.staldal.lagoon.core.FileStorage;
 import nu.staldal.lagoon.core.OutputHandler;
@@ -51,38 +53,86 @@ import nu.staldal.lagoon.core.LagoonContext;
 
 /**
  * A FileStorage which transfers files to a remote site using SSH.
+ *
+ * A single SSH session is used for all files. It runs a small shell
+ * loop on the remote host, which receives each file as a header line
+ * followed by the contents, and answers with the status of each file.
+ * Files are sent without waiting for the answers, which are checked
+ * in the background and when the storage is closed.
+ * A file is kept in memory until it's committed.
+ *
+ * The receiver reads each file with <code>head -c</code>, which must 
+ * not read beyond the end of the file from the pipe. GNU head stops 
+ * at exactly the given number of bytes, but BSD head (also on Mac OS X) 
+ * reads ahead. The receiver checks this when the session is started, 
+ * and if the remote head reads ahead, one SSH process is run for each 
+ * file instead.
+ *
+ * With the <code>sshSession</code> property in the Sitemap set to 
+ * <code>false</code>, one SSH process is run for each file instead.
+ * The SSH client command can be set with the <code>sshCommand</code> 
+ * property (default <code>ssh</code>).
  */
 public class SSHFileStorage extends RemoteFileStorage
 {
 	private static final boolean DEBUG = false;
 
+	/**
+	 * The remote receiver. Reads commands like
+	 * "F <em>length</em> <em>path</em>" followed by the file contents,
+	 * or "D 0 <em>path</em>", and writes "<em>status</em> <em>path</em>"
+	 * for each. First checks that head stops at exactly the given number 
+	 * of bytes, and writes "0 head" if it does, otherwise "1 head" 
+	 * and exits. Must not contain single quotes.
+	 */
+	private static final String RECEIVER =
+		"if [ \"$(printf ab | { head -c 1 >/dev/null; cat; })\" != b ]; "
+		+ "then echo \"1 head\"; exit 1; fi; echo \"0 head\"; "
+		+ "while read -r c n p; do case $c in "
+		+ "F) t=\"$p.lagoon-tmp\"; d=\"${p%/*}\"; "
+		+ "head -c $n | if mkdir -p \"${d:-/}\" && cat >\"$t\" "
+		+ "&& mv -f \"$t\" \"$p\"; then echo \"0 $p\"; "
+		+ "else rm -f \"$t\"; cat >/dev/null; echo \"1 $p\"; fi;; "
+		+ "D) rm -f \"$p\"; echo \"$? $p\";; "
+		+ "*) exit 1;; esac; done";
+
 	private String host;
     private int port;
 	private String username;
 	private String rootPath;
 
 	private Runtime rt;
+	private String[] sshCommand = new String[] { "ssh" };
+	private boolean useSession;
+
+	private Process session;
+	private OutputStream sessionOut;
+	private Vector pending;
+	private boolean sessionEnded;
+	private IOException sessionError;
+	private String lastErrorLine;
 
 	private Process runSSH(String[] command)
 		throws IOException
 	{
-		String[] cmdline = new String[command.length + ((port>0) ? 9 : 7)];
-
-		cmdline[0] = "ssh";
-		cmdline[1] = "-q";
-		cmdline[2] = "-e";
-		cmdline[3] = "none";
-		cmdline[4] = "-l";
-		cmdline[5] = username;
+		int n = sshCommand.length;
+		String[] cmdline = new String[command.length + n + ((port>0) ? 8 : 6)];
+
+		System.arraycopy(sshCommand, 0, cmdline, 0, n);
+		cmdline[n+0] = "-q";
+		cmdline[n+1] = "-e";
+		cmdline[n+2] = "none";
+		cmdline[n+3] = "-l";
+		cmdline[n+4] = username;
         if (port > 0)
         {
-    		cmdline[6] = "-p";
-	    	cmdline[7] = Integer.toString(port);
+    		cmdline[n+5] = "-p";
+	    	cmdline[n+6] = Integer.toString(port);
         }
-		cmdline[(port>0) ? 8 : 6] = host;
+		cmdline[n + ((port>0) ? 7 : 5)] = host;
 
 		System.arraycopy(command, 0,
-                         cmdline, ((port>0) ? 9 : 7), command.length);
+                         cmdline, n + ((port>0) ? 8 : 6), command.length);
 
         if (DEBUG)
         {
@@ -102,6 +152,20 @@ public class SSHFileStorage extends RemoteFileStorage
     {
     }
 
+	
+	/**
+	 * Set the SSH client command, may contain arguments 
+	 * separated by spaces.
+	 */
+	void setSSHCommand(String command)
+	{
+		StringTokenizer st = new StringTokenizer(command);
+		String[] cmd = new String[st.countTokens()];
+		for (int i = 0; i<cmd.length; i++)
+			cmd[i] = st.nextToken();
+		if (cmd.length > 0) sshCommand = cmd;
+	}
+
     
 	public boolean needPassword()
     {
@@ -161,6 +225,16 @@ public class SSHFileStorage extends RemoteFileStorage
 
 		this.rt = Runtime.getRuntime();
 
+		String prop = (context == null) 
+			? null : context.getProperty("sshCommand");
+		if (prop != null) setSSHCommand(prop);
+		
+		prop = (context == null) 
+			? null : context.getProperty("sshSession");
+		useSession = (prop == null) || !prop.trim().equals("false");
+		
+		if (useSession) useSession = startSession();
+
         openDateFile(context);
     }
 
@@ -173,7 +247,13 @@ public class SSHFileStorage extends RemoteFileStorage
     public void close()
         throws IOException
     {
-        closeDateFile();
+		try {
+			if (useSession) endSession();
+		}
+		finally
+		{
+        	closeDateFile();
+		}
 	}
 
     /**
@@ -192,6 +272,12 @@ public class SSHFileStorage extends RemoteFileStorage
     public OutputHandler createFile(String path)
         throws java.io.IOException
     {
+		if (useSession)
+		{
+			checkSession();
+			return new SessionOutputHandler(path);			
+		}
+		
 		String currentPath = path;
 		String s = rootPath+path;
 		int i = s.lastIndexOf('/');
@@ -215,6 +301,12 @@ public class SSHFileStorage extends RemoteFileStorage
     public void deleteFile(String path)
         throws java.io.IOException
     {
+		if (useSession)
+		{
+			sendCommand('D', path, null, 0);
+			return;
+		}
+		
 		Process proc = runSSH(new String[] {
             "rm", "-f", rootPath+path });
 
@@ -225,6 +317,271 @@ public class SSHFileStorage extends RemoteFileStorage
 		} catch (InterruptedException e) {}
 	}
 
+
+	/**
+	 * Start the session.
+	 *
+	 * @return false if the remote host cannot receive files in a session
+	 */
+	private boolean startSession()
+		throws IOException
+	{
+		pending = new Vector();
+		sessionEnded = false;
+		sessionError = null;
+		lastErrorLine = null;
+		
+		session = runSSH(new String[] { "sh", "-c", "'" + RECEIVER + "'" });
+		sessionOut = new BufferedOutputStream(session.getOutputStream());
+		
+		Thread errorThread = new Thread(new Runnable() {
+				public void run()
+				{
+					readErrors();
+				}
+			}, "SSHFileStorage-stderr");
+		errorThread.setDaemon(true);
+		errorThread.start();
+		
+		final BufferedReader in = new BufferedReader(
+			new InputStreamReader(session.getInputStream(), "UTF-8"));
+		String line = in.readLine();
+		if (line == null || !line.equals("0 head"))
+		{
+			sessionOut.close();
+			try {
+				session.waitFor();
+				errorThread.join(1000);
+			}
+			catch (InterruptedException e)
+			{
+				throw new InterruptedIOException();
+			}
+			if (line == null)
+				throw new IOException("SSH session terminated" 
+					+ errorDetail());
+			if (DEBUG) System.out.println("SSH session not supported");
+			return false;
+		}
+		
+		Thread t = new Thread(new Runnable() {
+				public void run()
+				{
+					readStatus(in);
+				}
+			}, "SSHFileStorage");
+		t.setDaemon(true);
+		t.start();
+		
+		return true;
+	}
+	
+
+	/**
+	 * Check that the session is still alive, and report any error
+	 * from files already sent.
+	 */
+	private synchronized void checkSession()
+		throws IOException
+	{
+		if (sessionError != null)
+		{
+			IOException e = sessionError;
+			sessionError = null;
+			throw e;
+		}
+		if (sessionEnded)
+			throw new IOException("SSH session terminated" + errorDetail());
+	}
+	
+
+	private synchronized String errorDetail()
+	{
+		return (lastErrorLine == null) ? "" : (": " + lastErrorLine);
+	}
+	
+	
+	/**
+	 * Send a command to the remote receiver, without waiting for 
+	 * the status. The status is read by another thread, which must 
+	 * not wait for the sender, or the session may deadlock when the 
+	 * pipes are full.
+	 */
+	private void sendCommand(char cmd, String path, byte[] data, int length)
+		throws IOException
+	{
+		checkSession();
+		
+		String header = cmd + " " + length + " " + rootPath + path + "\n";
+		synchronized (sessionOut)
+		{
+			synchronized (this)
+			{
+				pending.addElement((cmd == 'F') ? path : null);
+			}
+			try {
+				sessionOut.write(header.getBytes("UTF-8"));
+				if (data != null) sessionOut.write(data, 0, length);
+				sessionOut.flush();
+			}
+			catch (IOException e)
+			{
+				synchronized (this)
+				{
+					sessionEnded = true;
+				}
+				throw new IOException("SSH session terminated" + errorDetail());
+			}
+		}
+	}
+	
+	
+	/**
+	 * Read the status of each command from the remote receiver.
+	 */
+	private void readStatus(BufferedReader in)
+	{
+		try {
+			while (true)
+			{
+				String line = in.readLine();
+				if (line == null) break;
+				if (DEBUG) System.out.println("SSH status: " + line);
+				
+				String path;
+				synchronized (this)
+				{
+					if (pending.isEmpty()) continue;
+					path = (String)pending.elementAt(0);
+				}
+				
+				if (!line.startsWith("0 "))
+				{
+					setError(new IOException("Unable to "
+						+ ((path == null) ? "delete " : "store ")
+						+ line.substring(line.indexOf(' ')+1)
+						+ errorDetail()));
+				}
+				else if (path != null)
+				{
+					fileModified(path);
+				}
+				
+				synchronized (this)
+				{
+					pending.removeElementAt(0);
+					notifyAll();
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			setError(e);
+		}
+		finally
+		{
+			synchronized (this)
+			{
+				sessionEnded = true;
+				notifyAll();
+			}
+		}
+	}
+	
+	
+	private void readErrors()
+	{
+		try {
+			BufferedReader in = new BufferedReader(
+				new InputStreamReader(session.getErrorStream()));
+			while (true)
+			{
+				String line = in.readLine();
+				if (line == null) break;
+				if (line.trim().length() == 0) continue;
+				synchronized (this)
+				{
+					lastErrorLine = line;
+				}
+			}
+		}
+		catch (IOException ignore) {}
+	}
+	
+	
+	private synchronized void setError(IOException e)
+	{
+		if (sessionError == null) sessionError = e;
+	}
+	
+	
+	/**
+	 * End the session, after the status of all commands 
+	 * has been received.
+	 */
+	private void endSession()
+		throws IOException
+	{
+		synchronized (sessionOut)
+		{
+			try {
+				sessionOut.close();
+			}
+			catch (IOException ignore) {}
+		}
+
+		synchronized (this)
+		{
+			try {
+				while (!pending.isEmpty() && !sessionEnded) wait();
+			}
+			catch (InterruptedException e) 
+			{
+				throw new InterruptedIOException();
+			}
+		}
+
+		try {
+			session.waitFor();
+		} 
+		catch (InterruptedException e) {}
+		
+		synchronized (this)
+		{
+			if (sessionError != null) throw sessionError;
+			if (!pending.isEmpty())
+				throw new IOException("SSH session terminated" 
+					+ errorDetail());
+		}
+	}	
+
+	
+	class SessionOutputHandler extends OutputHandler
+	{
+		private String currentPath;
+		
+		SessionOutputHandler(String currentPath)
+		{
+			super(new ByteArrayOutputStream());
+			this.currentPath = currentPath;
+		}
+		
+		public void commit()
+			throws java.io.IOException
+		{
+			out.close();
+			ByteArrayOutputStream buf = (ByteArrayOutputStream)out;
+			sendCommand('F', currentPath, buf.toByteArray(), buf.size());
+		}
+
+		public void discard()
+			throws java.io.IOException
+		{
+			out.close();
+			sendCommand('D', currentPath, null, 0);
+		}
+	}
+	
 	
 	class SSHOutputHandler extends OutputHandler
 	{
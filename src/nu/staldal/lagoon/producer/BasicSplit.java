@@ -42,12 +42,24 @@ package nu.staldal.lagoon.producer;
 
 import nu.staldal.lagoon.core.*;
 import nu.staldal.lagoon.util.*;
+import nu.staldal.xtree.*;
 
 import java.util.*;
 import java.io.*;
 
 import org.xml.sax.*;
 
+/**
+ * Split a document into several target files, one for each occurrence of
+ * a given element.
+ *
+ * If the target storage is reentrant, the document is parsed once in the
+ * building thread. Each part is collected into an XTree and sent through
+ * another instance of the producer chain with 
+ * {@link FileTarget#newSplitTarget}, so the parts are serialized in 
+ * parallel. Otherwise the document is parsed in a separate thread, which
+ * pauses at each part while the building thread starts a new target.
+ */
 public class BasicSplit extends Transform implements ContentHandler, Runnable
 {
     private static final boolean DEBUG = false;
@@ -57,6 +69,8 @@ public class BasicSplit extends Transform implements ContentHandler, Runnable
     private Thread myThread;
     private Thread mainThread;
     private boolean inPart;
+    private boolean streaming;
+    private String partName;
     private String myNS;
     private String myElement;
     private String outputname;
@@ -97,6 +111,23 @@ public class BasicSplit extends Transform implements ContentHandler, Runnable
     public void start(ContentHandler sax, Target target)
         throws IOException, SAXException
     {
+        FileTarget fileTarget = (FileTarget)target;
+
+        Element fragment = fileTarget.getSplitFragment();
+        if (fragment != null)
+        {
+            sax.startDocument();
+            fragment.toSAX(sax);
+            sax.endDocument();
+            return;
+        }
+
+        if (myThread == null && fileTarget.canSplitInParallel())
+        {
+            startStreaming(sax, target);
+            return;
+        }
+
         this.sax = sax;
 		this.target = target;
         mainThread = Thread.currentThread();
@@ -132,6 +163,37 @@ public class BasicSplit extends Transform implements ContentHandler, Runnable
 		}
 	}
 
+    private void startStreaming(ContentHandler sax, Target target)
+        throws IOException, SAXException
+    {
+        this.target = target;
+        inPart = false;
+        streaming = true;
+        prefixDict = new Hashtable();
+
+        sax.startDocument();
+        // Dummy document
+        sax.endDocument();
+
+        try {
+            getNext().start(this, target);
+        }
+        finally
+        {
+            streaming = false;
+            this.target = null;
+            this.sax = null;
+        }
+    }
+
+    /**
+     * The parts are created as new targets.
+     */
+    public boolean dependsOnTarget()
+    {
+        return true;
+    }
+
     public boolean hasBeenUpdated(long when)
         throws LagoonException, IOException
     {
@@ -170,7 +232,7 @@ public class BasicSplit extends Transform implements ContentHandler, Runnable
 
     public void endDocument()
     {
-        mainThread.interrupt();
+        if (!streaming) mainThread.interrupt();
     }
 
     public void startElement(String namespaceURI, String localName,
@@ -179,6 +241,20 @@ public class BasicSplit extends Transform implements ContentHandler, Runnable
     {
         if (inPart)
             sax.startElement(namespaceURI, localName, qName, atts);
+        else if (streaming
+                && namespaceURI.equals(myNS) && localName.equals(myElement))
+        {
+            partName = instantiateAtts(outputname, atts);
+            sax = new TreeBuilder();
+            for (Enumeration e = prefixDict.keys(); e.hasMoreElements(); )
+            {
+				String prefix = (String)e.nextElement();
+				String uri = (String)prefixDict.get(prefix);
+				sax.startPrefixMapping(prefix, uri);
+			}
+            sax.startElement(namespaceURI, localName, qName, atts);
+            inPart = true;
+        }
         else if (namespaceURI.equals(myNS) && localName.equals(myElement))
         {
             ((FileTarget)target).newTarget(
@@ -201,7 +277,21 @@ public class BasicSplit extends Transform implements ContentHandler, Runnable
         throws SAXException
     {
         if (inPart) sax.endElement(namespaceURI, localName, qName);
-        if (namespaceURI.equals(myNS) && localName.equals(myElement))
+        if (streaming 
+                && namespaceURI.equals(myNS) && localName.equals(myElement))
+        {
+            inPart = false;
+            Element fragment = ((TreeBuilder)sax).getTree();
+            sax = null;
+            try {
+                ((FileTarget)target).newSplitTarget(partName, false, fragment);
+            }
+            catch (IOException e)
+            {
+                throw new SAXException(e);
+            }
+        }
+        else if (namespaceURI.equals(myNS) && localName.equals(myElement))
         {
             inPart = false;
             for (Enumeration e = prefixDict.keys(); e.hasMoreElements(); )
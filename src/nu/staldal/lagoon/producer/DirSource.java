@@ -51,6 +51,7 @@ import org.xml.sax.helpers.AttributesImpl;
 
 import nu.staldal.lagoon.core.*;
 import nu.staldal.lagoon.util.Wildcard;
+import nu.staldal.util.FileStatCache;
 
 public class DirSource extends Source
 {
@@ -73,6 +74,7 @@ public class DirSource extends Source
             throw new IOException("The source is not a directory");
 
         String[] files = dir.list();
+        FileStatCache stats = getContext().getStatCache();
 
         dirlist = new Hashtable();
         for (int i = 0; i<files.length; i++)
@@ -96,9 +98,9 @@ public class DirSource extends Source
             atts.addAttribute("", "filename", "", "CDATA", files[i]);
             atts.addAttribute("", "url", "", "CDATA",
                 getSourceMan().getFileURL(files[i]) 
-				+ (file.isDirectory() ? "/" : ""));
+				+ (stats.isDirectory(file) ? "/" : ""));
 				
-			long timestamp = file.lastModified();
+			long timestamp = stats.lastModified(file);
 			SimpleDateFormat dateFormat =
      			new SimpleDateFormat("yyyy-MM-dd");
 			SimpleDateFormat timeFormat =
@@ -112,14 +114,14 @@ public class DirSource extends Source
 	        atts.addAttribute("", "time", "", "CDATA",
 				timeFormat.format(date));
 											
-            if (file.isFile())
+            if (stats.exists(file) && !stats.isDirectory(file))
             {
 	            atts.addAttribute("", "size", "", "CDATA",
-					String.valueOf(file.length()));
+					String.valueOf(stats.length(file)));
                 sax.startElement("", "file", "", atts);
                 sax.endElement("", "file", "");
             }
-            else if (file.isDirectory())
+            else if (stats.isDirectory(file))
             {
                 sax.startElement("", "directory", "", atts);
                 sax.endElement("", "directory", "");
@@ -142,6 +144,7 @@ public class DirSource extends Source
 		if (dirlist == null) return true;
 
         String[] files = dir.list();
+        FileStatCache stats = getContext().getStatCache();
         for (int i = 0; i<files.length; i++)
         {
             if (dirlist.put(files[i], "ishere") == null)
@@ -118,6 +118,15 @@ public class IslandSplit extends Transform implements ContentHandler
 		this.mainSax = null;
 	}
 
+    /**
+     * The image names are taken from the target, and the images are 
+     * created as new targets.
+     */
+    public boolean dependsOnTarget()
+    {
+        return true;
+    }
+
     public boolean hasBeenUpdated(long when)
         throws LagoonException, IOException
     {
@@ -195,7 +204,6 @@ public class IslandSplit extends Transform implements ContentHandler
 		}
 		prefixVector.clear();
 		uriVector.clear();
-        Thread.interrupted(); // clear interrupted status
 		sax.startElement(namespaceURI, localName, qName, atts);
     }
 
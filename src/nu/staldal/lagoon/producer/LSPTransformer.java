@@ -191,6 +191,14 @@ public class LSPTransformer extends Transform
     }
 
 
+    /**
+     * Cannot be used with a wildcard target.
+     */
+    public boolean dependsOnTarget()
+    {
+        return true;
+    }
+
     public boolean hasBeenUpdated(long when)
         throws LagoonException, IOException
     {
@@ -46,15 +46,29 @@ import javax.xml.parsers.*;
 import org.xml.sax.*;
 
 import nu.staldal.lagoon.core.*;
-
+import nu.staldal.util.Pipe;
+
+/**
+ * Parses a byte stream as XML.
+ *
+ * The byte stream is produced in another thread and passed to the parser
+ * through a {@link Pipe}. With the parameter <code>buffer="true"</code>,
+ * the whole byte stream is instead produced into memory before parsing,
+ * without any extra thread; suitable for small documents.
+ */
 public class XMLParse extends Parse implements Runnable
 {
+	/**
+	 * The size of the pipe buffer.
+	 */
+	private static final int PIPE_SIZE = 64*1024;
+
 	private Thread thread;
 	private Exception exception;
-	private MyInputStream mis;
-	private MyOutputStream mos;
+	private Pipe pipe;
 	private Target target;
 	private SAXParserFactory spf;	
+	private boolean buffer;
 	
     public void init() throws LagoonException
     {
@@ -75,14 +89,15 @@ public class XMLParse extends Parse implements Runnable
 			throw new Error("Unable to configure XML parser");	
 		}
 
+		String b = getParam("buffer");
+		buffer = (b != null) && b.equals("true");
+
 		target = null;
     }
 
     public void start(ContentHandler sax, Target target)
         throws IOException, SAXException
     {
-		this.target = target;
-        
 		XMLReader parser;	
 		try {
 			parser = spf.newSAXParser().getXMLReader();
@@ -114,31 +129,65 @@ public class XMLParse extends Parse implements Runnable
 			}
 		});
 		
-		
+		if (buffer)
+		{
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			getNext().start(bytes, target);
+			parser.parse(new InputSource(
+				new ByteArrayInputStream(bytes.toByteArray())));
+			return;
+		}
 
+		this.target = target;
 		exception = null;
+		pipe = new Pipe(PIPE_SIZE);
 
-		mis = new MyInputStream();
-		mos = new MyOutputStream(mis);
-
-		thread = new Thread(this);
+		thread = new Thread(this, "XMLParse");
 		thread.start();
 
-		parser.parse(new InputSource(mis));
-        mis.close();
-
+		InputStream in = pipe.getInputStream();
+		boolean parsed = false;
 		try {
-			thread.join(1000);
+			parser.parse(new InputSource(in));
+			parsed = true;
 		}
-		catch (InterruptedException e)
-		{}
-
-		if (thread.isAlive())
+		catch (SAXException e)
+		{
+			// an error from the producer causes a parse error
+			if (exception == null) throw e;
+		}
+		catch (IOException e)
 		{
-			thread.interrupt();
+			if (exception == null) throw e;
 		}
+		finally
+		{
+			// stops the producer if the parser didn't read everything
+			in.close();
 
-		this.target = null;
+			try {
+				thread.join();
+			}
+			catch (InterruptedException e)
+			{
+				thread.interrupt();
+				throw new InterruptedIOException();
+			}
+			finally
+			{
+				this.target = null;
+				thread = null;
+			}
+		}
+
+		// the parser may stop reading before the end, e.g. whitespace
+		// after the document element
+		if (parsed && exception instanceof IOException 
+				&& pipe.isReadClosed())
+		{
+			exception = null;
+		}
+		pipe = null;
 
 		if (exception != null)
 		{
@@ -150,6 +199,10 @@ public class XMLParse extends Parse implements Runnable
 			{
 				throw (IOException)exception;
 			}
+			else
+			{
+				throw (RuntimeException)exception;
+			}
 		}
 	}
 
@@ -158,137 +211,40 @@ public class XMLParse extends Parse implements Runnable
 	 */
 	public void run()
 	{
+		OutputStream out = pipe.getOutputStream();
 		try {
-			getNext().start(mos, target);
-			mos.close();
+			OutputStream bout = new BufferedOutputStream(out);
+			getNext().start(bout, target);
+			bout.flush();
 		}
 		catch (SAXException e)
 		{
 			exception = e;
 		}
-		// catch (InterruptedIOException e)
-		// {
-		// }
 		catch (IOException e)
 		{
 			exception = e;
 		}
-	}
-
-    public boolean hasBeenUpdated(long when)
-        throws LagoonException, IOException
-    {
-        return getNext().hasBeenUpdated(when);
-    }
-
-}
-
-class MyInputStream extends InputStream
-{
-	private int buf;
-	private boolean eof;
-    private boolean closed;
-
-	MyInputStream()
-	{
-		eof = false;
-        closed = false;
-		buf = -1;
-	}
-
-	public int avaliable()
-	{
-		if (eof || (buf == -1))
-		{
-			return 0;
-		}
-		else
+		catch (RuntimeException e)
 		{
-			return 1;
+			exception = e;
 		}
-	}
-
-	public synchronized int read() throws IOException
-	{
-		if (closed) throw new IOException("Attempt to read from closed stream");
-		if (eof) return -1;
-
-		while (buf == -1)
+		finally
 		{
 			try {
-				wait(1000);
+				out.close();
 			}
-			catch (InterruptedException e)
+			catch (IOException e)
 			{
-				throw new InterruptedIOException();
+				// cannot happen
 			}
-			if (eof) return -1;
 		}
-
-		int b = buf;
-		buf = -1;
-		notify();
-		return b;
 	}
 
-    public void close()
+    public boolean hasBeenUpdated(long when)
+        throws LagoonException, IOException
     {
-        closed = true;
+        return getNext().hasBeenUpdated(when);
     }
 
-	synchronized void deliver(int b) throws IOException
-	{
-		if (eof) return;
-        if (closed) throw new IOException("Attempt to write to broken pipe");
-
-		while (buf != -1)
-		{
-			try {
-				wait(1000);
-			}
-			catch (InterruptedException e)
-			{
-				throw new InterruptedIOException();
-			}
-			if (eof) return;
-            if (closed)
-                throw new IOException("Attempt to write to broken pipe");
-		}
-
-		buf = b;
-		notify();
-	}
-
-	void eof()
-	{
-		eof = true;
-	}
-}
-
-class MyOutputStream extends OutputStream
-{
-	private MyInputStream sink;
-	private boolean eof;
-
-	MyOutputStream(MyInputStream sink)
-	{
-		this.sink = sink;
-		eof = false;
-	}
-
-	public void write(int b) throws IOException
-	{
-		if (eof) throw new IOException("Attempt to write to closed stream");
-		sink.deliver(b);
-	}
-
-	// public void flush() {}
-
-	public void close()
-	{
-		if (eof) return;
-		// flush();
-		eof = true;
-		sink.eof();
-	}
 }
@@ -60,10 +60,9 @@ public class XSLTransformer extends Transform
     private String xslFile;
     private SAXTransformerFactory tfactory;
     private boolean always;
-    private long stylesheetRead = 0;
 
-    private StylesheetContainer stylesheetInfo;
-    private Templates stylesheet;
+    // shared by all instances in the same sitemap entry
+    private SharedStylesheet shared;
 
     public void init() throws LagoonException, IOException
     {
@@ -89,8 +88,15 @@ public class XSLTransformer extends Transform
             }
             tfactory = (SAXTransformerFactory)tf;
 
-            stylesheetInfo = (StylesheetContainer)getObjectFromRepository(
-                "stylesheetInfo");
+            shared = (SharedStylesheet)getSharedObject("stylesheet");
+            if (shared == null)
+            {
+                shared = new SharedStylesheet();
+                shared.stylesheetInfo = 
+                    (StylesheetContainer)getObjectFromRepository(
+                        "stylesheetInfo");
+                putSharedObject("stylesheet", shared);
+            }
 		}
         catch (LagoonException e)
 		{
@@ -101,23 +107,32 @@ public class XSLTransformer extends Transform
             throw new LagoonException(e.getMessage());
         }
 
-        stylesheet = null;        
     }
     
     public void afterBuild()
         throws IOException
     {
-        if (stylesheetRead > 0)
+        synchronized (shared)
         {
-            stylesheetInfo.stylesheetRead = System.currentTimeMillis();
-            putObjectIntoRepository("stylesheetInfo", stylesheetInfo);
+            if (shared.stylesheetRead > 0)
+            {
+                shared.stylesheetInfo.stylesheetRead =
+                    System.currentTimeMillis();
+                putObjectIntoRepository("stylesheetInfo",
+                    shared.stylesheetInfo);
+            }
         }
     }
 
+    /**
+     * Must be invoked with the lock on shared held.
+     */
     private void readStylesheet(final Target target)
     	throws IOException, SAXException
     {
-        stylesheetInfo = new StylesheetContainer(always);
+        final StylesheetContainer stylesheetInfo = 
+            new StylesheetContainer(always);
+        shared.stylesheetInfo = stylesheetInfo;
 
         final String xslPath = getSourceMan().getFileURL(xslFile);
 			
@@ -154,8 +169,9 @@ public class XSLTransformer extends Transform
 		Source ss = getSourceMan().getFileAsJAXPSource(xslPath, target);
 		
         try {
-            stylesheet = tfactory.newTemplates(ss);
-            stylesheetRead = System.currentTimeMillis();
+            shared.stylesheet = tfactory.newTemplates(ss);
+            shared.stylesheetRead = System.currentTimeMillis();
+            stylesheetInfo.stylesheetRead = shared.stylesheetRead;
             putObjectIntoRepository("stylesheetInfo", stylesheetInfo);
         }
         catch (TransformerConfigurationException e)
@@ -175,9 +191,14 @@ public class XSLTransformer extends Transform
         }
     }
 
+    /**
+     * Must be invoked with the lock on shared held.
+     */
 	private boolean stylesheetUpdated()
         throws LagoonException, IOException
 	{
+        StylesheetContainer stylesheetInfo = shared.stylesheetInfo;
+
         if (stylesheetInfo == null) return true;
     
         if (stylesheetInfo.compileDynamic) return true;
@@ -204,9 +225,16 @@ public class XSLTransformer extends Transform
     public void start(org.xml.sax.ContentHandler sax, final Target target)
     	throws IOException, SAXException
     {
-        if (stylesheet == null || stylesheetUpdated())
+        Templates stylesheet;
+        final StylesheetContainer stylesheetInfo;
+        synchronized (shared)
         {
-            readStylesheet(target);
+            if (shared.stylesheet == null || stylesheetUpdated())
+            {
+                readStylesheet(target);
+            }
+            stylesheet = shared.stylesheet;
+            stylesheetInfo = shared.stylesheetInfo;
         }
 
         if (DEBUG) System.out.println("Transforming");
@@ -257,7 +285,10 @@ public class XSLTransformer extends Transform
 
         getNext().start(new ContentHandlerFixer(th), target);
 
-        putObjectIntoRepository("stylesheetInfo", stylesheetInfo);
+        synchronized (shared)
+        {
+            putObjectIntoRepository("stylesheetInfo", stylesheetInfo);
+        }
 
         if (DEBUG)
         {
@@ -274,9 +305,14 @@ public class XSLTransformer extends Transform
     public boolean hasBeenUpdated(long when)
         throws LagoonException, IOException
     {
-        if (stylesheetUpdated())
+        StylesheetContainer stylesheetInfo;
+        synchronized (shared)
         {
-            return true;
+            if (stylesheetUpdated())
+            {
+                return true;
+            }
+            stylesheetInfo = shared.stylesheetInfo;
         }
 
 		if (stylesheetInfo.executeDynamic) return true;
@@ -296,6 +332,18 @@ public class XSLTransformer extends Transform
 }
 
 
+/**
+ * The compiled stylesheet, shared by all instances of XSLTransformer
+ * in the same sitemap entry.
+ */
+class SharedStylesheet
+{
+    Templates stylesheet;
+    StylesheetContainer stylesheetInfo;
+    long stylesheetRead;
+}
+
+
 class StylesheetContainer implements Serializable
 {
     long stylesheetRead;
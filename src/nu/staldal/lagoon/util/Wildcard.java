@@ -124,4 +124,70 @@ public final class Wildcard
 
         return pattern.substring(0, star) + part + pattern.substring(star+1);
     }
+
+
+    /**
+     * Check if a path matches a glob pattern. In the pattern, '?' matches 
+     * any character except '/', '*' matches any string not containing '/', 
+     * and '**' matches any string.
+     *
+     * @param pattern  the glob pattern
+     * @param path  the path
+     */
+    public static boolean matchGlob(String pattern, String path)
+    {
+        return matchGlob(pattern, 0, path, 0);
+    }
+
+    private static boolean matchGlob(String pattern, int pi, 
+                                     String path, int si)
+    {
+        while (pi < pattern.length())
+        {
+            char c = pattern.charAt(pi);
+            if (c == '*')
+            {
+                boolean any = (pi+1 < pattern.length()) 
+                    && (pattern.charAt(pi+1) == '*');
+                int rest = any ? pi+2 : pi+1;
+                for (int k = si; ; k++)
+                {
+                    if (matchGlob(pattern, rest, path, k)) return true;
+                    if (k == path.length() 
+                            || (!any && path.charAt(k) == '/'))
+                        return false;
+                }
+            }
+            else if (c == '?')
+            {
+                if (si == path.length() || path.charAt(si) == '/')
+                    return false;
+            }
+            else
+            {
+                if (si == path.length() || path.charAt(si) != c)
+                    return false;
+            }
+            pi++;
+            si++;
+        }
+        return si == path.length();
+    }
+
+    /**
+     * Get the part of a glob pattern before the first '*' or '?'.
+     *
+     * @param pattern  the glob pattern
+     *
+     * @see #matchGlob
+     */
+    public static String globPrefix(String pattern)
+    {
+        for (int i = 0; i<pattern.length(); i++)
+        {
+            char c = pattern.charAt(i);
+            if (c == '*' || c == '?') return pattern.substring(0, i);
+        }
+        return pattern;
+    }
 }
@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 2005, Mikael Ståldal
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ * notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ * notice, this list of conditions and the following disclaimer in the 
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the author nor the names of its contributors 
+ * may be used to endorse or promote products derived from this software 
+ * without specific prior written permission. 
+ * 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY 
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * 
+ * Note: This is known as "the modified BSD license". It's an approved 
+ * Open Source and Free Software license, see 
+ * http://www.opensource.org/licenses/ 
+ * and
+ * http://www.gnu.org/philosophy/license-list.html
+ */
+
+package nu.staldal.util;
+
+import java.io.File;
+import java.util.*;
+
+
+/**
+ * Watches a directory tree for changes, by periodically comparing the 
+ * modification dates of all files and directories in it.
+ *<p>
+ * Each poll lists every directory and asks for the date of every file, 
+ * so the cost is proportional to the size of the tree. To keep it 
+ * bounded, {@link #waitForChanges} waits at least {@link #SCAN_FACTOR} 
+ * times the duration of the last scan between polls.
+ */
+public class DirectoryWatcher
+{
+    /**
+     * The minimum time between polls, relative to the time a poll takes.
+     * With 10, polling uses at most about 10% of one processor.
+     */
+    public static final int SCAN_FACTOR = 10;
+
+    private final File root;
+    private final File exclude;
+    private Hashtable snapshot;
+    private long scanTime;
+
+
+    /**
+     * Create a new DirectoryWatcher and take an initial snapshot of
+     * the directory tree.
+     *
+     * @param root  the directory to watch
+     * @param exclude  a subdirectory to ignore, may be <code>null</code>
+     */
+    public DirectoryWatcher(File root, File exclude)
+    {
+        this.root = root.getAbsoluteFile();
+        this.exclude = (exclude == null) ? null : exclude.getAbsoluteFile();
+        this.snapshot = takeSnapshot();
+    }
+
+
+    /**
+     * Get the files and directories which have been changed, added or
+     * removed since the last invocation of this method.
+     *
+     * @return the changed files, may be empty
+     */
+    public synchronized File[] poll()
+    {
+        Hashtable current = takeSnapshot();
+        Vector changed = new Vector();
+
+        for (Enumeration e = current.keys(); e.hasMoreElements(); )
+        {
+            String path = (String)e.nextElement();
+            Long lastMod = (Long)snapshot.get(path);
+            if (lastMod == null || !lastMod.equals(current.get(path)))
+                changed.addElement(new File(path));
+        }
+        for (Enumeration e = snapshot.keys(); e.hasMoreElements(); )
+        {
+            String path = (String)e.nextElement();
+            if (!current.containsKey(path))
+                changed.addElement(new File(path));
+        }
+
+        snapshot = current;
+
+        File[] arr = new File[changed.size()];
+        changed.copyInto(arr);
+        return arr;
+    }
+
+
+    /**
+     * Get the time the last poll (or the initial snapshot) took.
+     *
+     * @return the time in milliseconds
+     */
+    public synchronized long getScanTime()
+    {
+        return scanTime;
+    }
+
+
+    /**
+     * Get the time to wait before the next poll.
+     *
+     * @param pollInterval  the minimum time between polls, in milliseconds
+     *
+     * @return <code>pollInterval</code>, or {@link #SCAN_FACTOR} times
+     *         the time the last poll took if that is longer
+     */
+    public synchronized long getPollDelay(long pollInterval)
+    {
+        return Math.max(pollInterval, SCAN_FACTOR*scanTime);
+    }
+
+
+    /**
+     * Wait until something is changed in the directory tree. Returns
+     * when there has been no further changes for a while, so that a
+     * burst of changes (like saving several files) is reported at once.
+     *
+     * @param pollInterval  minimum time between polls, in milliseconds, 
+     *                      see {@link #getPollDelay}
+     * @param quietPeriod  how long there should be no further changes,
+     *                     in milliseconds
+     *
+     * @return the changed files, never empty
+     */
+    public File[] waitForChanges(long pollInterval, long quietPeriod)
+        throws InterruptedException
+    {
+        Hashtable changed = new Hashtable();
+        long lastChange = 0;
+
+        while (true)
+        {
+            File[] files = poll();
+            long now = System.currentTimeMillis();
+            if (files.length > 0)
+            {
+                for (int i = 0; i<files.length; i++)
+                    changed.put(files[i].getPath(), files[i]);
+                lastChange = now;
+            }
+            else if (!changed.isEmpty() && (now-lastChange >= quietPeriod))
+            {
+                break;
+            }
+            Thread.sleep(getPollDelay(pollInterval));
+        }
+
+        File[] arr = new File[changed.size()];
+        int i = 0;
+        for (Enumeration e = changed.elements(); e.hasMoreElements(); i++)
+            arr[i] = (File)e.nextElement();
+        return arr;
+    }
+
+
+    private Hashtable takeSnapshot()
+    {
+        long start = System.currentTimeMillis();
+        Hashtable h = new Hashtable();
+        scan(root, h);
+        scanTime = System.currentTimeMillis() - start;
+        return h;
+    }
+
+
+    private void scan(File dir, Hashtable h)
+    {
+        h.put(dir.getPath(), new Long(dir.lastModified()));
+
+        File[] files = dir.listFiles();
+        if (files == null) return;
+
+        for (int i = 0; i<files.length; i++)
+        {
+            if (files[i].equals(exclude)) continue;
+
+            if (files[i].isDirectory())
+                scan(files[i], h);
+            else
+                h.put(files[i].getPath(), new Long(files[i].lastModified()));
+        }
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright (c) 2005, Mikael Ståldal
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ * notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ * notice, this list of conditions and the following disclaimer in the 
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the author nor the names of its contributors 
+ * may be used to endorse or promote products derived from this software 
+ * without specific prior written permission. 
+ * 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY 
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * 
+ * Note: This is known as "the modified BSD license". It's an approved 
+ * Open Source and Free Software license, see 
+ * http://www.opensource.org/licenses/ 
+ * and
+ * http://www.gnu.org/philosophy/license-list.html
+ */
+
+package nu.staldal.util;
+
+import java.io.*;
+import java.util.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+
+/**
+ * Caches the existence, modification date and size of files,
+ * to avoid asking the file system about the same file many times.
+ * Can also cache a digest of the contents of files.
+ * The cache is never updated by itself, it must be cleared when 
+ * the files may have been changed.
+ */
+public class FileStatCache
+{
+    private Hashtable stats = new Hashtable();
+    private int hits = 0;
+    private int misses = 0;
+
+
+    /**
+     * Create a new, empty, FileStatCache.
+     */
+    public FileStatCache()
+    {
+    }
+
+
+    /**
+     * Check if a file or directory exists.
+     */
+    public boolean exists(File file)
+    {
+        return stat(file).exists;
+    }
+
+
+    /**
+     * Check if a file exists and is a directory.
+     */
+    public boolean isDirectory(File file)
+    {
+        return stat(file).directory;
+    }
+
+
+    /**
+     * Get the time when a file was last modified.
+     *
+     * @return the time, or 0 if the file doesn't exist
+     */
+    public long lastModified(File file)
+    {
+        return stat(file).lastModified;
+    }
+
+
+    /**
+     * Get the size of a file.
+     *
+     * @return the size in bytes, or 0 if the file doesn't exist
+     */
+    public long length(File file)
+    {
+        return stat(file).length;
+    }
+
+
+    /**
+     * Get a digest of the contents of a file.
+     *
+     * @return the MD5 digest as hexadecimal digits, 
+     *         or <code>null</code> if the file cannot be read
+     */
+    public String digest(File file)
+    {
+        Stat stat = stat(file);
+        synchronized (stat)
+        {
+            if (stat.digest == null && stat.exists && !stat.directory)
+            {
+                try {
+                    stat.digest = digestFile(file);
+                }
+                catch (IOException e)
+                {
+                    return null;
+                }
+            }
+            return stat.digest;
+        }
+    }
+
+
+    private static String digestFile(File file)
+        throws IOException
+    {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("MD5");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new Error("MD5 not supported: " + e.getMessage());
+        }
+
+        byte[] buf = new byte[8192];
+        InputStream is = new FileInputStream(file);
+        try {
+            while (true)
+            {
+                int bytesRead = is.read(buf);
+                if (bytesRead < 0) break;
+                md.update(buf, 0, bytesRead);
+            }
+        }
+        finally
+        {
+            is.close();
+        }
+        return Utils.toHex(md.digest());
+    }
+
+
+    /**
+     * Remove a file from the cache, use when the file has been
+     * created, modified or deleted.
+     */
+    public synchronized void invalidate(File file)
+    {
+        stats.remove(file.getPath());
+    }
+
+
+    /**
+     * Remove all files from the cache and reset the hit and miss counts.
+     */
+    public synchronized void clear()
+    {
+        stats.clear();
+        hits = 0;
+        misses = 0;
+    }
+
+
+    /**
+     * Get the number of lookups answered from the cache 
+     * since it was last cleared.
+     */
+    public synchronized int getHits()
+    {
+        return hits;
+    }
+
+
+    /**
+     * Get the number of lookups which had to ask the file system 
+     * since it was last cleared.
+     */
+    public synchronized int getMisses()
+    {
+        return misses;
+    }
+
+
+    private Stat stat(File file)
+    {
+        String path = file.getPath();
+        synchronized (this)
+        {
+            Stat stat = (Stat)stats.get(path);
+            if (stat != null)
+            {
+                hits++;
+                return stat;
+            }
+            misses++;
+        }
+
+        // don't hold the lock while asking the file system
+        Stat stat = new Stat();
+        stat.lastModified = file.lastModified();
+        stat.exists = (stat.lastModified > 0) || file.exists();
+        if (stat.exists)
+        {
+            stat.directory = file.isDirectory();
+            stat.length = file.length();
+        }
+
+        synchronized (this)
+        {
+            stats.put(path, stat);
+        }
+        return stat;
+    }
+
+
+    static class Stat
+    {
+        boolean exists;
+        boolean directory;
+        long lastModified;
+        long length;
+        String digest;
+    }
+}
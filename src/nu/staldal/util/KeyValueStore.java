@@ -0,0 +1,462 @@
+/*
+ * Copyright (c) 2005, Mikael Ståldal
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ * notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ * notice, this list of conditions and the following disclaimer in the 
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the author nor the names of its contributors 
+ * may be used to endorse or promote products derived from this software 
+ * without specific prior written permission. 
+ * 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY 
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * 
+ * Note: This is known as "the modified BSD license". It's an approved 
+ * Open Source and Free Software license, see 
+ * http://www.opensource.org/licenses/ 
+ * and
+ * http://www.gnu.org/philosophy/license-list.html
+ */
+
+package nu.staldal.util;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.CRC32;
+
+
+/**
+ * A simple persistent store of byte arrays by string keys, 
+ * kept in a single append-only file.
+ *
+ * Each update is appended to the file as a record with a checksum. 
+ * Updates are buffered in memory and written to the file when the 
+ * buffer is full, and written and synced to disk by {@link #commit}. 
+ * When the file is opened, the index is rebuilt by reading all records, 
+ * and an incomplete or corrupt record at the end of the file (e.g. after 
+ * a crash) is discarded along with everything after it.
+ *
+ * When more than half of the file is occupied by replaced or removed 
+ * records, the live records are copied to a new file by {@link #commit}.
+ *
+ * This class is thread-safe.
+ */
+public class KeyValueStore
+{
+	private static final byte[] MAGIC = 
+		{ 'L', 'a', 'g', 'o', 'o', 'n', 'K', 'V', 0, 0, 0, 1 };
+
+	private static final byte PUT = 1;
+	private static final byte REMOVE = 2;
+
+	private static final int WRITE_BUFFER_SIZE = 256*1024;
+	private static final long MIN_COMPACT_SIZE = 64*1024;
+
+	private final File file;
+	private final File newFile;
+	private RandomAccessFile raf;
+
+	/** 
+	 * (String)key -> Record
+	 */
+	private Hashtable index = new Hashtable();
+
+	/**
+	 * Length of the part of the file written so far.
+	 */
+	private long fileLength;
+
+	/**
+	 * Records not yet written to the file.
+	 */
+	private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+
+	/**
+	 * Total size of the live records.
+	 */
+	private long liveSize = 0;
+
+	private boolean dirty = false;
+
+
+	/**
+	 * Where a value is found.
+	 */
+	private static class Record
+	{
+		final long valueOffset;
+		final int valueLength;
+		final int recordSize;
+
+		Record(long valueOffset, int valueLength, int recordSize)
+		{
+			this.valueOffset = valueOffset;
+			this.valueLength = valueLength;
+			this.recordSize = recordSize;
+		}
+	}
+
+
+	/**
+	 * Open a store, creates the file if it doesn't exist.
+	 *
+	 * @param file  the file to keep the store in
+	 */
+	public KeyValueStore(File file)
+		throws IOException
+	{
+		this.file = file;
+		this.newFile = new File(file.getPath() + ".new");
+
+		if (newFile.exists())
+		{
+			if (file.exists())
+			{
+				// compaction was interrupted before it was complete
+				newFile.delete();
+			}
+			else if (!newFile.renameTo(file))
+			{
+				throw new IOException("Unable to rename " + newFile 
+					+ " to " + file);
+			}
+		}
+
+		raf = new RandomAccessFile(file, "rw");
+		load();
+	}
+
+
+	/**
+	 * Read the index from the file.
+	 */
+	private void load()
+		throws IOException
+	{
+		long length = raf.length();
+		if (length < MAGIC.length || !checkMagic())
+		{
+			raf.setLength(0);
+			raf.write(MAGIC);
+			fileLength = MAGIC.length;
+			return;
+		}
+
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+			new FileInputStream(file), 65536));
+		long pos = MAGIC.length;
+		CRC32 crc = new CRC32();
+		try {
+			in.skipBytes(MAGIC.length);
+			while (pos + 4 <= length)
+			{
+				int payloadLength = in.readInt();
+				if (payloadLength < 3 || pos + 4 + payloadLength + 8 > length)
+					break;
+				byte[] payload = new byte[payloadLength];
+				in.readFully(payload);
+				long checksum = in.readLong();
+				crc.reset();
+				crc.update(payload);
+				if (crc.getValue() != checksum) break;
+
+				apply(payload, pos);
+				pos += 4 + payloadLength + 8;
+			}
+		}
+		catch (IOException e)
+		{
+			// corrupt record, discard the rest
+		}
+		finally
+		{
+			in.close();
+		}
+
+		if (pos < length) raf.setLength(pos);
+		fileLength = pos;
+	}
+
+
+	private boolean checkMagic()
+		throws IOException
+	{
+		byte[] buf = new byte[MAGIC.length];
+		raf.seek(0);
+		raf.readFully(buf);
+		return Arrays.equals(buf, MAGIC);
+	}
+
+
+	/**
+	 * Update the index with a record.
+	 *
+	 * @param payload  the record payload
+	 * @param pos  the position of the record in the file
+	 */
+	private void apply(byte[] payload, long pos)
+		throws IOException
+	{
+		DataInputStream in = 
+			new DataInputStream(new ByteArrayInputStream(payload));
+		byte op = in.readByte();
+		String key = in.readUTF();
+		int headerLength = payload.length - in.available();
+
+		Record old;
+		if (op == PUT)
+		{
+			Record rec = new Record(pos + 4 + headerLength, 
+				payload.length - headerLength, 4 + payload.length + 8);
+			old = (Record)index.put(key, rec);
+			liveSize += rec.recordSize;
+		}
+		else
+		{
+			old = (Record)index.remove(key);
+		}
+		if (old != null) liveSize -= old.recordSize;
+	}
+
+
+	/**
+	 * Get a value.
+	 *
+	 * @param key  the key
+	 *
+	 * @return the value, or <code>null</code> if not found.
+	 */
+	public synchronized byte[] get(String key)
+		throws IOException
+	{
+		Record rec = (Record)index.get(key);
+		if (rec == null) return null;
+
+		byte[] value = new byte[rec.valueLength];
+		if (rec.valueOffset >= fileLength)
+		{
+			byte[] buf = pending.toByteArray();
+			System.arraycopy(buf, (int)(rec.valueOffset - fileLength), 
+				value, 0, rec.valueLength);
+		}
+		else
+		{
+			raf.seek(rec.valueOffset);
+			raf.readFully(value);
+		}
+		return value;
+	}
+
+
+	/**
+	 * Check if a key is present.
+	 */
+	public synchronized boolean containsKey(String key)
+	{
+		return index.containsKey(key);
+	}
+
+
+	/**
+	 * Get all keys.
+	 *
+	 * @return an Enumeration of String
+	 */
+	public synchronized Enumeration keys()
+	{
+		return ((Hashtable)index.clone()).keys();
+	}
+
+
+	/**
+	 * Get the number of keys.
+	 */
+	public synchronized int size()
+	{
+		return index.size();
+	}
+
+
+	/**
+	 * Store a value, replacing any previous value with the same key.
+	 *
+	 * @param key  the key
+	 * @param value  the value
+	 */
+	public synchronized void put(String key, byte[] value)
+		throws IOException
+	{
+		append(PUT, key, value);
+	}
+
+
+	/**
+	 * Remove a value.
+	 *
+	 * @param key  the key
+	 */
+	public synchronized void remove(String key)
+		throws IOException
+	{
+		if (!index.containsKey(key)) return;
+		append(REMOVE, key, null);
+	}
+
+
+	private void append(byte op, String key, byte[] value)
+		throws IOException
+	{
+		ByteArrayOutputStream buf = new ByteArrayOutputStream(
+			(value == null ? 0 : value.length) + key.length() + 16);
+		DataOutputStream out = new DataOutputStream(buf);
+		out.writeByte(op);
+		out.writeUTF(key);
+		if (value != null) out.write(value);
+		out.close();
+		byte[] payload = buf.toByteArray();
+
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+
+		long pos = fileLength + pending.size();
+		DataOutputStream pout = new DataOutputStream(pending);
+		pout.writeInt(payload.length);
+		pout.write(payload);
+		pout.writeLong(crc.getValue());
+		pout.flush();
+		apply(payload, pos);
+		dirty = true;
+
+		if (pending.size() > WRITE_BUFFER_SIZE) flush();
+	}
+
+
+	/**
+	 * Write the buffered updates to the file, without syncing. 
+	 * They will survive if the process is killed, but not necessarily 
+	 * if the system crashes.
+	 */
+	public synchronized void flush()
+		throws IOException
+	{
+		if (pending.size() == 0) return;
+
+		raf.seek(fileLength);
+		raf.write(pending.toByteArray());
+		fileLength += pending.size();
+		pending.reset();
+	}
+
+
+	/**
+	 * Write all updates to disk and sync the file, and compact it
+	 * if there is much unused space in it.
+	 */
+	public synchronized void commit()
+		throws IOException
+	{
+		if (!dirty) return;
+
+		flush();
+		raf.getFD().sync();
+		dirty = false;
+
+		if (fileLength > MIN_COMPACT_SIZE 
+				&& (fileLength - MAGIC.length) > liveSize*2)
+			compact();
+	}
+
+
+	/**
+	 * Copy the live records to a new file, and replace the old file with it.
+	 */
+	public synchronized void compact()
+		throws IOException
+	{
+		flush();
+
+		Hashtable newIndex = new Hashtable();
+		long newLiveSize = 0;
+		RandomAccessFile out = new RandomAccessFile(newFile, "rw");
+		try {
+			out.setLength(0);
+			ByteArrayOutputStream buf = new ByteArrayOutputStream(65536);
+			DataOutputStream dout = new DataOutputStream(buf);
+			dout.write(MAGIC);
+			long pos = MAGIC.length;
+			CRC32 crc = new CRC32();
+			for (Enumeration e = index.keys(); e.hasMoreElements(); )
+			{
+				String key = (String)e.nextElement();
+				Record rec = (Record)index.get(key);
+				int headerLength = rec.recordSize - 4 - 8 - rec.valueLength;
+				byte[] payload = new byte[headerLength + rec.valueLength];
+				raf.seek(rec.valueOffset - headerLength);
+				raf.readFully(payload);
+				crc.reset();
+				crc.update(payload);
+
+				dout.writeInt(payload.length);
+				dout.write(payload);
+				dout.writeLong(crc.getValue());
+				newIndex.put(key, new Record(pos + 4 + headerLength,
+					rec.valueLength, rec.recordSize));
+				newLiveSize += rec.recordSize;
+				pos += rec.recordSize;
+
+				if (buf.size() > WRITE_BUFFER_SIZE)
+				{
+					dout.flush();
+					out.write(buf.toByteArray());
+					buf.reset();
+				}
+			}
+			dout.flush();
+			out.write(buf.toByteArray());
+			out.getFD().sync();
+		}
+		finally
+		{
+			out.close();
+		}
+
+		raf.close();
+		if (!file.delete() || !newFile.renameTo(file))
+			throw new IOException("Unable to rename " + newFile + " to " + file);
+		raf = new RandomAccessFile(file, "rw");
+		fileLength = raf.length();
+		index = newIndex;
+		liveSize = newLiveSize;
+	}
+
+
+	/**
+	 * Commit and close the store.
+	 */
+	public synchronized void close()
+		throws IOException
+	{
+		commit();
+		raf.close();
+	}
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright (c) 2005, Mikael Ståldal
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ * notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ * notice, this list of conditions and the following disclaimer in the 
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the author nor the names of its contributors 
+ * may be used to endorse or promote products derived from this software 
+ * without specific prior written permission. 
+ * 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY 
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * 
+ * Note: This is known as "the modified BSD license". It's an approved 
+ * Open Source and Free Software license, see 
+ * http://www.opensource.org/licenses/ 
+ * and
+ * http://www.gnu.org/philosophy/license-list.html
+ */
+
+package nu.staldal.util;
+
+import java.io.*;
+
+
+/**
+ * A bounded pipe for passing bytes from one thread to another.
+ *
+ * The bytes are kept in a ring buffer and copied in bulk, the threads 
+ * only wait for each other when the buffer is empty or full.
+ * There must be only one writing and one reading thread.
+ */
+public class Pipe
+{
+	private final byte[] buf;
+	private int readPos = 0;
+	private int count = 0;
+	private boolean writeClosed = false;
+	private boolean readClosed = false;
+	private boolean readerWaiting = false;
+	private boolean writerWaiting = false;
+
+	private final InputStream in = new PipeInputStream();
+	private final OutputStream out = new PipeOutputStream();
+
+
+	/**
+	 * Create a new pipe.
+	 *
+	 * @param size  the size of the buffer, in bytes
+	 */
+	public Pipe(int size)
+	{
+		if (size < 1) throw new IllegalArgumentException("size < 1");
+		buf = new byte[size];
+	}
+
+
+	/**
+	 * Get the stream to read from. Closing it makes further writes 
+	 * fail with an IOException.
+	 */
+	public InputStream getInputStream()
+	{
+		return in;
+	}
+
+
+	/**
+	 * Get the stream to write to. Closing it signals end of stream
+	 * to the reader, after the remaining bytes are read.
+	 */
+	public OutputStream getOutputStream()
+	{
+		return out;
+	}
+
+
+	/**
+	 * Check whether the reading end has been closed.
+	 */
+	public synchronized boolean isReadClosed()
+	{
+		return readClosed;
+	}
+
+
+	private synchronized int read(byte[] b, int off, int len)
+		throws IOException
+	{
+		if (readClosed) 
+			throw new IOException("Attempt to read from closed stream");
+		if (len == 0) return 0;
+
+		while (count == 0)
+		{
+			if (writeClosed) return -1;
+			readerWaiting = true;
+			try {
+				wait();
+			}
+			catch (InterruptedException e)
+			{
+				throw new InterruptedIOException();
+			}
+			finally
+			{
+				readerWaiting = false;
+			}
+			if (readClosed) 
+				throw new IOException("Attempt to read from closed stream");
+		}
+
+		int n = Math.min(len, count);
+		int first = Math.min(n, buf.length-readPos);
+		System.arraycopy(buf, readPos, b, off, first);
+		if (n > first) System.arraycopy(buf, 0, b, off+first, n-first);
+		readPos = (readPos+n) % buf.length;
+		count -= n;
+
+		if (writerWaiting) notify();
+		return n;
+	}
+
+
+	private synchronized void write(byte[] b, int off, int len)
+		throws IOException
+	{
+		while (len > 0)
+		{
+			if (writeClosed) 
+				throw new IOException("Attempt to write to closed stream");
+			if (readClosed) 
+				throw new IOException("Attempt to write to broken pipe");
+
+			if (count == buf.length)
+			{
+				writerWaiting = true;
+				try {
+					wait();
+				}
+				catch (InterruptedException e)
+				{
+					throw new InterruptedIOException();
+				}
+				finally
+				{
+					writerWaiting = false;
+				}
+				continue;
+			}
+
+			int writePos = (readPos+count) % buf.length;
+			int n = Math.min(len, buf.length-count);
+			int first = Math.min(n, buf.length-writePos);
+			System.arraycopy(b, off, buf, writePos, first);
+			if (n > first) System.arraycopy(b, off+first, buf, 0, n-first);
+			count += n;
+			off += n;
+			len -= n;
+
+			if (readerWaiting) notify();
+		}
+	}
+
+
+	private synchronized int available()
+	{
+		return count;
+	}
+
+
+	private synchronized void closeRead()
+	{
+		readClosed = true;
+		notifyAll();
+	}
+
+
+	private synchronized void closeWrite()
+	{
+		writeClosed = true;
+		notifyAll();
+	}
+
+
+	class PipeInputStream extends InputStream
+	{
+		private final byte[] one = new byte[1];
+
+		public int read()
+			throws IOException
+		{
+			return (read(one, 0, 1) < 0) ? -1 : (one[0] & 0xFF);
+		}
+
+		public int read(byte[] b, int off, int len)
+			throws IOException
+		{
+			return Pipe.this.read(b, off, len);
+		}
+
+		public int available()
+		{
+			return Pipe.this.available();
+		}
+
+		public void close()
+		{
+			closeRead();
+		}
+	}
+
+
+	class PipeOutputStream extends OutputStream
+	{
+		private final byte[] one = new byte[1];
+
+		public void write(int b)
+			throws IOException
+		{
+			one[0] = (byte)b;
+			write(one, 0, 1);
+		}
+
+		public void write(byte[] b, int off, int len)
+			throws IOException
+		{
+			Pipe.this.write(b, off, len);
+		}
+
+		public void close()
+		{
+			closeWrite();
+		}
+	}
+}
+
@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2005, Mikael Ståldal
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ * notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ * notice, this list of conditions and the following disclaimer in the 
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the author nor the names of its contributors 
+ * may be used to endorse or promote products derived from this software 
+ * without specific prior written permission. 
+ * 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY 
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * 
+ * Note: This is known as "the modified BSD license". It's an approved 
+ * Open Source and Free Software license, see 
+ * http://www.opensource.org/licenses/ 
+ * and
+ * http://www.gnu.org/philosophy/license-list.html
+ */
+
+package nu.staldal.util;
+
+import java.util.*;
+
+
+/**
+ * A map from strings to values, which can efficiently find all values
+ * with keys starting with a given prefix, and all values with keys 
+ * being a prefix of a given string. Several values may be stored with 
+ * the same key.
+ *
+ * This class is not thread-safe.
+ */
+public class PrefixTrie
+{
+	private final Node root = new Node();
+
+
+	private static class Node
+	{
+		/**
+		 * (Character) -> Node, or <code>null</code> if there are no children
+		 */
+		Hashtable children;
+
+		/**
+		 * Values with the key ending here, or <code>null</code>
+		 */
+		Vector values;
+	}
+
+
+	/**
+	 * Create a new, empty, PrefixTrie.
+	 */
+	public PrefixTrie()
+	{
+	}
+
+
+	/**
+	 * Add a value.
+	 *
+	 * @param key  the key
+	 * @param value  the value
+	 */
+	public void put(String key, Object value)
+	{
+		Node node = root;
+		for (int i = 0; i<key.length(); i++)
+		{
+			if (node.children == null) node.children = new Hashtable();
+			Character c = new Character(key.charAt(i));
+			Node child = (Node)node.children.get(c);
+			if (child == null)
+			{
+				child = new Node();
+				node.children.put(c, child);
+			}
+			node = child;
+		}
+		if (node.values == null) node.values = new Vector(1);
+		node.values.addElement(value);
+	}
+
+
+	/**
+	 * Find all values with keys starting with a prefix 
+	 * (including the prefix itself).
+	 *
+	 * @param prefix  the prefix
+	 *
+	 * @return a Vector of the values, may be empty
+	 */
+	public Vector getWithPrefix(String prefix)
+	{
+		Vector result = new Vector();
+		Node node = find(prefix);
+		if (node != null) collect(node, result);
+		return result;
+	}
+
+
+	/**
+	 * Find all values with keys which are a prefix of a string 
+	 * (including the string itself).
+	 *
+	 * @param s  the string
+	 *
+	 * @return a Vector of the values, may be empty
+	 */
+	public Vector getPrefixesOf(String s)
+	{
+		Vector result = new Vector();
+		Node node = root;
+		for (int i = 0; ; i++)
+		{
+			if (node.values != null) addAll(result, node.values);
+			if (i == s.length() || node.children == null) break;
+			node = (Node)node.children.get(new Character(s.charAt(i)));
+			if (node == null) break;
+		}
+		return result;
+	}
+
+
+	private Node find(String key)
+	{
+		Node node = root;
+		for (int i = 0; i<key.length(); i++)
+		{
+			if (node.children == null) return null;
+			node = (Node)node.children.get(new Character(key.charAt(i)));
+			if (node == null) return null;
+		}
+		return node;
+	}
+
+
+	private static void collect(Node node, Vector result)
+	{
+		if (node.values != null) addAll(result, node.values);
+		if (node.children != null)
+		{
+			for (Enumeration e = node.children.elements(); e.hasMoreElements(); )
+			{
+				collect((Node)e.nextElement(), result);
+			}
+		}
+	}
+
+
+	private static void addAll(Vector result, Vector values)
+	{
+		for (int i = 0; i<values.size(); i++)
+		{
+			result.addElement(values.elementAt(i));
+		}
+	}
+}
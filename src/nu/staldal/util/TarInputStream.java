@@ -0,0 +1,282 @@
+/*
+ * Copyright (c) 2005, Mikael Ståldal
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ * notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ * notice, this list of conditions and the following disclaimer in the 
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the author nor the names of its contributors 
+ * may be used to endorse or promote products derived from this software 
+ * without specific prior written permission. 
+ * 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY 
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * 
+ * Note: This is known as "the modified BSD license". It's an approved 
+ * Open Source and Free Software license, see 
+ * http://www.opensource.org/licenses/ 
+ * and
+ * http://www.gnu.org/philosophy/license-list.html
+ */
+
+package nu.staldal.util;
+
+import java.io.*;
+
+
+/**
+ * Reads a tar archive (POSIX ustar or GNU format).
+ *
+ * Invoke {@link #getNextEntry} to move to the next entry, and then 
+ * read its data from this stream.
+ */
+public class TarInputStream extends FilterInputStream
+{
+	private static final int BLOCK_SIZE = TarOutputStream.BLOCK_SIZE;
+
+	private long remaining = 0;
+	private long skipAfter = 0;
+	private long size;
+	private long time;
+	private int type;
+
+
+	/**
+	 * Read a tar archive.
+	 *
+	 * @param in  the stream to read the archive from
+	 */
+	public TarInputStream(InputStream in)
+	{
+		super(in);
+	}
+
+
+	/**
+	 * Move to the next entry, skipping the rest of the current one.
+	 *
+	 * @return the name of the entry, or <code>null</code> at the end of 
+	 *         the archive
+	 */
+	public String getNextEntry()
+		throws IOException
+	{
+		String longName = null;
+		while (true)
+		{
+			skipFully(remaining + skipAfter);
+			remaining = 0;
+			skipAfter = 0;
+
+			byte[] header = new byte[BLOCK_SIZE];
+			if (!readBlock(header)) return null;
+
+			boolean empty = true;
+			for (int i = 0; i<BLOCK_SIZE; i++)
+			{
+				if (header[i] != 0)
+				{
+					empty = false;
+					break;
+				}
+			}
+			if (empty) return null;
+
+			long sum = getOctal(header, 148, 8);
+			for (int i = 148; i<156; i++) header[i] = ' ';
+			if (sum != TarOutputStream.checksum(header))
+				throw new IOException("Invalid tar header");
+
+			size = getOctal(header, 124, 12);
+			time = getOctal(header, 136, 12) * 1000;
+			type = header[156];
+			remaining = size;
+			skipAfter = (BLOCK_SIZE - (size % BLOCK_SIZE)) % BLOCK_SIZE;
+
+			if (type == 'L')
+			{
+				// GNU long name of the next entry
+				ByteArrayOutputStream buf = new ByteArrayOutputStream();
+				int i;
+				while ((i = read()) >= 0) 
+				{
+					if (i != 0) buf.write(i);
+				}
+				longName = buf.toString("UTF-8");
+				continue;
+			}
+
+			if (longName != null) return longName;
+
+			String name = getString(header, 0, 100);
+			if (header[257] == 'u' && header[258] == 's' && header[259] == 't'
+					&& header[260] == 'a' && header[261] == 'r'
+					&& header[345] != 0)
+			{
+				name = getString(header, 345, 155) + "/" + name;
+			}
+			return name;
+		}
+	}
+
+
+	/**
+	 * Get the size of the current entry.
+	 */
+	public long getSize()
+	{
+		return size;
+	}
+
+
+	/**
+	 * Get the modification time of the current entry, 
+	 * in milliseconds since the epoch.
+	 */
+	public long getTime()
+	{
+		return time;
+	}
+
+
+	/**
+	 * Check if the current entry is a regular file.
+	 */
+	public boolean isFile()
+	{
+		return type == '0' || type == 0 || type == '7';
+	}
+
+
+	public int read()
+		throws IOException
+	{
+		if (remaining < 1) return -1;
+		int b = in.read();
+		if (b < 0) throw new EOFException("Unexpected end of tar archive");
+		remaining--;
+		return b;
+	}
+
+
+	public int read(byte[] b, int off, int len)
+		throws IOException
+	{
+		if (remaining < 1) return -1;
+		if (len > remaining) len = (int)remaining;
+		int n = in.read(b, off, len);
+		if (n < 0) throw new EOFException("Unexpected end of tar archive");
+		remaining -= n;
+		return n;
+	}
+
+
+	public long skip(long n)
+		throws IOException
+	{
+		if (n > remaining) n = remaining;
+		skipFully(n);
+		remaining -= n;
+		return n;
+	}
+
+
+	public int available()
+		throws IOException
+	{
+		int n = in.available();
+		return (n > remaining) ? (int)remaining : n;
+	}
+
+
+	public boolean markSupported()
+	{
+		return false;
+	}
+
+
+	private boolean readBlock(byte[] block)
+		throws IOException
+	{
+		int pos = 0;
+		while (pos < block.length)
+		{
+			int n = in.read(block, pos, block.length-pos);
+			if (n < 0)
+			{
+				if (pos == 0) return false;
+				throw new EOFException("Unexpected end of tar archive");
+			}
+			pos += n;
+		}
+		return true;
+	}
+
+
+	private void skipFully(long n)
+		throws IOException
+	{
+		byte[] buf = null;
+		while (n > 0)
+		{
+			long s = in.skip(n);
+			if (s <= 0)
+			{
+				// skip() may not be supported, read instead
+				if (buf == null) buf = new byte[BLOCK_SIZE*8];
+				int r = in.read(buf, 0, (int)Math.min(n, buf.length));
+				if (r < 0) 
+					throw new EOFException("Unexpected end of tar archive");
+				s = r;
+			}
+			n -= s;
+		}
+	}
+
+
+	private static long getOctal(byte[] header, int offset, int length)
+		throws IOException
+	{
+		long value = 0;
+		int end = offset + length;
+		int i = offset;
+		while (i < end && header[i] == ' ') i++;
+		for (; i < end; i++)
+		{
+			byte b = header[i];
+			if (b == 0 || b == ' ') break;
+			if (b < '0' || b > '7')
+				throw new IOException("Invalid tar header");
+			value = (value << 3) + (b - '0');
+		}
+		return value;
+	}
+
+
+	private static String getString(byte[] header, int offset, int length)
+		throws IOException
+	{
+		int end = offset;
+		while (end < offset+length && header[end] != 0) end++;
+		return new String(header, offset, end-offset, "UTF-8");
+	}
+}
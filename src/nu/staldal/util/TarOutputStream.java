@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2005, Mikael Ståldal
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ * notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ * notice, this list of conditions and the following disclaimer in the 
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the author nor the names of its contributors 
+ * may be used to endorse or promote products derived from this software 
+ * without specific prior written permission. 
+ * 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY 
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * 
+ * Note: This is known as "the modified BSD license". It's an approved 
+ * Open Source and Free Software license, see 
+ * http://www.opensource.org/licenses/ 
+ * and
+ * http://www.gnu.org/philosophy/license-list.html
+ */
+
+package nu.staldal.util;
+
+import java.io.*;
+
+
+/**
+ * Writes a tar archive (POSIX ustar format), containing regular files only.
+ *
+ * Invoke {@link #putNextEntry} before writing the data of each file,
+ * exactly the given number of bytes must be written.
+ */
+public class TarOutputStream extends FilterOutputStream
+{
+	static final int BLOCK_SIZE = 512;
+
+	private long remaining = 0;
+	private long written = 0;
+	private boolean inEntry = false;
+	private boolean finished = false;
+
+
+	/**
+	 * Create a new tar archive.
+	 *
+	 * @param out  the stream to write the archive to
+	 */
+	public TarOutputStream(OutputStream out)
+	{
+		super(out);
+	}
+
+
+	/**
+	 * Begin a new file, closes the current file if any.
+	 *
+	 * @param name  the name, with '/' separating directories
+	 * @param size  the number of bytes in the file
+	 * @param time  the modification time, in milliseconds since the epoch
+	 *
+	 * @throws IOException  if the name is too long for the ustar format
+	 */
+	public void putNextEntry(String name, long size, long time)
+		throws IOException
+	{
+		if (inEntry) closeEntry();
+
+		byte[] header = new byte[BLOCK_SIZE];
+		byte[] nameBytes = name.getBytes("UTF-8");
+		if (nameBytes.length <= 100)
+		{
+			System.arraycopy(nameBytes, 0, header, 0, nameBytes.length);
+		}
+		else
+		{
+			// split into prefix and name at a '/'
+			int split = -1;
+			for (int i = nameBytes.length-1; i>0; i--)
+			{
+				if (nameBytes[i] == '/' && nameBytes.length-i-1 <= 100)
+					split = i;
+			}
+			if (split < 0 || split > 155)
+				throw new IOException("Name too long for tar archive: " + name);
+			System.arraycopy(nameBytes, split+1,
+				header, 0, nameBytes.length-split-1);
+			System.arraycopy(nameBytes, 0, header, 345, split);
+		}
+
+		putOctal(header, 100, 8, 0644);        // mode
+		putOctal(header, 108, 8, 0);           // uid
+		putOctal(header, 116, 8, 0);           // gid
+		putOctal(header, 124, 12, size);
+		putOctal(header, 136, 12, time / 1000);
+		header[156] = '0';                     // regular file
+		header[257] = 'u'; header[258] = 's'; header[259] = 't';
+		header[260] = 'a'; header[261] = 'r';  // magic "ustar\0"
+		header[263] = '0'; header[264] = '0';  // version
+
+		for (int i = 148; i<156; i++) header[i] = ' ';
+		putOctal(header, 148, 7, checksum(header));
+
+		out.write(header);
+		remaining = size;
+		written = size;
+		inEntry = true;
+	}
+
+
+	/**
+	 * Close the current file.
+	 *
+	 * @throws IOException  if not all bytes of the file have been written
+	 */
+	public void closeEntry()
+		throws IOException
+	{
+		if (!inEntry) return;
+		if (remaining != 0)
+			throw new IOException("Wrong size of tar entry, "
+				+ remaining + " bytes missing");
+		int pad = (int)(written % BLOCK_SIZE);
+		if (pad > 0) out.write(new byte[BLOCK_SIZE - pad]);
+		inEntry = false;
+	}
+
+
+	public void write(int b)
+		throws IOException
+	{
+		if (remaining < 1)
+			throw new IOException("Too much data written to tar entry");
+		out.write(b);
+		remaining--;
+	}
+
+
+	public void write(byte[] b, int off, int len)
+		throws IOException
+	{
+		if (len > remaining)
+			throw new IOException("Too much data written to tar entry");
+		out.write(b, off, len);
+		remaining -= len;
+	}
+
+
+	/**
+	 * Finish the archive without closing the underlying stream.
+	 */
+	public void finish()
+		throws IOException
+	{
+		if (finished) return;
+		closeEntry();
+		out.write(new byte[BLOCK_SIZE*2]);
+		out.flush();
+		finished = true;
+	}
+
+
+	public void close()
+		throws IOException
+	{
+		finish();
+		out.close();
+	}
+
+
+	/**
+	 * Write a number in octal, zero padded and terminated by a NUL.
+	 */
+	private static void putOctal(byte[] header, int offset, int length,
+			long value)
+	{
+		int pos = offset + length - 1;
+		header[pos--] = 0;
+		while (pos >= offset)
+		{
+			header[pos--] = (byte)('0' + (value & 7));
+			value >>>= 3;
+		}
+	}
+
+
+	static long checksum(byte[] header)
+	{
+		long sum = 0;
+		for (int i = 0; i<BLOCK_SIZE; i++) sum += header[i] & 0xFF;
+		return sum;
+	}
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2005, Mikael Ståldal
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ * notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ * notice, this list of conditions and the following disclaimer in the 
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the author nor the names of its contributors 
+ * may be used to endorse or promote products derived from this software 
+ * without specific prior written permission. 
+ * 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY 
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * 
+ * Note: This is known as "the modified BSD license". It's an approved 
+ * Open Source and Free Software license, see 
+ * http://www.opensource.org/licenses/ 
+ * and
+ * http://www.gnu.org/philosophy/license-list.html
+ */
+
+package nu.staldal.util;
+
+import java.util.LinkedList;
+
+
+/**
+ * A fixed number of worker threads executing tasks from a queue.
+ *
+ * Tasks may submit new tasks to the same pool, {@link #waitUntilIdle}
+ * waits for those too. A task must handle its own exceptions,
+ * any exception or error escaping from it is ignored, and the worker
+ * thread goes on with the next task.
+ */
+public class ThreadPool
+{
+    private final LinkedList queue;
+    private final Thread[] workers;
+    private int busy;
+    private boolean shutdown;
+
+
+    /**
+     * Create a new ThreadPool and start its worker threads.
+     *
+     * @param name  name of the threads, a number will be appended
+     * @param size  the number of worker threads, must be at least 1
+     */
+    public ThreadPool(String name, int size)
+    {
+        if (size < 1)
+            throw new IllegalArgumentException(
+                "ThreadPool size must be at least 1");
+
+        queue = new LinkedList();
+        busy = 0;
+        shutdown = false;
+
+        workers = new Thread[size];
+        for (int i = 0; i<size; i++)
+        {
+            workers[i] = new Thread(new Worker(), name + "-" + (i+1));
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+
+    /**
+     * Get the number of worker threads.
+     */
+    public int getSize()
+    {
+        return workers.length;
+    }
+
+
+    /**
+     * Queue a task for execution. Does not block.
+     *
+     * @throws IllegalStateException  if the pool has been shut down
+     */
+    public synchronized void execute(Runnable task)
+    {
+        if (shutdown)
+            throw new IllegalStateException("ThreadPool is shut down");
+
+        queue.addLast(task);
+        notifyAll();
+    }
+
+
+    /**
+     * Wait until the queue is empty and no task is running.
+     */
+    public synchronized void waitUntilIdle()
+        throws InterruptedException
+    {
+        while (!queue.isEmpty() || busy > 0)
+        {
+            wait();
+        }
+    }
+
+
+    /**
+     * Discard all queued tasks which have not yet been started.
+     */
+    public synchronized void clear()
+    {
+        queue.clear();
+        notifyAll();
+    }
+
+
+    /**
+     * Shut down this pool. Already queued tasks will still be executed,
+     * then the worker threads terminate.
+     */
+    public synchronized void shutdown()
+    {
+        shutdown = true;
+        notifyAll();
+    }
+
+
+    private synchronized Runnable nextTask()
+        throws InterruptedException
+    {
+        while (queue.isEmpty() && !shutdown)
+        {
+            wait();
+        }
+
+        if (queue.isEmpty()) return null;
+
+        busy++;
+        return (Runnable)queue.removeFirst();
+    }
+
+
+    private synchronized void taskDone()
+    {
+        busy--;
+        notifyAll();
+    }
+
+
+    class Worker implements Runnable
+    {
+        public void run()
+        {
+            while (true)
+            {
+                Runnable task;
+                try {
+                    task = nextTask();
+                }
+                catch (InterruptedException e)
+                {
+                    return;
+                }
+                if (task == null) return;
+
+                try {
+                    task.run();
+                }
+                catch (Throwable e)
+                {
+                    // the task must report its own errors
+                }
+                finally
+                {
+                    taskDone();
+                }
+            }
+        }
+    }
+
+}
@@ -171,4 +171,20 @@ public final class Utils
 		return sb.toString();
 	}
 	
+
+
+	/**
+	 * Format bytes as a {@link java.lang.String} of hexadecimal digits.
+	 */
+	public static String toHex(byte[] bytes)
+	{
+		StringBuffer sb = new StringBuffer(bytes.length*2);
+		for (int i = 0; i<bytes.length; i++)
+		{
+			sb.append(Character.forDigit((bytes[i] >> 4) & 0xF, 16));
+			sb.append(Character.forDigit(bytes[i] & 0xF, 16));
+		}
+		return sb.toString();
+	}
+	
 }
@@ -0,0 +1,423 @@
+/*
+ * Copyright (c) 2005, Mikael Ståldal
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ * notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ * notice, this list of conditions and the following disclaimer in the 
+ * documentation and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the author nor the names of its contributors 
+ * may be used to endorse or promote products derived from this software 
+ * without specific prior written permission. 
+ * 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * ``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY 
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * 
+ * Note: This is known as "the modified BSD license". It's an approved 
+ * Open Source and Free Software license, see 
+ * http://www.opensource.org/licenses/ 
+ * and
+ * http://www.gnu.org/philosophy/license-list.html
+ */
+
+package nu.staldal.xmlutil;
+
+import java.util.Hashtable;
+
+import org.xml.sax.*;
+import org.xml.sax.helpers.AttributesImpl;
+
+
+/**
+ * Records the events of a SAX2 ContentHandler in a compact form, so that
+ * they can be replayed any number of times.
+ *
+ * Names and other strings are stored only once, and character data is 
+ * stored in a single char array. The events may be passed on to another 
+ * ContentHandler while recording. If the recorded size exceeds a limit, 
+ * recording stops and the buffer is marked as overflowed, but the events 
+ * are still passed on.
+ *
+ * Recording must be complete before replaying, but a complete buffer 
+ * may be replayed concurrently from several threads.
+ */
+public class SAXEventBuffer implements ContentHandler
+{
+	private static final byte START_DOCUMENT = 1;
+	private static final byte END_DOCUMENT = 2;
+	private static final byte START_ELEMENT = 3;
+	private static final byte END_ELEMENT = 4;
+	private static final byte START_PREFIX_MAPPING = 5;
+	private static final byte END_PREFIX_MAPPING = 6;
+	private static final byte CHARACTERS = 7;
+	private static final byte IGNORABLE_WHITESPACE = 8;
+	private static final byte PROCESSING_INSTRUCTION = 9;
+	private static final byte SKIPPED_ENTITY = 10;
+
+	private final ContentHandler next;
+	private final long maxSize;
+
+	private byte[] ops = new byte[256];
+	private int opCount = 0;
+	private int[] args = new int[1024];
+	private int argCount = 0;
+	private char[] chars = new char[4096];
+	private int charCount = 0;
+	private String[] strings = new String[64];
+	private int stringCount = 0;
+	private Hashtable stringIndex = new Hashtable();
+	private long stringSize = 0;
+
+	private boolean overflowed = false;
+
+
+	/**
+	 * Constructs an empty buffer.
+	 *
+	 * @param next  the ContentHandler to pass events on to while 
+	 *              recording, may be <code>null</code>
+	 * @param maxSize  the maximum size in bytes (approximately) to record
+	 */
+	public SAXEventBuffer(ContentHandler next, long maxSize)
+	{
+		this.next = next;
+		this.maxSize = maxSize;
+	}
+
+
+	/**
+	 * Check whether the recording was stopped since the maximum 
+	 * size was exceeded. An overflowed buffer cannot be replayed.
+	 */
+	public boolean isOverflowed()
+	{
+		return overflowed;
+	}
+
+
+	/**
+	 * Get the approximate size of the recorded events, in bytes.
+	 */
+	public long getSize()
+	{
+		return opCount + argCount*4L + charCount*2L + stringSize;
+	}
+
+
+	/**
+	 * Replay the recorded events.
+	 *
+	 * @param ch  the ContentHandler to fire the events on
+	 *
+	 * @throws IllegalStateException  if the buffer has overflowed
+	 */
+	public void replay(ContentHandler ch)
+		throws SAXException
+	{
+		if (overflowed)
+			throw new IllegalStateException("SAXEventBuffer has overflowed");
+
+		AttributesImpl atts = new AttributesImpl();
+		int a = 0;
+		for (int i = 0; i<opCount; i++)
+		{
+			switch (ops[i])
+			{
+			case START_DOCUMENT:
+				ch.startDocument();
+				break;
+
+			case END_DOCUMENT:
+				ch.endDocument();
+				break;
+
+			case START_ELEMENT:
+			{
+				String ns = strings[args[a++]];
+				String localName = strings[args[a++]];
+				String qName = strings[args[a++]];
+				int attCount = args[a++];
+				atts.clear();
+				for (int j = 0; j<attCount; j++)
+				{
+					atts.addAttribute(strings[args[a]], strings[args[a+1]],
+						strings[args[a+2]], strings[args[a+3]], 
+						strings[args[a+4]]);
+					a += 5;
+				}
+				ch.startElement(ns, localName, qName, atts);
+				break;
+			}
+
+			case END_ELEMENT:
+				ch.endElement(strings[args[a]], strings[args[a+1]], 
+					strings[args[a+2]]);
+				a += 3;
+				break;
+
+			case START_PREFIX_MAPPING:
+				ch.startPrefixMapping(strings[args[a]], strings[args[a+1]]);
+				a += 2;
+				break;
+
+			case END_PREFIX_MAPPING:
+				ch.endPrefixMapping(strings[args[a++]]);
+				break;
+
+			case CHARACTERS:
+				ch.characters(chars, args[a], args[a+1]);
+				a += 2;
+				break;
+
+			case IGNORABLE_WHITESPACE:
+				ch.ignorableWhitespace(chars, args[a], args[a+1]);
+				a += 2;
+				break;
+
+			case PROCESSING_INSTRUCTION:
+				ch.processingInstruction(strings[args[a]], strings[args[a+1]]);
+				a += 2;
+				break;
+
+			case SKIPPED_ENTITY:
+				ch.skippedEntity(strings[args[a++]]);
+				break;
+			}
+		}
+	}
+
+
+	private void op(byte op)
+	{
+		if (opCount == ops.length)
+		{
+			byte[] newOps = new byte[ops.length*2];
+			System.arraycopy(ops, 0, newOps, 0, opCount);
+			ops = newOps;
+		}
+		ops[opCount++] = op;
+	}
+
+
+	private void arg(int arg)
+	{
+		if (argCount == args.length)
+		{
+			int[] newArgs = new int[args.length*2];
+			System.arraycopy(args, 0, newArgs, 0, argCount);
+			args = newArgs;
+		}
+		args[argCount++] = arg;
+	}
+
+
+	private void string(String s)
+	{
+		if (s == null) s = "";
+		Integer index = (Integer)stringIndex.get(s);
+		if (index == null)
+		{
+			if (stringCount == strings.length)
+			{
+				String[] newStrings = new String[strings.length*2];
+				System.arraycopy(strings, 0, newStrings, 0, stringCount);
+				strings = newStrings;
+			}
+			index = new Integer(stringCount);
+			strings[stringCount++] = s;
+			stringIndex.put(s, index);
+			stringSize += 40 + s.length()*2;
+		}
+		arg(index.intValue());
+	}
+
+
+	private void chars(char[] ch, int start, int length)
+	{
+		if (charCount + length > chars.length)
+		{
+			char[] newChars = 
+				new char[Math.max(chars.length*2, charCount + length)];
+			System.arraycopy(chars, 0, newChars, 0, charCount);
+			chars = newChars;
+		}
+		System.arraycopy(ch, start, chars, charCount, length);
+		arg(charCount);
+		arg(length);
+		charCount += length;
+	}
+
+
+	/**
+	 * Stop recording if the maximum size is exceeded.
+	 */
+	private void checkSize()
+	{
+		if (getSize() > maxSize)
+		{
+			overflowed = true;
+			ops = null;
+			args = null;
+			chars = null;
+			strings = null;
+			stringIndex = null;
+		}
+	}
+
+
+    // ContentHandler implementation
+
+    public void setDocumentLocator(Locator locator)
+    {
+		if (next != null) next.setDocumentLocator(locator);
+    }
+
+    public void startDocument()
+        throws SAXException
+    {
+		if (!overflowed)
+		{
+			op(START_DOCUMENT);
+		}
+		if (next != null) next.startDocument();
+    }
+
+    public void endDocument()
+        throws SAXException
+    {
+		if (!overflowed)
+		{
+			op(END_DOCUMENT);
+			stringIndex = null;  // not needed any more
+		}
+		if (next != null) next.endDocument();
+    }
+
+    public void startElement(String namespaceURI, String localName,
+                             String qname, Attributes atts)
+        throws SAXException
+    {
+		if (!overflowed)
+		{
+			op(START_ELEMENT);
+			string(namespaceURI);
+			string(localName);
+			string(qname);
+			arg(atts.getLength());
+			for (int i = 0; i<atts.getLength(); i++)
+			{
+				string(atts.getURI(i));
+				string(atts.getLocalName(i));
+				string(atts.getQName(i));
+				string(atts.getType(i));
+				string(atts.getValue(i));
+			}
+			checkSize();
+		}
+		if (next != null) 
+			next.startElement(namespaceURI, localName, qname, atts);
+    }
+
+    public void endElement(String namespaceURI, String localName,
+                           String qname)
+        throws SAXException
+    {
+		if (!overflowed)
+		{
+			op(END_ELEMENT);
+			string(namespaceURI);
+			string(localName);
+			string(qname);
+		}
+		if (next != null) next.endElement(namespaceURI, localName, qname);
+    }
+
+    public void startPrefixMapping(String prefix, String uri)
+        throws SAXException
+    {
+		if (!overflowed)
+		{
+			op(START_PREFIX_MAPPING);
+			string(prefix);
+			string(uri);
+		}
+		if (next != null) next.startPrefixMapping(prefix, uri);
+    }
+
+    public void endPrefixMapping(String prefix)
+        throws SAXException
+    {
+		if (!overflowed)
+		{
+			op(END_PREFIX_MAPPING);
+			string(prefix);
+		}
+		if (next != null) next.endPrefixMapping(prefix);
+    }
+
+    public void characters(char[] ch, int start, int length)
+        throws SAXException
+    {
+		if (!overflowed)
+		{
+			op(CHARACTERS);
+			chars(ch, start, length);
+			checkSize();
+		}
+		if (next != null) next.characters(ch, start, length);
+    }
+
+    public void ignorableWhitespace(char[] ch, int start, int length)
+        throws SAXException
+    {
+		if (!overflowed)
+		{
+			op(IGNORABLE_WHITESPACE);
+			chars(ch, start, length);
+			checkSize();
+		}
+		if (next != null) next.ignorableWhitespace(ch, start, length);
+    }
+
+    public void processingInstruction(String target, String data)
+        throws SAXException
+    {
+		if (!overflowed)
+		{
+			op(PROCESSING_INSTRUCTION);
+			string(target);
+			string(data);
+			checkSize();
+		}
+		if (next != null) next.processingInstruction(target, data);
+    }
+
+    public void skippedEntity(String name)
+        throws SAXException
+    {
+		if (!overflowed)
+		{
+			op(SKIPPED_ENTITY);
+			string(name);
+		}
+		if (next != null) next.skippedEntity(name);
+    }
+}
@@ -0,0 +1,403 @@
+package nu.staldal.ftp;
+
+import java.io.*;
+import java.net.*;
+
+/**
+ * A minimal FTP server on the loopback interface, serving a local
+ * directory. Used to test and benchmark FTPClient without a real server.
+ *
+ * Supports the commands used by FTPClient, passive mode only.
+ * A simulated network round trip time can be set, each response is then
+ * sent that long after its command was received, so commands which are
+ * pipelined share the delay.
+ *
+ * Can also be run standalone:
+ * <code>java nu.staldal.ftp.LoopbackFTPServer <em>dir</em> <em>port</em>
+ * [<em>latency</em>]</code>, any username and password is accepted.
+ */
+public class LoopbackFTPServer implements Runnable
+{
+    private final File root;
+    private final ServerSocket server;
+    private long latency = 0;
+    private boolean pwd = true;
+    private int connections = 0;
+    private int commands = 0;
+
+
+    /**
+     * Start a server on a free port.
+     *
+     * @param root  the directory to serve
+     */
+    public LoopbackFTPServer(File root)
+        throws IOException
+    {
+        this(root, 0);
+    }
+
+
+    /**
+     * Start a server.
+     *
+     * @param root  the directory to serve
+     * @param port  the port, 0 to use a free port
+     */
+    public LoopbackFTPServer(File root, int port)
+        throws IOException
+    {
+        this.root = root;
+        server = new ServerSocket(port, 50, InetAddress.getByName("127.0.0.1"));
+        Thread t = new Thread(this, "LoopbackFTPServer");
+        t.setDaemon(true);
+        t.start();
+    }
+
+
+    public int getPort()
+    {
+        return server.getLocalPort();
+    }
+
+
+    /**
+     * Get an URL for FTPClient to this server.
+     *
+     * @param path  initial path, must end with '/'
+     */
+    public String getURL(String path)
+    {
+        return "ftp://test@127.0.0.1:" + getPort() + "/" + path;
+    }
+
+
+    /**
+     * Set the simulated round trip time in milliseconds.
+     */
+    public synchronized void setLatency(long latency)
+    {
+        this.latency = latency;
+    }
+
+
+    private synchronized long getLatency()
+    {
+        return latency;
+    }
+
+
+    /**
+     * Enable or disable the PWD command.
+     */
+    public synchronized void setPWD(boolean pwd)
+    {
+        this.pwd = pwd;
+    }
+
+
+    private synchronized boolean getPWD()
+    {
+        return pwd;
+    }
+
+
+    /**
+     * Get the number of control connections accepted so far.
+     */
+    public synchronized int getConnections()
+    {
+        return connections;
+    }
+
+
+    /**
+     * Get the number of commands received so far.
+     */
+    public synchronized int getCommands()
+    {
+        return commands;
+    }
+
+
+    private synchronized void countCommand()
+    {
+        commands++;
+    }
+
+
+    public void close()
+        throws IOException
+    {
+        server.close();
+    }
+
+
+    public void run()
+    {
+        while (true)
+        {
+            Socket s;
+            try {
+                s = server.accept();
+            }
+            catch (IOException e)
+            {
+                return; // closed
+            }
+            synchronized (this)
+            {
+                connections++;
+            }
+            Thread t = new Thread(new Session(s), "LoopbackFTPSession");
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+
+    class Session implements Runnable
+    {
+        private final Socket control;
+        private InputStream in;
+        private OutputStream out;
+        private String cwd = "/";
+        private ServerSocket pasv = null;
+        private long received;
+
+        Session(Socket control)
+        {
+            this.control = control;
+        }
+
+        public void run()
+        {
+            try {
+                in = new BufferedInputStream(control.getInputStream());
+                out = new BufferedOutputStream(control.getOutputStream());
+                received = System.currentTimeMillis();
+                reply("220 LoopbackFTPServer ready");
+
+                while (true)
+                {
+                    String line = readLine();
+                    if (line == null) break;
+                    received = System.currentTimeMillis();
+                    countCommand();
+                    if (!command(line)) break;
+                }
+            }
+            catch (IOException e)
+            {
+                // connection lost
+            }
+            finally
+            {
+                try { control.close(); } catch (IOException ignore) {}
+            }
+        }
+
+        private String readLine()
+            throws IOException
+        {
+            StringBuffer sb = new StringBuffer();
+            while (true)
+            {
+                int i = in.read();
+                if (i < 0) return null;
+                if (i == '\n') break;
+                if (i != '\r') sb.append((char)i);
+            }
+            return sb.toString();
+        }
+
+        /**
+         * Send a response, when the round trip time has passed
+         * since the command was received.
+         */
+        private void reply(String resp)
+            throws IOException
+        {
+            long wait = received + getLatency() - System.currentTimeMillis();
+            if (wait > 0)
+            {
+                try {
+                    Thread.sleep(wait);
+                }
+                catch (InterruptedException e)
+                {
+                    throw new InterruptedIOException();
+                }
+            }
+            out.write(resp.getBytes("US-ASCII"));
+            out.write('\r');
+            out.write('\n');
+            out.flush();
+        }
+
+        private String resolve(String arg)
+        {
+            String path = arg.startsWith("/") ? arg : (cwd + arg);
+            if (path.length() > 1 && path.endsWith("/"))
+                path = path.substring(0, path.length()-1);
+            return path;
+        }
+
+        private String currentDir()
+        {
+            return (cwd.length() > 1)
+                ? cwd.substring(0, cwd.length()-1) : cwd;
+        }
+
+        private File toFile(String path)
+        {
+            return new File(root, path.substring(1));
+        }
+
+        private boolean command(String line)
+            throws IOException
+        {
+            int sp = line.indexOf(' ');
+            String cmd = (sp < 0) ? line : line.substring(0, sp);
+            String arg = (sp < 0) ? null : line.substring(sp+1);
+
+            if (cmd.equals("USER"))
+                reply("331 Password required");
+            else if (cmd.equals("PASS"))
+                reply("230 Logged in");
+            else if (cmd.equals("TYPE") || cmd.equals("NOOP"))
+                reply("200 OK");
+            else if (cmd.equals("PWD"))
+            {
+                if (getPWD())
+                    reply("257 \"" + currentDir()
+                        + "\" is current directory");
+                else
+                    reply("502 Not implemented");
+            }
+            else if (cmd.equals("CWD"))
+            {
+                String path = resolve(arg);
+                if (toFile(path).isDirectory())
+                {
+                    cwd = path.endsWith("/") ? path : (path + "/");
+                    reply("250 OK");
+                }
+                else
+                    reply("550 No such directory");
+            }
+            else if (cmd.equals("CDUP"))
+            {
+                if (cwd.length() > 1)
+                    cwd = cwd.substring(0,
+                        cwd.lastIndexOf('/', cwd.length()-2)+1);
+                reply("250 OK");
+            }
+            else if (cmd.equals("MKD"))
+            {
+                if (toFile(resolve(arg)).mkdir())
+                    reply("257 \"" + resolve(arg) + "\" created");
+                else
+                    reply("550 Unable to create directory");
+            }
+            else if (cmd.equals("DELE"))
+            {
+                if (toFile(resolve(arg)).delete())
+                    reply("250 OK");
+                else
+                    reply("550 No such file");
+            }
+            else if (cmd.equals("PASV"))
+            {
+                if (pasv != null) pasv.close();
+                pasv = new ServerSocket(0, 1,
+                    InetAddress.getByName("127.0.0.1"));
+                int port = pasv.getLocalPort();
+                reply("227 Entering Passive Mode (127,0,0,1,"
+                    + (port >> 8) + "," + (port & 255) + ")");
+            }
+            else if (cmd.equals("STOR") || cmd.equals("APPE")
+                    || cmd.equals("STOU"))
+            {
+                if (pasv == null)
+                {
+                    reply("425 Use PASV first");
+                    return true;
+                }
+                File file;
+                if (cmd.equals("STOU"))
+                    file = File.createTempFile("stou", "",
+                        toFile(currentDir()));
+                else
+                    file = toFile(resolve(arg));
+                if (!file.getParentFile().isDirectory())
+                {
+                    pasv.close();
+                    pasv = null;
+                    reply("553 No such directory");
+                    return true;
+                }
+                Socket data = pasv.accept();
+                pasv.close();
+                pasv = null;
+                reply("150 Opening data connection");
+                receive(data, file, cmd.equals("APPE"));
+                received = System.currentTimeMillis();
+                reply("226 Transfer complete");
+            }
+            else if (cmd.equals("QUIT"))
+            {
+                reply("221 Bye");
+                return false;
+            }
+            else
+                reply("502 Not implemented");
+
+            return true;
+        }
+
+        private void receive(Socket data, File file, boolean append)
+            throws IOException
+        {
+            InputStream is = data.getInputStream();
+            OutputStream os = new FileOutputStream(file.getPath(), append);
+            try {
+                byte[] buf = new byte[8192];
+                while (true)
+                {
+                    int n = is.read(buf);
+                    if (n < 0) break;
+                    os.write(buf, 0, n);
+                }
+            }
+            finally
+            {
+                os.close();
+                data.close();
+            }
+        }
+    }
+
+
+    public static void main(String[] args)
+        throws Exception
+    {
+        if (args.length < 2)
+        {
+            System.out.println(
+                "Syntax: LoopbackFTPServer <dir> <port> [<latency>]");
+            return;
+        }
+        LoopbackFTPServer server =
+            new LoopbackFTPServer(new File(args[0]), Integer.parseInt(args[1]));
+        if (args.length > 2) server.setLatency(Long.parseLong(args[2]));
+        System.out.println("LoopbackFTPServer listening on port "
+            + server.getPort());
+        while (true)
+        {
+            Thread.sleep(10000);
+            System.out.println(server.getConnections() + " connections, "
+                + server.getCommands() + " commands");
+        }
+    }
+}
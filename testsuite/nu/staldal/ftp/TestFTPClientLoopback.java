@@ -0,0 +1,138 @@
+package nu.staldal.ftp;
+
+import java.io.*;
+
+import junit.framework.*;
+
+public class TestFTPClientLoopback extends TestCase
+{
+    public TestFTPClientLoopback(String name)
+    {
+        super(name);
+    }
+
+    private File root;
+    private LoopbackFTPServer server;
+
+
+    protected void setUp() throws Exception
+    {
+        root = new File("ftpClientTest");
+        delete(root);
+        new File(root, "site").mkdirs();
+        server = new LoopbackFTPServer(root);
+    }
+
+    protected void tearDown() throws Exception
+    {
+        server.close();
+        delete(root);
+    }
+
+    private static void delete(File file)
+    {
+        File[] files = file.listFiles();
+        if (files != null)
+        {
+            for (int i = 0; i<files.length; i++) delete(files[i]);
+        }
+        file.delete();
+    }
+
+    private static void send(OutputStream os, String str)
+        throws IOException
+    {
+        os.write(str.getBytes("ISO-8859-1"));
+        os.close();
+    }
+
+    private String read(String path)
+        throws IOException
+    {
+        File file = new File(root, "site/" + path);
+        assertTrue(path + " not found", file.isFile());
+        InputStream is = new FileInputStream(file);
+        StringBuffer sb = new StringBuffer();
+        int i;
+        while ((i = is.read()) >= 0) sb.append((char)i);
+        is.close();
+        return sb.toString();
+    }
+
+    private void transfer(FTPClient ftp) throws Exception
+    {
+        send(ftp.store("/index.html"), "index");
+        send(ftp.store("/foo/bar/one.html"), "one");
+        send(ftp.store("/foo/bar/two.html"), "two");
+        send(ftp.store("foo/three.html"), "three");
+        send(ftp.append("/foo/bar/two.html"), " more");
+        send(ftp.storeUnique("/foo/"), "unique");
+        send(ftp.store("/baz/four.html"), "four");
+
+        assertTrue(ftp.deleteFile("/foo/bar/one.html"));
+        assertTrue(!ftp.deleteFile("/foo/bar/one.html"));
+        assertTrue(!ftp.deleteFile("/nonexistent/one.html"));
+        send(ftp.store("/foo/bar/five.html"), "five");
+        ftp.noop();
+        ftp.close();
+
+        assertEquals("index", read("index.html"));
+        assertEquals("two more", read("foo/bar/two.html"));
+        assertEquals("three", read("foo/three.html"));
+        assertEquals("four", read("baz/four.html"));
+        assertEquals("five", read("foo/bar/five.html"));
+        assertTrue(!new File(root, "site/foo/bar/one.html").exists());
+        assertEquals(3, new File(root, "site/foo").list().length);
+    }
+
+
+    public void testTransfer() throws Exception
+    {
+        transfer(new FTPClient(server.getURL("site/"), "secret"));
+    }
+
+    public void testWithoutPipelining() throws Exception
+    {
+        FTPClient ftp = new FTPClient(server.getURL("site/"), "secret");
+        ftp.setPipelining(false);
+        transfer(ftp);
+    }
+
+    public void testWithoutPWD() throws Exception
+    {
+        server.setPWD(false);
+        transfer(new FTPClient(server.getURL("site/"), "secret"));
+    }
+
+    public void testCommands() throws Exception
+    {
+        FTPClient ftp = new FTPClient(server.getURL("site/"), "secret");
+        send(ftp.store("/a/b/first.html"), "first");
+
+        // only PASV and STOR for each file in a known directory
+        int before = server.getCommands();
+        for (int i = 0; i<10; i++)
+        {
+            send(ftp.store("/a/b/file" + i + ".html"), "file");
+        }
+        assertEquals(20, server.getCommands() - before);
+
+        // one MKD for each new directory
+        before = server.getCommands();
+        send(ftp.store("/a/c/d/file.html"), "file");
+        assertEquals(4, server.getCommands() - before);
+        ftp.close();
+    }
+
+    public void testParsePathname()
+    {
+        assertEquals("/home/joe/",
+            FTPClient.parsePathname("257 \"/home/joe\" is current directory"));
+        assertEquals("/",
+            FTPClient.parsePathname("257 \"/\" is current directory"));
+        assertEquals("/say \"hi\"/",
+            FTPClient.parsePathname("257 \"/say \"\"hi\"\"/\""));
+        assertNull(FTPClient.parsePathname("257 current directory"));
+        assertNull(FTPClient.parsePathname("257 \"C:\\home\""));
+    }
+}
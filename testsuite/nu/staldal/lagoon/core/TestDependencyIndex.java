@@ -0,0 +1,153 @@
+package nu.staldal.lagoon.core;
+
+import java.io.*;
+import java.util.*;
+
+import junit.framework.*;
+
+import nu.staldal.util.FileStatCache;
+
+public class TestDependencyIndex extends TestCase
+{
+    public TestDependencyIndex(String name)
+    {
+        super(name);
+    }
+
+    private File dir;
+    private File a;
+    private File b;
+
+
+    protected void setUp() throws Exception
+    {
+        dir = new File("dependencyIndexTest");
+        dir.mkdir();
+        a = new File(dir, "a.xml");
+        b = new File(dir, "b.xsl");
+        new FileOutputStream(a).close();
+        new FileOutputStream(b).close();
+        a.setLastModified(1000000000000L);
+        b.setLastModified(1000000000000L);
+    }
+
+    protected void tearDown() throws Exception
+    {
+        a.delete();
+        b.delete();
+        dir.delete();
+    }
+
+    public void testDependencyIndex() throws Exception
+    {
+        DependencyIndex index = new DependencyIndex();
+        FileStatCache stats = new FileStatCache();
+
+        Vector deps1 = new Vector();
+        deps1.addElement(a);
+        deps1.addElement(b);
+        index.put("/a.html", "sig", deps1, false, stats);
+
+        Vector deps2 = new Vector();
+        deps2.addElement(b);
+        index.put("/b.html", "sig", deps2, false, stats);
+        index.put("/c.html", "sig", new Vector(), true, stats);
+
+        assertTrue(index.isTracked("/a.html", "sig"));
+        assertTrue(!index.isTracked("/a.html", "other"));
+        assertTrue(!index.isTracked("/c.html", "sig"));
+        assertTrue(!index.isTracked("/d.html", "sig"));
+
+        index.scan(stats);
+        assertTrue(!index.isAffected("/a.html"));
+        assertTrue(!index.isAffected("/b.html"));
+        assertEquals(2, stats.getMisses());
+        assertTrue(stats.getHits() > 0);
+
+        a.setLastModified(1000000001000L);
+        index.scan(stats);
+        assertTrue(!index.isAffected("/a.html"));
+        stats.invalidate(a);
+        index.scan(stats);
+        assertTrue(index.isAffected("/a.html"));
+        assertTrue(!index.isAffected("/b.html"));
+
+        Enumeration e = index.getTargets(b);
+        int count = 0;
+        while (e.hasMoreElements()) { e.nextElement(); count++; }
+        assertEquals(2, count);
+
+        Hashtable records = index.getChanges();
+        assertEquals(3, records.size());
+        assertTrue(!index.isModified());
+        DependencyIndex index2 = new DependencyIndex();
+        for (e = records.keys(); e.hasMoreElements(); )
+        {
+            String target = (String)e.nextElement();
+            index2.load(target, (byte[])records.get(target));
+        }
+        assertTrue(!index2.isModified());
+
+        assertTrue(index2.isTracked("/b.html", "sig"));
+        assertTrue(!index2.isTracked("/c.html", "sig"));
+        assertTrue(index2.getTargets(a).hasMoreElements());
+
+        // the same dependencies again, nothing to save
+        index2.put("/b.html", "sig", deps2, false, stats);
+        assertTrue(!index2.isModified());
+        index2.put("/b.html", "other", deps2, false, stats);
+        assertTrue(index2.isModified());
+
+        index2.remove("/a.html");
+        assertTrue(!index2.isTracked("/a.html", "sig"));
+        assertTrue(!index2.getTargets(a).hasMoreElements());
+        records = index2.getChanges();
+        assertEquals(2, records.size());
+        assertEquals(0, ((byte[])records.get("/a.html")).length);
+    }
+
+    public void testUpToDate() throws Exception
+    {
+        DependencyIndex index = new DependencyIndex();
+        FileStatCache stats = new FileStatCache();
+
+        Vector deps = new Vector();
+        deps.addElement(a);
+        index.put("/a.html", "sig", deps, false, stats);
+        index.put("/b.html", "sig", deps, false, stats);
+        index.put("/c.html", "sig", new Vector(), true, stats);
+
+        assertTrue(index.isUpToDate("/a.html", "sig", new FileStatCache()));
+        assertTrue(!index.isUpToDate("/a.html", "other", new FileStatCache()));
+        assertTrue(!index.isUpToDate("/c.html", "sig", new FileStatCache()));
+        assertTrue(!index.isUpToDate("/d.html", "sig", new FileStatCache()));
+
+        index.scan(stats, new Vector(Collections.singleton("/b.html")).elements());
+        a.setLastModified(1000000001000L);
+        assertTrue(!index.isUpToDate("/a.html", "sig", new FileStatCache()));
+
+        // the result of the last scan is kept
+        assertTrue(!index.isAffected("/b.html"));
+    }
+
+    public void testContentHash() throws Exception
+    {
+        DependencyIndex index = new DependencyIndex();
+        index.setContentHash(true);
+
+        Vector deps = new Vector();
+        deps.addElement(a);
+        index.put("/a.html", "sig", deps, false, new FileStatCache());
+
+        a.setLastModified(1000000001000L);
+        index.scan(new FileStatCache());
+        assertTrue(!index.isAffected("/a.html"));
+
+        FileOutputStream out = new FileOutputStream(a);
+        out.write('x');
+        out.close();
+        a.setLastModified(1000000002000L);
+        index.scan(new FileStatCache());
+        assertTrue(index.isAffected("/a.html"));
+    }
+}
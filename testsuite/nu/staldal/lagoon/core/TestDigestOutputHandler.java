@@ -0,0 +1,89 @@
+package nu.staldal.lagoon.core;
+
+import java.io.*;
+
+import junit.framework.*;
+
+import nu.staldal.lagoon.filestorage.MemoryFileStorage;
+
+public class TestDigestOutputHandler extends TestCase
+{
+    public TestDigestOutputHandler(String name)
+    {
+        super(name);
+    }
+
+    private File tempDir;
+    private MemoryFileStorage storage;
+    private OutputDigests digests;
+    private int stores;
+    private boolean datesKnown;
+
+
+    protected void setUp() throws Exception
+    {
+        tempDir = new File("digestOutputHandlerTest");
+        tempDir.mkdir();
+        stores = 0;
+        datesKnown = true;
+        storage = new MemoryFileStorage() {
+            public OutputHandler createFile(String path)
+            {
+                stores++;
+                return super.createFile(path);
+            }
+
+            public synchronized long fileLastModified(String path)
+            {
+                return datesKnown ? super.fileLastModified(path) : -1;
+            }
+        };
+        digests = new OutputDigests();
+    }
+
+    protected void tearDown() throws Exception
+    {
+        storage.close();
+        tempDir.delete();
+    }
+
+    private void produce(String path, String data)
+        throws IOException
+    {
+        OutputHandler oh =
+            DigestOutputHandler.create(storage, path, tempDir, digests);
+        oh.getOutputStream().write(data.getBytes("UTF-8"));
+        oh.commit();
+    }
+
+
+    public void testUnchanged() throws Exception
+    {
+        produce("/index.html", "index");
+        assertEquals(1, stores);
+        long date = digests.getDate("/index.html");
+        assertTrue(date > 0);
+
+        Thread.sleep(10);
+        produce("/index.html", "index");
+        assertEquals(1, stores);
+        assertTrue(digests.getDate("/index.html") > date);
+
+        produce("/index.html", "changed");
+        assertEquals(2, stores);
+        assertEquals("changed", new String(storage.getFile("/index.html")));
+        assertEquals(0, tempDir.list().length);
+    }
+
+    public void testUnknownDate() throws Exception
+    {
+        produce("/index.html", "index");
+        storage.deleteFile("/index.html");
+        datesKnown = false;
+
+        // the storage doesn't know if the file is there, store it again
+        produce("/index.html", "index");
+        assertEquals(2, stores);
+        assertEquals("index", new String(storage.getFile("/index.html")));
+    }
+}
@@ -0,0 +1,360 @@
+package nu.staldal.lagoon.core;
+
+import java.io.*;
+import java.util.*;
+
+import junit.framework.*;
+
+import org.xml.sax.InputSource;
+
+import nu.staldal.xtree.*;
+import nu.staldal.util.ThreadPool;
+import nu.staldal.lagoon.filestorage.MemoryFileStorage;
+
+/**
+ * Tests building with async targets, using &lt;island&gt; with an
+ * &lt;output&gt; into the mem: FileStorage, and with split targets,
+ * comparing the streaming split into mem: with the threaded split into
+ * a storage which is not reentrant.
+ */
+public class TestFileBuild extends TestCase
+{
+    private static final String SVG = "http://www.w3.org/2000/svg";
+
+    private static final String SITEMAP =
+        "<sitemap name='fileBuildTest'>"
+      + "<output name='svgout'><format type='xml'/></output>"
+      + "<output name='failout'><format type='xml'>"
+      + "<transform type='xslt' stylesheet='/missing.xsl'/>"
+      + "</format></output>"
+      + "<file target='/island.html' source='/island.xml'>"
+      + "<format type='xml'><transform type='island' namespace1='" + SVG
+      + "' output1='svgout' outputext1='.svg'><source/></transform>"
+      + "</format></file>"
+      + "<file target='/fail.html' source='/island.xml'>"
+      + "<format type='xml'><transform type='island' namespace1='" + SVG
+      + "' output1='failout' outputext1='.svg'><source/></transform>"
+      + "</format></file>"
+      + "<file target='/split/index.xml' source='/split.xml'>"
+      + "<format type='xml'><transform type='island' namespace1='" + SVG
+      + "' output1='svgout' outputext1='.svg'>"
+      + "<transform type='split' namespace='urn:s' element='part'"
+      + " outputname='[name].xml'><source/></transform></transform>"
+      + "</format></file>"
+      + "<part name='pic' source='/island.xml'><transform type='island'"
+      + " namespace1='" + SVG + "' output1='svgout' outputext1='.svg'>"
+      + "<source/></transform></part>"
+      + "<part name='outer' source='part:pic'><source/></part>"
+      + "<file target='/one.html' source='part:pic'>"
+      + "<format type='xml'><source/></format></file>"
+      + "<file target='/two.html' source='part:pic'>"
+      + "<format type='xml'><source/></format></file>"
+      + "<file target='/three.html' source='part:outer'>"
+      + "<format type='xml'><source/></format></file>"
+      + "</sitemap>";
+
+    private static final String SPLIT =
+        "<doc xmlns='urn:d' xmlns:x='urn:x' xmlns:s='urn:s'>"
+      + "<head>not in any part</head>"
+      + "<s:part name='a'><x:p>A</x:p><p>default</p></s:part>"
+      + "<s:part name='b'><x:p>B</x:p><svg xmlns='" + SVG + "'>"
+      + "<rect x='1'/></svg></s:part>"
+      + "<s:part name='c' xmlns:y='urn:y'><y:p>C</y:p></s:part>"
+      + "</doc>";
+
+    public TestFileBuild(String name)
+    {
+        super(name);
+    }
+
+    private File root;
+    private File sourceDir;
+    private StringWriter errors;
+    private LagoonProcessor processor;
+    private MemoryFileStorage storage;
+
+
+    protected void setUp() throws Exception
+    {
+        root = new File("fileBuildTest").getAbsoluteFile();
+        delete(root);
+        sourceDir = new File(root, "src");
+        sourceDir.mkdirs();
+        errors = new StringWriter();
+    }
+
+    protected void tearDown() throws Exception
+    {
+        if (processor != null) processor.destroy();
+        delete(root);
+    }
+
+    private void open(int asyncThreads)
+        throws Exception
+    {
+        open("mem:", asyncThreads);
+    }
+
+    private void open(String targetURL, int asyncThreads)
+        throws Exception
+    {
+        if (processor != null) processor.destroy();
+        Element sitemap = TreeBuilder.parseXML(
+            new InputSource(new StringReader(SITEMAP)), false);
+        processor = new LagoonProcessor(targetURL, sitemap, sourceDir, null,
+            new PrintWriter(new StringWriter(), true),
+            new PrintWriter(errors, true), 
+            new File(root, "work-" + targetURL.substring(0, 
+                targetURL.indexOf(':'))));
+        processor.setAsyncThreads(asyncThreads);
+        storage = (MemoryFileStorage)processor.getTargetLocation();
+    }
+
+    private static void delete(File file)
+    {
+        File[] files = file.listFiles();
+        if (files != null)
+        {
+            for (int i = 0; i<files.length; i++) delete(files[i]);
+        }
+        file.delete();
+    }
+
+    private void writeSource(String name, String content)
+        throws IOException
+    {
+        Writer w = new OutputStreamWriter(
+            new FileOutputStream(new File(sourceDir, name)), "UTF-8");
+        w.write(content);
+        w.close();
+    }
+
+    private static String islands(int n)
+    {
+        StringBuffer sb = new StringBuffer();
+        sb.append("<html><body>");
+        for (int i = 1; i<=n; i++)
+        {
+            sb.append("<p>").append(i).append("</p><svg xmlns='")
+                .append(SVG).append("'><rect x='").append(i)
+                .append("'/></svg>");
+        }
+        sb.append("</body></html>");
+        return sb.toString();
+    }
+
+    private String getFile(String path)
+        throws IOException
+    {
+        byte[] data = storage.getFile(path);
+        return (data == null) ? null : new String(data, "UTF-8");
+    }
+
+    /**
+     * Fails if any thread in the pool is still busy, e.g. waiting for
+     * input which will never come.
+     */
+    private static void assertIdle(final ThreadPool pool)
+        throws InterruptedException
+    {
+        Thread t = new Thread() {
+            public void run()
+            {
+                try {
+                    pool.waitUntilIdle();
+                }
+                catch (InterruptedException e) {}
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+        t.join(10000);
+        assertTrue("pool thread left waiting", !t.isAlive());
+    }
+
+    private boolean build(String target)
+        throws IOException
+    {
+        return processor.buildTargets(new String[] { target }, false);
+    }
+
+
+    public void testIsland() throws Exception
+    {
+        open(2);
+        writeSource("island.xml", islands(2));
+
+        assertTrue(errors.toString(), build("/island.html"));
+
+        String page = getFile("/island.html");
+        assertTrue(page, page.indexOf("island.html_image1.svg") > 0);
+        assertTrue(page, page.indexOf("island.html_image2.svg") > 0);
+        assertTrue(page.indexOf("rect") < 0);
+        assertTrue(getFile("/island.html_image1.svg").indexOf("x=\"1\"") > 0);
+        assertTrue(getFile("/island.html_image2.svg").indexOf("x=\"2\"") > 0);
+        assertNull(getFile("/island.html_image3.svg"));
+        assertIdle(processor.getAsyncPool());
+    }
+
+    public void testOutputFailsBeforeInput() throws Exception
+    {
+        open(2);
+        writeSource("island.xml", islands(1));
+
+        assertTrue(!build("/fail.html"));
+
+        assertTrue(errors.toString(),
+            errors.toString().indexOf("missing.xsl") >= 0);
+        assertNull(getFile("/fail.html"));
+        assertNull(getFile("/fail.html_image1.svg"));
+        assertIdle(processor.getAsyncPool());
+
+        // the chain and the output can be used again
+        assertTrue(errors.toString(), build("/island.html"));
+        assertNotNull(getFile("/island.html_image1.svg"));
+    }
+
+    public void testAbortInIsland() throws Exception
+    {
+        open(2);
+        writeSource("island.xml", "<html><body><p>1</p><svg xmlns='" + SVG
+            + "'><rect x='1'/><rect></svg></body></html>");
+
+        assertTrue(!build("/island.html"));
+
+        assertNull(getFile("/island.html"));
+        assertNull(getFile("/island.html_image1.svg"));
+        assertIdle(processor.getAsyncPool());
+
+        writeSource("island.xml", islands(1));
+        assertTrue(errors.toString(), build("/island.html"));
+        assertNotNull(getFile("/island.html_image1.svg"));
+    }
+
+    public void testMoreIslandsThanThreads() throws Exception
+    {
+        open(2);
+        writeSource("island.xml", islands(10));
+
+        assertTrue(errors.toString(), build("/island.html"));
+
+        for (int i = 1; i<=10; i++)
+        {
+            String svg = getFile("/island.html_image" + i + ".svg");
+            assertNotNull("image" + i, svg);
+            assertTrue(svg, svg.indexOf("x=\"" + i + "\"") > 0);
+        }
+        assertIdle(processor.getAsyncPool());
+    }
+
+    /**
+     * Build the split page, and get all files built.
+     *
+     * @return (String)path -> (String)contents
+     */
+    private Hashtable buildSplit(String targetURL)
+        throws Exception
+    {
+        open(targetURL, 2);
+        assertTrue(errors.toString(), build("/split/index.xml"));
+
+        Hashtable result = new Hashtable();
+        Vector paths = storage.getFilesModifiedSince(0);
+        for (int i = 0; i<paths.size(); i++)
+        {
+            String path = (String)paths.elementAt(i);
+            result.put(path, getFile(path));
+        }
+        return result;
+    }
+
+    public void testSplit() throws Exception
+    {
+        writeSource("split.xml", SPLIT);
+
+        Hashtable threaded = buildSplit("memseq:");
+        assertTrue(!processor.getTargetLocation().isReentrant());
+        Hashtable streaming = buildSplit("mem:");
+        assertTrue(processor.getTargetLocation().isReentrant());
+
+        assertEquals(new TreeSet(threaded.keySet()), 
+            new TreeSet(streaming.keySet()));
+        for (Enumeration e = threaded.keys(); e.hasMoreElements(); )
+        {
+            String path = (String)e.nextElement();
+            assertEquals(path, threaded.get(path), streaming.get(path));
+        }
+
+        String a = (String)streaming.get("/split/a.xml");
+        assertNotNull(a);
+        assertTrue(a, a.indexOf("xmlns:x=\"urn:x\"") > 0);
+        assertTrue(a, a.indexOf("xmlns=\"urn:d\"") > 0);
+        assertTrue(a, a.indexOf("<x:p>A</x:p>") > 0);
+        assertTrue(a, a.indexOf("head") < 0);
+
+        String b = (String)streaming.get("/split/b.xml");
+        assertNotNull(b);
+        assertTrue(b, b.indexOf("index.xml_image1.svg") > 0);
+        assertTrue(b, b.indexOf("rect") < 0);
+        String svg = (String)streaming.get("/split/index.xml_image1.svg");
+        assertNotNull(svg);
+        assertTrue(svg, svg.indexOf("x=\"1\"") > 0);
+
+        String c = (String)streaming.get("/split/c.xml");
+        assertNotNull(c);
+        assertTrue(c, c.indexOf("xmlns:y=\"urn:y\"") > 0);
+
+        assertIdle(processor.getSplitPool());
+        assertIdle(processor.getAsyncPool());
+    }
+
+    public void testSplitMoreThanThreads() throws Exception
+    {
+        StringBuffer sb = new StringBuffer();
+        sb.append("<doc xmlns:s='urn:s'>");
+        for (int i = 0; i<20; i++)
+        {
+            sb.append("<s:part name='p").append(i).append("'>")
+                .append(i).append("</s:part>");
+        }
+        sb.append("</doc>");
+        writeSource("split.xml", sb.toString());
+
+        Hashtable threaded = buildSplit("memseq:");
+        Hashtable streaming = buildSplit("mem:");
+        assertEquals(threaded, streaming);
+        for (int i = 0; i<20; i++)
+        {
+            String p = (String)streaming.get("/split/p" + i + ".xml");
+            assertNotNull(p);
+            assertTrue(p, p.indexOf(">" + i + "<") > 0);
+        }
+        assertIdle(processor.getSplitPool());
+    }
+
+    public void testIslandInPart() throws Exception
+    {
+        open(2);
+        writeSource("island.xml", islands(1));
+
+        for (int build = 0; build<2; build++)
+        {
+            assertTrue(errors.toString(), processor.buildTargets(
+                new String[] { "/one.html", "/two.html", "/three.html" }, 
+                true));
+
+            String[] pages = { "one", "two", "three" };
+            for (int i = 0; i<pages.length; i++)
+            {
+                String image = pages[i] + ".html_image1.svg";
+                String page = getFile("/" + pages[i] + ".html");
+                assertTrue(page, page.indexOf("\"" + image + "\"") > 0);
+                assertNotNull(image, getFile("/" + image));
+
+                // must be written again in the next build
+                storage.deleteFile("/" + image);
+            }
+        }
+        assertIdle(processor.getAsyncPool());
+    }
+}
@@ -0,0 +1,135 @@
+package nu.staldal.lagoon.core;
+
+import java.io.*;
+import java.util.*;
+
+import junit.framework.*;
+
+import org.xml.sax.InputSource;
+
+import nu.staldal.xtree.*;
+
+public class TestRemoteFileStorage extends TestCase
+{
+    private static final String OLD_DATE_FILE =
+        "nu.staldal.lagoon.filestorage.RemoteFileStorage";
+
+    public TestRemoteFileStorage(String name)
+    {
+        super(name);
+    }
+
+    private File root;
+    private LagoonProcessor processor;
+
+    protected void setUp() throws Exception
+    {
+        root = new File("remoteFileStorageTest").getAbsoluteFile();
+        delete(root);
+        File sourceDir = new File(root, "src");
+        sourceDir.mkdirs();
+
+        Element sitemap = TreeBuilder.parseXML(new InputSource(
+            new StringReader("<sitemap name='remoteTest'/>")), false);
+        processor = new LagoonProcessor("mem:", sitemap, sourceDir, null,
+            new PrintWriter(new StringWriter(), true),
+            new PrintWriter(new StringWriter(), true),
+            new File(root, "work"));
+    }
+
+    protected void tearDown() throws Exception
+    {
+        processor.destroy();
+        delete(root);
+    }
+
+    private static void delete(File file)
+    {
+        File[] files = file.listFiles();
+        if (files != null)
+        {
+            for (int i = 0; i<files.length; i++) delete(files[i]);
+        }
+        file.delete();
+    }
+
+    /**
+     * A RemoteFileStorage which doesn't store anything.
+     */
+    static class DateOnlyFileStorage extends RemoteFileStorage
+    {
+        public boolean needPassword() { return false; }
+
+        public boolean isReentrant() { return false; }
+
+        public void open(String url, LagoonContext context, String password)
+            throws IOException
+        {
+            openDateFile(context);
+        }
+
+        public void close() throws IOException
+        {
+            closeDateFile();
+        }
+
+        public OutputHandler createFile(String path)
+        {
+            return null;
+        }
+
+        public void deleteFile(String path) {}
+
+        void stored(String path) throws IOException
+        {
+            fileModified(path);
+        }
+    }
+
+    private DateOnlyFileStorage open() throws IOException
+    {
+        DateOnlyFileStorage fs = new DateOnlyFileStorage();
+        fs.open("test:", processor, null);
+        return fs;
+    }
+
+    public void testImportOldDateFile() throws Exception
+    {
+        Hashtable old = new Hashtable();
+        old.put("/index.html", new Long(1000));
+        old.put("/sub/page.html", new Long(2000));
+        File oldFile = new File(processor.getRepositoryDir(), OLD_DATE_FILE);
+        ObjectOutputStream oos =
+            new ObjectOutputStream(new FileOutputStream(oldFile));
+        oos.writeObject(old);
+        oos.close();
+
+        DateOnlyFileStorage fs = open();
+        assertEquals(1000, fs.fileLastModified("/index.html"));
+        assertEquals(2000, fs.fileLastModified("/sub/page.html"));
+        assertEquals(-1, fs.fileLastModified("/other.html"));
+        assertTrue(!oldFile.exists());
+
+        fs.stored("/index.html");
+        long stored = fs.fileLastModified("/index.html");
+        assertTrue(stored > 1000);
+        fs.close();
+
+        fs = open();
+        assertEquals(stored, fs.fileLastModified("/index.html"));
+        assertEquals(2000, fs.fileLastModified("/sub/page.html"));
+        fs.close();
+    }
+
+    public void testCorruptOldDateFile() throws Exception
+    {
+        File oldFile = new File(processor.getRepositoryDir(), OLD_DATE_FILE);
+        OutputStream os = new FileOutputStream(oldFile);
+        os.write("not serialized".getBytes("US-ASCII"));
+        os.close();
+
+        DateOnlyFileStorage fs = open();
+        assertEquals(-1, fs.fileLastModified("/index.html"));
+        fs.close();
+    }
+}
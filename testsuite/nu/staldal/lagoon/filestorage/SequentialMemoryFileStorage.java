@@ -0,0 +1,14 @@
+package nu.staldal.lagoon.filestorage;
+
+/**
+ * A MemoryFileStorage which is not reentrant, so that files are built
+ * one at a time. Used to test the build paths for such storages,
+ * with the URL <code>memseq:</code>.
+ */
+public class SequentialMemoryFileStorage extends MemoryFileStorage
+{
+    public boolean isReentrant()
+    {
+        return false;
+    }
+}
@@ -0,0 +1,179 @@
+package nu.staldal.lagoon.filestorage;
+
+import nu.staldal.lagoon.core.*;
+import nu.staldal.util.TarInputStream;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.*;
+
+import junit.framework.*;
+
+public class TestArchiveFileStorage extends TestCase
+{
+    public TestArchiveFileStorage(String name)
+    {
+        super(name);
+    }
+
+    private File root;
+
+
+    protected void setUp() throws Exception
+    {
+        root = new File("archiveFileStorageTest").getAbsoluteFile();
+        delete(root);
+        root.mkdirs();
+    }
+
+    protected void tearDown() throws Exception
+    {
+        delete(root);
+    }
+
+    private static void delete(File file)
+    {
+        File[] files = file.listFiles();
+        if (files != null)
+        {
+            for (int i = 0; i<files.length; i++) delete(files[i]);
+        }
+        file.delete();
+    }
+
+    private static void store(FileStorage fs, String path, String data)
+        throws IOException
+    {
+        OutputHandler oh = fs.createFile(path);
+        oh.getOutputStream().write(data.getBytes("UTF-8"));
+        oh.commit();
+    }
+
+    /**
+     * Read all files in an archive.
+     *
+     * @return (String)path -> (String)contents
+     */
+    private static Hashtable read(File file)
+        throws IOException
+    {
+        Hashtable files = new Hashtable();
+        if (file.getName().endsWith(".zip"))
+        {
+            ZipInputStream in = new ZipInputStream(new FileInputStream(file));
+            ZipEntry ent;
+            while ((ent = in.getNextEntry()) != null)
+            {
+                files.put("/" + ent.getName(), readAll(in));
+            }
+            in.close();
+        }
+        else
+        {
+            InputStream is = new FileInputStream(file);
+            if (file.getName().endsWith(".gz")) is = new GZIPInputStream(is);
+            TarInputStream in = new TarInputStream(is);
+            String name;
+            while ((name = in.getNextEntry()) != null)
+            {
+                assertTrue(in.isFile());
+                files.put("/" + name, readAll(in));
+            }
+            in.close();
+        }
+        return files;
+    }
+
+    private static String readAll(InputStream in)
+        throws IOException
+    {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        byte[] b = new byte[100];
+        int n;
+        while ((n = in.read(b)) >= 0) buf.write(b, 0, n);
+        return buf.toString("UTF-8");
+    }
+
+    private void archive(String name) throws Exception
+    {
+        File file = new File(root, name);
+        String url = name.substring(name.lastIndexOf('.')+1).equals("zip")
+            ? "zip:" + file : "tar:" + file;
+        StringBuffer longPath = new StringBuffer();
+        for (int i = 0; i<12; i++) longPath.append("/directory" + i);
+        longPath.append("/file.html");
+
+        FileStorage fs = new ArchiveFileStorage();
+        fs.open(url, null, null);
+        assertEquals(0, fs.fileLastModified("/index.html"));
+        store(fs, "/index.html", "index");
+        store(fs, "/foo/one.html", "one");
+        store(fs, "/foo/two.html", "two");
+        store(fs, longPath.toString(), "long");
+        OutputHandler oh = fs.createFile("/foo/discarded.html");
+        oh.getOutputStream().write(56);
+        oh.discard();
+        assertTrue(fs.fileLastModified("/foo/one.html") > 0);
+        assertTrue(!file.exists());
+        fs.close();
+
+        Hashtable files = read(file);
+        assertEquals(4, files.size());
+        assertEquals("index", files.get("/index.html"));
+        assertEquals("two", files.get("/foo/two.html"));
+        assertEquals("long", files.get(longPath.toString()));
+
+        // nothing changed, the archive is not rewritten
+        long modified = file.lastModified();
+        Thread.sleep(1100);
+        fs = new ArchiveFileStorage();
+        fs.open(url, null, null);
+        assertTrue(fs.fileLastModified("/foo/one.html") > 0);
+        fs.close();
+        assertEquals(modified, file.lastModified());
+
+        // patch the archive
+        fs = new ArchiveFileStorage();
+        fs.open(url, null, null);
+        long before = fs.fileLastModified("/foo/two.html");
+        store(fs, "/foo/two.html", "two again");
+        assertTrue(fs.fileLastModified("/foo/two.html") > before);
+        store(fs, "/bar/three.html", "three");
+        fs.deleteFile("/foo/one.html");
+        fs.deleteFile("/nonexistent.html");
+        assertEquals(0, fs.fileLastModified("/foo/one.html"));
+        try {
+            store(fs, "/bar/three.html", "three again");
+            fail("IOException expected");
+        }
+        catch (IOException e)
+        {
+            // expected
+        }
+        fs.close();
+
+        files = read(file);
+        assertEquals(4, files.size());
+        assertEquals("index", files.get("/index.html"));
+        assertEquals("two again", files.get("/foo/two.html"));
+        assertEquals("three", files.get("/bar/three.html"));
+        assertEquals("long", files.get(longPath.toString()));
+        assertEquals(1, root.list().length);
+    }
+
+
+    public void testZip() throws Exception
+    {
+        archive("site.zip");
+    }
+
+    public void testTar() throws Exception
+    {
+        archive("site.tar");
+    }
+
+    public void testTarGz() throws Exception
+    {
+        archive("site.tar.gz");
+    }
+}
@@ -0,0 +1,165 @@
+package nu.staldal.lagoon.filestorage;
+
+import nu.staldal.lagoon.core.*;
+import nu.staldal.util.TarInputStream;
+
+import java.io.*;
+
+import junit.framework.*;
+
+public class TestMemoryFileStorage extends TestCase
+{
+    public TestMemoryFileStorage(String name)
+    {
+        super(name);
+    }
+
+    private MemoryFileStorage fs;
+
+
+    protected void setUp() throws Exception
+    {
+        fs = new MemoryFileStorage();
+        fs.open("mem:", null, null);
+    }
+
+    protected void tearDown() throws Exception
+    {
+        fs.close();
+    }
+
+    private static void delete(File file)
+    {
+        File[] files = file.listFiles();
+        if (files != null)
+        {
+            for (int i = 0; i<files.length; i++) delete(files[i]);
+        }
+        file.delete();
+    }
+
+    private void store(String path, String data)
+        throws IOException
+    {
+        OutputHandler oh = fs.createFile(path);
+        oh.getOutputStream().write(data.getBytes("UTF-8"));
+        oh.commit();
+    }
+
+    public void testMemoryFileStorage() throws Exception
+    {
+        assertTrue(fs.isReentrant());
+
+        // several files open at the same time
+        OutputHandler oh1 = fs.createFile("/one.html");
+        OutputHandler oh2 = fs.createFile("/foo/two.html");
+        oh1.getOutputStream().write(new byte[] { 'o', 'n' });
+        oh2.getOutputStream().write(new byte[] { 't', 'w', 'o' });
+        assertEquals(0, fs.fileLastModified("/one.html"));
+        oh1.getOutputStream().write('e');
+        oh2.commit();
+        oh1.commit();
+        assertEquals("one", new String(fs.getFile("/one.html")));
+        assertEquals("two", new String(fs.getFile("/foo/two.html")));
+        assertTrue(fs.fileLastModified("/one.html") > 0);
+        assertEquals(6, fs.getTotalSize());
+
+        long before = fs.fileLastModified("/one.html");
+        store("/one.html", "one again");
+        assertTrue(fs.fileLastModified("/one.html") > before);
+        assertEquals(12, fs.getTotalSize());
+
+        OutputHandler oh = fs.createFile("/foo/two.html");
+        oh.getOutputStream().write(56);
+        oh.discard();
+        assertNull(fs.getFile("/foo/two.html"));
+        assertEquals(0, fs.fileLastModified("/foo/two.html"));
+        assertEquals(9, fs.getTotalSize());
+
+        fs.deleteFile("/one.html");
+        fs.deleteFile("/nonexistent.html");
+        assertEquals(0, fs.getTotalSize());
+    }
+
+    public void testLimit() throws Exception
+    {
+        fs.setLimit(10);
+        store("/one.html", "12345");
+        store("/two.html", "12345");
+        try {
+            store("/three.html", "1");
+            fail("IOException expected");
+        }
+        catch (IOException e)
+        {
+            // expected
+        }
+        assertNull(fs.getFile("/three.html"));
+
+        // replacing a file only counts the difference
+        store("/two.html", "54321");
+        fs.deleteFile("/one.html");
+        store("/three.html", "1");
+        assertEquals(6, fs.getTotalSize());
+    }
+
+    public void testLimitWhileWriting() throws Exception
+    {
+        fs.setLimit(10);
+        OutputHandler oh1 = fs.createFile("/one.html");
+        OutputHandler oh2 = fs.createFile("/two.html");
+        oh1.getOutputStream().write(new byte[] { 1, 2, 3, 4, 5, 6 });
+        oh2.getOutputStream().write(new byte[] { 1, 2, 3 });
+        oh2.getOutputStream().write(4);
+        try {
+            oh2.getOutputStream().write(5);
+            fail("IOException expected");
+        }
+        catch (IOException e)
+        {
+            // expected
+        }
+        assertEquals(0, fs.getTotalSize());
+
+        // the bytes written to a discarded file are not counted any more
+        oh2.discard();
+        oh1.commit();
+        assertEquals(6, fs.getTotalSize());
+        store("/three.html", "1234");
+        assertEquals(10, fs.getTotalSize());
+    }
+
+    public void testDateNotAhead() throws Exception
+    {
+        for (int i = 0; i<3000; i++) store("/one.html", "one");
+        assertTrue(fs.fileLastModified("/one.html") 
+            <= System.currentTimeMillis() + 1000);
+    }
+
+    public void testDump() throws Exception
+    {
+        store("/index.html", "index");
+        store("/foo/bar/one.html", "one");
+        store("/foo/two.html", "two");
+
+        File dir = new File("memoryFileStorageTest");
+        delete(dir);
+        fs.dump(dir);
+        assertTrue(new File(dir, "foo/bar/one.html").isFile());
+        assertEquals(5, new File(dir, "index.html").length());
+        assertEquals(fs.fileLastModified("/foo/two.html") / 1000,
+            new File(dir, "foo/two.html").lastModified() / 1000);
+        delete(dir);
+
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        fs.dump(buf);
+        TarInputStream tar = new TarInputStream(
+            new ByteArrayInputStream(buf.toByteArray()));
+        assertEquals("foo/bar/one.html", tar.getNextEntry());
+        assertEquals(3, tar.getSize());
+        assertEquals("foo/two.html", tar.getNextEntry());
+        assertEquals('t', tar.read());
+        assertEquals("index.html", tar.getNextEntry());
+        assertNull(tar.getNextEntry());
+    }
+}
@@ -0,0 +1,186 @@
+package nu.staldal.lagoon.filestorage;
+
+import nu.staldal.lagoon.core.*;
+
+import java.io.*;
+
+import junit.framework.*;
+
+/**
+ * Tests SSHFileStorage with a fake ssh command, which runs the 
+ * remote command locally. Requires a UNIX style shell.
+ */
+public class TestSSHFileStorageLoopback extends TestCase
+{
+    public TestSSHFileStorageLoopback(String name)
+    {
+        super(name);
+    }
+
+    private File root;
+    private File log;
+    private SSHFileStorage fs;
+
+
+    protected void setUp() throws Exception
+    {
+        root = new File("sshFileStorageTest").getAbsoluteFile();
+        delete(root);
+        new File(root, "site").mkdirs();
+        log = new File(root, "ssh.log");
+        fs = openStorage(null);
+    }
+
+    /**
+     * Open a storage with a fake ssh command, which puts 
+     * <code>binDir</code> first in the path if not null.
+     */
+    private SSHFileStorage openStorage(File binDir)
+        throws IOException
+    {
+        File script = new File(root, "fakessh");
+        PrintWriter pw = new PrintWriter(new FileWriter(script));
+        pw.println("echo \"$@\" >> '" + log + "'");
+        if (binDir != null)
+            pw.println("PATH='" + binDir + "':$PATH; export PATH");
+        pw.println("while [ $# -gt 0 ]; do case \"$1\" in");
+        pw.println("-e|-l|-p) shift 2;; -*) shift;; *) shift; break;;");
+        pw.println("esac; done");
+        pw.println("exec sh -c \"$*\"");
+        pw.close();
+
+        SSHFileStorage storage = new SSHFileStorage();
+        storage.setSSHCommand("sh " + script);
+        storage.open("ssh://joe@localhost/" + root + "/site/", null, null);
+        return storage;
+    }
+
+    protected void tearDown() throws Exception
+    {
+        delete(root);
+    }
+
+    private static void delete(File file)
+    {
+        File[] files = file.listFiles();
+        if (files != null)
+        {
+            for (int i = 0; i<files.length; i++) delete(files[i]);
+        }
+        file.delete();
+    }
+
+    private void store(String path, byte[] data)
+        throws IOException
+    {
+        OutputHandler oh = fs.createFile(path);
+        oh.getOutputStream().write(data);
+        oh.commit();
+    }
+
+    private byte[] read(String path)
+        throws IOException
+    {
+        File file = new File(root, "site" + path);
+        assertTrue(path + " not found", file.isFile());
+        InputStream is = new FileInputStream(file);
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        int i;
+        while ((i = is.read()) >= 0) buf.write(i);
+        is.close();
+        return buf.toByteArray();
+    }
+
+    private int sessions()
+        throws IOException
+    {
+        BufferedReader in = new BufferedReader(new FileReader(log));
+        int n = 0;
+        while (in.readLine() != null) n++;
+        in.close();
+        return n;
+    }
+
+
+    public void testSession() throws Exception
+    {
+        byte[] binary = new byte[200000];
+        for (int i = 0; i<binary.length; i++) binary[i] = (byte)i;
+
+        store("/index.html", "index\n".getBytes());
+        store("/foo/bar/one.html", "one".getBytes());
+        store("/foo/bar/two.html", "two".getBytes());
+        store("/foo/empty.html", new byte[0]);
+        store("/foo/binary.bin", binary);
+        store("/foo/bar/two.html", "two again".getBytes());
+
+        OutputHandler oh = fs.createFile("/foo/bar/one.html");
+        oh.getOutputStream().write(56);
+        oh.discard();
+
+        fs.deleteFile("/index.html");
+        fs.deleteFile("/nonexistent.html");
+        store("/bar/three.html", "three".getBytes());
+        fs.close();
+
+        assertEquals(1, sessions());
+        assertEquals("two again", new String(read("/foo/bar/two.html")));
+        assertEquals(0, read("/foo/empty.html").length);
+        assertTrue(java.util.Arrays.equals(binary, read("/foo/binary.bin")));
+        assertEquals("three", new String(read("/bar/three.html")));
+        assertTrue(!new File(root, "site/foo/bar/one.html").exists());
+        assertTrue(!new File(root, "site/index.html").exists());
+        assertEquals(3, new File(root, "site/foo").list().length);
+        assertTrue(fs.fileLastModified("/foo/binary.bin") > 0);
+        assertTrue(fs.fileLastModified("/nonexistent.html") < 0);
+    }
+
+    public void testFailure() throws Exception
+    {
+        store("/file", "file".getBytes());
+        store("/file/below.html", "below".getBytes());
+        store("/after.html", "after".getBytes());
+        try {
+            fs.close();
+            fail("IOException expected");
+        }
+        catch (IOException e)
+        {
+            // expected
+        }
+
+        assertEquals("file", new String(read("/file")));
+        assertEquals("after", new String(read("/after.html")));
+        assertTrue(fs.fileLastModified("/file/below.html") < 0);
+        assertTrue(fs.fileLastModified("/after.html") > 0);
+    }
+
+    public void testHeadReadsAhead() throws Exception
+    {
+        fs.close();
+        log.delete();
+
+        // like BSD head, reads a whole block from the pipe
+        File binDir = new File(root, "bin");
+        binDir.mkdirs();
+        File head = new File(binDir, "head");
+        PrintWriter pw = new PrintWriter(new FileWriter(head));
+        pw.println("#!/bin/sh");
+        pw.println("dd bs=65536 count=1 2>/dev/null | dd bs=1 count=$2 2>/dev/null");
+        pw.close();
+        Runtime.getRuntime().exec(
+            new String[] { "chmod", "755", head.getPath() }).waitFor();
+
+        fs = openStorage(binDir);
+        store("/index.html", "index\n".getBytes());
+        store("/foo/bar/one.html", "one".getBytes());
+        fs.deleteFile("/index.html");
+        store("/foo/two.html", "two".getBytes());
+        fs.close();
+
+        assertEquals(5, sessions());
+        assertEquals("one", new String(read("/foo/bar/one.html")));
+        assertEquals("two", new String(read("/foo/two.html")));
+        assertTrue(!new File(root, "site/index.html").exists());
+    }
+}
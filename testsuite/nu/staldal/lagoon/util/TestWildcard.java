@@ -0,0 +1,30 @@
+package nu.staldal.lagoon.util;
+
+import junit.framework.*;
+
+public class TestWildcard extends TestCase
+{
+    public TestWildcard(String name)
+    {
+        super(name);
+    }
+	
+    public void testMatchGlob()
+    {
+		assertTrue(Wildcard.matchGlob("/a/b.html", "/a/b.html"));
+		assertFalse(Wildcard.matchGlob("/a/b.html", "/a/b.htm"));
+		assertTrue(Wildcard.matchGlob("/a/*.html", "/a/b.html"));
+		assertFalse(Wildcard.matchGlob("/a/*.html", "/a/c/b.html"));
+		assertTrue(Wildcard.matchGlob("/a/**", "/a/c/b.html"));
+		assertTrue(Wildcard.matchGlob("/**/b.html", "/a/c/b.html"));
+		assertTrue(Wildcard.matchGlob("/a/?.html", "/a/b.html"));
+		assertFalse(Wildcard.matchGlob("/a?b.html", "/a/b.html"));
+    }
+
+    public void testGlobPrefix()
+    {
+		assertEquals("/a/", Wildcard.globPrefix("/a/*.html"));
+		assertEquals("/a/b", Wildcard.globPrefix("/a/b?.html"));
+		assertEquals("/a/b.html", Wildcard.globPrefix("/a/b.html"));
+    }
+}
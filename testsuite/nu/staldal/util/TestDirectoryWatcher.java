@@ -0,0 +1,115 @@
+package nu.staldal.util;
+
+import java.io.*;
+import java.util.*;
+
+import junit.framework.*;
+
+public class TestDirectoryWatcher extends TestCase
+{
+    private File root;
+
+    public TestDirectoryWatcher(String name)
+    {
+        super(name);
+    }
+
+    protected void setUp() throws Exception
+    {
+        root = new File("watcherTest").getAbsoluteFile();
+        delete(root);
+        new File(root, "sub").mkdirs();
+        new File(root, "out").mkdirs();
+        touch("a.txt");
+        touch("sub/b.txt");
+        touch("out/x.txt");
+    }
+
+    protected void tearDown() throws Exception
+    {
+        delete(root);
+    }
+
+    private static void delete(File file)
+    {
+        File[] files = file.listFiles();
+        if (files != null)
+        {
+            for (int i = 0; i<files.length; i++) delete(files[i]);
+        }
+        file.delete();
+    }
+
+    private File touch(String name) throws IOException
+    {
+        File file = new File(root, name);
+        new FileOutputStream(file).close();
+        return file;
+    }
+
+    private static Set paths(File[] files)
+    {
+        Set s = new HashSet();
+        for (int i = 0; i<files.length; i++) s.add(files[i].getPath());
+        return s;
+    }
+
+    public void testPoll() throws Exception
+    {
+        DirectoryWatcher watcher =
+            new DirectoryWatcher(root, new File(root, "out"));
+        assertEquals(0, watcher.poll().length);
+
+        File a = new File(root, "a.txt");
+        a.setLastModified(a.lastModified() - 10000);
+        File c = touch("sub/c.txt");
+        File b = new File(root, "sub/b.txt");
+        b.delete();
+        File y = touch("out/y.txt");
+
+        Set changed = paths(watcher.poll());
+        assertTrue(changed.toString(), changed.contains(a.getPath()));
+        assertTrue(changed.toString(), changed.contains(b.getPath()));
+        assertTrue(changed.toString(), changed.contains(c.getPath()));
+        assertTrue(changed.toString(), !changed.contains(y.getPath()));
+
+        assertEquals(0, watcher.poll().length);
+    }
+
+    public void testWaitForChanges() throws Exception
+    {
+        DirectoryWatcher watcher = new DirectoryWatcher(root, null);
+        final File a = new File(root, "a.txt");
+        final long date = a.lastModified() - 10000;
+
+        Thread t = new Thread() {
+            public void run()
+            {
+                try {
+                    Thread.sleep(100);
+                }
+                catch (InterruptedException e) {}
+                a.setLastModified(date);
+            }
+        };
+        t.start();
+
+        File[] changed = watcher.waitForChanges(10, 50);
+        t.join();
+        assertEquals(1, changed.length);
+        assertEquals(a.getPath(), changed[0].getPath());
+    }
+
+    public void testPollDelay() throws Exception
+    {
+        for (int i = 0; i<100; i++) touch("sub/f" + i + ".txt");
+        DirectoryWatcher watcher = new DirectoryWatcher(root, null);
+        watcher.poll();
+
+        long scanTime = watcher.getScanTime();
+        assertTrue(scanTime >= 0);
+        assertEquals(Math.max(1, DirectoryWatcher.SCAN_FACTOR*scanTime),
+            watcher.getPollDelay(1));
+        assertEquals(1000000, watcher.getPollDelay(1000000));
+    }
+}
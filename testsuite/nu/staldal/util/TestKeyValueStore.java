@@ -0,0 +1,118 @@
+package nu.staldal.util;
+
+import java.io.*;
+
+import junit.framework.*;
+
+public class TestKeyValueStore extends TestCase
+{
+    public TestKeyValueStore(String name)
+    {
+        super(name);
+    }
+
+    private File file;
+
+
+    protected void setUp() throws Exception
+    {
+        file = new File("keyValueStoreTest.kv");
+        file.delete();
+    }
+
+    protected void tearDown() throws Exception
+    {
+        file.delete();
+        new File(file.getPath() + ".new").delete();
+    }
+
+    private static byte[] bytes(String s) throws Exception
+    {
+        return s.getBytes("UTF-8");
+    }
+
+    private static String string(byte[] b) throws Exception
+    {
+        return (b == null) ? null : new String(b, "UTF-8");
+    }
+
+
+    public void testKeyValueStore() throws Exception
+    {
+        KeyValueStore store = new KeyValueStore(file);
+        assertNull(store.get("a"));
+
+        store.put("a", bytes("first"));
+        store.put("b", bytes("second"));
+        store.put("a", bytes("third"));
+        store.put("c", new byte[0]);
+        store.remove("b");
+        assertEquals("third", string(store.get("a")));
+        assertNull(store.get("b"));
+        assertEquals(0, store.get("c").length);
+        store.commit();
+        assertEquals("third", string(store.get("a")));
+        store.close();
+
+        store = new KeyValueStore(file);
+        assertEquals(2, store.size());
+        assertEquals("third", string(store.get("a")));
+        assertNull(store.get("b"));
+        assertEquals(0, store.get("c").length);
+        store.close();
+    }
+
+
+    public void testTruncated() throws Exception
+    {
+        KeyValueStore store = new KeyValueStore(file);
+        store.put("a", bytes("first"));
+        store.commit();
+        long length = file.length();
+        store.put("b", bytes("second"));
+        store.close();
+
+        // simulate a crash while writing the last record
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(file.length() - 3);
+        raf.close();
+
+        store = new KeyValueStore(file);
+        assertEquals("first", string(store.get("a")));
+        assertNull(store.get("b"));
+        assertEquals(length, file.length());
+        store.put("b", bytes("again"));
+        store.close();
+
+        store = new KeyValueStore(file);
+        assertEquals("first", string(store.get("a")));
+        assertEquals("again", string(store.get("b")));
+        store.close();
+    }
+
+
+    public void testCompact() throws Exception
+    {
+        KeyValueStore store = new KeyValueStore(file);
+        byte[] value = new byte[1000];
+        for (int i = 0; i<1000; i++)
+        {
+            value[0] = (byte)i;
+            store.put("key" + (i%10), value);
+        }
+        store.commit();
+        assertTrue(file.length() < 20000);
+        for (int i = 0; i<10; i++)
+        {
+            assertEquals((byte)(990+i), store.get("key" + i)[0]);
+        }
+        store.put("key0", bytes("new"));
+        store.close();
+
+        store = new KeyValueStore(file);
+        assertEquals(10, store.size());
+        assertEquals("new", string(store.get("key0")));
+        assertEquals((byte)999, store.get("key9")[0]);
+        store.close();
+    }
+}
@@ -0,0 +1,76 @@
+package nu.staldal.util;
+
+import java.io.*;
+
+import junit.framework.*;
+
+public class TestPipe extends TestCase
+{
+	private IOException writeException;
+
+    public TestPipe(String name)
+    {
+        super(name);
+    }
+	
+    public void testTransfer()
+		throws Exception
+    {
+		final byte[] data = new byte[100000];
+		for (int i = 0; i<data.length; i++) data[i] = (byte)(i*31);
+
+		final Pipe pipe = new Pipe(1000);
+		Thread writer = new Thread() {
+			public void run()
+			{
+				try {
+					OutputStream out = pipe.getOutputStream();
+					out.write(data, 0, 50000);
+					for (int i = 50000; i<60000; i++) out.write(data[i]);
+					out.write(data, 60000, data.length-60000);
+					out.close();
+				}
+				catch (IOException e)
+				{
+					writeException = e;
+				}
+			}
+		};
+		writer.start();
+
+		InputStream in = pipe.getInputStream();
+		ByteArrayOutputStream result = new ByteArrayOutputStream();
+		byte[] buf = new byte[777];
+		while (true)
+		{
+			int n = in.read(buf, 0, buf.length);
+			if (n < 0) break;
+			result.write(buf, 0, n);
+			int b = in.read();
+			if (b < 0) break;
+			result.write(b);
+		}
+		writer.join();
+		assertNull(writeException);
+
+		byte[] got = result.toByteArray();
+		assertEquals(data.length, got.length);
+		for (int i = 0; i<data.length; i++)
+			assertEquals(data[i], got[i]);
+    }
+
+	public void testBrokenPipe()
+		throws Exception
+	{
+		final Pipe pipe = new Pipe(10);
+		pipe.getInputStream().close();
+		try {
+			pipe.getOutputStream().write(new byte[20], 0, 20);
+			fail("IOException expected");
+		}
+		catch (IOException e)
+		{
+			assertTrue(pipe.isReadClosed());
+		}
+	}
+}
@@ -0,0 +1,46 @@
+package nu.staldal.util;
+
+import java.util.Vector;
+
+import junit.framework.*;
+
+public class TestPrefixTrie extends TestCase
+{
+    public TestPrefixTrie(String name)
+    {
+        super(name);
+    }
+	
+    public void testWithPrefix()
+    {
+		PrefixTrie trie = new PrefixTrie();
+		trie.put("/a/b.html", "b");
+		trie.put("/a/c/", "c");
+		trie.put("/d.html", "d");
+		trie.put("/a/b.html", "b2");
+
+		Vector v = trie.getWithPrefix("/a/");
+		assertEquals(3, v.size());
+		assertTrue(v.contains("b"));
+		assertTrue(v.contains("b2"));
+		assertTrue(v.contains("c"));
+
+		assertEquals(4, trie.getWithPrefix("").size());
+		assertEquals(0, trie.getWithPrefix("/x").size());
+    }
+
+    public void testPrefixesOf()
+    {
+		PrefixTrie trie = new PrefixTrie();
+		trie.put("", "root");
+		trie.put("/a/", "a");
+		trie.put("/a/b", "b");
+
+		Vector v = trie.getPrefixesOf("/a/c.html");
+		assertEquals(2, v.size());
+		assertTrue(v.contains("root"));
+		assertTrue(v.contains("a"));
+
+		assertEquals(3, trie.getPrefixesOf("/a/b").size());
+    }
+}
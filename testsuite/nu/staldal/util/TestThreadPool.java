@@ -0,0 +1,80 @@
+package nu.staldal.util;
+
+import junit.framework.*;
+
+public class TestThreadPool extends TestCase
+{
+	private int count;
+	
+    public TestThreadPool(String name)
+    {
+        super(name);
+    }
+	
+	private synchronized void increment()
+	{
+		count++;
+	}
+	
+    public void testWaitUntilIdle()
+		throws Exception
+    {
+		count = 0;
+		final ThreadPool pool = new ThreadPool("Test", 4);
+		for (int i = 0; i<100; i++)
+		{
+			pool.execute(new Runnable() {
+				public void run()
+				{
+					increment();
+					pool.execute(new Runnable() {
+						public void run()
+						{
+							increment();
+						}
+					});
+				}
+			});
+		}
+		pool.waitUntilIdle();
+		pool.shutdown();
+		assertEquals(200, count);
+    }
+
+    public void testFailingTask()
+		throws Exception
+    {
+		count = 0;
+		ThreadPool pool = new ThreadPool("Test", 2);
+		for (int i = 0; i<10; i++)
+		{
+			pool.execute(new Runnable() {
+				public void run()
+				{
+					throw new StackOverflowError();
+				}
+			});
+			pool.execute(new Runnable() {
+				public void run()
+				{
+					increment();
+				}
+			});
+		}
+		pool.waitUntilIdle();
+		pool.shutdown();
+		assertEquals(10, count);
+    }
+
+    public void testShutdown()
+    {
+		ThreadPool pool = new ThreadPool("Test", 1);
+		pool.shutdown();
+		try {
+			pool.execute(new Runnable() { public void run() {} });
+			fail("IllegalStateException expected");
+		}
+		catch (IllegalStateException e) {}
+    }
+		
+}
@@ -0,0 +1,125 @@
+package nu.staldal.xmlutil;
+
+import java.io.*;
+
+import javax.xml.parsers.*;
+import org.xml.sax.*;
+import org.xml.sax.helpers.DefaultHandler;
+
+import junit.framework.*;
+
+public class TestSAXEventBuffer extends TestCase
+{
+    public TestSAXEventBuffer(String name)
+    {
+        super(name);
+    }
+
+	
+	private void parse(ContentHandler ch) throws Exception
+	{
+		SAXParserFactory spf = SAXParserFactory.newInstance();
+		spf.setNamespaceAware(true);
+		XMLReader parser = spf.newSAXParser().getXMLReader();
+		parser.setContentHandler(ch);
+		parser.parse(new InputSource(
+			getClass().getResourceAsStream("/nu/staldal/xtree/xtree.xml")));
+	}
+
+	
+    public void testReplay() throws Exception
+	{
+		EventLog recorded = new EventLog();
+		SAXEventBuffer buf = new SAXEventBuffer(recorded, 1024*1024);
+		parse(buf);
+		assertFalse(buf.isOverflowed());
+		assertTrue(recorded.toString().length() > 0);
+		
+		EventLog replayed = new EventLog();
+		buf.replay(replayed);
+		assertEquals(recorded.toString(), replayed.toString());
+
+		replayed = new EventLog();
+		buf.replay(replayed);
+		assertEquals(recorded.toString(), replayed.toString());
+	}
+
+	
+    public void testOverflow() throws Exception
+	{
+		EventLog recorded = new EventLog();
+		SAXEventBuffer buf = new SAXEventBuffer(recorded, 100);
+		parse(buf);
+		assertTrue(buf.isOverflowed());
+
+		EventLog direct = new EventLog();
+		parse(direct);
+		assertEquals(direct.toString(), recorded.toString());
+		
+		try {
+			buf.replay(new EventLog());
+			fail("replay should fail when overflowed");
+		}
+		catch (IllegalStateException e)
+		{
+			// expected
+		}
+	}
+
+	
+	static class EventLog extends DefaultHandler
+	{
+		private final StringBuffer sb = new StringBuffer();
+
+		public void startDocument()
+		{
+			sb.append("startDocument\n");
+		}
+
+		public void endDocument()
+		{
+			sb.append("endDocument\n");
+		}
+
+		public void startElement(String namespaceURI, String localName,
+								 String qname, Attributes atts)
+		{
+			sb.append("startElement ").append(namespaceURI).append(' ')
+				.append(localName).append(' ').append(qname);
+			for (int i = 0; i<atts.getLength(); i++)
+			{
+				sb.append(' ').append(atts.getURI(i)).append(' ')
+					.append(atts.getLocalName(i)).append('=')
+					.append(atts.getValue(i));
+			}
+			sb.append('\n');
+		}
+
+		public void endElement(String namespaceURI, String localName,
+							   String qname)
+		{
+			sb.append("endElement ").append(localName).append('\n');
+		}
+
+		public void startPrefixMapping(String prefix, String uri)
+		{
+			sb.append("startPrefixMapping ").append(prefix).append(' ')
+				.append(uri).append('\n');
+		}
+
+		public void endPrefixMapping(String prefix)
+		{
+			sb.append("endPrefixMapping ").append(prefix).append('\n');
+		}
+
+		public void characters(char[] ch, int start, int length)
+		{
+			sb.append("characters ").append(ch, start, length).append('\n');
+		}
+
+		public String toString()
+		{
+			return sb.toString();
+		}
+	}
+}